@@ -0,0 +1,357 @@
+package edu.uw.spl.account;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import edu.uw.ext.framework.account.Account;
+import edu.uw.ext.framework.account.AccountException;
+
+/**Imports and exports accounts in bulk, through the account manager, so the manager's
+ * live accounts, credential index and balance table stay consistent with the accounts
+ * imported and exported. Records are streamed from the source in batches, so memory use
+ * is bounded by the batch size rather than the size of the source. Each batch is
+ * validated and hashed in parallel, screened for duplicates against a name set built
+ * once at the start of the import, and handed to the manager, which confirms each name
+ * under the account's lock and queues the batch's writes together.
+ * <p>
+ * Supported formats are JSON lines (one JSON object per line, in the format written by
+ * <code>exportJsonLines</code>) and CSV lines of the form
+ * <code>name,password,balance[,email,fullName,phone]</code>
+ * @author slajaunie
+ */
+public class AccountBulkLoader {
+
+    private static final Logger log = LoggerFactory.getLogger(AccountBulkLoader.class);
+
+    /**The default number of accounts processed per batch*/
+    public static final int DEFAULT_BATCH_SIZE = 1000;
+
+    private static final ObjectMapper MAPPER = new ObjectMapper()
+            .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+
+    /**The account manager accounts are read from and written through*/
+    private final AccountManagerImpl accountManager;
+
+    /**The number of accounts processed per batch*/
+    private final int batchSize;
+
+    /**Instantiates a new loader using the default batch size
+     * @param accountManager the account manager accounts are read from and written through
+     */
+    public AccountBulkLoader(final AccountManagerImpl accountManager) {
+        this(accountManager, DEFAULT_BATCH_SIZE);
+    }
+
+    /**Instantiates a new loader
+     * @param accountManager the account manager accounts are read from and written through
+     * @param batchSize the number of accounts processed per batch
+     */
+    public AccountBulkLoader(final AccountManagerImpl accountManager, final int batchSize) {
+        this.accountManager = accountManager;
+        this.batchSize = batchSize;
+    }
+
+    /**Imports every record supplied by the iterator. Invalid records and records naming an
+     * account which already exists, or which appeared earlier in the source, are skipped
+     * @param records the records to import
+     * @return the outcome of the import
+     * @throws AccountException if a batch could not be written
+     */
+    public Result importAccounts(final Iterator<BulkAccountRecord> records)
+                                                            throws AccountException {
+        long start = System.nanoTime();
+        Set<String> knownNames = ConcurrentHashMap.newKeySet();
+        knownNames.addAll(accountManager.getPersistedAccountNames());
+        AtomicInteger invalid = new AtomicInteger();
+        AtomicInteger duplicates = new AtomicInteger();
+        int imported = 0;
+
+        List<BulkAccountRecord> batch = new ArrayList<>(batchSize);
+        while (records.hasNext()) {
+            batch.clear();
+            while (records.hasNext() && batch.size() < batchSize) {
+                batch.add(records.next());
+            }
+            /*validate and hash in parallel, claiming each name as it's accepted*/
+            List<Account> accounts = batch.parallelStream()
+                    .map(record -> {
+                        Account account = toAccount(record);
+                        if (account == null) {
+                            invalid.incrementAndGet();
+                        } else if (!knownNames.add(account.getName())) {
+                            duplicates.incrementAndGet();
+                            account = null;
+                        }
+                        return account;
+                    })
+                    .filter(Objects::nonNull)
+                    .collect(Collectors.toList());
+            int written = write(accounts);
+            duplicates.addAndGet(accounts.size() - written);
+            imported += written;
+        }
+
+        Result result = new Result(imported, invalid.get(), duplicates.get(),
+                                    System.nanoTime() - start);
+        log.info("Bulk import finished: {}", result);
+        return result;
+    }
+
+    /**Imports accounts from a JSON lines source. Blank lines are ignored
+     * @param source the source to read
+     * @return the outcome of the import
+     * @throws AccountException if the source cannot be read or parsed, or a batch could
+     * not be written
+     */
+    public Result importJsonLines(final Reader source) throws AccountException {
+        return importLines(source, line -> {
+            try {
+                return MAPPER.readValue(line, BulkAccountRecord.class);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+    }
+
+    /**Imports accounts from a CSV source. Blank lines, lines starting with '#' and a
+     * header line starting with "name," are ignored. Fields may not contain commas
+     * @param source the source to read
+     * @return the outcome of the import
+     * @throws AccountException if the source cannot be read or parsed, or a batch could
+     * not be written
+     */
+    public Result importCsv(final Reader source) throws AccountException {
+        return importLines(source, line -> {
+            if (line.startsWith("#") || line.startsWith("name,")) {
+                return null;
+            }
+            String[] fields = line.split(",", -1);
+            if (fields.length < 3) {
+                throw new UncheckedIOException(
+                        new IOException("Expected name,password,balance but read: " + line));
+            }
+            BulkAccountRecord record;
+            try {
+                record = new BulkAccountRecord(fields[0].trim(), fields[1],
+                                               Integer.parseInt(fields[2].trim()));
+            } catch (NumberFormatException e) {
+                throw new UncheckedIOException(new IOException("Invalid balance: " + line, e));
+            }
+            record.setEmail(fields.length > 3 ? fields[3] : null);
+            record.setFullName(fields.length > 4 ? fields[4] : null);
+            record.setPhone(fields.length > 5 ? fields[5] : null);
+            return record;
+        });
+    }
+
+    /**Exports every persisted account as JSON lines, reading the accounts in parallel.
+     * Accounts are exported as the account manager streams them, so an account in use is
+     * exported as its live instance, and any balance not yet checkpointed is included.
+     * Accounts of a DAO unable to list them are not exported
+     * @param target the writer the accounts are written to
+     * @return the number of accounts exported
+     * @throws AccountException if the accounts cannot be listed, or the target cannot be
+     * written
+     */
+    public int exportJsonLines(final Writer target) throws AccountException {
+        AtomicInteger exported = new AtomicInteger();
+        try (Stream<Account> accounts = accountManager.streamAccounts()) {
+            accounts.parallel()
+                    .map(account -> {
+                        try {
+                            return MAPPER.writeValueAsString(account);
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                    })
+                    .forEachOrdered(line -> {
+                        try {
+                            target.write(line);
+                            target.write('\n');
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                        exported.incrementAndGet();
+                    });
+            target.flush();
+        } catch (IOException | UncheckedIOException e) {
+            throw new AccountException("Unable to export accounts", e);
+        }
+        log.info("Exported {} accounts", exported.get());
+        return exported.get();
+    }
+
+    /**Imports accounts from a line-oriented source
+     * @param source the source to read
+     * @param parser converts a line to a record, or null if the line should be skipped
+     * @return the outcome of the import
+     * @throws AccountException if the source cannot be read or parsed, or a batch could
+     * not be written
+     */
+    private Result importLines(final Reader source,
+                               final Function<String, BulkAccountRecord> parser)
+                                                                throws AccountException {
+        BufferedReader reader = new BufferedReader(source);
+        Iterator<BulkAccountRecord> records = new Iterator<BulkAccountRecord>() {
+            private BulkAccountRecord next;
+
+            @Override
+            public boolean hasNext() {
+                try {
+                    String line;
+                    while (next == null && (line = reader.readLine()) != null) {
+                        if (!line.trim().isEmpty()) {
+                            next = parser.apply(line);
+                        }
+                    }
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                return next != null;
+            }
+
+            @Override
+            public BulkAccountRecord next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                BulkAccountRecord record = next;
+                next = null;
+                return record;
+            }
+        };
+        try {
+            return importAccounts(records);
+        } catch (UncheckedIOException e) {
+            throw new AccountException("Unable to read account source", e.getCause());
+        }
+    }
+
+    /**Validates a record and converts it to an account, hashing its password if given in
+     * plaintext
+     * @param record the record to convert
+     * @return the account, or null if the record is not a valid account
+     */
+    private Account toAccount(final BulkAccountRecord record) {
+        if (record.getName() == null 
+                || record.getName().length() < AccountFactoryImpl.MIN_NAME_LENGTH
+                || record.getBalance() < AccountFactoryImpl.MIN_BALANCE) {
+            return null;
+        }
+        byte[] hashedPassword = record.getPasswordHash();
+        if (record.getPassword() != null) {
+            try {
+                hashedPassword = AccountManagerImpl.hashPassword(record.getPassword());
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+        if (hashedPassword == null) {
+            return null;
+        }
+        Account account = new AccountFactoryImpl()
+                .newAccount(record.getName(), hashedPassword, record.getBalance());
+        if (account != null) {
+            /*fields a record leaves out keep the account's defaults, which every DAO
+             *can store*/
+            if (record.getEmail() != null) {
+                account.setEmail(record.getEmail());
+            }
+            if (record.getFullName() != null) {
+                account.setFullName(record.getFullName());
+            }
+            if (record.getPhone() != null) {
+                account.setPhone(record.getPhone());
+            }
+            account.setAddress(record.getAddress());
+            account.setCreditCard(record.getCreditCard());
+        }
+        return account;
+    }
+
+    /**Writes a batch of accounts through the account manager, which skips any account
+     * created since the import started
+     * @param accounts the accounts to write
+     * @return the number of accounts written
+     * @throws AccountException if any account could not be written
+     */
+    private int write(final List<Account> accounts) throws AccountException {
+        try {
+            return accountManager.importAccounts(accounts).join();
+        } catch (CompletionException e) {
+            throw new AccountException("Unable to write batch of accounts", e.getCause());
+        }
+    }
+
+    /**The outcome of a bulk import*/
+    public static final class Result {
+        private final int imported;
+        private final int invalid;
+        private final int duplicates;
+        private final long elapsedNanos;
+
+        private Result(final int imported, final int invalid, final int duplicates,
+                       final long elapsedNanos) {
+            this.imported = imported;
+            this.invalid = invalid;
+            this.duplicates = duplicates;
+            this.elapsedNanos = elapsedNanos;
+        }
+
+        /**Obtains the number of accounts imported
+         * @return the number of accounts imported
+         */
+        public int getImported() {
+            return imported;
+        }
+
+        /**Obtains the number of records skipped as invalid
+         * @return the number of invalid records
+         */
+        public int getInvalid() {
+            return invalid;
+        }
+
+        /**Obtains the number of records skipped as duplicates
+         * @return the number of duplicate records
+         */
+        public int getDuplicates() {
+            return duplicates;
+        }
+
+        /**Obtains the time taken by the import, in nanoseconds
+         * @return the time taken by the import
+         */
+        public long getElapsedNanos() {
+            return elapsedNanos;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d imported, %d invalid, %d duplicates in %d ms",
+                                imported, invalid, duplicates, elapsedNanos / 1000000);
+        }
+    }
+}
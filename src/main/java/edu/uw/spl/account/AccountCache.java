@@ -0,0 +1,299 @@
+package edu.uw.spl.account;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+import edu.uw.ext.framework.account.Account;
+
+/**The live account instances of an account manager, one per account, each paired with the
+ * lock serializing changes to that account. Locks are per account rather than shared, so
+ * fills on different accounts never contend. A slot is only ever removed by a thread 
+ * holding its lock, and a thread acquiring a lock re-checks that its slot is still 
+ * current, so at most one lock guards an account at a time.
+ * <p>
+ * The cache is unbounded unless given a capacity. Once over capacity, the least recently
+ * used accounts are evicted, except accounts which are pinned- such as accounts with 
+ * orders outstanding, or being filled- or whose lock is held
+ * @author slajaunie
+ */
+public class AccountCache {
+
+    /**Slot for each account which is live, or being loaded*/
+    private final ConcurrentMap<String, Slot> slots = new ConcurrentHashMap<>();
+    
+    /**Maximum number of live accounts, or 0 for no limit*/
+    private volatile int capacity = 0;
+    
+    /**Number of slots holding a live instance*/
+    private final AtomicInteger live = new AtomicInteger();
+
+    /**
+     *Instantiates a new, empty, cache
+     */
+    public AccountCache() {}
+
+    /**Acquires the lock for an account, creating the account's slot if needed. A slot
+     * evicted or removed while the lock was awaited is abandoned for the current one, so
+     * at most one lock guards an account at a time
+     * @param accountName the name of the account
+     * @return the account's lock, held by the caller
+     */
+    public ReentrantLock acquire(final String accountName) {
+        return acquireSlot(accountName).lock;
+    }
+
+    /**Obtains the live instance of an account
+     * @param accountName the name of the account
+     * @return the live instance, or <code>null</code> if the account is not cached
+     */
+    public Account get(final String accountName) {
+        Slot slot = slots.get(accountName);
+        if (slot == null) {
+            return null;
+        }
+        slot.lastAccess = System.nanoTime();
+        return slot.account;
+    }
+
+    /**Makes an account the live instance for its name, replacing any previous instance.
+     * Doesn't wait for the account's lock, so it may be called from threads the lock's
+     * holder is waiting on, such as the account I/O threads
+     * @param account the account
+     */
+    public void put(final Account account) {
+        slots.compute(account.getName(), (name, slot) -> {
+            Slot current = slot == null ? new Slot() : slot;
+            install(current, account);
+            return current;
+        });
+        evictIfOverCapacity();
+    }
+
+    /**Makes an account the live instance for its name unless one is already live. 
+     * Doesn't wait for the account's lock
+     * @param account the account
+     * @return the live instance- the given account, or the one already live
+     */
+    public Account putIfAbsent(final Account account) {
+        Account[] live = new Account[1];
+        slots.compute(account.getName(), (name, slot) -> {
+            Slot current = slot == null ? new Slot() : slot;
+            if (current.account == null) {
+                install(current, account);
+            }
+            live[0] = current.account;
+            return current;
+        });
+        evictIfOverCapacity();
+        return live[0];
+    }
+
+    /**Pins an account, keeping it from being evicted until it is unpinned as many times
+     * as it was pinned. An account may be pinned before it is loaded
+     * @param accountName the name of the account
+     */
+    public void pin(final String accountName) {
+        slots.compute(accountName, (name, slot) -> {
+            Slot pinned = slot == null ? new Slot() : slot;
+            pinned.pins++;
+            return pinned;
+        });
+    }
+
+    /**Releases one pin on an account. The account's slot is discarded once it holds no
+     * pins and no live instance, as when an account which does not exist was pinned
+     * @param accountName the name of the account
+     */
+    public void unpin(final String accountName) {
+        slots.computeIfPresent(accountName, (name, slot) -> {
+            if (slot.pins > 0) {
+                slot.pins--;
+            }
+            return slot;
+        });
+        discardIfEmpty(accountName);
+    }
+
+    /**Checks whether an account is pinned
+     * @param accountName the name of the account
+     * @return true if the account is pinned
+     */
+    public boolean isPinned(final String accountName) {
+        Slot slot = slots.get(accountName);
+        return slot != null && slot.pins > 0;
+    }
+
+    /**Obtains the maximum number of live accounts
+     * @return the capacity, or 0 if the cache is unbounded
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**Sets the maximum number of live accounts. Pinned accounts are never evicted, so the
+     * cache may exceed its capacity while many accounts are pinned
+     * @param capacity the capacity, or 0 for an unbounded cache
+     */
+    public void setCapacity(final int capacity) {
+        this.capacity = capacity;
+        evictIfOverCapacity();
+    }
+
+    /**Removes an account's slot if it holds no live instance and no pins, as after 
+     * looking up an account which does not exist. The slot is left in place if another
+     * thread holds its lock
+     * @param accountName the name of the account
+     */
+    public void discardIfEmpty(final String accountName) {
+        Slot slot = slots.get(accountName);
+        if (slot == null || !slot.lock.tryLock()) {
+            return;
+        }
+        try {
+            /*re-check under the lock, atomically with pins, in case it was filled meanwhile*/
+            slots.computeIfPresent(accountName, (name, current) -> 
+                    current == slot && slot.account == null && slot.pins == 0 
+                            && slot.lock.getHoldCount() == 1 ? null : current);
+        } finally {
+            slot.lock.unlock();
+        }
+    }
+
+    /**Removes an account's live instance from the cache, along with any pins on it. Waits
+     * for the account's lock unless the caller already holds it. The emptied slot- and so
+     * its lock- stays in place until {@link #discardIfEmpty(String)} is called once the 
+     * lock is released, so a caller still holding the lock keeps excluding other threads
+     * @param accountName the name of the account
+     */
+    public void remove(final String accountName) {
+        Slot slot = acquireSlot(accountName);
+        try {
+            empty(accountName);
+        } finally {
+            slot.lock.unlock();
+        }
+    }
+
+    /**Removes every account from the cache. Slots whose lock is held are emptied and left
+     * in place, as by {@link #remove(String)}
+     */
+    public void clear() {
+        for (String accountName : slots.keySet()) {
+            empty(accountName);
+            discardIfEmpty(accountName);
+        }
+    }
+
+    /**Obtains the number of live accounts
+     * @return the number of live accounts
+     */
+    public int size() {
+        return live.get();
+    }
+
+    /**Acquires the lock of an account's current slot, creating the slot if needed
+     * @param accountName the name of the account
+     * @return the slot, whose lock is held by the caller
+     */
+    private Slot acquireSlot(final String accountName) {
+        while (true) {
+            Slot slot = slots.computeIfAbsent(accountName, name -> new Slot());
+            slot.lock.lock();
+            if (slots.get(accountName) == slot) {
+                return slot;
+            }
+            slot.lock.unlock();
+        }
+    }
+
+    /**Drops a slot's live instance and pins, leaving the slot and its lock in place
+     * @param accountName the name of the account
+     */
+    private void empty(final String accountName) {
+        slots.computeIfPresent(accountName, (name, current) -> {
+            if (current.account != null) {
+                live.decrementAndGet();
+            }
+            current.account = null;
+            current.pins = 0;
+            return current;
+        });
+    }
+
+    /**Sets a slot's live instance. Must be called within the map's compute methods
+     * @param slot the slot
+     * @param account the live instance
+     */
+    private void install(final Slot slot, final Account account) {
+        if (slot.account == null) {
+            live.incrementAndGet();
+        }
+        slot.account = account;
+        slot.lastAccess = System.nanoTime();
+    }
+
+    /**Evicts the least recently used evictable accounts once the cache is over capacity,
+     * bringing it down to nine tenths of capacity so evictions are batched. An account is
+     * only evicted while its lock can be taken without waiting- never one whose lock is
+     * held, including by the evicting thread- so eviction never blocks, even when called
+     * from threads a lock holder is waiting on
+     */
+    private void evictIfOverCapacity() {
+        int limit = capacity;
+        if (limit <= 0 || live.get() <= limit) {
+            return;
+        }
+        List<Map.Entry<String, Slot>> candidates = new ArrayList<>();
+        for (Map.Entry<String, Slot> entry : slots.entrySet()) {
+            Slot slot = entry.getValue();
+            if (slot.account != null && slot.pins == 0 && !slot.lock.isLocked()) {
+                candidates.add(entry);
+            }
+        }
+        candidates.sort(Comparator.comparingLong(entry -> entry.getValue().lastAccess));
+        int target = limit - limit / 10;
+        for (Map.Entry<String, Slot> entry : candidates) {
+            if (live.get() <= target) {
+                break;
+            }
+            Slot slot = entry.getValue();
+            if (!slot.lock.tryLock()) {
+                continue;
+            }
+            boolean[] evicted = new boolean[1];
+            try {
+                /*re-check under the lock, atomically with pins, in case it was pinned, or
+                 *was already held by this thread, meanwhile*/
+                slots.computeIfPresent(entry.getKey(), (name, current) -> {
+                    if (current == slot && slot.account != null && slot.pins == 0 
+                            && slot.lock.getHoldCount() == 1) {
+                        evicted[0] = true;
+                        return null;
+                    }
+                    return current;
+                });
+            } finally {
+                slot.lock.unlock();
+            }
+            if (evicted[0]) {
+                live.decrementAndGet();
+            }
+        }
+    }
+
+    /**An account's lock, its live instance if loaded, and its pins*/
+    private static final class Slot {
+        private final ReentrantLock lock = new ReentrantLock();
+        private volatile Account account;
+        private volatile long lastAccess;
+        
+        /**Number of outstanding pins- only changed within the map's compute methods*/
+        private volatile int pins;
+    }
+}
@@ -10,6 +10,12 @@ import edu.uw.ext.framework.account.AccountFactory;
  */
 public class AccountFactoryImpl implements AccountFactory{
 
+    /**Minimum length of an account name*/
+    static final int MIN_NAME_LENGTH = 8;
+
+    /**Minimum initial balance, in cents*/
+    static final int MIN_BALANCE = 100000;
+
     /**
      *Instantiates a new Account Factory
      */
@@ -33,13 +39,13 @@ public class AccountFactoryImpl implements AccountFactory{
         Account account = new AccountImpl();
         try {
             /*if either criteria not met, don't create an account*/
-            if (accountName.length()<8 | initialBalance < 100000) {
+            if (accountName.length()<MIN_NAME_LENGTH | initialBalance < MIN_BALANCE) {
                 account = null;
-                if (accountName.length()<8) {
+                if (accountName.length()<MIN_NAME_LENGTH) {
                     String msg = "Property name must be equal to or greater" 
                                     + "than 8 characters in length";
                     throw new AccountException(msg);
-                } else if (initialBalance < 100000) {
+                } else if (initialBalance < MIN_BALANCE) {
                     throw new AccountException("Initial balance must be a minimum of $1000");
                 }
             } else {
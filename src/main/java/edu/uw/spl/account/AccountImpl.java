@@ -1,5 +1,10 @@
 package edu.uw.spl.account;
 
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -21,12 +26,35 @@ public class AccountImpl implements edu.uw.ext.framework.account.Account {
     private static final Logger log = LoggerFactory.getLogger(AccountImpl.class);
     
     /**Balance of the account, in cents (ex $1,000 = 100000)*/
-    private int balance = Integer.MIN_VALUE;
+    private volatile int balance = Integer.MIN_VALUE;
+    
+    /*The table holding the authoritative balance, once bound by the account manager; 
+     *written after balanceId and balancePositions, and read before them*/
+    private transient volatile BalanceTable balanceTable;
+    
+    /*The account's id in the balance table*/
+    private transient int balanceId = -1;
+    
+    /*The account's positions in the balance table; the id is used only under their 
+     *monitor, while they aren't retired, so the table can't free it meanwhile*/
+    private transient Positions balancePositions;
+    
+    /*Shares held of each stock, until bound to the balance table; the balance changes 
+     *together with the positions under their monitor*/
+    private final transient Positions positions = new Positions();
     
     private Address address;
     
     private CreditCard creditCard;
     
+    /*Loads the address on first access, when the address was deferred by the DAO; 
+     *guarded by this account, and kept if the load fails, so a later access retries it*/
+    private transient Supplier<Address> addressLoader;
+    
+    /*Loads the credit card on first access, when the card was deferred by the DAO;
+     *guarded by this account, and kept if the load fails, so a later access retries it*/
+    private transient Supplier<CreditCard> creditCardLoader;
+    
     private String email="default";
     
     /**Full name of the account holder*/
@@ -53,9 +81,14 @@ public class AccountImpl implements edu.uw.ext.framework.account.Account {
     /**Obtains the address associated with this account, or null if no value has been assigned
      * @see edu.uw.ext.framework.account.Account#getAddress()
      * @return an <code>Address</code> representing the address associated with this account
+     * @throws java.io.UncheckedIOException if the address was deferred and can't be loaded
      */
     @Override
-    public Address getAddress() {
+    public synchronized Address getAddress() {
+        if (this.addressLoader != null) {
+            this.address = this.addressLoader.get();
+            this.addressLoader = null;
+        }
         return this.address;
     }
 
@@ -66,6 +99,15 @@ public class AccountImpl implements edu.uw.ext.framework.account.Account {
      */
     @Override
     public int getBalance() {
+        BalanceTable table = boundTable();
+        if (table != null) {
+            Positions bound = balancePositions;
+            synchronized (bound) {
+                if (!bound.isRetired()) {
+                    return table.get(balanceId);
+                }
+            }
+        }
         return this.balance;
     }
 
@@ -73,9 +115,14 @@ public class AccountImpl implements edu.uw.ext.framework.account.Account {
      * or null if no value has been assigned
      * @see edu.uw.ext.framework.account.Account#getCreditCard()
      * @return a <code>CreditCard</code> representing the credit card associated with this account
+     * @throws java.io.UncheckedIOException if the card was deferred and can't be loaded
      */
     @Override
-    public CreditCard getCreditCard() {
+    public synchronized CreditCard getCreditCard() {
+        if (this.creditCardLoader != null) {
+            this.creditCard = this.creditCardLoader.get();
+            this.creditCardLoader = null;
+        }
         return this.creditCard;
     }
 
@@ -133,15 +180,20 @@ public class AccountImpl implements edu.uw.ext.framework.account.Account {
         return this.phone;
     }
 
-    /**Incorporates the effect on an order in the balance
+    /**Incorporates the effect on an order in the balance and in the position held in the
+     * order's stock. When managed by an <code>AccountManagerImpl</code>, the adjustment
+     * and its write are made under the account's lock, so concurrent fills on the account
+     * can't lose an update
      * @see edu.uw.ext.framework.account.Account#reflectOrder(edu.uw.ext.framework.order.Order, int)
      * @param order the order to be reflected in the account
      * @param executionPrice the price at which the order was executed, in cents
      */
     @Override
     public void reflectOrder(final Order order, final int executionPrice) {
+        ReentrantLock lock = this.accountManager instanceof AccountManagerImpl
+                ? ((AccountManagerImpl) this.accountManager).lockAccount(name) : null;
         try {
-            balance += order.valueOfOrder(executionPrice);
+            applyFill(order, executionPrice);
             if (this.accountManager != null) {
                 this.accountManager.persist(this);
             } else {
@@ -151,6 +203,10 @@ public class AccountImpl implements edu.uw.ext.framework.account.Account {
         } catch (final AccountException ex) {
             log.error(String.format("Failed to persist account %s after adjusting for order.", name),
                          ex);
+        } finally {
+            if (lock != null) {
+                lock.unlock();
+            }
         }
         /*earlier implementation*/
         //this.balance += executionPrice;
@@ -175,28 +231,199 @@ public class AccountImpl implements edu.uw.ext.framework.account.Account {
      * @param address the address to be associated with this account
      */
     @Override
-    public void setAddress(final Address address) {
+    public synchronized void setAddress(final Address address) {
+        this.addressLoader = null;
         this.address = address;
     }
 
+    /**Defers loading the address until it is first accessed. Used by DAOs reading accounts
+     * on paths which rarely need the address, such as order execution
+     * @param loader loads the address, or returns null if the account has no address
+     */
+    public synchronized void deferAddress(final Supplier<Address> loader) {
+        this.address = null;
+        this.addressLoader = loader;
+    }
+
+    /**Checks whether the address was deferred and has not been loaded yet
+     * @return true if the address has yet to be loaded
+     */
+    public synchronized boolean hasUnloadedAddress() {
+        return this.addressLoader != null;
+    }
+
     /**Sets the balance on this account, in cents
      * @see edu.uw.ext.framework.account.Account#setBalance(int)
      * @param balance the balance on this account
      */
     @Override
     public void setBalance(final int balance) {
+        BalanceTable table = boundTable();
+        if (table != null) {
+            Positions bound = balancePositions;
+            synchronized (bound) {
+                if (!bound.isRetired()) {
+                    table.set(balanceId, balance);
+                    return;
+                }
+            }
+        }
         this.balance = balance;
     }
 
+    /**Applies an executed order- adjusts the balance by the order's value and the
+     * position in the order's stock by its shares, together
+     * @param order the executed order
+     * @param executionPrice the price at which the order was executed, in cents
+     */
+    void applyFill(final Order order, final int executionPrice) {
+        int delta = order.valueOfOrder(executionPrice);
+        int tickerId = Positions.tickerId(order.getStockTicker());
+        long shares = order.isBuyOrder() 
+                        ? order.getNumberOfShares() : -(long) order.getNumberOfShares();
+        BalanceTable table = boundTable();
+        if (table != null) {
+            Positions bound = balancePositions;
+            synchronized (bound) {
+                if (!bound.isRetired()) {
+                    table.fill(balanceId, delta, tickerId, shares);
+                    return;
+                }
+            }
+        }
+        synchronized (positions) {
+            this.balance += delta;
+            positions.add(tickerId, shares);
+        }
+    }
+
+    /**Obtains the number of shares of a stock held by this account
+     * @param ticker the stock's ticker
+     * @return the number of shares held; negative for a short position, 0 if none
+     */
+    public long getShares(final String ticker) {
+        return currentPositions().get(Positions.tickerId(ticker));
+    }
+
+    /**Takes a snapshot of the positions of this account
+     * @return the number of shares held of each stock with a position, by ticker
+     */
+    public Map<String, Long> holdings() {
+        return currentPositions().toMap();
+    }
+
+    /**Replaces the positions of this account, as when it is read through a DAO
+     * @param holdings the number of shares held of each stock, by ticker
+     */
+    public void restoreHoldings(final Map<String, Long> holdings) {
+        currentPositions().replaceWith(holdings);
+    }
+
+    /**Takes a consistent snapshot of the balance and positions of this account, for 
+     * persisting them together
+     * @param holdings receives the number of shares held of each stock, by ticker
+     * @return the balance, in cents
+     */
+    public int snapshotLedger(final Map<String, Long> holdings) {
+        BalanceTable table = boundTable();
+        if (table != null) {
+            Positions bound = balancePositions;
+            synchronized (bound) {
+                if (!bound.isRetired()) {
+                    return table.snapshot(balanceId, holdings);
+                }
+            }
+        }
+        synchronized (positions) {
+            holdings.putAll(positions.toMap());
+            return this.balance;
+        }
+    }
+
+    /**Obtains the positions currently holding this account's shares- the balance table's, 
+     * once bound
+     * @return the positions
+     */
+    private Positions currentPositions() {
+        return boundTable() != null ? balancePositions : positions;
+    }
+
+    /**Moves this account's balance and positions to the given table, which becomes their
+     * authoritative store. The table must already hold them at the given id
+     * @param table the balance table
+     * @param id the account's id in the table
+     */
+    void bindBalance(final BalanceTable table, final int id) {
+        this.balanceId = id;
+        this.balancePositions = table.positions(id);
+        this.balanceTable = table;
+    }
+
+    /**Moves this account's balance and positions back into the account, as when the
+     * account is deleted
+     */
+    void unbindBalance() {
+        BalanceTable table = boundTable();
+        if (table != null) {
+            Map<String, Long> holdings = new HashMap<>();
+            int snapshot = snapshotLedger(holdings);
+            synchronized (positions) {
+                this.balance = snapshot;
+                positions.replaceWith(holdings);
+            }
+            this.balanceTable = null;
+        }
+    }
+
+    /**Obtains the balance table holding this account's balance
+     * @return the balance table, or <code>null</code> if the account isn't bound to one
+     */
+    BalanceTable boundBalanceTable() {
+        return boundTable();
+    }
+
+    /**Obtains the balance table this account is bound to, provided its positions there 
+     * haven't been retired. An instance bound to an account since removed from the table-
+     * whose id may have been reused- is unbound instead, and keeps its own balance. The
+     * table may still remove the account once this returns, so the id is used only under
+     * the monitor of the positions, once they are checked again
+     * @return the balance table, or <code>null</code> if the account isn't bound to one
+     */
+    private BalanceTable boundTable() {
+        BalanceTable table = this.balanceTable;
+        if (table != null && balancePositions.isRetired()) {
+            this.balanceTable = null;
+            return null;
+        }
+        return table;
+    }
+
     /**Sets the credit card to be associated with this account
      * @see edu.uw.ext.framework.account.Account#setCreditCard(edu.uw.ext.framework.account.CreditCard)
      * @param creditCard the credit card to be associated with this account
      */
     @Override
-    public void setCreditCard(final CreditCard creditCard) {
+    public synchronized void setCreditCard(final CreditCard creditCard) {
+        this.creditCardLoader = null;
         this.creditCard = creditCard;
     }
 
+    /**Defers loading the credit card until it is first accessed. Used by DAOs reading 
+     * accounts on paths which rarely need the credit card, such as order execution
+     * @param loader loads the credit card, or returns null if the account has no card
+     */
+    public synchronized void deferCreditCard(final Supplier<CreditCard> loader) {
+        this.creditCard = null;
+        this.creditCardLoader = loader;
+    }
+
+    /**Checks whether the credit card was deferred and has not been loaded yet
+     * @return true if the credit card has yet to be loaded
+     */
+    public synchronized boolean hasUnloadedCreditCard() {
+        return this.creditCardLoader != null;
+    }
+
     /**Sets the email to be associated with this account
      * @see edu.uw.ext.framework.account.Account#setEmail(java.lang.String)
      * @param email the email to be associated with this account
@@ -12,6 +12,13 @@ public class AccountManagerFactoryImpl
     /*Creates instance(s) of AccountManager using corresponding interface,
      *  separate from client*/
     
+    /**Maximum number of live accounts cached by new account managers, or 0 for no limit*/
+    private int cacheCapacity = 0;
+    
+    /**Milliseconds between balance checkpoints of new account managers, or 0 to persist
+     * every fill as it happens*/
+    private long balanceCheckpointInterval = 0;
+    
     /**
      *Instantiates a new AccountManagerFactory
      */
@@ -26,7 +33,39 @@ public class AccountManagerFactoryImpl
     public AccountManager newAccountManager(final AccountDao dao) {
         AccountManagerImpl accountManager = new AccountManagerImpl();
         accountManager.setAccountDAO(dao);
+        accountManager.setCacheCapacity(cacheCapacity);
+        accountManager.setBalanceCheckpointInterval(balanceCheckpointInterval);
         return accountManager;
     }
 
+    /**Obtains the maximum number of live accounts cached by new account managers
+     * @return the cache capacity, or 0 if the cache is unbounded
+     */
+    public int getCacheCapacity() {
+        return cacheCapacity;
+    }
+
+    /**Sets the maximum number of live accounts cached by new account managers. Accounts
+     * pinned by outstanding orders are never evicted
+     * @param cacheCapacity the cache capacity, or 0 for an unbounded cache
+     */
+    public void setCacheCapacity(final int cacheCapacity) {
+        this.cacheCapacity = cacheCapacity;
+    }
+
+    /**Obtains the interval between balance checkpoints of new account managers
+     * @return the interval in milliseconds, or 0 if every fill is persisted as it happens
+     */
+    public long getBalanceCheckpointInterval() {
+        return balanceCheckpointInterval;
+    }
+
+    /**Sets the interval between balance checkpoints of new account managers
+     * @param balanceCheckpointInterval the interval in milliseconds, or 0 to persist 
+     * every fill as it happens
+     */
+    public void setBalanceCheckpointInterval(final long balanceCheckpointInterval) {
+        this.balanceCheckpointInterval = balanceCheckpointInterval;
+    }
+
 }
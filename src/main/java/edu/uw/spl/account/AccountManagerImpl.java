@@ -2,6 +2,26 @@ package edu.uw.spl.account;
 
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+import java.util.stream.Stream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import edu.uw.ext.framework.account.Account;
 
@@ -9,8 +29,12 @@ import edu.uw.ext.framework.account.AccountException;
 import edu.uw.ext.framework.account.AccountFactory;
 import edu.uw.ext.framework.dao.AccountDao;
 import edu.uw.ext.framework.account.AccountManager;
+import edu.uw.ext.framework.order.Order;
 
 import edu.uw.spl.account.AccountFactoryImpl;
+import edu.uw.spl.dao.AccountDAOs;
+import edu.uw.spl.dao.AsyncAccountDao;
+import edu.uw.spl.dao.JdbcAccountDAO;
 
 /**Manages interactions, such as adds, updates, or deletes, between accounts and the DAO.
  * Additionally encrypts new accounts' passwords into a <code>byte[]</code> 
@@ -24,14 +48,39 @@ public class AccountManagerImpl
      * placing them in an Account object.  The AccountManager will use 
      * an instance of an AccountDao implementation to persist and retrieve accounts.*/
     
+    private static final Logger log = LoggerFactory.getLogger(AccountManagerImpl.class);
+    
     private AccountDao accountDao = null;
     private AccountFactory accountFactory;
     
+    /**Asynchronous facade over the account DAO, created on first asynchronous call unless
+     * the account DAO is itself asynchronous*/
+    private AsyncAccountDao asyncDao = null;
+    
+    /**The live instance of each account in use, and the lock serializing its changes*/
+    private final AccountCache accountCache = new AccountCache();
+    
+    /**Password hash of each account created, loaded or persisted, checked at login*/
+    private final CredentialIndex credentials = new CredentialIndex(ALGORITHM);
+    
+    /**The authoritative balance of each account in use*/
+    private final BalanceTable balances = new BalanceTable();
+    
+    /**Milliseconds between checkpoints of the changed balances, or 0 to persist every
+     * fill as it happens*/
+    private long balanceCheckpointInterval = 0;
+    
+    /**Runs the periodic balance checkpoints, when enabled*/
+    private ScheduledExecutorService checkpointer = null;
+    
     /**character encoding to use when converting strings to/from bytes*/
     private final String ENCODING = "ISO-8859-1";
     
     /**hashing algorithm*/
-    private final String ALGORITHM = "SHA-256";
+    private static final String ALGORITHM = "SHA-256";
+    
+    /**Number of times the write reflecting a fill is attempted before it is failed*/
+    private static final int FILL_WRITE_ATTEMPTS = 3;
             
     /**
      *Instantiates a new account manager
@@ -51,8 +100,10 @@ public class AccountManagerImpl
     /**Sets the Account DAO used by this account manager
      * @param accountDao the account DAO to be used by this account manager
      */
-    public void setAccountDAO(final AccountDao accountDao) {
+    public synchronized void setAccountDAO(final AccountDao accountDao) {
         this.accountDao = accountDao;
+        this.asyncDao = accountDao instanceof AsyncAccountDao 
+                                ? (AsyncAccountDao) accountDao : null;
     }
 
     /**Releases any resources used by the AccountManager implementation.
@@ -62,8 +113,20 @@ public class AccountManagerImpl
     public void close() throws AccountException {
         /*close any open resources via the DAO*/
         try {
-            accountDao.close();
-            accountDao=null;
+            /*the asynchronous facade drains outstanding writes and closes the DAO*/
+            stopCheckpointer();
+            if (balanceCheckpointInterval > 0) {
+                checkpointBalances();
+            }
+            AccountDao dao;
+            synchronized (this) {
+                dao = asyncDao != null ? asyncDao : accountDao;
+                asyncDao = null;
+                accountDao = null;
+            }
+            accountCache.clear();
+            credentials.clear();
+            dao.close();
         } catch (AccountException ex) {
             throw new AccountException("Unable to release resources",ex);
         }
@@ -93,11 +156,8 @@ public class AccountManagerImpl
         byte[] hashedPassword = null;
         
         /*Hash the password*/
-        MessageDigest md;
         try {
-            md = MessageDigest.getInstance(ALGORITHM);
-            md.update(password.getBytes());
-            hashedPassword = md.digest();
+            hashedPassword = hashPassword(password);
         } catch (NoSuchAlgorithmException e) {
             e.printStackTrace();
         }
@@ -109,40 +169,139 @@ public class AccountManagerImpl
         if (account == null) {
             throw new AccountException("There was a problem instantiating the new account");
         }
-        /*Confirm whether a duplicate account exists*/
-        Account possibleDuplicateAccount = this.getAccount(accountName);
-        if (possibleDuplicateAccount != null) {
-            throw new AccountException("Unable to create duplicate account");
-        } else {
-            /*persist the account*/
-            try {
-                this.persist(account);
-                account.registerAccountManager(this);
-            } catch (AccountException ex) {
-                throw new AccountException("Unable to persist account",ex);
+        /*Hold the account's lock so a concurrent create can't slip in between the 
+         * duplicate check and the write*/
+        ReentrantLock lock = accountCache.acquire(accountName);
+        try {
+            /*Confirm whether a duplicate account exists*/
+            if (accountExists(accountName)) {
+                throw new AccountException("Unable to create duplicate account");
+            } else {
+                /*persist the account*/
+                try {
+                    this.persist(account);
+                    account.registerAccountManager(this);
+                } catch (AccountException ex) {
+                    throw new AccountException("Unable to persist account",ex);
+                }
             }
+        } finally {
+            lock.unlock();
+            accountCache.discardIfEmpty(accountName);
         }
         
         return account;
     }
 
-    /**Removes the account from the directory via the DAO
+    /**Hashes a password the way it is stored in an Account
+     * @param password the password to hash
+     * @return the hashed password
+     * @throws NoSuchAlgorithmException if the hashing algorithm is not available
+     */
+    static byte[] hashPassword(final String password) throws NoSuchAlgorithmException {
+        MessageDigest md = MessageDigest.getInstance(ALGORITHM);
+        md.update(password.getBytes());
+        return md.digest();
+    }
+
+    /**Checks whether an account by the given name already exists. DAOs maintaining an 
+     * account name index answer this without loading the account, otherwise the account
+     * is looked up through the DAO
+     * @param accountName the name of the account to check
+     * @return true if an account by that name exists, otherwise false
+     * @throws AccountException if the lookup fails
+     */
+    private boolean accountExists(final String accountName) throws AccountException {
+        if (credentials.contains(accountName)) {
+            /*indexed accounts exist, including imports whose write is still queued*/
+            return true;
+        }
+        AccountDao dao = accountDao instanceof AsyncAccountDao 
+                            ? ((AsyncAccountDao) accountDao).getDelegate() : accountDao;
+        if (dao instanceof AccountDAOs) {
+            return ((AccountDAOs) dao).accountExists(accountName);
+        }
+        return this.getAccount(accountName) != null;
+    }
+
+    /**Imports a batch of new accounts, as a bulk load does. Each account is checked for
+     * a duplicate under its lock, as by createAccount, and skipped if one exists. The
+     * writes of the whole batch are queued before any is awaited, in the order of each
+     * account's other writes, so a DAO with a shared writer commits them together. The
+     * accounts' passwords are indexed at once; the accounts themselves are not cached,
+     * and are loaded on first use
+     * @param accounts the accounts to import, already validated
+     * @return a future completed with the number of accounts imported once each is
+     * persisted, or completed exceptionally if any of them could not be written
+     */
+    public CompletableFuture<Integer> importAccounts(final List<Account> accounts) {
+        AccountDao dao = accountDao instanceof AsyncAccountDao 
+                            ? ((AsyncAccountDao) accountDao).getDelegate() : accountDao;
+        List<CompletableFuture<Void>> writes = new ArrayList<>(accounts.size());
+        for (Account account : accounts) {
+            String accountName = account.getName();
+            ReentrantLock lock = accountCache.acquire(accountName);
+            try {
+                if (accountExists(accountName)) {
+                    continue;
+                }
+                credentials.put(accountName, account.getPasswordHash());
+                CompletableFuture<Void> write = dao instanceof AccountDAOs
+                        ? asyncDao().submitAsync(accountName, 
+                                        () -> ((AccountDAOs) dao).setAccountAsync(account))
+                        : asyncDao().setAccountAsync(account);
+                writes.add(write.whenComplete((r, e) -> {
+                    if (e != null) {
+                        credentials.remove(accountName);
+                    }
+                }));
+            } catch (AccountException e) {
+                CompletableFuture<Void> failed = new CompletableFuture<>();
+                failed.completeExceptionally(e);
+                writes.add(failed);
+            } finally {
+                lock.unlock();
+                accountCache.discardIfEmpty(accountName);
+            }
+        }
+        return CompletableFuture.allOf(writes.toArray(new CompletableFuture<?>[0]))
+                                .thenApply(r -> writes.size());
+    }
+
+    /**Removes the account from the directory via the DAO. The account's live instance,
+     * balance and credentials are released only once the DAO has deleted it; if the 
+     * delete fails, the account is left as it was
      * @param accountName the name of the account to remove
      * @throws AccountException if the operation failed
      */
     @Override
     public void deleteAccount(final String accountName) throws AccountException {
         /*interact with the DAO to delete an account*/
+        ReentrantLock lock = accountCache.acquire(accountName);
         try {
-            accountDao.deleteAccount(accountName);
-        } catch (AccountException e) {
-            throw new AccountException(e.getMessage());
+            try {
+                dao().deleteAccount(accountName);
+            } catch (AccountException e) {
+                throw new AccountException("Unable to delete account " + accountName, e);
+            }
+            Account live = accountCache.get(accountName);
+            if (live instanceof AccountImpl) {
+                ((AccountImpl) live).unbindBalance();
+            }
+            balances.remove(accountName);
+            accountCache.remove(accountName);
+            credentials.remove(accountName);
+        } finally {
+            lock.unlock();
+            accountCache.discardIfEmpty(accountName);
         }
         
     }
 
     /**Lookup an account based on the given account name, and returns that account,
-     * or <code>null</code> if the account was not located in the directory 
+     * or <code>null</code> if the account was not located in the directory. There is 
+     * exactly one live instance per account: the first lookup loads it through the DAO,
+     * and later lookups return the same instance
      * @param accountName the name of the account to retrieve
      * @return the account associated with the given account name, or null if the 
      * account was not located in the directory
@@ -150,10 +309,27 @@ public class AccountManagerImpl
      */
     @Override
     public Account getAccount(final String accountName) throws AccountException {
-        /* get an account via the DAO*/
-        Account account = accountDao.getAccount(accountName);
-        if (account != null) {
-            account.registerAccountManager(this);
+        Account account = accountCache.get(accountName);
+        if (account == null) {
+            /* get an account via the DAO, once*/
+            ReentrantLock lock = accountCache.acquire(accountName);
+            try {
+                account = accountCache.get(accountName);
+                if (account == null) {
+                    account = dao().getAccount(accountName);
+                    if (account != null) {
+                        account.registerAccountManager(this);
+                        bindLoaded(account);
+                        account = accountCache.putIfAbsent(account);
+                        credentials.put(accountName, account.getPasswordHash());
+                    }
+                }
+            } finally {
+                lock.unlock();
+            }
+            if (account == null) {
+                accountCache.discardIfEmpty(accountName);
+            }
         }
         /*Prefer to throw exception on null return but tests won't pass*/
 //        if (account == null) {
@@ -163,24 +339,459 @@ public class AccountManagerImpl
         
     }
 
-    /**Persists an account to the file directory
+    /**Persists an account to the file directory. The account becomes the live instance
+     * for its name
      * @param account the account to persist
      * @throws AccountException if the operation fails
      */
     @Override
     public void persist(final Account account) throws AccountException {
         /* interact with the DAO to persist the account*/
+        ReentrantLock lock = accountCache.acquire(account.getName());
         try {
-            accountDao.setAccount(account);
+            dao().setAccount(account);
+            bindWritten(account);
+            accountCache.put(account);
+            credentials.put(account.getName(), account.getPasswordHash());
         } catch (AccountException ex) {
             ex.printStackTrace();
             throw new AccountException("Uanble to persist Account: " 
                                                         + ex.getMessage(),ex);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**Acquires the lock serializing changes to an account. Held while a fill adjusts and
+     * persists the account's balance; locks are per account, so fills on different
+     * accounts never contend
+     * @param accountName the name of the account
+     * @return the account's lock, held by the caller, who must unlock it
+     */
+    public ReentrantLock lockAccount(final String accountName) {
+        return accountCache.acquire(accountName);
+    }
+    
+    /**Obtains an account's balance from the balance table, without taking the account's
+     * lock. Only an account not yet in the table is read through the DAO, which binds it
+     * to the table for later calls
+     * @param accountName the name of the account
+     * @return the balance, in cents, or <code>null</code> if the account was not located
+     * @throws AccountException if the account could not be read
+     */
+    public Integer getBalance(final String accountName) throws AccountException {
+        int id = balances.id(accountName);
+        if (id >= 0) {
+            int balance = balances.get(id);
+            if (balance != BalanceTable.ABSENT) {
+                return balance;
+            }
+        }
+        Account account = getAccount(accountName);
+        return account == null ? null : account.getBalance();
+    }
+
+    /**Looks up an account asynchronously on the account I/O threads. The lookup follows
+     * any asynchronous writes to the account already submitted
+     * @param accountName the name of the account to retrieve
+     * @return a future completed with the account, or <code>null</code> if the account was
+     * not located
+     */
+    public CompletableFuture<Account> getAccountAsync(final String accountName) {
+        Account live = accountCache.get(accountName);
+        if (live != null) {
+            return CompletableFuture.completedFuture(live);
+        }
+        return asyncDao().getAccountAsync(accountName).thenApply(account -> {
+            if (account != null) {
+                account.registerAccountManager(this);
+                bindLoaded(account);
+                account = accountCache.putIfAbsent(account);
+                credentials.put(accountName, account.getPasswordHash());
+            }
+            return account;
+        });
+    }
+
+    /**Persists an account asynchronously on the account I/O threads, after any writes to
+     * the account already submitted
+     * @param account the account to persist
+     * @return a future completed once the account is persisted
+     */
+    public CompletableFuture<Void> persistAsync(final Account account) {
+        credentials.put(account.getName(), account.getPasswordHash());
+        return asyncDao().setAccountAsync(account);
+    }
+
+    /**Reflects an executed order in an account asynchronously. The balance and the
+     * position in the order's stock are adjusted immediately, under the account's lock,
+     * and the write is queued on the account I/O threads after any writes to the account
+     * already submitted, so the caller may move on to its next order while the write
+     * completes. A failed write is retried, writing the account as it then stands, before
+     * the returned future fails. When balances are checkpointed, the balance is only 
+     * adjusted in the balance table, and the next checkpoint persists it
+     * @param account the account the order was placed for
+     * @param order the executed order
+     * @param executionPrice the price at which the order was executed, in cents
+     * @return a future completed once the account is persisted
+     */
+    public CompletableFuture<Void> reflectOrderAsync(final Account account, final Order order,
+                                                     final int executionPrice) {
+        account.registerAccountManager(this);
+        ReentrantLock lock = accountCache.acquire(account.getName());
+        try {
+            if (account instanceof AccountImpl) {
+                AccountImpl impl = (AccountImpl) account;
+                impl.applyFill(order, executionPrice);
+                if (balanceCheckpointInterval > 0 && impl.boundBalanceTable() == balances) {
+                    return CompletableFuture.completedFuture(null);
+                }
+            } else {
+                account.setBalance(account.getBalance() 
+                                            + order.valueOfOrder(executionPrice));
+            }
+            /*no I/O under the lock- the write is only queued*/
+            return writeFill(account, 1);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**Queues the write of an account reflecting a fill, queueing it again if it fails
+     * until it has been attempted <code>FILL_WRITE_ATTEMPTS</code> times
+     * @param account the account
+     * @param attempt the number of this attempt, from 1
+     * @return a future completed once the account is persisted, or completed 
+     * exceptionally with the last failure
+     */
+    private CompletableFuture<Void> writeFill(final Account account, final int attempt) {
+        return asyncDao().setAccountAsync(account).handle((r, e) -> {
+            if (e == null) {
+                return CompletableFuture.<Void>completedFuture(null);
+            }
+            if (attempt >= FILL_WRITE_ATTEMPTS) {
+                CompletableFuture<Void> failed = new CompletableFuture<>();
+                failed.completeExceptionally(e);
+                return failed;
+            }
+            log.warn("Unable to write account {}, attempt {} of {}", account.getName(),
+                                                        attempt, FILL_WRITE_ATTEMPTS, e);
+            return writeFill(account, attempt + 1);
+        }).thenCompose(write -> write);
+    }
+
+    /**Preloads accounts into the cache of live instances, reading them in parallel, so the
+     * first order for each doesn't pay a cold read. Accounts which don't exist are skipped
+     * @param accountNames the accounts to preload
+     * @param parallelism the number of accounts read at once
+     * @param progress notified with the number of accounts processed so far and the total,
+     * about every tenth of the way and once at the end; may be <code>null</code>
+     * @return the number of accounts loaded
+     */
+    public int warmUp(final Collection<String> accountNames, final int parallelism,
+                      final BiConsumer<Integer, Integer> progress) {
+        List<String> names = new ArrayList<>(accountNames);
+        int total = names.size();
+        int step = Math.max(1, total / 10);
+        AtomicInteger processed = new AtomicInteger();
+        AtomicInteger loaded = new AtomicInteger();
+        long start = System.nanoTime();
+        ExecutorService readers = Executors.newFixedThreadPool(Math.max(1, parallelism), 
+            runnable -> {
+                Thread thread = new Thread(runnable, "AccountWarmUp");
+                thread.setDaemon(true);
+                return thread;
+            });
+        try {
+            List<CompletableFuture<Void>> reads = new ArrayList<>(total);
+            for (String name : names) {
+                reads.add(CompletableFuture.runAsync(() -> {
+                    try {
+                        if (getAccount(name) != null) {
+                            loaded.incrementAndGet();
+                        }
+                    } catch (AccountException e) {
+                        log.warn("Unable to warm up account {}", name, e);
+                    }
+                    int done = processed.incrementAndGet();
+                    if (progress != null && done % step == 0 && done < total) {
+                        progress.accept(done, total);
+                    }
+                }, readers));
+            }
+            CompletableFuture.allOf(reads.toArray(new CompletableFuture<?>[0])).join();
+        } finally {
+            readers.shutdown();
+        }
+        if (progress != null) {
+            progress.accept(total, total);
+        }
+        log.info("Warmed up {} of {} accounts in {} ms", loaded.get(), total,
+                                                (System.nanoTime() - start) / 1000000);
+        return loaded.get();
+    }
+
+    /**Prefetches an account into the cache of live instances asynchronously and pins it
+     * there, so a later order for the account never blocks on a cold read. Each pin must
+     * be released with <code>unpinAccount</code>
+     * @param accountName the name of the account
+     * @return a future completed with the account, or <code>null</code> if it was not
+     * located
+     */
+    public CompletableFuture<Account> pinAccount(final String accountName) {
+        accountCache.pin(accountName);
+        return getAccountAsync(accountName).whenComplete((account, e) -> {
+            if (e != null) {
+                log.warn("Unable to prefetch account {}", accountName, e);
+            }
+        });
+    }
+
+    /**Releases one pin on an account, allowing it to be evicted once no pins remain
+     * @param accountName the name of the account
+     */
+    public void unpinAccount(final String accountName) {
+        accountCache.unpin(accountName);
+    }
+
+    /**Obtains the maximum number of live accounts cached
+     * @return the cache capacity, or 0 if the cache is unbounded
+     */
+    public int getCacheCapacity() {
+        return accountCache.getCapacity();
+    }
+
+    /**Sets the maximum number of live accounts cached. Once over capacity the least 
+     * recently used accounts which aren't pinned are evicted. Unbounded by default
+     * @param capacity the cache capacity, or 0 for an unbounded cache
+     */
+    public void setCacheCapacity(final int capacity) {
+        accountCache.setCapacity(capacity);
+    }
+
+    /**Persists every balance changed since the last checkpoint, through the account DAO.
+     * DAOs which detect balance-only changes write just the balance. A balance which
+     * can't be persisted is retried at the next checkpoint
+     * @return the number of balances persisted
+     */
+    public int checkpointBalances() {
+        AtomicInteger failed = new AtomicInteger();
+        List<CompletableFuture<Void>> writes = new ArrayList<>();
+        balances.drainChanged((accountName, balance) -> {
+            try {
+                Account account = getAccount(accountName);
+                if (account != null) {
+                    /*queued without holding the account's lock, since the I/O threads
+                     *may themselves wait for it; the write reads the table's balance*/
+                    writes.add(asyncDao().setAccountAsync(account).whenComplete((r, e) -> {
+                        if (e != null) {
+                            log.warn("Unable to checkpoint balance of account {}", 
+                                                                        accountName, e);
+                            balances.markChanged(accountName);
+                            failed.incrementAndGet();
+                        }
+                    }));
+                }
+            } catch (AccountException e) {
+                log.warn("Unable to checkpoint balance of account {}", accountName, e);
+                balances.markChanged(accountName);
+                failed.incrementAndGet();
+            }
+        });
+        for (CompletableFuture<Void> write : writes) {
+            write.handle((r, e) -> null).join();
+        }
+        return writes.size() - failed.get();
+    }
+
+    /**Obtains the interval between balance checkpoints
+     * @return the interval in milliseconds, or 0 if every fill is persisted as it happens
+     */
+    public synchronized long getBalanceCheckpointInterval() {
+        return balanceCheckpointInterval;
+    }
+
+    /**Sets the interval between balance checkpoints. While checkpointing, a fill only
+     * adjusts the balance table, and the changed balances are persisted together every
+     * interval and when the manager is closed
+     * @param millis the interval in milliseconds, or 0 to persist every fill as it 
+     * happens
+     */
+    public synchronized void setBalanceCheckpointInterval(final long millis) {
+        stopCheckpointer();
+        this.balanceCheckpointInterval = millis;
+        if (millis > 0) {
+            checkpointer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "BalanceCheckpoint");
+                thread.setDaemon(true);
+                return thread;
+            });
+            checkpointer.scheduleWithFixedDelay(() -> {
+                int persisted = checkpointBalances();
+                if (persisted > 0) {
+                    log.debug("Checkpointed {} balances", persisted);
+                }
+            }, millis, millis, TimeUnit.MILLISECONDS);
         }
     }
+
+    /**Stops the periodic balance checkpoints, if running*/
+    private synchronized void stopCheckpointer() {
+        if (checkpointer != null) {
+            checkpointer.shutdown();
+            checkpointer = null;
+        }
+    }
+
+    /**Binds an account just written through the DAO to the balance table, its balance 
+     * replacing any held by the table
+     * @param account the account
+     */
+    private void bindWritten(final Account account) {
+        if (account instanceof AccountImpl) {
+            AccountImpl impl = (AccountImpl) account;
+            if (impl.boundBalanceTable() != balances) {
+                int id = balances.intern(account.getName());
+                Map<String, Long> holdings = new HashMap<>();
+                int balance = impl.snapshotLedger(holdings);
+                balances.load(id, balance, holdings);
+                impl.bindBalance(balances, id);
+            }
+        }
+    }
+
+    /**Binds an account just read through the DAO to the balance table. The table's
+     * balance, if it holds one, is authoritative, since changes to it may not be
+     * checkpointed yet
+     * @param account the account
+     */
+    private void bindLoaded(final Account account) {
+        if (account instanceof AccountImpl) {
+            AccountImpl impl = (AccountImpl) account;
+            int id = balances.intern(account.getName());
+            Map<String, Long> holdings = new HashMap<>();
+            int balance = impl.snapshotLedger(holdings);
+            balances.loadIfAbsent(id, balance, holdings);
+            impl.bindBalance(balances, id);
+        }
+    }
+
+    /**Obtains the names of every persisted account, for a warm-up of the whole account
+     * store. File based DAOs list them from their account name index, and a JDBC DAO
+     * from a query; other DAOs can't list their accounts
+     * @return the names of the persisted accounts, or an empty set if the DAO can't list
+     * them
+     */
+    public Set<String> getPersistedAccountNames() {
+        AccountDao dao = accountDao instanceof AsyncAccountDao 
+                            ? ((AsyncAccountDao) accountDao).getDelegate() : accountDao;
+        if (dao instanceof AccountDAOs) {
+            return ((AccountDAOs) dao).getAccountNames();
+        }
+        if (dao instanceof JdbcAccountDAO) {
+            if (accountDao instanceof AsyncAccountDao) {
+                ((AsyncAccountDao) accountDao).awaitSubmitted();
+            }
+            try {
+                return ((JdbcAccountDAO) dao).getAccountNames();
+            } catch (AccountException e) {
+                log.warn("Unable to list the persisted accounts", e);
+                return Collections.emptySet();
+            }
+        }
+        log.warn("{} can't list its accounts; warming up every account is unsupported",
+                                    dao == null ? null : dao.getClass().getSimpleName());
+        return Collections.emptySet();
+    }
+
+    /**Streams every persisted account, for batch work over the whole account store such
+     * as end-of-day statements. Accounts in use are streamed as their live instance; the
+     * rest are read through the DAO without entering the cache, so memory stays bounded,
+     * with their balance and positions taken from the balance table when it holds them.
+     * File based DAOs stream by shard, and a JDBC DAO from a single query, once the 
+     * writes already queued for it have completed; other DAOs can't list their accounts,
+     * and stream none
+     * @return a sequential stream of the accounts, which should be closed once consumed;
+     * call <code>parallel()</code> to read the accounts in parallel
+     * @throws AccountException if the DAO could not start the stream
+     */
+    public Stream<Account> streamAccounts() throws AccountException {
+        AccountDao dao = accountDao instanceof AsyncAccountDao 
+                            ? ((AsyncAccountDao) accountDao).getDelegate() : accountDao;
+        if (dao instanceof AccountDAOs) {
+            /*read through dao(), so reads are ordered with queued writes*/
+            return ((AccountDAOs) dao).streamAccountNames()
+                                      .map(this::readDetached)
+                                      .filter(Objects::nonNull);
+        }
+        if (dao instanceof JdbcAccountDAO) {
+            /*the query reads the table directly, so let the queued writes land first*/
+            if (accountDao instanceof AsyncAccountDao) {
+                ((AsyncAccountDao) accountDao).awaitSubmitted();
+            }
+            return ((JdbcAccountDAO) dao).streamAccounts().map(this::current);
+        }
+        return Stream.empty();
+    }
+
+    /**Reads an account for a batch, without adding it to the cache
+     * @param accountName the name of the account
+     * @return the account's live instance, or else a detached copy read through the DAO,
+     * or <code>null</code> if it could not be read
+     */
+    private Account readDetached(final String accountName) {
+        Account live = accountCache.get(accountName);
+        if (live != null) {
+            return live;
+        }
+        Account account = dao().getAccount(accountName);
+        return account == null ? null : current(account);
+    }
+
+    /**Brings a detached copy of an account up to date- replaces it with the live 
+     * instance, if there is one, or else applies the balance and positions held by the
+     * balance table, which may not have been checkpointed yet
+     * @param account the detached copy
+     * @return the up to date account
+     */
+    private Account current(final Account account) {
+        Account live = accountCache.get(account.getName());
+        if (live != null) {
+            return live;
+        }
+        int id = balances.id(account.getName());
+        if (id >= 0 && balances.contains(id)) {
+            Map<String, Long> holdings = new HashMap<>();
+            account.setBalance(balances.snapshot(id, holdings));
+            if (account instanceof AccountImpl) {
+                ((AccountImpl) account).restoreHoldings(holdings);
+            }
+        }
+        return account;
+    }
+
+    /**Obtains the DAO for blocking calls- the asynchronous facade once one is in use, so
+     * blocking calls are ordered with the asynchronous writes, otherwise the account DAO
+     * @return the DAO for blocking calls
+     */
+    private synchronized AccountDao dao() {
+        return asyncDao != null ? asyncDao : accountDao;
+    }
+
+    /**Obtains the asynchronous facade over the account DAO, creating it on first use
+     * @return the asynchronous facade
+     */
+    private synchronized AsyncAccountDao asyncDao() {
+        if (asyncDao == null) {
+            asyncDao = new AsyncAccountDao(accountDao);
+        }
+        return asyncDao;
+    }
     
     /**Checks whether a login is valid. The Account must be located in the directory
-     * and the password must match the stored password
+     * and the password must match the stored password. The password is checked against
+     * the in-memory credential index; only an account not yet indexed is looked up, once,
+     * and a name the DAO's account name index doesn't hold is rejected without any I/O
      * @param accountName the name of the account to validate
      * @param password the password on the given account
      * @return true if the login was validated, otherwise false
@@ -190,27 +801,28 @@ public class AccountManagerImpl
     public boolean validateLogin(final String accountName, 
                                 final String password) 
                                                     throws AccountException {
-        boolean validated = false;
-        try {
-            MessageDigest mdInput = MessageDigest.getInstance(ALGORITHM);
-            mdInput.update(password.getBytes());
-            byte[] inputHashed = mdInput.digest();
-            Account targetAccount = this.getAccount(accountName);
-            /*If the account doesn't exist, return false and quit...*/
-            if (targetAccount != null) {
-                /*...If it does exist, verify the passwords match*/
-                validated = MessageDigest.isEqual(inputHashed, 
-                        targetAccount.getPasswordHash());
-            } else {
-                /*if targetAccount is null, couldn't locate the account*/
-                validated = false;
+        Boolean matches = credentials.matches(accountName, password);
+        if (matches == null) {
+            /*not indexed yet- loading the account indexes it, unless it doesn't exist*/
+            if (!mayExist(accountName) || this.getAccount(accountName) == null) {
+                return false;
             }
-        } catch (NoSuchAlgorithmException e) {
-            throw new AccountException(
-                    String.format("Unable to find hash algorithm %s",ALGORITHM),e);
+            matches = credentials.matches(accountName, password);
         }
-         
-        return validated;
+        return Boolean.TRUE.equals(matches);
+    }
+
+    /**Checks whether an account may exist, answering from the DAO's account name index
+     * when it has one, without I/O
+     * @param accountName the name of the account
+     * @return false if the account certainly doesn't exist, otherwise true
+     * @throws AccountException if the lookup fails
+     */
+    private boolean mayExist(final String accountName) throws AccountException {
+        AccountDao dao = accountDao instanceof AsyncAccountDao 
+                            ? ((AsyncAccountDao) accountDao).getDelegate() : accountDao;
+        return !(dao instanceof AccountDAOs) 
+                        || ((AccountDAOs) dao).accountExists(accountName);
     }
 
 //    /**Instantiates a new Account Manager instance
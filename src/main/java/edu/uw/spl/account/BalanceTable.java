@@ -0,0 +1,328 @@
+package edu.uw.spl.account;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.ObjIntConsumer;
+
+/**The authoritative in-memory balances and share positions of an account manager's 
+ * accounts, held in primitive arrays rather than in the account objects. Each account
+ * name is interned once to a dense integer id; from then on a fill adjusts the balance
+ * and the position at that id without allocating, and flags the account as changed so a
+ * checkpoint can later persist just the changed accounts.
+ * <p>
+ * An account's balance and positions change together under the monitor of its
+ * <code>Positions</code>, so a snapshot taken under the same monitor is consistent.
+ * <p>
+ * Storage grows in fixed size pages as accounts are interned, so existing pages never
+ * move. The id of a removed account is reused, lowest first, by the next account 
+ * interned, so live ids stay packed into the lowest pages, and trailing pages left with 
+ * no account are released. Removing an account retires its <code>Positions</code> under
+ * their monitor before its id is freed; an account bound to an id uses it only under 
+ * that monitor, once it has checked its positions aren't retired, so an instance 
+ * outliving its account's removal never touches a freed id, a released page, or the 
+ * account which reuses its id
+ * @author slajaunie
+ */
+public class BalanceTable {
+
+    /**Balance of an id with no account*/
+    public static final int ABSENT = Integer.MIN_VALUE;
+
+    /**log2 of the number of ids per page*/
+    private static final int PAGE_SHIFT = 14;
+    private static final int PAGE_SIZE = 1 << PAGE_SHIFT;
+    private static final int PAGE_MASK = PAGE_SIZE - 1;
+
+    /**Id of each interned account*/
+    private final ConcurrentMap<String, Integer> ids = new ConcurrentHashMap<>();
+
+    /**The pages, replaced by a longer copy when a page is added*/
+    private volatile Page[] pages = new Page[0];
+
+    /**Next id to assign; guarded by the table's monitor*/
+    private int nextId = 0;
+
+    /**Ids below <code>nextId</code> freed by removed accounts; guarded by the table's
+     * monitor*/
+    private final BitSet freeIds = new BitSet();
+
+    /**
+     *Instantiates a new, empty, table
+     */
+    public BalanceTable() {}
+
+    /**Obtains the id of an account, assigning one if the account has none- the lowest 
+     * freed id, if any. A newly assigned id has no balance until one is set
+     * @param accountName the name of the account
+     * @return the account's id
+     */
+    public int intern(final String accountName) {
+        Integer id = ids.get(accountName);
+        if (id != null) {
+            return id;
+        }
+        synchronized (this) {
+            id = ids.get(accountName);
+            if (id == null) {
+                int freed = freeIds.nextSetBit(0);
+                if (freed >= 0) {
+                    freeIds.clear(freed);
+                    id = freed;
+                } else {
+                    id = nextId++;
+                    Page[] current = pages;
+                    if ((id >>> PAGE_SHIFT) >= current.length) {
+                        Page[] grown = Arrays.copyOf(current, current.length + 1);
+                        grown[current.length] = new Page();
+                        pages = grown;
+                    }
+                }
+                Page page = page(id);
+                page.interned++;
+                /*fresh positions, so an instance still holding the old ones can't reach
+                 *the new account's*/
+                page.positions.set(id & PAGE_MASK, new Positions());
+                page.names.set(id & PAGE_MASK, accountName);
+                ids.put(accountName, id);
+            }
+            return id;
+        }
+    }
+
+    /**Obtains the id of an account, without assigning one
+     * @param accountName the name of the account
+     * @return the account's id, or -1 if the account is not interned
+     */
+    public int id(final String accountName) {
+        Integer id = ids.get(accountName);
+        return id == null ? -1 : id;
+    }
+
+    /**Obtains a balance
+     * @param id the account's id
+     * @return the balance, in cents, or <code>ABSENT</code> if none has been set
+     */
+    public int get(final int id) {
+        return page(id).balances.get(id & PAGE_MASK);
+    }
+
+    /**Checks whether an account has a balance
+     * @param id the account's id
+     * @return true if a balance has been set
+     */
+    public boolean contains(final int id) {
+        return get(id) != ABSENT;
+    }
+
+    /**Sets a balance, flagging it as changed
+     * @param id the account's id
+     * @param balance the balance, in cents
+     */
+    public void set(final int id, final int balance) {
+        page(id).balances.set(id & PAGE_MASK, balance);
+        markDirty(id);
+    }
+
+    /**Obtains the positions of an account
+     * @param id the account's id
+     * @return the account's positions
+     */
+    public Positions positions(final int id) {
+        return page(id).positions.get(id & PAGE_MASK);
+    }
+
+    /**Sets a balance and positions as just written through the DAO, without flagging them
+     * as changed
+     * @param id the account's id
+     * @param balance the balance, in cents
+     * @param holdings the shares held of each stock, by ticker
+     */
+    public void load(final int id, final int balance, final Map<String, Long> holdings) {
+        Positions positions = positions(id);
+        synchronized (positions) {
+            page(id).balances.set(id & PAGE_MASK, balance);
+            positions.replaceWith(holdings);
+        }
+    }
+
+    /**Sets a balance and positions as read from the DAO, unless the table already holds
+     * a balance- which, being authoritative, is kept along with its positions
+     * @param id the account's id
+     * @param balance the balance, in cents
+     * @param holdings the shares held of each stock, by ticker
+     */
+    public void loadIfAbsent(final int id, final int balance, 
+                             final Map<String, Long> holdings) {
+        Positions positions = positions(id);
+        synchronized (positions) {
+            if (page(id).balances.compareAndSet(id & PAGE_MASK, ABSENT, balance)) {
+                positions.replaceWith(holdings);
+            }
+        }
+    }
+
+    /**Applies a fill- adjusts a balance and a position together, flagging the account as
+     * changed. Doesn't allocate
+     * @param id the account's id
+     * @param delta the adjustment to the balance, in cents
+     * @param tickerId the ticker id of the stock filled
+     * @param shares the change in shares held
+     */
+    public void fill(final int id, final int delta, final int tickerId, final long shares) {
+        Positions positions = positions(id);
+        synchronized (positions) {
+            page(id).balances.addAndGet(id & PAGE_MASK, delta);
+            positions.add(tickerId, shares);
+        }
+        markDirty(id);
+    }
+
+    /**Takes a consistent snapshot of a balance and its positions
+     * @param id the account's id
+     * @param holdings receives the shares held of each stock, by ticker
+     * @return the balance, in cents
+     */
+    public int snapshot(final int id, final Map<String, Long> holdings) {
+        Positions positions = positions(id);
+        synchronized (positions) {
+            holdings.putAll(positions.toMap());
+            return get(id);
+        }
+    }
+
+    /**Atomically adjusts a balance, flagging it as changed. Doesn't allocate
+     * @param id the account's id
+     * @param delta the adjustment, in cents
+     * @return the adjusted balance
+     */
+    public int add(final int id, final int delta) {
+        int balance = page(id).balances.addAndGet(id & PAGE_MASK, delta);
+        markDirty(id);
+        return balance;
+    }
+
+    /**Removes an account's balance and frees its id for reuse, releasing the trailing
+     * pages left with no account. The account's positions are retired first, under their
+     * monitor, so a bound account's use of the id under that monitor completes before 
+     * the id is freed
+     * @param accountName the name of the account
+     */
+    public synchronized void remove(final String accountName) {
+        Integer id = ids.remove(accountName);
+        if (id == null) {
+            return;
+        }
+        Page page = page(id);
+        Positions positions = page.positions.get(id & PAGE_MASK);
+        synchronized (positions) {
+            page.names.set(id & PAGE_MASK, null);
+            page.balances.set(id & PAGE_MASK, ABSENT);
+            positions.retire();
+        }
+        page.interned--;
+        freeIds.set(id);
+        Page[] current = pages;
+        int length = current.length;
+        while (length > 0 && current[length - 1].interned == 0) {
+            length--;
+        }
+        if (length < current.length) {
+            pages = Arrays.copyOf(current, length);
+            nextId = length << PAGE_SHIFT;
+            freeIds.clear(nextId, current.length << PAGE_SHIFT);
+        }
+    }
+
+    /**Obtains the number of interned accounts
+     * @return the number of accounts
+     */
+    public int size() {
+        return ids.size();
+    }
+
+    /**Hands each balance changed since the last drain to a consumer, clearing its change
+     * flag first, so a change racing with the drain is flagged again rather than lost
+     * @param changed receives the name and current balance of each changed account
+     * @return the number of balances drained
+     */
+    public int drainChanged(final ObjIntConsumer<String> changed) {
+        int drained = 0;
+        Page[] current = pages;
+        for (int p = 0; p < current.length; p++) {
+            AtomicLongArray dirty = current[p].dirty;
+            for (int word = 0; word < dirty.length(); word++) {
+                if (dirty.get(word) == 0) {
+                    continue;
+                }
+                long bits = dirty.getAndSet(word, 0);
+                while (bits != 0) {
+                    int bit = Long.numberOfTrailingZeros(bits);
+                    bits &= bits - 1;
+                    int slot = (word << 6) | bit;
+                    String name = current[p].names.get(slot);
+                    int balance = current[p].balances.get(slot);
+                    if (name != null && balance != ABSENT) {
+                        changed.accept(name, balance);
+                        drained++;
+                    }
+                }
+            }
+        }
+        return drained;
+    }
+
+    /**Flags a balance as changed, for instance after failing to persist it
+     * @param accountName the name of the account
+     */
+    public void markChanged(final String accountName) {
+        int id = id(accountName);
+        if (id >= 0) {
+            markDirty(id);
+        }
+    }
+
+    private void markDirty(final int id) {
+        AtomicLongArray dirty = page(id).dirty;
+        int slot = id & PAGE_MASK;
+        int word = slot >>> 6;
+        long bit = 1L << (slot & 63);
+        long bits;
+        do {
+            bits = dirty.get(word);
+            if ((bits & bit) != 0) {
+                return;
+            }
+        } while (!dirty.compareAndSet(word, bits, bits | bit));
+    }
+
+    private Page page(final int id) {
+        return pages[id >>> PAGE_SHIFT];
+    }
+
+    /**A page of balances, positions, their change flags, and the names of their 
+     * accounts*/
+    private static final class Page {
+        /**Number of ids in the page assigned to an account; guarded by the table's
+         * monitor*/
+        private int interned;
+
+        private final AtomicIntegerArray balances = new AtomicIntegerArray(PAGE_SIZE);
+        private final AtomicLongArray dirty = new AtomicLongArray(PAGE_SIZE >>> 6);
+        private final AtomicReferenceArray<String> names =
+                                                    new AtomicReferenceArray<>(PAGE_SIZE);
+        private final AtomicReferenceArray<Positions> positions =
+                                                    new AtomicReferenceArray<>(PAGE_SIZE);
+
+        private Page() {
+            for (int i = 0; i < PAGE_SIZE; i++) {
+                balances.set(i, ABSENT);
+            }
+        }
+    }
+}
@@ -0,0 +1,174 @@
+package edu.uw.spl.account;
+
+/**A single account read by the <code>AccountBulkLoader</code>. A record carries either a
+ * plaintext password, which is hashed on import, or an already hashed password, as written
+ * by an export. Unknown JSON properties are ignored, so exported accounts can be imported
+ * again unchanged
+ * @author slajaunie
+ */
+public class BulkAccountRecord {
+
+    /**The account name/username*/
+    private String name;
+
+    /**Plaintext password, or null if the record carries a hash*/
+    private String password;
+
+    /**Hashed password, used when no plaintext password is given*/
+    private byte[] passwordHash;
+
+    /**Balance of the account, in cents*/
+    private int balance;
+
+    private String email;
+
+    private String fullName;
+
+    private String phone;
+
+    private AddressImpl address;
+
+    private CreditCardImpl creditCard;
+
+    /**
+     *Instantiates a new, empty record
+     */
+    public BulkAccountRecord() {}
+
+    /**Instantiates a new record for an account with a plaintext password
+     * @param name the name of the account
+     * @param password the plaintext password of the account
+     * @param balance the initial balance of the account, in cents
+     */
+    public BulkAccountRecord(final String name, final String password, final int balance) {
+        this.name = name;
+        this.password = password;
+        this.balance = balance;
+    }
+
+    /**Obtains the name of the account
+     * @return the name of the account
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**Sets the name of the account
+     * @param name the name of the account
+     */
+    public void setName(final String name) {
+        this.name = name;
+    }
+
+    /**Obtains the plaintext password, or null if the record carries a hash
+     * @return the plaintext password
+     */
+    public String getPassword() {
+        return password;
+    }
+
+    /**Sets the plaintext password
+     * @param password the plaintext password
+     */
+    public void setPassword(final String password) {
+        this.password = password;
+    }
+
+    /**Obtains the hashed password
+     * @return the hashed password
+     */
+    public byte[] getPasswordHash() {
+        return passwordHash;
+    }
+
+    /**Sets the hashed password
+     * @param passwordHash the hashed password
+     */
+    public void setPasswordHash(final byte[] passwordHash) {
+        this.passwordHash = passwordHash;
+    }
+
+    /**Obtains the balance of the account, in cents
+     * @return the balance of the account
+     */
+    public int getBalance() {
+        return balance;
+    }
+
+    /**Sets the balance of the account, in cents
+     * @param balance the balance of the account
+     */
+    public void setBalance(final int balance) {
+        this.balance = balance;
+    }
+
+    /**Obtains the email address of the account holder
+     * @return the email address
+     */
+    public String getEmail() {
+        return email;
+    }
+
+    /**Sets the email address of the account holder
+     * @param email the email address
+     */
+    public void setEmail(final String email) {
+        this.email = email;
+    }
+
+    /**Obtains the full name of the account holder
+     * @return the full name
+     */
+    public String getFullName() {
+        return fullName;
+    }
+
+    /**Sets the full name of the account holder
+     * @param fullName the full name
+     */
+    public void setFullName(final String fullName) {
+        this.fullName = fullName;
+    }
+
+    /**Obtains the phone number of the account holder
+     * @return the phone number
+     */
+    public String getPhone() {
+        return phone;
+    }
+
+    /**Sets the phone number of the account holder
+     * @param phone the phone number
+     */
+    public void setPhone(final String phone) {
+        this.phone = phone;
+    }
+
+    /**Obtains the address of the account holder
+     * @return the address
+     */
+    public AddressImpl getAddress() {
+        return address;
+    }
+
+    /**Sets the address of the account holder
+     * @param address the address
+     */
+    public void setAddress(final AddressImpl address) {
+        this.address = address;
+    }
+
+    /**Obtains the credit card of the account holder
+     * @return the credit card
+     */
+    public CreditCardImpl getCreditCard() {
+        return creditCard;
+    }
+
+    /**Sets the credit card of the account holder
+     * @param creditCard the credit card
+     */
+    public void setCreditCard(final CreditCardImpl creditCard) {
+        this.creditCard = creditCard;
+    }
+}
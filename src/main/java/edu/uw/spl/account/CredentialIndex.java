@@ -0,0 +1,101 @@
+package edu.uw.spl.account;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**In-memory index of account name to password hash, so a login is checked by hashing
+ * the offered password and comparing it to the indexed hash, without reading or
+ * deserializing the account. The account manager records each account's hash as it is
+ * created, loaded or persisted, and forgets it when the account is deleted.
+ * <p>
+ * The index only ever holds hashes the manager has seen; a name it doesn't hold is not
+ * necessarily unknown, and must be looked up
+ * @author slajaunie
+ */
+public class CredentialIndex {
+
+    /**Password hash of each indexed account*/
+    private final ConcurrentMap<String, byte[]> hashes = new ConcurrentHashMap<>();
+
+    /**Message digest per thread, since digests aren't thread safe and looking one up for
+     * every login is comparatively expensive*/
+    private final ThreadLocal<MessageDigest> digests;
+
+    /**Instantiates a new, empty, index
+     * @param algorithm the algorithm hashing the passwords
+     * @throws IllegalArgumentException if the algorithm is not available
+     */
+    public CredentialIndex(final String algorithm) {
+        /*fail now rather than on the first login*/
+        newDigest(algorithm);
+        this.digests = ThreadLocal.withInitial(() -> newDigest(algorithm));
+    }
+
+    /**Records the password hash of an account, replacing any previous hash
+     * @param accountName the name of the account
+     * @param passwordHash the account's password hash; <code>null</code> forgets the
+     * account
+     */
+    public void put(final String accountName, final byte[] passwordHash) {
+        if (passwordHash == null) {
+            hashes.remove(accountName);
+        } else {
+            hashes.put(accountName, passwordHash.clone());
+        }
+    }
+
+    /**Forgets an account
+     * @param accountName the name of the account
+     */
+    public void remove(final String accountName) {
+        hashes.remove(accountName);
+    }
+
+    /**Checks whether an account's password hash is indexed
+     * @param accountName the name of the account
+     * @return true if the account's hash is indexed
+     */
+    public boolean contains(final String accountName) {
+        return hashes.containsKey(accountName);
+    }
+
+    /**Checks a password against the indexed hash of an account
+     * @param accountName the name of the account
+     * @param password the offered password
+     * @return <code>Boolean.TRUE</code> if the password matches, <code>Boolean.FALSE</code>
+     * if it doesn't, or <code>null</code> if the account's hash is not indexed
+     */
+    public Boolean matches(final String accountName, final String password) {
+        byte[] stored = hashes.get(accountName);
+        if (stored == null) {
+            return null;
+        }
+        return MessageDigest.isEqual(hash(password), stored);
+    }
+
+    /**Hashes a password the way it is stored in an Account
+     * @param password the password
+     * @return the password's hash
+     */
+    public byte[] hash(final String password) {
+        MessageDigest md = digests.get();
+        md.reset();
+        return md.digest(password.getBytes());
+    }
+
+    private static MessageDigest newDigest(final String algorithm) {
+        try {
+            return MessageDigest.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalArgumentException(
+                    String.format("Unable to find hash algorithm %s", algorithm), e);
+        }
+    }
+
+    /**Forgets every account*/
+    public void clear() {
+        hashes.clear();
+    }
+}
@@ -0,0 +1,236 @@
+package edu.uw.spl.account;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**The share positions of an account- the number of shares held of each stock, keyed by
+ * the stock's ticker id. Held in an open addressing map of primitive <code>int</code>
+ * keys to primitive <code>long</code> counts, so updating a position neither boxes nor
+ * allocates. Positions of zero shares are not kept; short positions are negative.
+ * <p>
+ * Ticker ids are interned process wide by <code>tickerId</code>, and are not persisted-
+ * positions are persisted by ticker symbol. Every method synchronizes on the positions,
+ * and callers combining an update with other state, such as the balance, synchronize on
+ * the positions around both
+ * @author slajaunie
+ */
+public final class Positions {
+
+    /**Id of each interned ticker*/
+    private static final ConcurrentMap<String, Integer> TICKER_IDS = new ConcurrentHashMap<>();
+
+    /**Ticker of each id; index 0 is unused, since 0 marks an empty key*/
+    private static volatile String[] tickers = new String[16];
+
+    /**Number of ticker ids assigned, plus one*/
+    private static int nextTickerId = 1;
+
+    /**Initial number of slots- a power of two*/
+    private static final int INITIAL_CAPACITY = 8;
+
+    /**Ticker ids; 0 marks an empty slot*/
+    private int[] keys = new int[INITIAL_CAPACITY];
+
+    /**Share counts, parallel to the keys*/
+    private long[] counts = new long[INITIAL_CAPACITY];
+
+    /**Number of occupied slots*/
+    private int size = 0;
+
+    /**Whether the positions no longer belong to an account*/
+    private boolean retired = false;
+
+    /**
+     *Instantiates a new, empty, set of positions
+     */
+    public Positions() {}
+
+    /**Obtains the id of a ticker, assigning one if the ticker has none
+     * @param ticker the stock ticker
+     * @return the ticker's id, always greater than 0
+     */
+    public static int tickerId(final String ticker) {
+        Integer id = TICKER_IDS.get(ticker);
+        if (id != null) {
+            return id;
+        }
+        synchronized (TICKER_IDS) {
+            id = TICKER_IDS.get(ticker);
+            if (id == null) {
+                id = nextTickerId++;
+                String[] current = tickers;
+                if (id >= current.length) {
+                    current = Arrays.copyOf(current, current.length * 2);
+                }
+                current[id] = ticker;
+                tickers = current;
+                TICKER_IDS.put(ticker, id);
+            }
+            return id;
+        }
+    }
+
+    /**Obtains the ticker of an id
+     * @param tickerId the ticker's id
+     * @return the ticker, or <code>null</code> if the id was never assigned
+     */
+    public static String ticker(final int tickerId) {
+        String[] current = tickers;
+        return tickerId > 0 && tickerId < current.length ? current[tickerId] : null;
+    }
+
+    /**Obtains the shares held of a stock
+     * @param tickerId the stock's ticker id
+     * @return the number of shares held, 0 if none
+     */
+    public synchronized long get(final int tickerId) {
+        int slot = find(tickerId);
+        return slot < 0 ? 0 : counts[slot];
+    }
+
+    /**Adjusts the shares held of a stock
+     * @param tickerId the stock's ticker id
+     * @param delta the change in shares- positive for a purchase, negative for a sale
+     * @return the number of shares now held
+     */
+    public synchronized long add(final int tickerId, final long delta) {
+        int slot = find(tickerId);
+        if (slot >= 0) {
+            long count = counts[slot] + delta;
+            if (count == 0) {
+                removeSlot(slot);
+            } else {
+                counts[slot] = count;
+            }
+            return count;
+        }
+        if (delta != 0) {
+            insert(tickerId, delta);
+        }
+        return delta;
+    }
+
+    /**Obtains the number of stocks with a position
+     * @return the number of positions
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    /**Takes a snapshot of the positions by ticker
+     * @return the number of shares held of each stock with a position, by ticker
+     */
+    public synchronized Map<String, Long> toMap() {
+        if (size == 0) {
+            return Collections.emptyMap();
+        }
+        Map<String, Long> map = new TreeMap<>();
+        for (int slot = 0; slot < keys.length; slot++) {
+            if (keys[slot] != 0) {
+                map.put(ticker(keys[slot]), counts[slot]);
+            }
+        }
+        return map;
+    }
+
+    /**Replaces every position with those given
+     * @param positions the number of shares held of each stock, by ticker
+     */
+    public synchronized void replaceWith(final Map<String, Long> positions) {
+        keys = new int[INITIAL_CAPACITY];
+        counts = new long[INITIAL_CAPACITY];
+        size = 0;
+        for (Map.Entry<String, Long> position : positions.entrySet()) {
+            add(tickerId(position.getKey()), position.getValue());
+        }
+    }
+
+    /**Removes every position*/
+    public synchronized void clear() {
+        replaceWith(Collections.<String, Long>emptyMap());
+    }
+
+    /**Removes every position, and marks the positions as no longer belonging to an 
+     * account, as when the account is removed from its balance table
+     */
+    public synchronized void retire() {
+        clear();
+        retired = true;
+    }
+
+    /**Checks whether the positions have been retired
+     * @return true if the positions no longer belong to an account
+     */
+    public synchronized boolean isRetired() {
+        return retired;
+    }
+
+    private int find(final int tickerId) {
+        int mask = keys.length - 1;
+        int slot = mix(tickerId) & mask;
+        while (keys[slot] != 0) {
+            if (keys[slot] == tickerId) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    private void insert(final int tickerId, final long count) {
+        if ((size + 1) * 4 > keys.length * 3) {
+            grow();
+        }
+        int mask = keys.length - 1;
+        int slot = mix(tickerId) & mask;
+        while (keys[slot] != 0) {
+            slot = (slot + 1) & mask;
+        }
+        keys[slot] = tickerId;
+        counts[slot] = count;
+        size++;
+    }
+
+    /**Empties a slot, shifting back any later entries of its probe run so lookups never
+     * stop short at the hole*/
+    private void removeSlot(final int removed) {
+        int mask = keys.length - 1;
+        int hole = removed;
+        int slot = (hole + 1) & mask;
+        while (keys[slot] != 0) {
+            int home = mix(keys[slot]) & mask;
+            /*move the entry into the hole unless its home lies cyclically after the hole*/
+            if (((slot - home) & mask) >= ((slot - hole) & mask)) {
+                keys[hole] = keys[slot];
+                counts[hole] = counts[slot];
+                hole = slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+        keys[hole] = 0;
+        counts[hole] = 0;
+        size--;
+    }
+
+    private void grow() {
+        int[] oldKeys = keys;
+        long[] oldCounts = counts;
+        keys = new int[oldKeys.length * 2];
+        counts = new long[oldKeys.length * 2];
+        size = 0;
+        for (int slot = 0; slot < oldKeys.length; slot++) {
+            if (oldKeys[slot] != 0) {
+                insert(oldKeys[slot], oldCounts[slot]);
+            }
+        }
+    }
+
+    private static int mix(final int key) {
+        int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
@@ -0,0 +1,98 @@
+package edu.uw.spl.broker;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.function.ToIntFunction;
+
+import edu.uw.ext.framework.account.Account;
+import edu.uw.spl.account.AccountImpl;
+
+/**An account's end-of-day statement- its balance, its share positions, and their market
+ * value at the closing prices
+ * @author slajaunie
+ */
+public class AccountStatement {
+
+    /**The name of the account*/
+    private final String accountName;
+
+    /**The balance, in cents*/
+    private final int balance;
+
+    /**The shares held of each stock, by ticker*/
+    private final Map<String, Long> positions;
+
+    /**Market value of the positions at the closing prices, in cents*/
+    private final long marketValue;
+
+    /**Instantiates a new statement
+     * @param accountName the name of the account
+     * @param balance the balance, in cents
+     * @param positions the shares held of each stock, by ticker
+     * @param marketValue market value of the positions at the closing prices, in cents
+     */
+    public AccountStatement(final String accountName, final int balance,
+                            final Map<String, Long> positions, final long marketValue) {
+        this.accountName = accountName;
+        this.balance = balance;
+        this.positions = Collections.unmodifiableMap(positions);
+        this.marketValue = marketValue;
+    }
+
+    /**Prepares the statement of an account
+     * @param account the account
+     * @param prices obtains the closing price of a stock, in cents, by ticker
+     * @return the account's statement
+     */
+    static AccountStatement of(final Account account, final ToIntFunction<String> prices) {
+        Map<String, Long> positions = account instanceof AccountImpl
+                ? ((AccountImpl) account).holdings() : Collections.<String, Long>emptyMap();
+        long marketValue = 0;
+        for (Map.Entry<String, Long> position : positions.entrySet()) {
+            marketValue += position.getValue() * prices.applyAsInt(position.getKey());
+        }
+        return new AccountStatement(account.getName(), account.getBalance(), positions,
+                                    marketValue);
+    }
+
+    /**Obtains the name of the account
+     * @return the account name
+     */
+    public String getAccountName() {
+        return accountName;
+    }
+
+    /**Obtains the balance
+     * @return the balance, in cents
+     */
+    public int getBalance() {
+        return balance;
+    }
+
+    /**Obtains the positions
+     * @return the shares held of each stock, by ticker
+     */
+    public Map<String, Long> getPositions() {
+        return positions;
+    }
+
+    /**Obtains the market value of the positions at the closing prices
+     * @return the market value, in cents
+     */
+    public long getMarketValue() {
+        return marketValue;
+    }
+
+    /**Obtains the account's equity- its balance plus the market value of its positions
+     * @return the equity, in cents
+     */
+    public long getEquity() {
+        return balance + marketValue;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("AccountStatement[%s: balance %d, positions %s, value %d]",
+                             accountName, balance, positions, marketValue);
+    }
+}
@@ -1,9 +1,16 @@
 package edu.uw.spl.broker;
 
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
 import edu.uw.ext.framework.account.AccountManager;
 import edu.uw.ext.framework.broker.Broker;
 import edu.uw.ext.framework.broker.BrokerFactory;
 import edu.uw.ext.framework.exchange.StockExchange;
+import edu.uw.spl.account.AccountManagerImpl;
 
 /**Implentation of a Broker Factory which instantiates a new Broker
  * @author slajaunie
@@ -11,12 +18,47 @@ import edu.uw.ext.framework.exchange.StockExchange;
  */
 public class BrokerFactoryImpl implements BrokerFactory {
 
+    /**Whether new brokers preload accounts before receiving exchange events*/
+    private boolean warmUp = false;
+    
+    /**Accounts preloaded by new brokers; if empty, every persisted account is preloaded*/
+    private List<String> warmUpAccounts = Collections.emptyList();
+    
+    /**Maximum number of accounts preloaded, or 0 for no limit*/
+    private int warmUpLimit = 0;
+    
+    /**Number of accounts read at once during the warm-up*/
+    private int warmUpParallelism = 2 * Runtime.getRuntime().availableProcessors();
+    
+    /**How long sessions opened with new brokers last, in seconds*/
+    private long sessionTimeout = BrokerImpl.DEFAULT_SESSION_TIMEOUT_SECONDS;
+    
+    /**Whether new brokers refuse buy orders exceeding the account's buying power*/
+    private boolean buyingPowerCheck = false;
+    
+    /**Fraction of the gross value of its positions an account of a new broker must hold
+     * as equity*/
+    private double maintenanceMargin = BrokerImpl.DEFAULT_MAINTENANCE_MARGIN;
+    
+    /**Whether new brokers run the end-of-day batch when the exchange closes*/
+    private boolean endOfDayBatch = false;
+    
+    /**Number of accounts read and stated at once by the end-of-day batch*/
+    private int endOfDayParallelism = 2 * Runtime.getRuntime().availableProcessors();
+    
+    /**How long new brokers hold market orders for crossing, in milliseconds; 0 to route
+     * every market order to the exchange*/
+    private long crossingWindowMillis = 0;
+    
+    /**Whether new brokers execute the market orders released by the open as one batch*/
+    private boolean openingBatch = false;
+
     /**
      *The default constructor 
      */
     public BrokerFactoryImpl() {}
     
-    /**Instantiates a new Broker object
+    /**Instantiates a new Broker object, warming up its account cache first if enabled
      * @see edu.uw.ext.framework.broker.BrokerFactory#newBroker(java.lang.String, edu.uw.ext.framework.account.AccountManager, edu.uw.ext.framework.exchange.StockExchange)
      * @param name the name of this broker
      * @param acctMgr the account manager that will be associated with this broker
@@ -27,7 +69,15 @@ public class BrokerFactoryImpl implements BrokerFactory {
     public Broker newBroker(final String name, 
                             final AccountManager acctMgr, 
                             final StockExchange exch) {
-        BrokerImpl broker = new BrokerImpl(name,acctMgr,exch);
+        BrokerImpl broker = new BrokerImpl(name, acctMgr, exch, 
+                                           hotSet(acctMgr), warmUpParallelism);
+        broker.setSessionTimeout(sessionTimeout);
+        broker.setBuyingPowerCheck(buyingPowerCheck);
+        broker.setMaintenanceMargin(maintenanceMargin);
+        broker.setEndOfDayBatch(endOfDayBatch);
+        broker.setEndOfDayParallelism(endOfDayParallelism);
+        broker.setCrossingWindowMillis(crossingWindowMillis);
+        broker.setOpeningBatch(openingBatch);
         /*Either here or in Broker constructor, get list of alll the stocks in the exchange
          * and create an order manager for each
          * Map that gets the stock symbol and maps to a current price from the exchange
@@ -35,4 +85,185 @@ public class BrokerFactoryImpl implements BrokerFactory {
         return broker;
     }
 
+    /**Determines the accounts a new broker preloads- the configured accounts, or else 
+     * every persisted account, capped at the warm-up limit
+     * @param acctMgr the broker's account manager
+     * @return the accounts to preload, empty if warm-up is disabled
+     */
+    private Collection<String> hotSet(final AccountManager acctMgr) {
+        if (!warmUp || !(acctMgr instanceof AccountManagerImpl)) {
+            return Collections.emptySet();
+        }
+        Collection<String> candidates = warmUpAccounts.isEmpty()
+                ? ((AccountManagerImpl) acctMgr).getPersistedAccountNames() : warmUpAccounts;
+        Set<String> hotSet = new LinkedHashSet<>();
+        for (String account : candidates) {
+            if (warmUpLimit > 0 && hotSet.size() >= warmUpLimit) {
+                break;
+            }
+            hotSet.add(account);
+        }
+        return hotSet;
+    }
+
+    /**Checks whether new brokers preload accounts before receiving exchange events
+     * @return true if warm-up is enabled
+     */
+    public boolean isWarmUp() {
+        return warmUp;
+    }
+
+    /**Sets whether new brokers preload accounts before receiving exchange events
+     * @param warmUp true to enable warm-up
+     */
+    public void setWarmUp(final boolean warmUp) {
+        this.warmUp = warmUp;
+    }
+
+    /**Obtains the accounts preloaded by new brokers
+     * @return the accounts to preload; empty means every persisted account
+     */
+    public List<String> getWarmUpAccounts() {
+        return warmUpAccounts;
+    }
+
+    /**Sets the accounts preloaded by new brokers, such as the accounts with resting stop
+     * orders
+     * @param warmUpAccounts the accounts to preload; empty means every persisted account
+     */
+    public void setWarmUpAccounts(final List<String> warmUpAccounts) {
+        this.warmUpAccounts = warmUpAccounts;
+    }
+
+    /**Obtains the maximum number of accounts preloaded
+     * @return the warm-up limit, or 0 for no limit
+     */
+    public int getWarmUpLimit() {
+        return warmUpLimit;
+    }
+
+    /**Sets the maximum number of accounts preloaded
+     * @param warmUpLimit the warm-up limit, or 0 for no limit
+     */
+    public void setWarmUpLimit(final int warmUpLimit) {
+        this.warmUpLimit = warmUpLimit;
+    }
+
+    /**Obtains the number of accounts read at once during the warm-up
+     * @return the warm-up parallelism
+     */
+    public int getWarmUpParallelism() {
+        return warmUpParallelism;
+    }
+
+    /**Sets the number of accounts read at once during the warm-up
+     * @param warmUpParallelism the warm-up parallelism
+     */
+    public void setWarmUpParallelism(final int warmUpParallelism) {
+        this.warmUpParallelism = warmUpParallelism;
+    }
+
+    /**Obtains how long sessions opened with new brokers last
+     * @return the session timeout, in seconds
+     */
+    public long getSessionTimeout() {
+        return sessionTimeout;
+    }
+
+    /**Sets how long sessions opened with new brokers last
+     * @param sessionTimeout the session timeout, in seconds
+     */
+    public void setSessionTimeout(final long sessionTimeout) {
+        this.sessionTimeout = sessionTimeout;
+    }
+
+    /**Checks whether new brokers refuse buy orders exceeding the account's buying power
+     * @return true if the buying power check is enabled
+     */
+    public boolean isBuyingPowerCheck() {
+        return buyingPowerCheck;
+    }
+
+    /**Sets whether new brokers refuse buy orders exceeding the account's buying power
+     * @param buyingPowerCheck true to enable the buying power check
+     */
+    public void setBuyingPowerCheck(final boolean buyingPowerCheck) {
+        this.buyingPowerCheck = buyingPowerCheck;
+    }
+
+    /**Obtains the fraction of the gross value of its positions an account of a new broker
+     * must hold as equity
+     * @return the maintenance margin
+     */
+    public double getMaintenanceMargin() {
+        return maintenanceMargin;
+    }
+
+    /**Sets the fraction of the gross value of its positions an account of a new broker 
+     * must hold as equity
+     * @param maintenanceMargin the maintenance margin, such as 0.25
+     */
+    public void setMaintenanceMargin(final double maintenanceMargin) {
+        this.maintenanceMargin = maintenanceMargin;
+    }
+
+    /**Checks whether new brokers run the end-of-day batch when the exchange closes
+     * @return true if the batch is enabled
+     */
+    public boolean isEndOfDayBatch() {
+        return endOfDayBatch;
+    }
+
+    /**Sets whether new brokers run the end-of-day batch when the exchange closes
+     * @param endOfDayBatch true to enable the batch
+     */
+    public void setEndOfDayBatch(final boolean endOfDayBatch) {
+        this.endOfDayBatch = endOfDayBatch;
+    }
+
+    /**Obtains the number of accounts read and stated at once by the end-of-day batch
+     * @return the batch parallelism
+     */
+    public int getEndOfDayParallelism() {
+        return endOfDayParallelism;
+    }
+
+    /**Sets the number of accounts read and stated at once by the end-of-day batch
+     * @param endOfDayParallelism the batch parallelism
+     */
+    public void setEndOfDayParallelism(final int endOfDayParallelism) {
+        this.endOfDayParallelism = endOfDayParallelism;
+    }
+
+    /**Obtains how long new brokers hold market orders for crossing
+     * @return the crossing window, in milliseconds, or 0 if market orders aren't crossed
+     */
+    public long getCrossingWindowMillis() {
+        return crossingWindowMillis;
+    }
+
+    /**Sets how long new brokers hold market orders for crossing
+     * @param crossingWindowMillis the crossing window, in milliseconds, or 0 to route
+     * every market order to the exchange
+     */
+    public void setCrossingWindowMillis(final long crossingWindowMillis) {
+        this.crossingWindowMillis = crossingWindowMillis;
+    }
+
+    /**Checks whether new brokers execute the market orders released by the open as one
+     * batch
+     * @return true if the opening batch is enabled
+     */
+    public boolean isOpeningBatch() {
+        return openingBatch;
+    }
+
+    /**Sets whether new brokers execute the market orders released by the open as one
+     * batch, netted per stock
+     * @param openingBatch true to enable the opening batch
+     */
+    public void setOpeningBatch(final boolean openingBatch) {
+        this.openingBatch = openingBatch;
+    }
+
 }
@@ -1,9 +1,24 @@
 package edu.uw.spl.broker;
 
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.HashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.BiPredicate;
 import java.util.function.Consumer;
+import java.util.function.Predicate;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -22,10 +37,17 @@ import edu.uw.ext.framework.order.MarketSellOrder;
 import edu.uw.ext.framework.order.Order;
 import edu.uw.ext.framework.order.StopBuyOrder;
 import edu.uw.ext.framework.order.StopSellOrder;
+import edu.uw.spl.account.AccountImpl;
+import edu.uw.spl.account.AccountManagerImpl;
 
 /**Implementation of the Broker interface. Interacts with the AccountManager 
  * to create Accounts, get/set Accounts, delete Accounts, or process Orders
- * on behalf of an Account
+ * on behalf of an Account.
+ * <p>
+ * Short selling is allowed: a sell order is never checked against the shares its 
+ * account holds, and a sale past them leaves the account a short position- a negative
+ * number of shares- which its margin is checked against like any other position. Only 
+ * buy orders are checked, against buying power, when the check is enabled
  * @author slajaunie
  */
 public class BrokerImpl implements Broker, ExchangeListener {
@@ -56,15 +78,111 @@ public class BrokerImpl implements Broker, ExchangeListener {
             
     /**The Consumer/OrderProcessor for StopBuyOrders*/
     private Consumer<StopBuyOrder> moveBuyToMarketOrderProcessor = 
-            (order)-> marketOrders.enqueue(order);
+            (order)-> moveToMarket(order);
     
     /**The Consumer/OrderProcessor for StopSellOrders*/
     private Consumer<StopSellOrder> moveSellToMarketOrderProcessor = 
-            (order)-> marketOrders.enqueue(order);
+            (order)-> moveToMarket(order);
+    
+    /**The Consumer/OrderProcessor for triggered LimitBuyOrders*/
+    private Consumer<LimitBuyOrder> moveLimitBuyToMarketOrderProcessor = 
+            (order)-> moveToMarket(order);
+    
+    /**The Consumer/OrderProcessor for triggered LimitSellOrders*/
+    private Consumer<LimitSellOrder> moveLimitSellToMarketOrderProcessor = 
+            (order)-> moveToMarket(order);
+    
+    /**Orders placed and not yet executed, by order id, for cancellation*/
+    private final RestingOrderIndex restingOrders = new RestingOrderIndex();
+    
+    /**Ids of the outstanding orders whose accounts have been prefetched and pinned*/
+    private final Set<Integer> pinnedOrders = ConcurrentHashMap.newKeySet();
+    
+    /**Default session timeout, in seconds*/
+    public static final long DEFAULT_SESSION_TIMEOUT_SECONDS = 15 * 60;
+    
+    /**Sessions opened by successful logins*/
+    private final SessionTable sessions = 
+                            new SessionTable(DEFAULT_SESSION_TIMEOUT_SECONDS * 1000);
+    
+    /**Buying power reserved by outstanding buy orders*/
+    private final BuyingPowerReservations reservations = new BuyingPowerReservations();
+    
+    /**Whether buy orders exceeding the account's buying power are refused when placed*/
+    private volatile boolean buyingPowerCheck = false;
+    
+    /**Live market values of the accounts' portfolios, revalued incrementally on each 
+     * price change*/
+    private final PortfolioValuation valuation = new PortfolioValuation();
+    
+    /**Default fraction of the gross value of its positions an account must hold as equity*/
+    public static final double DEFAULT_MAINTENANCE_MARGIN = 0.25;
+    
+    /**Fraction of the gross value of its positions an account must hold as equity*/
+    private volatile double maintenanceMargin = DEFAULT_MAINTENANCE_MARGIN;
+    
+    /**Listeners for margin calls*/
+    private final List<MarginListener> marginListeners = new CopyOnWriteArrayList<>();
+    
+    /**Whether the end-of-day batch runs when the exchange closes*/
+    private volatile boolean endOfDayBatch = false;
+    
+    /**Number of accounts read and stated at once by the end-of-day batch*/
+    private volatile int endOfDayParallelism = 2 * Runtime.getRuntime().availableProcessors();
+    
+    /**Receives the statements prepared by the end-of-day batch*/
+    private volatile Consumer<AccountStatement> statementSink = 
+            (statement)-> log.debug("{}", statement);
+    
+    /**The latest run of the end-of-day batch, or null if it has never run*/
+    private volatile CompletableFuture<EndOfDayBatch.Report> endOfDay = null;
+    
+    /**The crossing stage market orders pass through before the exchange, or null if
+     * market orders are not crossed*/
+    private volatile MarketOrderCrossing crossing = null;
+    
+    /**Whether the market orders released by the open are executed as one batch, netted
+     * per stock*/
+    private volatile boolean openingBatch = false;
+    
+    /**The batch collecting the market orders released by the open, while the market
+     * order queue drains, or null*/
+    private volatile OpeningBatch opening = null;
     
     /**The Consumer/OrderProcessor for market orders*/
     private Consumer<Order> marketOrderProcessor = (order)-> this.executeOrder(order);
 
+    /**Number of threads executing market orders whose account had to be read first*/
+    private static final int EXECUTION_THREADS = 4;
+
+    /**How long close waits for the orders being executed, in seconds*/
+    private static final long EXECUTION_SHUTDOWN_SECONDS = 30;
+
+    /**Executes market orders once their account has been read, so the thread dispatching
+     * the orders never waits on a cold account read*/
+    private final ExecutorService executionThreads = newExecutionThreads();
+
+    /**The last market order taken for execution in each account, by account name, 
+     * completed once the order has executed; each account's next order executes only 
+     * after it, so an account's orders reach the exchange in the order dispatched */
+    private final ConcurrentMap<String, CompletableFuture<Void>> executionTails = 
+                                                                new ConcurrentHashMap<>();
+
+    /**Ids of the orders executed on the exchange whose fill could not be persisted*/
+    private final Set<Integer> unpersistedOrders = ConcurrentHashMap.newKeySet();
+
+    /**Ids of the orders claimed for execution which could not be executed*/
+    private final Set<Integer> failedOrders = ConcurrentHashMap.newKeySet();
+
+    /**The id of the order placed, for each outstanding part split off it, by the part's
+     * id*/
+    private final ConcurrentMap<Integer, Integer> parentOrders = new ConcurrentHashMap<>();
+
+    /**The ids of the outstanding parts split off each order placed, by the id of the 
+     * order placed; kept with <code>parentOrders</code>, so a cancel finds an order's 
+     * parts without scanning every part*/
+    private final ConcurrentMap<Integer, Set<Integer>> partOrders = new ConcurrentHashMap<>();
+
     /**
      * Constructor- 
      * Instantiates a new Broker implementation
@@ -75,6 +193,26 @@ public class BrokerImpl implements Broker, ExchangeListener {
     public BrokerImpl(final String name, 
                         final AccountManager acctMgr, 
                         final StockExchange exchange) {
+        this(name, acctMgr, exchange, Collections.<String>emptySet(), 1);
+    }
+
+    /**
+     * Constructor- 
+     * Instantiates a new Broker implementation, preloading the given accounts into the
+     * account manager's cache before the broker starts receiving exchange events, so the
+     * first orders after a restart don't pay cold account reads
+     * @param name the name of this Broker
+     * @param acctMgr the AccountManager instance that will be associated with this broker
+     * @param exchange The exchange this broker will interact with
+     * @param warmUpAccounts the hot set of accounts to preload; ignored unless the account
+     * manager is an <code>AccountManagerImpl</code>
+     * @param warmUpParallelism the number of accounts read at once during the warm-up
+     * */
+    public BrokerImpl(final String name, 
+                        final AccountManager acctMgr, 
+                        final StockExchange exchange,
+                        final Collection<String> warmUpAccounts,
+                        final int warmUpParallelism) {
         /*Set the internal fields...*/
         this.name = name;
         this.accountManager = acctMgr;
@@ -98,6 +236,7 @@ public class BrokerImpl implements Broker, ExchangeListener {
             StockQuote quote  = exchange.getQuote(stock);
             String ticker = quote.getTicker();
             OrderManager om = new OrderManagerImpl(ticker, quote.getPrice());
+            valuation.priceChanged(ticker, quote.getPrice());
             log.info("Created order manager for {}",om.getSymbol());
             
             /*Add OrderManager to the map*/
@@ -110,11 +249,22 @@ public class BrokerImpl implements Broker, ExchangeListener {
                 /*...Now add order processors - avoiding NullPointerException*/
                 om.setBuyOrderProcessor(moveBuyToMarketOrderProcessor);
                 om.setSellOrderProcessor(moveSellToMarketOrderProcessor);
+                ((OrderManagerImpl) om).setLimitBuyOrderProcessor(
+                                                moveLimitBuyToMarketOrderProcessor);
+                ((OrderManagerImpl) om).setLimitSellOrderProcessor(
+                                                moveLimitSellToMarketOrderProcessor);
             } else {
                 log.warn("Unable to add order manager to queue");
             }
         }
         
+        /*...Warm up the account cache before any event can trigger an order...*/
+        if (!warmUpAccounts.isEmpty() && accountManager instanceof AccountManagerImpl) {
+            ((AccountManagerImpl) accountManager).warmUp(warmUpAccounts, warmUpParallelism,
+                    (done, total) -> log.info("Broker {} warm-up: {} of {} accounts",
+                                                                    name, done, total));
+        }
+        
         /*....Register this Broker to listen for exchange events*/
         exchange.addExchangeListener(this);
     }
@@ -127,6 +277,23 @@ public class BrokerImpl implements Broker, ExchangeListener {
     @Override
     public void close() throws BrokerException {
        try {
+        sessions.clear();
+        reservations.clear();
+        valuation.clear();
+        marginListeners.clear();
+        restingOrders.clear();
+        setCrossingWindowMillis(0);
+        /*let the orders being executed reach the account manager before it closes*/
+        executionThreads.shutdown();
+        try {
+            if (!executionThreads.awaitTermination(EXECUTION_SHUTDOWN_SECONDS, 
+                                                    TimeUnit.SECONDS)) {
+                log.warn("Order execution threads did not finish within {} seconds",
+                                                            EXECUTION_SHUTDOWN_SECONDS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
         accountManager.close();
         accountManager = null;
         exchange.removeExchangeListener(this);
@@ -172,10 +339,17 @@ public class BrokerImpl implements Broker, ExchangeListener {
      */
     @Override
     public void deleteAccount(final String username) throws BrokerException {
+        /*revoke first, so no session outlives the account...*/
+        sessions.revoke(username);
+        valuation.remove(username);
         try {
             accountManager.deleteAccount(username);
         } catch (AccountException e) {
             throw new BrokerException("Broker was unable to delete account",e);
+        } finally {
+            /*...and again once it is gone, refusing any session whose login was checked
+             * while it was being deleted*/
+            sessions.revoke(username);
         }
         
     }
@@ -194,13 +368,15 @@ public class BrokerImpl implements Broker, ExchangeListener {
                             throws BrokerException {
         boolean validated = false;
         Account account = null;
-        /*First locate and validate the account...*/
+        /*First validate the credentials- answered from memory- then locate the account, 
+         * so a failed login never loads an account...*/
         try {
-            account = accountManager.getAccount(username);
-            if (account != null) {
-                validated = accountManager.validateLogin(username, password);
-            } else {
-                throw new BrokerException("Broker was unable to get account");
+            validated = accountManager.validateLogin(username, password);
+            if (validated) {
+                account = accountManager.getAccount(username);
+                if (account == null) {
+                    throw new BrokerException("Broker was unable to get account");
+                }
             }
         } catch (AccountException e) {
             throw new BrokerException("Broker was unable to get account",e);
@@ -216,25 +392,846 @@ public class BrokerImpl implements Broker, ExchangeListener {
         return account;
     }
 
-    /**Utility function that processes a market order
+    /**Opens a session for an account after validating its credentials once. Later
+     * requests present the returned token to <code>getAccount(String)</code> instead of the
+     * password, and are authorized without hashing the password again. The session 
+     * expires after the session timeout, when closed, or when the account is deleted
+     * @param username the name of the account
+     * @param password the password of the account
+     * @return the session's token
+     * @throws BrokerException if the credentials could not be verified, or the account 
+     * was deleted meanwhile
+     */
+    public String openSession(final String username, final String password) 
+                            throws BrokerException {
+        /*read before the credentials are checked, so a deletion meanwhile is detected*/
+        long generation = sessions.generation(username);
+        boolean validated = false;
+        try {
+            validated = accountManager.validateLogin(username, password);
+        } catch (AccountException e) {
+            throw new BrokerException("Broker was unable to validate account",e);
+        }
+        if (!validated) {
+            throw new BrokerException("Unable to verify account credentials");
+        }
+        String token = sessions.open(username, generation);
+        if (token == null) {
+            throw new BrokerException("Account was deleted while the session was opened");
+        }
+        return token;
+    }
+
+    /**Look up the account of an open session
+     * @param token the session's token, as returned by <code>openSession</code>
+     * @return the session's account
+     * @throws BrokerException if the session is unknown, expired or closed, or the 
+     * account could not be located
+     */
+    public Account getAccount(final String token) throws BrokerException {
+        String username = sessions.lookup(token);
+        if (username == null) {
+            throw new BrokerException("Session is invalid or has expired");
+        }
+        Account account = null;
+        try {
+            account = accountManager.getAccount(username);
+        } catch (AccountException e) {
+            throw new BrokerException("Broker was unable to get account",e);
+        }
+        if (account == null) {
+            /*the account is gone- so is the session*/
+            sessions.close(token);
+            throw new BrokerException("Broker was unable to get account");
+        }
+        return account;
+    }
+
+    /**Closes a session; closing an unknown or expired session has no effect
+     * @param token the session's token
+     */
+    public void closeSession(final String token) {
+        sessions.close(token);
+    }
+
+    /**Obtains how long a session lasts
+     * @return the session timeout, in seconds
+     */
+    public long getSessionTimeout() {
+        return sessions.getTimeoutMillis() / 1000;
+    }
+
+    /**Sets how long sessions opened from now on last
+     * @param seconds the session timeout, in seconds
+     */
+    public void setSessionTimeout(final long seconds) {
+        sessions.setTimeoutMillis(seconds * 1000);
+    }
+
+    /**Utility function that processes a market order. When the account manager supports
+     * asynchronous account I/O, the account is read on the account I/O threads and the 
+     * executed order is reflected and persisted there as well, so the dispatch thread 
+     * moves on to the next order's exchange round trip while the write completes. Writes 
+     * to one account stay in order, and a later read of the account waits for them.
+     * When market orders are crossed, the order is handed to the crossing stage instead,
+     * which settles it once its window closes; an order released by the open joins the
+     * opening batch, if enabled, unless it is a limit order, which must be checked 
+     * against its own limit
      * @param order an order to be processed
      */
     private void executeOrder(final Order order) {
+        if (!restingOrders.claim(order.getOrderId())) {
+            /*cancelled while on its way here*/
+            log.info("Order {} was cancelled; not executed", order.getOrderId());
+            return;
+        }
+        OpeningBatch opening = this.opening;
+        if (opening != null && !isLimitOrder(order) && opening.add(order)) {
+            return;
+        }
+        MarketOrderCrossing crossing = this.crossing;
+        if (crossing != null) {
+            crossing.add(order);
+            return;
+        }
+        settle(order, 0, 0);
+    }
+
+    /**Settles a claimed market order: fills its crossed shares, if any, internally at the
+     * crossing price, and routes the rest to the exchange. A partly crossed order is 
+     * reflected in its account as two fills, one for each part. The pin on the order's
+     * account and its reserved buying power are held until the fills complete. A limit
+     * order, or part of one, which can't fill within its limit is returned to its limit
+     * order book, keeping its share of the pin and reservation. An order which can't be
+     * executed- its account can't be read, or the exchange refuses it- is failed, and 
+     * surfaced through <code>getFailedOrders</code>
+     * @param order the order
+     * @param crossedShares the number of the order's shares filled internally
+     * @param price the price of the internal fill, in cents
+     */
+    private void settle(final Order order, final int crossedShares, final int price) {
+        int routedShares = order.getNumberOfShares() - crossedShares;
+        CompletableFuture<Boolean> requeued;
+        try {
+            if (routedShares == 0) {
+                requeued = settlePart(order, order, price);
+            } else if (crossedShares == 0) {
+                requeued = settlePart(order, order, 0);
+            } else {
+                Order crossed = split(order, crossedShares);
+                Order routed = split(order, routedShares);
+                log.info("Order {} split into order {}, {} shares crossed, and order {}, "
+                            + "{} shares routed", order.getOrderId(), crossed.getOrderId(),
+                                            crossedShares, routed.getOrderId(), routedShares);
+                requeued = settlePart(order, crossed, price)
+                        .thenCombine(settlePart(order, routed, 0), (c, r) -> false);
+            }
+        } catch (RuntimeException e) {
+            requeued = new CompletableFuture<>();
+            requeued.completeExceptionally(e);
+        }
+        requeued.whenComplete((r, e) -> {
+            if (Boolean.TRUE.equals(r)) {
+                /*resting again, with its pin and reservation*/
+                return;
+            }
+            if (e != null) {
+                log.error("Unable to execute order {}", order.getOrderId(),
+                                        e instanceof CompletionException ? e.getCause() : e);
+                untrace(order.getOrderId());
+                fail(order);
+                return;
+            }
+            if (accountManager instanceof AccountManagerImpl) {
+                unpin(order);
+            }
+            reservations.release(order.getOrderId());
+            untrace(order.getOrderId());
+        });
+    }
+
+    /**Fills an order, or a part of it, returning it to its limit order book if it can't
+     * fill within its limit
+     * @param order the order
+     * @param part the order itself, or the part to fill
+     * @param price the price of an internal fill, in cents, or 0 to execute the part on
+     * the exchange
+     * @return a future completed with whether the whole order was returned to its book, 
+     * once the fill is reflected, or has failed
+     */
+    private CompletableFuture<Boolean> settlePart(final Order order, final Order part,
+                                                  final int price) {
+        CompletableFuture<Boolean> fill = fill(part, price);
+        if (part != order) {
+            fill = fill.whenComplete((filled, e) -> {
+                if (!Boolean.FALSE.equals(filled)) {
+                    /*no longer outstanding, unless it is returned to its book*/
+                    untrace(part.getOrderId());
+                }
+            });
+        }
+        return fill.thenApply(filled -> {
+            if (filled) {
+                return false;
+            }
+            requeue(order, part);
+            return part == order;
+        });
+    }
+
+    /**Fills an order and reflects it in its account
+     * @param order the order
+     * @param price the price of an internal fill, in cents, or 0 to execute the order on
+     * the exchange
+     * @return a future completed once the fill is reflected, or has failed, with false if
+     * the order was not filled because the price broke its limit
+     */
+    private CompletableFuture<Boolean> fill(final Order order, final int price) {
         String acctId = order.getAccountId();
-        int numShares = order.getNumberOfShares();
-        String ticker = order.getStockTicker();
+        if (accountManager instanceof AccountManagerImpl) {
+            return executeOrderAsync((AccountManagerImpl) accountManager, order, price);
+        }
         try {
-            accountManager.getAccount(acctId)
-                            .reflectOrder(order,exchange.executeTrade(order));
+            Account account = accountManager.getAccount(acctId);
+            int executionPrice = execute(order, price);
+            if (executionPrice == 0) {
+                return CompletableFuture.completedFuture(false);
+            }
+            account.reflectOrder(order, executionPrice);
+            revalue(account, order.getStockTicker());
             log.info("Broker successfully executed order for {}: {} shares of {}",
                                                                     acctId,
-                                                                    numShares,
-                                                                    ticker);
+                                                                    order.getNumberOfShares(),
+                                                                    order.getStockTicker());
         } catch (AccountException e) {
             e.printStackTrace();
         }
+        return CompletableFuture.completedFuture(true);
+    }
+
+    /**Obtains the price an order fills at: the price of its internal fill, or else the
+     * price the exchange executes it at. A limit order never fills at a price breaking 
+     * its limit: an internal fill is refused, and the order is sent to the exchange only
+     * if the stock's current quote is within its limit
+     * @param order the order
+     * @param price the price of an internal fill, in cents, or 0 to execute the order on
+     * the exchange
+     * @return the execution price, in cents, or 0 if the order was not filled
+     */
+    private int execute(final Order order, final int price) {
+        if (price > 0) {
+            return LimitOrderBook.isWithinLimit(order, price) ? price : 0;
+        }
+        if (isLimitOrder(order)) {
+            StockQuote quote = exchange.getQuote(order.getStockTicker());
+            if (quote == null || !LimitOrderBook.isWithinLimit(order, quote.getPrice())) {
+                log.info("Order {} not sent to the exchange: quote {} is outside its limit",
+                         order.getOrderId(), quote == null ? 0 : quote.getPrice());
+                return 0;
+            }
+        }
+        int executionPrice = exchange.executeTrade(order);
+        if (!LimitOrderBook.isWithinLimit(order, executionPrice)) {
+            /*executed already, so it can only be reflected*/
+            log.error("Order {} executed by the exchange at {}, outside its limit",
+                      order.getOrderId(), executionPrice);
+        }
+        return executionPrice;
+    }
+
+    /**Returns a limit order, or a part of one, which couldn't fill within its limit to its
+     * stock's limit order book, to rest there until a later price triggers it again. A 
+     * part split off the order takes its own pin on the account, and its share of the 
+     * order's reserved buying power
+     * @param order the order
+     * @param part the order itself, or the part which didn't fill
+     */
+    private void requeue(final Order order, final Order part) {
+        OrderManager om = orderManagers.get(part.getStockTicker());
+        if (!(om instanceof OrderManagerImpl)) {
+            log.error("Order {} not filled within its limit, and its stock is unknown",
+                      part.getOrderId());
+            return;
+        }
+        if (part != order && part instanceof LimitBuyOrder) {
+            reservations.transfer(order.getOrderId(), part.getOrderId(), 
+                    (long) part.getNumberOfShares() * ((LimitBuyOrder) part).getPrice());
+        }
+        prefetch(part);
+        OrderManagerImpl manager = (OrderManagerImpl) om;
+        restingOrders.add(part, manager::removeOrder);
+        manager.requeueOrder(part);
+        log.info("Order {} returned to the limit order book for {}", part.getOrderId(),
+                                                                    manager.getSymbol());
+    }
+
+    /**Checks whether an order is a limit order
+     * @param order the order
+     * @return true for a LimitBuyOrder or LimitSellOrder
+     */
+    private static boolean isLimitOrder(final Order order) {
+        return order instanceof LimitBuyOrder || order instanceof LimitSellOrder;
+    }
+
+    /**Splits part of an order's shares off into an order of its own, recording the id of
+     * the order placed, so the part's fill can be traced back to it
+     * @param order the order
+     * @param shares the number of shares of the part
+     * @return the part
+     */
+    private Order split(final Order order, final int shares) {
+        Order part = part(order, shares);
+        int partId = part.getOrderId();
+        int placedId = getPlacedOrderId(order.getOrderId());
+        partOrders.compute(placedId, (id, parts) -> {
+            Set<Integer> traced = parts == null ? ConcurrentHashMap.newKeySet() : parts;
+            traced.add(partId);
+            return traced;
+        });
+        parentOrders.put(partId, placedId);
+        return part;
+    }
+
+    /**Stops tracing a part back to the order placed, once it is no longer outstanding
+     * @param partId the id of the part; an order which isn't a part is ignored
+     */
+    private void untrace(final int partId) {
+        Integer placedId = parentOrders.remove(partId);
+        if (placedId != null) {
+            partOrders.computeIfPresent(placedId, (id, parts) -> {
+                parts.remove(partId);
+                return parts.isEmpty() ? null : parts;
+            });
+        }
+    }
+
+    /**Obtains the id of the order placed which an order was split off, as when part of
+     * a market order is crossed and the rest routed to the exchange. A part is traced 
+     * while it is outstanding
+     * @param orderId the id of the order
+     * @return the id of the order placed, or <code>orderId</code> itself if the order
+     * is not an outstanding part
+     */
+    public int getPlacedOrderId(final int orderId) {
+        Integer parent = parentOrders.get(orderId);
+        return parent == null ? orderId : parent;
+    }
+
+    /**Creates an order for part of an order's shares, so the part can be filled and 
+     * reflected apart from the rest. The part of a limit order keeps its limit
+     * @param order the order
+     * @param shares the number of shares of the part
+     * @return the part
+     */
+    private static Order part(final Order order, final int shares) {
+        String acctId = order.getAccountId();
+        String ticker = order.getStockTicker();
+        if (order instanceof LimitBuyOrder) {
+            return new LimitBuyOrder(acctId, shares, ticker, 
+                                     ((LimitBuyOrder) order).getPrice());
+        }
+        if (order instanceof LimitSellOrder) {
+            return new LimitSellOrder(acctId, shares, ticker, 
+                                      ((LimitSellOrder) order).getPrice());
+        }
+        return order.isBuyOrder() 
+                ? new MarketBuyOrder(acctId, shares, ticker)
+                : new MarketSellOrder(acctId, shares, ticker);
+    }
+
+    /**Pre-trade risk check for a buy order: reserves the order's estimated cost- its
+     * shares at the stock's last known price, or at its stop price if higher, or at its
+     * limit price for a limit order- against the
+     * account's balance less the cost reserved by its other outstanding buy orders. The
+     * balance is read from the account manager's balance table, without the account's
+     * lock. The reservation is released once the order executes. Does nothing unless 
+     * the buying power check is enabled
+     * @param order the buy order being placed
+     * @param orderPrice the order's stop or limit price in cents, or 0 for a market order
+     * @throws BrokerException if the order exceeds the account's buying power, its stock
+     * is unknown or has no price to estimate its cost, or the account could not be 
+     * located
+     */
+    private void reserveBuyingPower(final Order order, final int orderPrice) 
+                                                                throws BrokerException {
+        reserveBuyingPower(order, orderPrice, 0);
+    }
+
+    /**Pre-trade risk check for a buy order, as <code>reserveBuyingPower(Order, int)</code>,
+     * crediting the account with buying power about to be released- the reservation of
+     * an order being replaced, which stays reserved until the swap
+     * @param order the buy order being placed
+     * @param orderPrice the order's stop or limit price in cents, or 0 for a market order
+     * @param credit buying power to count as available, in cents
+     * @throws BrokerException if the order exceeds the account's buying power, its stock
+     * is unknown or has no price to estimate its cost, or the account could not be 
+     * located
+     */
+    private void reserveBuyingPower(final Order order, final int orderPrice, 
+                                    final long credit) throws BrokerException {
+        if (!buyingPowerCheck) {
+            return;
+        }
+        String ticker = order.getStockTicker();
+        OrderManager om = orderManagers.get(ticker);
+        if (om == null) {
+            throw new BrokerException("Order " + order.getOrderId() 
+                                                    + " is for an unknown stock " + ticker);
+        }
+        int lastPrice;
+        if (om instanceof OrderManagerImpl) {
+            lastPrice = ((OrderManagerImpl) om).getPrice();
+        } else {
+            StockQuote quote = exchange.getQuote(ticker);
+            lastPrice = quote == null ? 0 : quote.getPrice();
+        }
+        /*a limit order never triggers above its limit*/
+        int estimate = order instanceof LimitBuyOrder 
+                                        ? orderPrice : Math.max(lastPrice, orderPrice);
+        if (estimate <= 0) {
+            throw new BrokerException("Order " + order.getOrderId() 
+                                + " can't be checked against buying power: no price for "
+                                + ticker);
+        }
+        long cost = (long) order.getNumberOfShares() * estimate;
+        Integer balance;
+        try {
+            balance = accountManager instanceof AccountManagerImpl
+                    ? ((AccountManagerImpl) accountManager).getBalance(order.getAccountId())
+                    : balanceOf(accountManager.getAccount(order.getAccountId()));
+        } catch (AccountException e) {
+            throw new BrokerException("Broker was unable to get account", e);
+        }
+        if (balance == null) {
+            throw new BrokerException("Broker was unable to get account");
+        }
+        if (!reservations.reserve(order.getAccountId(), order.getOrderId(), cost,
+                                  balance + credit)) {
+            throw new BrokerException(String.format(
+                    "Order %d exceeds buying power of account %s: cost %d, available %d",
+                    order.getOrderId(), order.getAccountId(), cost,
+                    balance + credit - reservations.getReserved(order.getAccountId())));
+        }
+    }
+
+    /**Obtains an account's balance
+     * @param account the account, or <code>null</code>
+     * @return the balance, in cents, or <code>null</code> if there is no account
+     */
+    private static Integer balanceOf(final Account account) {
+        return account == null ? null : account.getBalance();
+    }
+
+    /**Checks whether buy orders exceeding the account's buying power are refused
+     * @return true if the buying power check is enabled
+     */
+    public boolean isBuyingPowerCheck() {
+        return buyingPowerCheck;
+    }
+
+    /**Sets whether buy orders exceeding the account's buying power are refused when
+     * placed, before they are queued. Sell orders are never refused, since short selling
+     * is allowed. Disabled by default
+     * @param buyingPowerCheck true to enable the buying power check
+     */
+    public void setBuyingPowerCheck(final boolean buyingPowerCheck) {
+        this.buyingPowerCheck = buyingPowerCheck;
+    }
+
+    /**Obtains the buying power reserved by an account's outstanding buy orders
+     * @param accountId the name of the account
+     * @return the reserved buying power, in cents
+     */
+    public long getReservedBuyingPower(final String accountId) {
+        return reservations.getReserved(accountId);
+    }
+
+    /**Records an account's balance and position in a stock after a fill, in the exposure
+     * index, adding the account to the index if it isn't in it yet
+     * @param account the account the order was filled for
+     * @param ticker the stock's ticker
+     */
+    private void revalue(final Account account, final String ticker) {
+        if (account instanceof AccountImpl) {
+            track((AccountImpl) account);
+            valuation.update(account.getName(), ticker, 
+                             () -> ((AccountImpl) account).getShares(ticker));
+        }
+    }
+
+    /**Adds an account to the exposure index, from its balance and positions, if it isn't
+     * in it yet. The account is tracked first, so a fill from then on is recorded by 
+     * <code>revalue</code> as well
+     * @param account the account
+     */
+    private void track(final AccountImpl account) {
+        String accountName = account.getName();
+        if (valuation.track(accountName)) {
+            for (String ticker : account.holdings().keySet()) {
+                valuation.update(accountName, ticker, () -> account.getShares(ticker));
+            }
+        }
+        valuation.updateCash(accountName, account::getBalance);
+    }
+
+    /**Obtains the current market value of an account's share positions, at the last 
+     * price of each stock. An account is valued from its positions the first time it is
+     * filled or asked for, and from then on revalued incrementally, as its orders are 
+     * filled and as the prices of the stocks it holds change
+     * @param accountId the name of the account
+     * @return the market value of the account's positions, in cents
+     * @throws BrokerException if the account could not be located
+     */
+    public long getPortfolioValue(final String accountId) throws BrokerException {
+        Long value = valuation.getValue(accountId);
+        if (value != null) {
+            return value;
+        }
+        Account account;
+        try {
+            account = accountManager.getAccount(accountId);
+        } catch (AccountException e) {
+            throw new BrokerException("Broker was unable to get account", e);
+        }
+        if (account == null) {
+            throw new BrokerException("Broker was unable to get account");
+        }
+        if (!(account instanceof AccountImpl)) {
+            return 0;
+        }
+        track((AccountImpl) account);
+        value = valuation.getValue(accountId);
+        if (value == null) {
+            /*deleted while it was being valued*/
+            throw new BrokerException("Broker was unable to get account");
+        }
+        return value;
+    }
+
+    /**Obtains the current market values of the portfolios valued so far
+     * @return the market value of each valued account's positions, in cents, by account
+     * name
+     */
+    public Map<String, Long> getPortfolioValues() {
+        return valuation.getValues();
+    }
+
+    /**Prefetches and pins the account of an order which will wait in a queue- a stop 
+     * order, or a market order placed while the exchange is closed- so its execution 
+     * never blocks on a cold account read
+     * @param order the queued order
+     */
+    private void prefetch(final Order order) {
+        if (accountManager instanceof AccountManagerImpl 
+                && pinnedOrders.add(order.getOrderId())) {
+            ((AccountManagerImpl) accountManager).pinAccount(order.getAccountId());
+        }
+    }
+
+    /**Releases the pin taken on an order's account, if any, once the order is no longer
+     * outstanding
+     * @param order the order
+     */
+    private void unpin(final Order order) {
+        if (pinnedOrders.remove(order.getOrderId())) {
+            ((AccountManagerImpl) accountManager).unpinAccount(order.getAccountId());
+        }
+    }
+
+    /**Processes a market order using the account manager's asynchronous account I/O.
+     * Each account's orders execute one at a time, in the order dispatched: an order 
+     * waits for the account's previous order to execute, as well as for the account's 
+     * read. An order whose account is live, and which has no order of its account ahead
+     * of it, executes at once, on the calling thread; otherwise the order is not waited
+     * for, and executes on the execution threads once its turn comes, so the dispatching
+     * thread moves straight on to its next order. The account is pinned in the cache 
+     * until the fill is reflected. The 
+     * account's write is never waited for. A write which still fails once the
+     * account manager has retried it is surfaced through 
+     * <code>getUnpersistedOrders</code>
+     * @param manager the account manager
+     * @param order an order to be processed
+     * @param price the price of an internal fill, in cents, or 0 to execute the order on
+     * the exchange
+     * @return a future completed once the order is reflected in its account, with false
+     * if the order was not filled because the price broke its limit, or completed 
+     * exceptionally if the account can't be read, or the exchange refuses the order
+     */
+    private CompletableFuture<Boolean> executeOrderAsync(final AccountManagerImpl manager, 
+                                                      final Order order, final int price) {
+        String acctId = order.getAccountId();
+        /*pinned until the fill is reflected, so the instance being filled can't be 
+         *evicted and read back as a second live copy meanwhile*/
+        CompletableFuture<Account> read = manager.pinAccount(acctId);
+        /*takes this account's turn; the previous order's turn never completes 
+         *exceptionally, and the read is only looked at once it has completed, so a failed 
+         *read can't let a later order overtake an earlier one*/
+        CompletableFuture<Void> turn = new CompletableFuture<>();
+        CompletableFuture<Void> previous = executionTails.put(acctId, turn);
+        CompletableFuture<Account> ready = 
+                            (previous == null) ? read : previous.thenCompose(p -> read);
+        if (!ready.isDone()) {
+            ready = ready.thenApplyAsync(account -> account, executionThreads);
+        }
+        CompletableFuture<CompletableFuture<Boolean>> executed = ready.handle((account, e) -> {
+            if (e != null) {
+                log.error("Unable to read account {} for order {}", acctId, 
+                                                                order.getOrderId());
+                CompletableFuture<Boolean> failed = new CompletableFuture<>();
+                failed.completeExceptionally(e instanceof CompletionException 
+                                                                ? e.getCause() : e);
+                return failed;
+            }
+            if (account == null) {
+                CompletableFuture<Boolean> failed = new CompletableFuture<>();
+                failed.completeExceptionally(new AccountException(
+                        "Account " + acctId + " not located; order " 
+                                                + order.getOrderId() + " not executed"));
+                return failed;
+            }
+            int executionPrice = execute(order, price);
+            if (executionPrice == 0) {
+                return CompletableFuture.completedFuture(false);
+            }
+            return manager.reflectOrderAsync(account, order, executionPrice)
+                   .handle((r, failure) -> {
+                       if (failure != null) {
+                           int placedId = getPlacedOrderId(order.getOrderId());
+                           unpersistedOrders.add(placedId);
+                           log.error("Unable to persist order {} (placed as order {}) in "
+                                        + "account {}; its fill is held only in memory",
+                                        order.getOrderId(), placedId, acctId, failure);
+                       } else {
+                           revalue(account, order.getStockTicker());
+                           log.info("Broker successfully executed order for {}: "
+                                        + "{} shares of {}", acctId,
+                                                            order.getNumberOfShares(),
+                                                            order.getStockTicker());
+                       }
+                       return true;
+                   });
+        });
+        /*the order has executed, or failed, once its fill is applied; its write isn't 
+         *waited for*/
+        executed.whenComplete((r, e) -> {
+            turn.complete(null);
+            executionTails.remove(acctId, turn);
+        });
+        return executed.thenCompose(reflected -> reflected)
+                       .whenComplete((r, e) -> manager.unpinAccount(acctId));
+    }
+
+    /**Obtains the ids of the orders executed whose fill could not be persisted to their
+     * account, even after retrying; a part split off an order is reported by the id of 
+     * the order placed. Each fill is still reflected in the account's live
+     * instance, and is persisted by the account's next successful write
+     * @return the ids of the orders, a live read-only view
+     */
+    public Set<Integer> getUnpersistedOrders() {
+        return Collections.unmodifiableSet(unpersistedOrders);
+    }
+
+    /**Obtains the ids of the orders which were claimed for execution, but could not be 
+     * executed, as an order the exchange refused, or the orders of an opening batch whose
+     * parent order failed. Their reserved buying power and account pins have been 
+     * released
+     * @return the ids of the orders, a live read-only view
+     */
+    public Set<Integer> getFailedOrders() {
+        return Collections.unmodifiableSet(failedOrders);
+    }
+
+    /**Fails a claimed order which can't be executed, releasing its reserved buying power
+     * and account pin
+     * @param order the order
+     */
+    private void fail(final Order order) {
+        failedOrders.add(order.getOrderId());
+        if (accountManager instanceof AccountManagerImpl) {
+            unpin(order);
+        }
+        reservations.release(order.getOrderId());
+        log.error("Order {} for {} failed; not executed", order.getOrderId(), 
+                                                                order.getAccountId());
+    }
+
+    /**Creates the threads executing market orders whose account had to be read first
+     * @return the execution threads
+     */
+    private static ExecutorService newExecutionThreads() {
+        AtomicInteger count = new AtomicInteger();
+        return Executors.newFixedThreadPool(EXECUTION_THREADS, runnable -> {
+            Thread thread = new Thread(runnable, "OrderExecution-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
     }
     
+    /**Moves a triggered stop or limit order to the market order queue
+     * @param order the triggered order
+     */
+    private void moveToMarket(final Order order) {
+        restingOrders.moved(order, marketOrders::remove);
+        marketOrders.enqueue(order);
+    }
+
+    /**Cancels an order which has been placed but not yet executed- a stop order waiting
+     * for its stop price, or a market order waiting for the exchange to open. The order
+     * is found through an index by order id, and removed from its queue by its own
+     * ordering key. A cancel racing with the dispatch of the same order is safe: exactly
+     * one of them wins, and a cancelled order is never executed. Any buying power 
+     * reserved by the order, and the pin on its account, are released. Parts split off
+     * the order which are resting again, as the unfilled part of a limit order is, are
+     * looked up by the order's id and cancelled with it
+     * @param orderId the id of the order
+     * @return true if the order, or any part of it, was cancelled, false if it has 
+     * already been executed, or is being executed, or is unknown
+     */
+    public boolean cancelOrder(final int orderId) {
+        boolean cancelled = cancel(orderId);
+        Set<Integer> parts = partOrders.get(orderId);
+        if (parts != null) {
+            for (Integer part : parts) {
+                if (cancel(part)) {
+                    cancelled = true;
+                }
+            }
+        }
+        if (!cancelled) {
+            log.info("Order {} not resting; nothing cancelled", orderId);
+        }
+        return cancelled;
+    }
+
+    /**Cancels a resting order, releasing its reserved buying power and account pin
+     * @param orderId the id of the order
+     * @return true if the order was cancelled
+     */
+    private boolean cancel(final int orderId) {
+        Order order = restingOrders.cancel(orderId);
+        if (order == null) {
+            return false;
+        }
+        if (accountManager instanceof AccountManagerImpl) {
+            unpin(order);
+        }
+        reservations.release(orderId);
+        untrace(orderId);
+        log.info("Order {} cancelled for {}", orderId, order.getAccountId());
+        return true;
+    }
+
+    /**Replaces a resting StopBuyOrder with another, keeping its place in the queue when
+     * the stop price is unchanged and the shares aren't increased. The replacement is 
+     * atomic with respect to dispatch, and to cancels of the same order: either the 
+     * original or the replacement may execute, never both
+     * @param orderId the id of the order to replace
+     * @param replacement the replacement order, for the same account and stock
+     * @return true if the order was replaced, false if it is no longer resting
+     * @throws BrokerException if the replacement is for another account or stock, or 
+     * exceeds the account's buying power
+     */
+    public boolean replaceOrder(final int orderId, final StopBuyOrder replacement) 
+                                                                throws BrokerException {
+        OrderManagerImpl om = orderManagerOf(replacement);
+        return replaceStopOrder(orderId, replacement, om, (original, r) -> 
+                original instanceof StopBuyOrder 
+                    && om.replaceOrder((StopBuyOrder) original, (StopBuyOrder) r));
+    }
+
+    /**Replaces a resting StopSellOrder with another, keeping its place in the queue when
+     * the stop price is unchanged and the shares aren't increased. The replacement is 
+     * atomic with respect to dispatch, and to cancels of the same order: either the 
+     * original or the replacement may execute, never both
+     * @param orderId the id of the order to replace
+     * @param replacement the replacement order, for the same account and stock
+     * @return true if the order was replaced, false if it is no longer resting
+     * @throws BrokerException if the replacement is for another account or stock
+     */
+    public boolean replaceOrder(final int orderId, final StopSellOrder replacement) 
+                                                                throws BrokerException {
+        OrderManagerImpl om = orderManagerOf(replacement);
+        return replaceStopOrder(orderId, replacement, om, (original, r) -> 
+                original instanceof StopSellOrder 
+                    && om.replaceOrder((StopSellOrder) original, (StopSellOrder) r));
+    }
+
+    /**Replaces a resting stop order, moving its buying power reservation and account pin
+     * to the replacement. The replacement's reservation is taken, and its pin recorded,
+     * before the swap, since the replacement may be dispatched the moment it is queued;
+     * the replacement is checked against buying power as if the original's reservation
+     * were already released. The stock's stop orders are dispatched once the swap is 
+     * done, in case the replacement is already triggered
+     * @param orderId the id of the order to replace
+     * @param replacement the replacement order
+     * @param om the order manager of the orders' stock
+     * @param swap swaps the order for its replacement in the order manager's queue
+     * @return true if the order was replaced
+     * @throws BrokerException if the replacement is for another account or stock, or 
+     * exceeds the account's buying power
+     */
+    private boolean replaceStopOrder(final int orderId, final Order replacement,
+                                     final OrderManagerImpl om,
+                                     final BiPredicate<Order, Order> swap)
+                                                                throws BrokerException {
+        Order original = restingOrders.get(orderId);
+        if (original == null) {
+            return false;
+        }
+        if (!original.getAccountId().equals(replacement.getAccountId())
+                || !original.getStockTicker().equals(replacement.getStockTicker())) {
+            throw new BrokerException(
+                    "A replacement must be for the account and stock of the order it replaces");
+        }
+        int replacementId = replacement.getOrderId();
+        if (replacement instanceof StopBuyOrder) {
+            /*reserved alongside the original until the swap, with the original's 
+             *reservation counted as available, since one of the two is released*/
+            reserveBuyingPower(replacement, ((StopBuyOrder) replacement).getPrice(),
+                               reservations.getReservation(orderId));
+        }
+        boolean pinned = pinnedOrders.contains(orderId);
+        if (pinned) {
+            pinnedOrders.add(replacementId);
+        }
+        if (restingOrders.replace(orderId, replacement, om::removeOrder, swap)) {
+            /*the account's pin now belongs to the replacement*/
+            pinnedOrders.remove(orderId);
+            reservations.release(orderId);
+            log.info("Order {} replaced by order {}", orderId, replacementId);
+            /*outside the index's monitor, since dispatching runs the order processors*/
+            om.dispatchOrders();
+            return true;
+        }
+        if (pinned) {
+            pinnedOrders.remove(replacementId);
+        }
+        reservations.release(replacementId);
+        return false;
+    }
+
+    /**Obtains the order manager of a stop or limit order's stock
+     * @param order the order
+     * @return the order manager
+     * @throws BrokerException if the order manager can't be located
+     */
+    private OrderManagerImpl orderManagerOf(final Order order) throws BrokerException {
+        OrderManager om = this.orderManagers.get(order.getStockTicker());
+        if (!(om instanceof OrderManagerImpl)) {
+            throw new BrokerException("Unable to locate stock symbol for this order");
+        }
+        return (OrderManagerImpl) om;
+    }
+
+    /**Obtains the removal of a stop order from its order manager's queue, for the resting
+     * order index
+     * @param om the order manager
+     * @return the removal, or <code>null</code> if the order manager can't remove orders
+     */
+    private static Predicate<Order> stopOrderRemover(final OrderManager om) {
+        return om instanceof OrderManagerImpl ? ((OrderManagerImpl) om)::removeOrder : null;
+    }
+
     /** Places a Market Buy Order
      * @see edu.uw.ext.framework.broker.Broker#placeOrder(edu.uw.ext.framework.order.MarketBuyOrder)
      * @param order the order to be placed
@@ -242,16 +1239,26 @@ public class BrokerImpl implements Broker, ExchangeListener {
      */
     @Override
     public void placeOrder(final MarketBuyOrder order) throws BrokerException {
+        reserveBuyingPower(order, 0);
+        if (!marketOrders.getThreshold()) {
+            prefetch(order);
+        }
+        restingOrders.add(order, marketOrders::remove);
         this.marketOrders.enqueue(order);
     }
 
-    /**Places a Market Sell Order
+    /**Places a Market Sell Order. The shares sold aren't checked against the shares
+     * held; a sale past them opens a short position
      * @see edu.uw.ext.framework.broker.Broker#placeOrder(edu.uw.ext.framework.order.MarketSellOrder)
      * @param order the order to be placed
      * @throws BrokerException if the operation failed
      */
     @Override
     public void placeOrder(final MarketSellOrder order) throws BrokerException {
+        if (!marketOrders.getThreshold()) {
+            prefetch(order);
+        }
+        restingOrders.add(order, marketOrders::remove);
         this.marketOrders.enqueue(order);
     }
 
@@ -267,6 +1274,9 @@ public class BrokerImpl implements Broker, ExchangeListener {
         if (om == null) {
             throw new BrokerException("Unable to locate stock symbol for this order");
         } else {
+            reserveBuyingPower(order, order.getPrice());
+            prefetch(order);
+            restingOrders.add(order, stopOrderRemover(om));
             om.queueOrder(order);
             log.info("StopBuyOrder queued with order manager for {}",om.getSymbol());
         }
@@ -285,11 +1295,55 @@ public class BrokerImpl implements Broker, ExchangeListener {
         if (om == null) {
             throw new BrokerException("Unable to locate stock symbol for this order");
         } else {
+            prefetch(order);
+            restingOrders.add(order, stopOrderRemover(om));
             om.queueOrder(order);
             log.info("StopSellOrder queued with order manager for {}",om.getSymbol());
         }
     }
 
+    /**Places a Limit Buy Order, to rest in its stock's limit order book until the stock
+     * trades at or below its limit price
+     * @param order the order to be placed
+     * @throws BrokerException if the Order Manager is unable to locate the stock associated
+     * with the given order, or the operation fails
+     */
+    public void placeOrder(final LimitBuyOrder order) throws BrokerException {
+        OrderManagerImpl om = orderManagerOf(order);
+        reserveBuyingPower(order, order.getPrice());
+        prefetch(order);
+        restingOrders.add(order, om::removeOrder);
+        om.queueOrder(order);
+        log.info("LimitBuyOrder queued with order manager for {}",om.getSymbol());
+    }
+
+    /**Places a Limit Sell Order, to rest in its stock's limit order book until the stock
+     * trades at or above its limit price
+     * @param order the order to be placed
+     * @throws BrokerException if the Order Manager is unable to locate the stock associated
+     * with the given order, or the operation fails
+     */
+    public void placeOrder(final LimitSellOrder order) throws BrokerException {
+        OrderManagerImpl om = orderManagerOf(order);
+        prefetch(order);
+        restingOrders.add(order, om::removeOrder);
+        om.queueOrder(order);
+        log.info("LimitSellOrder queued with order manager for {}",om.getSymbol());
+    }
+
+    /**Obtains the limit order book of a stock, for its best prices and depth
+     * @param ticker the stock's ticker symbol
+     * @return the stock's limit order book
+     * @throws BrokerException if the stock isn't listed
+     */
+    public LimitOrderBook getLimitOrderBook(final String ticker) throws BrokerException {
+        OrderManager om = this.orderManagers.get(ticker);
+        if (!(om instanceof OrderManagerImpl)) {
+            throw new BrokerException("Requested stock not listed");
+        }
+        return ((OrderManagerImpl) om).getLimitOrderBook();
+    }
+
     /**Obtains a Stock Quote for the given stock, containing the stock's symbol and 
      * current price
      * @see edu.uw.ext.framework.broker.Broker#requestQuote(java.lang.String)
@@ -313,7 +1367,8 @@ public class BrokerImpl implements Broker, ExchangeListener {
     /*ExchangeListener methods...*/
     
     /**Updates the Market Order queue's threshold to reflect the exchange has closed, upon 
-     * receiving a close event from the exchange
+     * receiving a close event from the exchange. Market orders held for crossing return
+     * to the queue
      * @see edu.uw.ext.framework.exchange.ExchangeListener#exchangeClosed(edu.uw.ext.framework.exchange.ExchangeEvent)
      * @param evt the close event from the exchange
      */
@@ -322,18 +1377,44 @@ public class BrokerImpl implements Broker, ExchangeListener {
         //emit event to lsteners that exchange is closed
         this.marketOrders.setThreshold(Boolean.FALSE);
         log.info("******Exchange is closed******");
+        MarketOrderCrossing crossing = this.crossing;
+        if (crossing != null) {
+            /*returned to the market order queue rather than sent to a closed exchange*/
+            for (Order order : crossing.release()) {
+                toMarketQueue(order);
+            }
+        }
+        if (endOfDayBatch) {
+            startEndOfDayBatch();
+        }
     }
 
     /**Updates the Market Order queue's threshold to reflect the exchange has opened, upon 
-     * receiving a open event from the exchange
+     * receiving a open event from the exchange. With the opening batch enabled, the 
+     * orders the queue releases are collected as it drains, then executed with one 
+     * exchange call per stock
      * @see edu.uw.ext.framework.exchange.ExchangeListener#exchangeClosed(edu.uw.ext.framework.exchange.ExchangeEvent)
      * @param evt the open event from the exchange
      */
     @Override
     public void exchangeOpened(ExchangeEvent evt) {
       //emit event to lsteners that exchange is open
-        this.marketOrders.setThreshold(Boolean.TRUE);
+        if (!openingBatch) {
+            this.marketOrders.setThreshold(Boolean.TRUE);
+            log.info("*****Exchange is open******");
+            return;
+        }
+        OpeningBatch batch = new OpeningBatch();
+        this.opening = batch;
+        try {
+            this.marketOrders.setThreshold(Boolean.TRUE);
+        } finally {
+            this.opening = null;
+        }
         log.info("*****Exchange is open******");
+        int calls = batch.execute(name, exchange::executeTrade, this::quotedPrice, 
+                                  this::settle, this::fail);
+        log.info("Opening batch executed with {} exchange calls", calls);
     }
 
     /**Updates the Stop Order queues' thresholds to reflect the price of a stock has changed, upon 
@@ -346,6 +1427,229 @@ public class BrokerImpl implements Broker, ExchangeListener {
         //emit event to listeners that price of the order manager's stock has changed
         OrderManager om = this.orderManagers.get(evt.getTicker());
         om.adjustPrice(evt.getPrice());
+        valuation.priceChanged(evt.getTicker(), evt.getPrice());
+        if (!marginListeners.isEmpty()) {
+            scanMargins(evt.getTicker());
+        }
+    }
+
+    /**Checks the margin of the accounts exposed to a stock whose price moved, and 
+     * notifies the margin listeners of each account newly below its requirement. Only the
+     * accounts in the exposure index holding the stock are checked; none is read
+     * @param ticker the stock's ticker
+     */
+    private void scanMargins(final String ticker) {
+        for (MarginEvent call : valuation.scan(ticker, maintenanceMargin, this)) {
+            log.warn("Margin call: {}", call);
+            for (MarginListener listener : marginListeners) {
+                try {
+                    listener.marginCall(call);
+                } catch (RuntimeException e) {
+                    log.error("Margin listener failed for account {}", 
+                                                            call.getAccountName(), e);
+                }
+            }
+        }
+    }
+
+    /**Starts the end-of-day batch on a thread of its own, so the exchange's event thread
+     * isn't held while every account is stated
+     * @return the run of the batch
+     */
+    private CompletableFuture<EndOfDayBatch.Report> startEndOfDayBatch() {
+        CompletableFuture<EndOfDayBatch.Report> run = new CompletableFuture<>();
+        Thread thread = new Thread(() -> {
+            try {
+                run.complete(runEndOfDayBatch());
+            } catch (BrokerException | RuntimeException e) {
+                log.error("End-of-day batch failed", e);
+                run.completeExceptionally(e);
+            }
+        }, "EndOfDayBatch");
+        thread.setDaemon(true);
+        endOfDay = run;
+        thread.start();
+        return run;
+    }
+
+    /**Runs the end-of-day batch- prepares a statement for every persisted account, at 
+     * the last price of each stock, and hands each to the statement sink. Accounts are
+     * streamed by shard and stated in parallel, so memory stays bounded
+     * @return the number of accounts stated, and the batch's throughput
+     * @throws BrokerException if the accounts can't be streamed, or one can't be stated
+     */
+    public EndOfDayBatch.Report runEndOfDayBatch() throws BrokerException {
+        if (!(accountManager instanceof AccountManagerImpl)) {
+            throw new BrokerException("Account manager can't stream its accounts");
+        }
+        try {
+            return new EndOfDayBatch(endOfDayParallelism).run(
+                                ((AccountManagerImpl) accountManager).streamAccounts(),
+                                valuation::getPrice, statementSink);
+        } catch (AccountException e) {
+            throw new BrokerException("Unable to stream accounts", e);
+        }
+    }
+
+    /**Obtains the latest run of the end-of-day batch started by the exchange closing
+     * @return the run, or <code>null</code> if the batch has not been started
+     */
+    public CompletableFuture<EndOfDayBatch.Report> getEndOfDayBatch() {
+        return endOfDay;
+    }
+
+    /**Checks whether the end-of-day batch runs when the exchange closes
+     * @return true if the batch is enabled
+     */
+    public boolean isEndOfDayBatch() {
+        return endOfDayBatch;
+    }
+
+    /**Sets whether the end-of-day batch runs when the exchange closes. Disabled by 
+     * default
+     * @param endOfDayBatch true to enable the batch
+     */
+    public void setEndOfDayBatch(final boolean endOfDayBatch) {
+        this.endOfDayBatch = endOfDayBatch;
+    }
+
+    /**Obtains the number of accounts read and stated at once by the end-of-day batch
+     * @return the batch parallelism
+     */
+    public int getEndOfDayParallelism() {
+        return endOfDayParallelism;
+    }
+
+    /**Sets the number of accounts read and stated at once by the end-of-day batch
+     * @param endOfDayParallelism the batch parallelism
+     */
+    public void setEndOfDayParallelism(final int endOfDayParallelism) {
+        this.endOfDayParallelism = endOfDayParallelism;
+    }
+
+    /**Checks whether the market orders released by the open are executed as one batch
+     * @return true if the opening batch is enabled
+     */
+    public boolean isOpeningBatch() {
+        return openingBatch;
+    }
+
+    /**Sets whether the market orders released by the open are executed as one batch: 
+     * each stock's orders netted into one parent order for the exchange, and every order
+     * filled at the parent's price. Disabled by default
+     * @param openingBatch true to enable the opening batch
+     */
+    public void setOpeningBatch(final boolean openingBatch) {
+        this.openingBatch = openingBatch;
+    }
+
+    /**Obtains how long market orders are held for crossing
+     * @return the crossing window, in milliseconds, or 0 if market orders are not crossed
+     */
+    public long getCrossingWindowMillis() {
+        MarketOrderCrossing crossing = this.crossing;
+        return crossing == null ? 0 : crossing.getWindowMillis();
+    }
+
+    /**Sets how long market orders are held for crossing. Within the window, each stock's
+     * market buy and sell orders are matched against each other and filled internally at
+     * the stock's current quote from the exchange; only what doesn't cross goes to the
+     * exchange. Orders still held when the exchange closes return to the market order 
+     * queue, to wait for the open. Orders already held are settled at once
+     * @param windowMillis the crossing window, in milliseconds, or 0 to route every
+     * market order to the exchange
+     */
+    public void setCrossingWindowMillis(final long windowMillis) {
+        MarketOrderCrossing previous = this.crossing;
+        this.crossing = windowMillis > 0 
+                ? new MarketOrderCrossing(windowMillis, this::quotedPrice, this::settleCrossed)
+                : null;
+        if (previous != null) {
+            previous.close();
+        }
+    }
+
+    /**Obtains the total shares of market orders filled internally by crossing, counting
+     * both sides of each cross, since crossing was last enabled
+     * @return the number of shares crossed
+     */
+    public long getCrossedShares() {
+        MarketOrderCrossing crossing = this.crossing;
+        return crossing == null ? 0 : crossing.getCrossedShares();
+    }
+
+    /**Settles an order once its crossing window closes, unless the exchange has closed 
+     * as the window closed: the order then returns to the market order queue, still holding its 
+     * reservation and pin, to wait for the open
+     * @param order the order
+     * @param crossedShares the number of the order's shares filled internally
+     * @param price the price of the internal fill, in cents
+     */
+    private void settleCrossed(final Order order, final int crossedShares, final int price) {
+        if (!marketOrders.getThreshold()) {
+            toMarketQueue(order);
+            return;
+        }
+        settle(order, crossedShares, price);
+    }
+
+    /**Returns a claimed market order to the market order queue, resting again, as when 
+     * the exchange closes while the order is held for crossing
+     * @param order the order
+     */
+    private void toMarketQueue(final Order order) {
+        log.info("Exchange closed; order {} returned to the market order queue",
+                                                                    order.getOrderId());
+        restingOrders.add(order, marketOrders::remove);
+        marketOrders.enqueue(order);
+    }
+
+    /**Obtains a stock's current price, quoted by the exchange
+     * @param ticker the stock's ticker
+     * @return the price, in cents, or 0 if unknown
+     */
+    private int quotedPrice(final String ticker) {
+        StockQuote quote = exchange.getQuote(ticker);
+        return quote == null ? 0 : quote.getPrice();
+    }
+
+    /**Sets the receiver of the statements prepared by the end-of-day batch, such as a
+     * statement printer. The sink is called from several threads at once. By default
+     * statements are only logged
+     * @param statementSink receives the statements
+     */
+    public void setStatementSink(final Consumer<AccountStatement> statementSink) {
+        this.statementSink = statementSink;
+    }
+
+    /**Registers a listener for margin calls
+     * @param listener the listener
+     */
+    public void addMarginListener(final MarginListener listener) {
+        marginListeners.add(listener);
+    }
+
+    /**Removes a listener for margin calls
+     * @param listener the listener
+     */
+    public void removeMarginListener(final MarginListener listener) {
+        marginListeners.remove(listener);
+    }
+
+    /**Obtains the fraction of the gross value of its positions an account must hold as
+     * equity
+     * @return the maintenance margin
+     */
+    public double getMaintenanceMargin() {
+        return maintenanceMargin;
+    }
+
+    /**Sets the fraction of the gross value of its positions an account must hold as
+     * equity, below which a price move raises a margin call
+     * @param maintenanceMargin the maintenance margin, such as 0.25
+     */
+    public void setMaintenanceMargin(final double maintenanceMargin) {
+        this.maintenanceMargin = maintenanceMargin;
     }
 
     /**Obtains the name of this broker
@@ -0,0 +1,119 @@
+package edu.uw.spl.broker;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**The buying power reserved by each account's outstanding buy orders. A buy order
+ * reserves its estimated cost when placed, and releases it once executed; an order whose
+ * cost would take the account's reservations past its buying power is refused.
+ * Reservations are kept in one atomic counter per account, updated by compare-and-set, so
+ * concurrent orders for one account can never both slip under its buying power, and
+ * checking an order takes no lock
+ * @author slajaunie
+ */
+public class BuyingPowerReservations {
+
+    /**Total reserved by each account's outstanding orders, in cents*/
+    private final ConcurrentMap<String, AtomicLong> reserved = new ConcurrentHashMap<>();
+
+    /**The reservation of each outstanding order, by order id*/
+    private final ConcurrentMap<Integer, Reservation> reservations =
+                                                                new ConcurrentHashMap<>();
+
+    /**
+     *Instantiates a new, empty, set of reservations
+     */
+    public BuyingPowerReservations() {}
+
+    /**Reserves the estimated cost of an order, unless the account's reservations would
+     * exceed its buying power
+     * @param accountId the name of the account placing the order
+     * @param orderId the id of the order
+     * @param cost the estimated cost of the order, in cents
+     * @param buyingPower the account's buying power, in cents
+     * @return true if the cost was reserved, false if the order exceeds the account's
+     * remaining buying power
+     */
+    public boolean reserve(final String accountId, final int orderId, final long cost,
+                           final long buyingPower) {
+        AtomicLong total = reserved.computeIfAbsent(accountId, id -> new AtomicLong());
+        long current;
+        do {
+            current = total.get();
+            if (current + cost > buyingPower) {
+                return false;
+            }
+        } while (!total.compareAndSet(current, current + cost));
+        Reservation previous = reservations.put(orderId, new Reservation(total, cost));
+        if (previous != null) {
+            /*an order placed twice holds one reservation*/
+            previous.total.addAndGet(-previous.cost);
+        }
+        return true;
+    }
+
+    /**Releases the reservation of an order, if it holds one
+     * @param orderId the id of the order
+     */
+    public void release(final int orderId) {
+        Reservation reservation = reservations.remove(orderId);
+        if (reservation != null) {
+            reservation.total.addAndGet(-reservation.cost);
+        }
+    }
+
+    /**Moves part of an order's reservation to another order, as when part of the order
+     * is split off to rest on its own; the order keeps the rest
+     * @param orderId the id of the order holding the reservation
+     * @param toOrderId the id of the order taking part of it
+     * @param cost the cost to move, in cents; at most the order's whole reservation moves
+     */
+    public void transfer(final int orderId, final int toOrderId, final long cost) {
+        Reservation reservation = reservations.remove(orderId);
+        if (reservation == null) {
+            return;
+        }
+        long moved = Math.min(cost, reservation.cost);
+        reservations.put(toOrderId, new Reservation(reservation.total, moved));
+        if (reservation.cost > moved) {
+            reservations.put(orderId, 
+                             new Reservation(reservation.total, reservation.cost - moved));
+        }
+    }
+
+    /**Obtains the reservation held by an order
+     * @param orderId the id of the order
+     * @return the order's reserved cost, in cents, or 0 if it holds no reservation
+     */
+    public long getReservation(final int orderId) {
+        Reservation reservation = reservations.get(orderId);
+        return reservation == null ? 0 : reservation.cost;
+    }
+
+    /**Obtains the total reserved by an account's outstanding orders
+     * @param accountId the name of the account
+     * @return the total reserved, in cents
+     */
+    public long getReserved(final String accountId) {
+        AtomicLong total = reserved.get(accountId);
+        return total == null ? 0 : total.get();
+    }
+
+    /**Releases every reservation*/
+    public void clear() {
+        reservations.clear();
+        reserved.clear();
+    }
+
+    /**An order's reserved cost, and the counter of its account it is reserved against*/
+    private static final class Reservation {
+        private final AtomicLong total;
+        private final long cost;
+
+        private Reservation(final AtomicLong total, final long cost) {
+            this.total = total;
+            this.cost = cost;
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package edu.uw.spl.broker;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.ToIntFunction;
+import java.util.stream.Stream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import edu.uw.ext.framework.account.Account;
+import edu.uw.ext.framework.broker.BrokerException;
+
+/**The end-of-day batch, which prepares a statement for every account once the exchange
+ * closes. Accounts are streamed rather than collected, and the stream is traversed in
+ * parallel on a dedicated fork/join pool- so the batch's account reads don't occupy the
+ * common pool- with each worker taking whole shards of the account store. No statement
+ * is retained by the batch, so its memory stays bounded however many accounts there are
+ * @author slajaunie
+ */
+public class EndOfDayBatch {
+
+    private static final Logger log = LoggerFactory.getLogger(EndOfDayBatch.class);
+
+    /**Number of accounts read and stated at once*/
+    private final int parallelism;
+
+    /**Instantiates a new batch
+     * @param parallelism the number of accounts read and stated at once
+     */
+    public EndOfDayBatch(final int parallelism) {
+        this.parallelism = Math.max(1, parallelism);
+    }
+
+    /**Prepares a statement for each account, handing each to the sink as it is prepared.
+     * The sink is called from several threads at once. The stream is closed once consumed
+     * @param accounts the accounts
+     * @param prices obtains the closing price of a stock, in cents, by ticker
+     * @param sink receives the statements
+     * @return the number of statements prepared, and how quickly
+     * @throws BrokerException if an account could not be read or stated
+     */
+    public Report run(final Stream<Account> accounts, final ToIntFunction<String> prices,
+                      final Consumer<AccountStatement> sink) throws BrokerException {
+        LongAdder stated = new LongAdder();
+        long start = System.nanoTime();
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try (Stream<Account> stream = accounts) {
+            pool.submit(() -> stream.parallel().forEach(account -> {
+                sink.accept(AccountStatement.of(account, prices));
+                stated.increment();
+            })).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new BrokerException("End-of-day batch interrupted", e);
+        } catch (ExecutionException e) {
+            throw new BrokerException("End-of-day batch failed", e.getCause());
+        } finally {
+            pool.shutdown();
+        }
+        Report report = new Report(stated.sum(), System.nanoTime() - start);
+        log.info("End-of-day batch stated {} accounts in {} ms ({} accounts/s)",
+                 report.getAccounts(), report.getElapsedMillis(),
+                 String.format("%.0f", report.getAccountsPerSecond()));
+        return report;
+    }
+
+    /**Obtains the number of accounts read and stated at once
+     * @return the parallelism
+     */
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    /**The outcome of a run of the batch*/
+    public static final class Report {
+        private final long accounts;
+        private final long elapsedNanos;
+
+        private Report(final long accounts, final long elapsedNanos) {
+            this.accounts = accounts;
+            this.elapsedNanos = elapsedNanos;
+        }
+
+        /**Obtains the number of accounts stated
+         * @return the number of accounts
+         */
+        public long getAccounts() {
+            return accounts;
+        }
+
+        /**Obtains how long the batch ran
+         * @return the elapsed time, in milliseconds
+         */
+        public long getElapsedMillis() {
+            return elapsedNanos / 1000000;
+        }
+
+        /**Obtains the batch's throughput
+         * @return the number of accounts stated per second
+         */
+        public double getAccountsPerSecond() {
+            return elapsedNanos == 0 ? 0 : accounts * 1e9 / elapsedNanos;
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package edu.uw.spl.broker;
+
+import edu.uw.ext.framework.order.Order;
+
+/**An order to buy shares of a stock at or below a limit price. The order rests in its
+ * stock's limit order book until the stock trades at or below the limit price, then is
+ * sent to the exchange, provided the stock's quote is still at or below the limit; if it
+ * has moved above it, the order returns to the book
+ * @author slajaunie
+ */
+public class LimitBuyOrder extends Order {
+
+    private static final long serialVersionUID = 1L;
+
+    /**The limit price, in cents*/
+    private final int price;
+
+    /**Constructor
+     * @param accountId the name of the account placing the order
+     * @param numberOfShares the number of shares to buy
+     * @param stockTicker the stock's ticker
+     * @param price the limit price, in cents
+     */
+    public LimitBuyOrder(final String accountId, final int numberOfShares,
+                         final String stockTicker, final int price) {
+        super(accountId, numberOfShares, stockTicker);
+        this.price = price;
+    }
+
+    /**Obtains the limit price
+     * @return the highest price, in cents, at which the order may be triggered or
+     * filled
+     */
+    public int getPrice() {
+        return price;
+    }
+
+    /**Indicates this is a buy order
+     * @see edu.uw.ext.framework.order.Order#isBuyOrder()
+     * @return true
+     */
+    @Override
+    public boolean isBuyOrder() {
+        return true;
+    }
+
+    /**Obtains the change in the account's balance if the order executes at a price
+     * @see edu.uw.ext.framework.order.Order#valueOfOrder(int)
+     * @param executionPrice the execution price, in cents
+     * @return the cost of the shares, as a negative amount
+     */
+    @Override
+    public int valueOfOrder(final int executionPrice) {
+        return -executionPrice * getNumberOfShares();
+    }
+}
@@ -0,0 +1,356 @@
+package edu.uw.spl.broker;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Queue;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import edu.uw.ext.framework.order.Order;
+
+/**The resting limit orders of one stock, in price-time priority: buy orders by highest
+ * limit price, sell orders by lowest, and orders at one price in the order they arrived.
+ * Each side is a map of price levels, each level a first-in first-out queue of its orders,
+ * indexed by order id, with the total of their shares kept alongside, so the depth of the
+ * book is read off the levels without visiting their orders. The best bid and ask are cached on every change,
+ * so reading them takes no lock.
+ * <p>
+ * A price adjustment triggers, in priority order, every buy order whose limit is at or
+ * above the new price and every sell order whose limit is at or below it, handing each to
+ * its side's order processor, as the stop order queues do; an order placed at a limit the
+ * last price already satisfies is triggered at once. Orders are dispatched under the
+ * book's lock, so they reach the processor in priority order. A triggered order keeps its
+ * limit: it is not filled at a price breaking it, and is returned to the book instead
+ * @author slajaunie
+ */
+public class LimitOrderBook {
+
+    private static final Logger log = LoggerFactory.getLogger(LimitOrderBook.class);
+
+    /**Buy order price levels, highest price first*/
+    private final NavigableMap<Integer, PriceLevel<LimitBuyOrder>> bids =
+                                                new TreeMap<>(Collections.reverseOrder());
+
+    /**Sell order price levels, lowest price first*/
+    private final NavigableMap<Integer, PriceLevel<LimitSellOrder>> asks = new TreeMap<>();
+
+    /**Lock controlling access to the book*/
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /**Triggered orders returned to the book, until the lock's next holder places them at
+     * their price levels. They are handed over without waiting for the lock, since the
+     * thread returning them may be dispatching the very orders the lock's holder waits to
+     * hand it, or may be dispatching them itself*/
+    private final Queue<Order> returned = new ConcurrentLinkedQueue<>();
+
+    /**The last known price of the stock, in cents*/
+    private int price;
+
+    /**The highest buy order limit, in cents, or 0 if there are no buy orders*/
+    private volatile int bestBid;
+
+    /**The lowest sell order limit, in cents, or 0 if there are no sell orders*/
+    private volatile int bestAsk;
+
+    /**The Consumer that processes triggered buy orders*/
+    private volatile Consumer<LimitBuyOrder> buyOrderProcessor;
+
+    /**The Consumer that processes triggered sell orders*/
+    private volatile Consumer<LimitSellOrder> sellOrderProcessor;
+
+    /**Constructor
+     * @param price the current price of the stock, in cents
+     */
+    public LimitOrderBook(final int price) {
+        this.price = price;
+    }
+
+    /**Adds a buy order to the book, behind the orders already at its price. Triggers it
+     * at once if the last price is at or below its limit
+     * @param order the order
+     */
+    public void add(final LimitBuyOrder order) {
+        lock.lock();
+        try {
+            restore();
+            bids.computeIfAbsent(order.getPrice(), p -> new PriceLevel<>()).add(order);
+            bestBid = bids.firstKey();
+            dispatchOrders();
+            restore();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**Adds a sell order to the book, behind the orders already at its price. Triggers it
+     * at once if the last price is at or above its limit
+     * @param order the order
+     */
+    public void add(final LimitSellOrder order) {
+        lock.lock();
+        try {
+            restore();
+            asks.computeIfAbsent(order.getPrice(), p -> new PriceLevel<>()).add(order);
+            bestAsk = asks.firstKey();
+            dispatchOrders();
+            restore();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**Returns a triggered order to the book, behind the orders already at its price,
+     * without triggering it, as when the price it would have filled at broke its limit.
+     * It is triggered again by the next change to the book the last price satisfies.
+     * Never waits for the book's lock: if the lock is held, its holder places the order
+     * once it has finished dispatching
+     * @param order the order
+     */
+    public void requeue(final Order order) {
+        returned.add(order);
+        if (!lock.isHeldByCurrentThread() && lock.tryLock()) {
+            try {
+                restore();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**Places the orders returned to the book at their price levels. Must be called under
+     * the lock
+     */
+    private void restore() {
+        Order order;
+        while ((order = returned.poll()) != null) {
+            if (order instanceof LimitBuyOrder) {
+                LimitBuyOrder buy = (LimitBuyOrder) order;
+                bids.computeIfAbsent(buy.getPrice(), p -> new PriceLevel<>()).add(buy);
+                bestBid = bids.firstKey();
+            } else if (order instanceof LimitSellOrder) {
+                LimitSellOrder sell = (LimitSellOrder) order;
+                asks.computeIfAbsent(sell.getPrice(), p -> new PriceLevel<>()).add(sell);
+                bestAsk = asks.firstKey();
+            }
+        }
+    }
+
+    /**Removes an order from the book without triggering it, as when it is cancelled. The
+     * order's price locates its level in logarithmic time, and its id the order within
+     * the level in constant time
+     * @param order the order to remove
+     * @return true if the order was in the book
+     */
+    public boolean remove(final Order order) {
+        lock.lock();
+        try {
+            restore();
+            if (order instanceof LimitBuyOrder) {
+                boolean removed = remove(bids, ((LimitBuyOrder) order).getPrice(), order);
+                bestBid = bids.isEmpty() ? 0 : bids.firstKey();
+                return removed;
+            }
+            if (order instanceof LimitSellOrder) {
+                boolean removed = remove(asks, ((LimitSellOrder) order).getPrice(), order);
+                bestAsk = asks.isEmpty() ? 0 : asks.firstKey();
+                return removed;
+            }
+            return false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**Records the stock's new price, triggering the orders it satisfies
+     * @param price the new price, in cents
+     */
+    public void adjustPrice(final int price) {
+        lock.lock();
+        try {
+            restore();
+            this.price = price;
+            dispatchOrders();
+            restore();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**Triggers every order the last price satisfies, best price first, and each price
+     * level's orders in the order they arrived. Must be called under the lock
+     */
+    private void dispatchOrders() {
+        if (price <= 0) {
+            return;
+        }
+        while (!bids.isEmpty() && bids.firstKey() >= price) {
+            for (LimitBuyOrder order : bids.pollFirstEntry().getValue().orders.values()) {
+                dispatch(order, buyOrderProcessor);
+            }
+        }
+        bestBid = bids.isEmpty() ? 0 : bids.firstKey();
+        while (!asks.isEmpty() && asks.firstKey() <= price) {
+            for (LimitSellOrder order : asks.pollFirstEntry().getValue().orders.values()) {
+                dispatch(order, sellOrderProcessor);
+            }
+        }
+        bestAsk = asks.isEmpty() ? 0 : asks.firstKey();
+    }
+
+    /**Obtains the highest buy order limit
+     * @return the best bid, in cents, or 0 if there are no buy orders
+     */
+    public int getBestBid() {
+        return bestBid;
+    }
+
+    /**Obtains the lowest sell order limit
+     * @return the best ask, in cents, or 0 if there are no sell orders
+     */
+    public int getBestAsk() {
+        return bestAsk;
+    }
+
+    /**Obtains the total shares of the buy orders at the best prices
+     * @param depth the number of price levels to include
+     * @return the shares at each price level, in cents, highest price first
+     */
+    public Map<Integer, Long> getBidLevels(final int depth) {
+        lock.lock();
+        try {
+            restore();
+            return levels(bids, depth);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**Obtains the total shares of the sell orders at the best prices
+     * @param depth the number of price levels to include
+     * @return the shares at each price level, in cents, lowest price first
+     */
+    public Map<Integer, Long> getAskLevels(final int depth) {
+        lock.lock();
+        try {
+            restore();
+            return levels(asks, depth);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**Obtains the number of orders resting in the book
+     * @return the number of orders
+     */
+    public int size() {
+        lock.lock();
+        try {
+            restore();
+            int size = 0;
+            for (PriceLevel<LimitBuyOrder> level : bids.values()) {
+                size += level.orders.size();
+            }
+            for (PriceLevel<LimitSellOrder> level : asks.values()) {
+                size += level.orders.size();
+            }
+            return size;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**Sets the order processor for triggered buy orders
+     * @param processor the processor
+     */
+    public void setBuyOrderProcessor(final Consumer<LimitBuyOrder> processor) {
+        this.buyOrderProcessor = processor;
+    }
+
+    /**Sets the order processor for triggered sell orders
+     * @param processor the processor
+     */
+    public void setSellOrderProcessor(final Consumer<LimitSellOrder> processor) {
+        this.sellOrderProcessor = processor;
+    }
+
+    /**Checks whether an order may fill at a price: a limit buy order at or below its limit,
+     * a limit sell order at or above it, and any other order at any price
+     * @param order the order
+     * @param price the price, in cents
+     * @return true if the order may fill at the price
+     */
+    public static boolean isWithinLimit(final Order order, final int price) {
+        if (order instanceof LimitBuyOrder) {
+            return price > 0 && price <= ((LimitBuyOrder) order).getPrice();
+        }
+        if (order instanceof LimitSellOrder) {
+            return price > 0 && price >= ((LimitSellOrder) order).getPrice();
+        }
+        return true;
+    }
+
+    private static <E extends Order> void dispatch(final E order,
+                                                   final Consumer<E> processor) {
+        if (processor != null) {
+            processor.accept(order);
+            log.info("dispatched limit order {}", order.getOrderId());
+        } else {
+            log.info("Order processor is null, nothing dispatched");
+        }
+    }
+
+    private static <E extends Order> boolean remove(
+                            final NavigableMap<Integer, PriceLevel<E>> side,
+                            final int price, final Order order) {
+        PriceLevel<E> level = side.get(price);
+        if (level == null || !level.remove(order)) {
+            return false;
+        }
+        if (level.orders.isEmpty()) {
+            side.remove(price);
+        }
+        return true;
+    }
+
+    private static <E extends Order> Map<Integer, Long> levels(
+                            final NavigableMap<Integer, PriceLevel<E>> side,
+                            final int depth) {
+        Map<Integer, Long> levels = new LinkedHashMap<>();
+        for (Map.Entry<Integer, PriceLevel<E>> entry : side.entrySet()) {
+            if (levels.size() >= depth) {
+                break;
+            }
+            levels.put(entry.getKey(), entry.getValue().shares);
+        }
+        return levels;
+    }
+
+    /**The orders at one price, by order id in the order they arrived, and the total of
+     * their shares; guarded by the book's lock*/
+    private static final class PriceLevel<E extends Order> {
+        private final LinkedHashMap<Integer, E> orders = new LinkedHashMap<>();
+        private long shares;
+
+        private void add(final E order) {
+            if (orders.put(order.getOrderId(), order) == null) {
+                shares += order.getNumberOfShares();
+            }
+        }
+
+        private boolean remove(final Order order) {
+            E removed = orders.remove(order.getOrderId());
+            if (removed == null) {
+                return false;
+            }
+            shares -= removed.getNumberOfShares();
+            return true;
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package edu.uw.spl.broker;
+
+import edu.uw.ext.framework.order.Order;
+
+/**An order to sell shares of a stock at or above a limit price. The order rests in its
+ * stock's limit order book until the stock trades at or above the limit price, then is
+ * sent to the exchange, provided the stock's quote is still at or above the limit; if it
+ * has moved below it, the order returns to the book
+ * @author slajaunie
+ */
+public class LimitSellOrder extends Order {
+
+    private static final long serialVersionUID = 1L;
+
+    /**The limit price, in cents*/
+    private final int price;
+
+    /**Constructor
+     * @param accountId the name of the account placing the order
+     * @param numberOfShares the number of shares to sell
+     * @param stockTicker the stock's ticker
+     * @param price the limit price, in cents
+     */
+    public LimitSellOrder(final String accountId, final int numberOfShares,
+                         final String stockTicker, final int price) {
+        super(accountId, numberOfShares, stockTicker);
+        this.price = price;
+    }
+
+    /**Obtains the limit price
+     * @return the lowest price, in cents, at which the order may be triggered or
+     * filled
+     */
+    public int getPrice() {
+        return price;
+    }
+
+    /**Indicates this is a sell order
+     * @see edu.uw.ext.framework.order.Order#isBuyOrder()
+     * @return false
+     */
+    @Override
+    public boolean isBuyOrder() {
+        return false;
+    }
+
+    /**Obtains the change in the account's balance if the order executes at a price
+     * @see edu.uw.ext.framework.order.Order#valueOfOrder(int)
+     * @param executionPrice the execution price, in cents
+     * @return the proceeds of the shares
+     */
+    @Override
+    public int valueOfOrder(final int executionPrice) {
+        return executionPrice * getNumberOfShares();
+    }
+}
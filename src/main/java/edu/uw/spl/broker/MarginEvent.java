@@ -0,0 +1,94 @@
+package edu.uw.spl.broker;
+
+import java.util.EventObject;
+
+/**A margin call- an account whose equity, its balance plus the market value of its
+ * positions, has fallen below the maintenance margin required on its positions after the
+ * price of a stock it holds moved
+ * @author slajaunie
+ */
+public class MarginEvent extends EventObject {
+
+    private static final long serialVersionUID = 1L;
+
+    /**The name of the account*/
+    private final String accountName;
+
+    /**Ticker of the stock whose price move raised the call*/
+    private final String ticker;
+
+    /**The stock's new price, in cents*/
+    private final int price;
+
+    /**The account's equity, in cents*/
+    private final long equity;
+
+    /**The account's maintenance requirement, in cents*/
+    private final long requirement;
+
+    /**Instantiates a new margin call
+     * @param source the broker raising the call
+     * @param accountName the name of the account
+     * @param ticker ticker of the stock whose price move raised the call
+     * @param price the stock's new price, in cents
+     * @param equity the account's equity, in cents
+     * @param requirement the account's maintenance requirement, in cents
+     */
+    public MarginEvent(final Object source, final String accountName, final String ticker,
+                       final int price, final long equity, final long requirement) {
+        super(source);
+        this.accountName = accountName;
+        this.ticker = ticker;
+        this.price = price;
+        this.equity = equity;
+        this.requirement = requirement;
+    }
+
+    /**Obtains the name of the account
+     * @return the account name
+     */
+    public String getAccountName() {
+        return accountName;
+    }
+
+    /**Obtains the ticker of the stock whose price move raised the call
+     * @return the ticker
+     */
+    public String getTicker() {
+        return ticker;
+    }
+
+    /**Obtains the stock's new price
+     * @return the price, in cents
+     */
+    public int getPrice() {
+        return price;
+    }
+
+    /**Obtains the account's equity- its balance plus the market value of its positions
+     * @return the equity, in cents
+     */
+    public long getEquity() {
+        return equity;
+    }
+
+    /**Obtains the account's maintenance requirement
+     * @return the requirement, in cents
+     */
+    public long getRequirement() {
+        return requirement;
+    }
+
+    /**Obtains the amount the account must deposit to meet its requirement
+     * @return the deficiency, in cents
+     */
+    public long getDeficiency() {
+        return requirement - equity;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("MarginEvent[%s: equity %d, requirement %d, after %s at %d]",
+                             accountName, equity, requirement, ticker, price);
+    }
+}
@@ -0,0 +1,16 @@
+package edu.uw.spl.broker;
+
+import java.util.EventListener;
+
+/**Receives the margin calls raised by a broker when a price change takes an account's
+ * equity below its maintenance requirement
+ * @author slajaunie
+ */
+public interface MarginListener extends EventListener {
+
+    /**Invoked when an account falls below its maintenance requirement. Invoked on the 
+     * thread delivering the price change, so it should return promptly
+     * @param evt the margin call
+     */
+    void marginCall(MarginEvent evt);
+}
@@ -0,0 +1,243 @@
+package edu.uw.spl.broker;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.ToIntFunction;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import edu.uw.ext.framework.order.Order;
+
+/**Crossing stage for market orders: holds each stock's market orders for a short window,
+ * then matches its buy orders against its sell orders, oldest first, and fills the
+ * matched shares internally at the stock's current price. A limit order is crossed only
+ * if that price is within its limit. Only what doesn't cross- the unmatched orders, and
+ * the unmatched remainder of a partly matched order- is routed to the exchange, so
+ * opposing orders arriving within the window cost no exchange round trip.
+ * <p>
+ * The window opens with a stock's first held order and closes after a fixed delay, on
+ * the stage's own thread, which settles the stock's orders in the order they arrived
+ * @author slajaunie
+ */
+public class MarketOrderCrossing {
+
+    private static final Logger log = LoggerFactory.getLogger(MarketOrderCrossing.class);
+
+    /**Settles a market order once its stock's window closes*/
+    @FunctionalInterface
+    public interface Settlement {
+        /**Settles a market order: fills its crossed shares internally, and routes the
+         * rest to the exchange
+         * @param order the order
+         * @param crossedShares the number of the order's shares filled internally
+         * @param price the price of the internal fill, in cents
+         */
+        void settle(Order order, int crossedShares, int price);
+    }
+
+    /**How long a stock's orders are held for crossing, in milliseconds*/
+    private final long windowMillis;
+
+    /**Obtains a stock's current price, in cents, or 0 if unknown*/
+    private final ToIntFunction<String> quote;
+
+    /**Settles the orders*/
+    private final Settlement settlement;
+
+    /**The orders held for each stock, in the order they arrived; guarded by this object*/
+    private final Map<String, List<Order>> pending = new HashMap<>();
+
+    /**Closes the windows*/
+    private final ScheduledExecutorService scheduler =
+                    Executors.newSingleThreadScheduledExecutor(runnable -> {
+                        Thread thread = new Thread(runnable, "MarketOrderCrossing");
+                        thread.setDaemon(true);
+                        return thread;
+                    });
+
+    /**Total shares filled internally, counting both sides of each cross*/
+    private final AtomicLong crossedShares = new AtomicLong();
+
+    /**Total orders routed to the exchange, wholly or in part*/
+    private final AtomicLong routedOrders = new AtomicLong();
+
+    /**Constructor
+     * @param windowMillis how long a stock's orders are held for crossing, in milliseconds
+     * @param quote obtains a stock's current price, in cents, or 0 if unknown; orders of a
+     * stock with no price are not crossed
+     * @param settlement settles each order once its stock's window closes
+     */
+    public MarketOrderCrossing(final long windowMillis, final ToIntFunction<String> quote,
+                               final Settlement settlement) {
+        this.windowMillis = windowMillis;
+        this.quote = quote;
+        this.settlement = settlement;
+    }
+
+    /**Holds a market order for crossing, opening its stock's window if none is open
+     * @param order the order
+     */
+    public void add(final Order order) {
+        String ticker = order.getStockTicker();
+        boolean opened;
+        synchronized (this) {
+            List<Order> orders = pending.computeIfAbsent(ticker, t -> new ArrayList<>());
+            orders.add(order);
+            opened = orders.size() == 1;
+        }
+        if (opened) {
+            try {
+                scheduler.schedule(() -> flush(ticker), windowMillis, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                /*closed- settle without waiting*/
+                flush(ticker);
+            }
+        }
+    }
+
+    /**Closes a stock's window, crossing and settling the orders held in it
+     * @param ticker the stock's ticker
+     */
+    public void flush(final String ticker) {
+        List<Order> orders;
+        synchronized (this) {
+            orders = pending.remove(ticker);
+        }
+        if (orders == null) {
+            return;
+        }
+        int price = isTwoSided(orders) ? quote.applyAsInt(ticker) : 0;
+        int[] crossed = price > 0 ? cross(orders, price) : null;
+        for (int i = 0; i < orders.size(); i++) {
+            Order order = orders.get(i);
+            int shares = crossed != null ? crossed[i] : 0;
+            crossedShares.addAndGet(shares);
+            if (shares < order.getNumberOfShares()) {
+                routedOrders.incrementAndGet();
+            }
+            try {
+                settlement.settle(order, shares, price);
+            } catch (RuntimeException e) {
+                log.error("Unable to settle order {}", order.getOrderId(), e);
+            }
+        }
+    }
+
+    /**Checks whether a stock's orders include both buy and sell orders
+     * @param orders the stock's orders
+     * @return true if there are orders on both sides
+     */
+    private static boolean isTwoSided(final List<Order> orders) {
+        boolean buys = false;
+        boolean sells = false;
+        for (Order order : orders) {
+            buys |= order.isBuyOrder();
+            sells |= !order.isBuyOrder();
+        }
+        return buys && sells;
+    }
+
+    /**Matches a stock's buy orders against its sell orders, oldest first on each side,
+     * until the smaller side is exhausted. Limit orders whose limit the price breaks are
+     * left out
+     * @param orders the stock's orders, in the order they arrived
+     * @param price the price of the internal fill, in cents
+     * @return the number of each order's shares crossed, or <code>null</code> if the
+     * orders which may cross are all on one side
+     */
+    private static int[] cross(final List<Order> orders, final int price) {
+        long bought = 0;
+        long sold = 0;
+        for (Order order : orders) {
+            if (!LimitOrderBook.isWithinLimit(order, price)) {
+                continue;
+            }
+            if (order.isBuyOrder()) {
+                bought += order.getNumberOfShares();
+            } else {
+                sold += order.getNumberOfShares();
+            }
+        }
+        if (bought == 0 || sold == 0) {
+            return null;
+        }
+        long buysLeft = Math.min(bought, sold);
+        long sellsLeft = buysLeft;
+        int[] crossed = new int[orders.size()];
+        for (int i = 0; i < orders.size(); i++) {
+            Order order = orders.get(i);
+            if (!LimitOrderBook.isWithinLimit(order, price)) {
+                continue;
+            }
+            if (order.isBuyOrder()) {
+                crossed[i] = (int) Math.min(order.getNumberOfShares(), buysLeft);
+                buysLeft -= crossed[i];
+            } else {
+                crossed[i] = (int) Math.min(order.getNumberOfShares(), sellsLeft);
+                sellsLeft -= crossed[i];
+            }
+        }
+        return crossed;
+    }
+
+    /**Obtains how long a stock's orders are held for crossing
+     * @return the window, in milliseconds
+     */
+    public long getWindowMillis() {
+        return windowMillis;
+    }
+
+    /**Obtains the total shares filled internally, counting both sides of each cross
+     * @return the number of shares crossed
+     */
+    public long getCrossedShares() {
+        return crossedShares.get();
+    }
+
+    /**Obtains the total orders routed to the exchange, wholly or in part
+     * @return the number of orders routed
+     */
+    public long getRoutedOrders() {
+        return routedOrders.get();
+    }
+
+    /**Settles every held order at once and stops the stage*/
+    public void close() {
+        scheduler.shutdownNow();
+        flushAll();
+    }
+
+    /**Takes back every held order without crossing or settling it, closing every open
+     * window, as when the exchange closes
+     * @return the orders, each stock's in the order they arrived
+     */
+    public List<Order> release() {
+        List<Order> released = new ArrayList<>();
+        synchronized (this) {
+            for (List<Order> orders : pending.values()) {
+                released.addAll(orders);
+            }
+            pending.clear();
+        }
+        return released;
+    }
+
+    /**Settles every held order at once*/
+    private void flushAll() {
+        List<String> tickers;
+        synchronized (this) {
+            tickers = new ArrayList<>(pending.keySet());
+        }
+        for (String ticker : tickers) {
+            flush(ticker);
+        }
+    }
+}
@@ -0,0 +1,151 @@
+package edu.uw.spl.broker;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+import java.util.function.ToIntFunction;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import edu.uw.ext.framework.order.MarketBuyOrder;
+import edu.uw.ext.framework.order.MarketSellOrder;
+import edu.uw.ext.framework.order.Order;
+
+/**The market orders released when the exchange opens, executed as one batch: each
+ * stock's orders are netted into a single parent order- buys less sells- which is the
+ * only one sent to the exchange, and every order of the stock is then filled at the
+ * parent's execution price. A stock whose buys and sells cancel out costs no exchange
+ * call at all, and fills at its current quote. The open then costs at most one
+ * exchange round trip per stock, rather than one per order.
+ * <p>
+ * Each stock is executed on its own: should its parent order fail, or execute at no
+ * price, the stock's orders are failed rather than routed one by one, since the parent
+ * may have traded; the other stocks are unaffected. A stock whose net is too large for
+ * one order has no parent, and its orders are settled on the exchange one by one.
+ * <p>
+ * Orders are collected while the market order queue drains; once the batch is closed it
+ * refuses further orders, which are then executed as usual
+ * @author slajaunie
+ */
+public class OpeningBatch {
+
+    private static final Logger log = LoggerFactory.getLogger(OpeningBatch.class);
+
+    /**The collected orders, in the order they were released; guarded by this object*/
+    private final List<Order> orders = new ArrayList<>();
+
+    /**Whether the batch still collects orders; guarded by this object*/
+    private boolean open = true;
+
+    /**
+     *Instantiates a new, empty, batch
+     */
+    public OpeningBatch() {}
+
+    /**Adds a released order to the batch, unless it has been closed
+     * @param order the order
+     * @return true if the order was added, false if the batch is closed
+     */
+    public synchronized boolean add(final Order order) {
+        if (open) {
+            orders.add(order);
+        }
+        return open;
+    }
+
+    /**Closes the batch and executes it: sends each stock's net parent order to the
+     * exchange, then settles each collected order at its stock's execution price
+     * @param account the account named on the parent orders
+     * @param route sends a parent order to the exchange, returning its execution price
+     * @param quote obtains a stock's current price, for stocks netting to zero; if it is
+     * unknown, 0, the stock's orders are settled on the exchange one by one
+     * @param settlement settles each collected order, wholly at the execution price
+     * @param failure fails each collected order of a stock whose parent order failed
+     * @return the number of exchange calls made
+     */
+    public int execute(final String account, final ToIntFunction<Order> route,
+                       final ToIntFunction<String> quote,
+                       final MarketOrderCrossing.Settlement settlement,
+                       final Consumer<Order> failure) {
+        List<Order> batch;
+        synchronized (this) {
+            open = false;
+            batch = new ArrayList<>(orders);
+            orders.clear();
+        }
+        Map<String, List<Order>> byTicker = new LinkedHashMap<>();
+        for (Order order : batch) {
+            byTicker.computeIfAbsent(order.getStockTicker(), t -> new ArrayList<>()).add(order);
+        }
+        int calls = 0;
+        for (Map.Entry<String, List<Order>> entry : byTicker.entrySet()) {
+            String ticker = entry.getKey();
+            List<Order> orders = entry.getValue();
+            long net = 0;
+            for (Order order : orders) {
+                net += order.isBuyOrder()
+                        ? order.getNumberOfShares() : -(long) order.getNumberOfShares();
+            }
+            if (Math.abs(net) > Integer.MAX_VALUE) {
+                log.warn("Opening batch for {}: net {} shares is too large for one order; "
+                            + "its {} orders are executed one by one", ticker, net, 
+                                                                        orders.size());
+                settleAll(orders, settlement, 0);
+                continue;
+            }
+            int price;
+            try {
+                if (net == 0) {
+                    price = quote.applyAsInt(ticker);
+                } else {
+                    calls++;
+                    price = route.applyAsInt(net > 0
+                            ? new MarketBuyOrder(account, (int) net, ticker)
+                            : new MarketSellOrder(account, (int) -net, ticker));
+                }
+            } catch (RuntimeException e) {
+                log.error("Opening batch for {} failed", ticker, e);
+                price = 0;
+            }
+            if (net != 0 && price <= 0) {
+                /*the parent may have traded; routing its orders could trade them twice*/
+                log.error("Opening batch for {}: parent order for {} shares has no "
+                            + "execution price; its {} orders are failed", ticker, net,
+                                                                        orders.size());
+                for (Order order : orders) {
+                    try {
+                        failure.accept(order);
+                    } catch (RuntimeException e) {
+                        log.error("Unable to fail order {}", order.getOrderId(), e);
+                    }
+                }
+                continue;
+            }
+            log.info("Opening batch for {}: {} orders, net {} shares, at {}",
+                                            ticker, orders.size(), net, price);
+            settleAll(orders, settlement, price);
+        }
+        return calls;
+    }
+
+    /**Settles each of a stock's orders wholly at a price, each on its own
+     * @param orders the stock's orders
+     * @param settlement settles each order
+     * @param price the execution price, in cents, or 0 to settle each order on the 
+     * exchange
+     */
+    private static void settleAll(final List<Order> orders,
+                                  final MarketOrderCrossing.Settlement settlement,
+                                  final int price) {
+        for (Order order : orders) {
+            try {
+                settlement.settle(order, price > 0 ? order.getNumberOfShares() : 0, price);
+            } catch (RuntimeException e) {
+                log.error("Unable to settle order {}", order.getOrderId(), e);
+            }
+        }
+    }
+}
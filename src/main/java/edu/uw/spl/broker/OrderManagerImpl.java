@@ -5,11 +5,12 @@ import java.util.function.BiPredicate;
 import java.util.function.Consumer;
 
 import edu.uw.ext.framework.broker.OrderManager;
+import edu.uw.ext.framework.order.Order;
 import edu.uw.ext.framework.order.StopBuyOrder;
 import edu.uw.ext.framework.order.StopSellOrder;
 
-/**Implementation of an OrderManager which manages stop orders for a particular stock
- * associated with this OrderManager
+/**Implementation of an OrderManager which manages stop orders, and a book of limit 
+ * orders, for a particular stock associated with this OrderManager
  * @author slajaunie
  *
  */
@@ -34,39 +35,36 @@ public class OrderManagerImpl implements OrderManager {
     
             
      /**Buy Order comparator- orders are ascending by price w/ buyOrders, 
-     * descending by price with sellOrders- if order prices are equal, 
-     * use implemented ordering for order interface, by number of shares and
-     * then order id*/
+     * descending by price with sellOrders- if order prices are equal, the queue 
+     * dispatches them by time priority, held on each queued entry*/
     private Comparator<StopBuyOrder> sBuyOrderComparator =  
-            Comparator.comparing(StopBuyOrder::getPrice)
-            .reversed()
-            .thenComparing(StopBuyOrder::getNumberOfShares)
-            .reversed()
-            .thenComparing(StopBuyOrder::getOrderId);    
+            Comparator.comparingInt(StopBuyOrder::getPrice);
     
     /**Sell Order comparator- orders are descending by price w/ buyOrders, 
-     * descending by price with sellOrders- if order prices are equal, 
-     * use implemented ordering for order interface, by number of shares and
-     * then order id*/
+     * descending by price with sellOrders- if order prices are equal, the queue 
+     * dispatches them by time priority, held on each queued entry*/
     private Comparator<StopSellOrder> sSellOrderComparator =  
-            Comparator.comparing(StopSellOrder::getPrice)
-            .thenComparing(StopSellOrder::getNumberOfShares)
-            .reversed()
-            .thenComparing(StopSellOrder::getOrderId);
+            Comparator.comparingInt(StopSellOrder::getPrice).reversed();
     
 
     /**
      *The Stop Sell Order Queue- Orders are sorted by price, highest to lowest, then by 
-     *the Order Interface's natural ordering 
+     *time priority
      */
     private OrderQueueImpl<Integer,StopSellOrder> stopSellOrderQueue; 
    
     /**
      *The Stop Buy Order Queue- Orders are sorted by price, lowest to highest, then by 
-     *the Order Interface's natural ordering
+     *time priority
      */
     private OrderQueueImpl<Integer,StopBuyOrder> stopBuyOrderQueue;
     
+    /**The limit order book, in price-time priority*/
+    private final LimitOrderBook limitOrderBook;
+    
+    /**The last known price of the stock, in cents*/
+    private volatile int price;
+    
     /**Constructor. Instantiates separate a Stop Sell OrderQueue and a Stop Buy OrderQueue
      * in separate threads
      * @param symbol the stock symbol to be associated with this order manager
@@ -74,6 +72,7 @@ public class OrderManagerImpl implements OrderManager {
      */
     public OrderManagerImpl(final String symbol, final int price) {
         this.symbol = symbol;
+        this.price = price;
         new Thread(stopSellOrderQueue = 
                 new OrderQueueImpl<Integer, StopSellOrder>(price, 
                                         sSellOrderDispatchFilter, 
@@ -82,17 +81,20 @@ public class OrderManagerImpl implements OrderManager {
                 new OrderQueueImpl<Integer, StopBuyOrder>(price, 
                                         sBuyOrderDispatchFilter, 
                                         sBuyOrderComparator)).start();
+        this.limitOrderBook = new LimitOrderBook(price);
     }
     
     /**Adjusts the price of this order manager in response to a change in the stock's price,
-     * and updates applicable thresholds in the Stop order queues
+     * and updates applicable thresholds in the Stop order queues and the limit order book
      * @see edu.uw.ext.framework.broker.OrderManager#adjustPrice(int)
      * @param price the new price of the stock/threshold of the Stop order queues
      */
     @Override
     public void adjustPrice(final int price) {
+        this.price = price;
         this.stopBuyOrderQueue.setThreshold(price);
         this.stopSellOrderQueue.setThreshold(price);
+        this.limitOrderBook.adjustPrice(price);
     }
 
     /**Adds a StopBuyOrder to the order queue
@@ -113,6 +115,103 @@ public class OrderManagerImpl implements OrderManager {
         this.stopSellOrderQueue.enqueue(order);
     }
 
+    /**Adds a LimitBuyOrder to the limit order book
+     * @param order a LimitBuyOrder to be added to the book
+     */
+    public void queueOrder(final LimitBuyOrder order) {
+        this.limitOrderBook.add(order);
+    }
+
+    /**Adds a LimitSellOrder to the limit order book
+     * @param order a LimitSellOrder to be added to the book
+     */
+    public void queueOrder(final LimitSellOrder order) {
+        this.limitOrderBook.add(order);
+    }
+
+    /**Returns a triggered limit order to the limit order book without triggering it, as
+     * when the price it would have filled at broke its limit
+     * @param order a LimitBuyOrder or LimitSellOrder
+     */
+    public void requeueOrder(final Order order) {
+        this.limitOrderBook.requeue(order);
+    }
+
+    /**Replaces a queued StopBuyOrder with another, as when a client trails its stop, 
+     * without the cancel and resubmit which would cost the order its place. The swap is
+     * atomic with respect to dispatching, and costs two logarithmic time queue operations.
+     * A replacement at the same stop price for no more shares keeps the original's time 
+     * priority; a new stop price, or more shares, places it behind the orders already at
+     * its price. Doesn't dispatch the replacement; call <code>dispatchOrders</code> once
+     * any locks held around the swap are released
+     * @param original the queued order
+     * @param replacement the replacement order, for the same account and stock
+     * @return true if the order was replaced, false if it has already been dispatched
+     */
+    public boolean replaceOrder(final StopBuyOrder original, final StopBuyOrder replacement) {
+        return replace(stopBuyOrderQueue, original, replacement,
+                       original.getPrice() == replacement.getPrice());
+    }
+
+    /**Replaces a queued StopSellOrder with another, as when a client trails its stop, 
+     * without the cancel and resubmit which would cost the order its place. The swap is
+     * atomic with respect to dispatching, and costs two logarithmic time queue operations.
+     * A replacement at the same stop price for no more shares keeps the original's time 
+     * priority; a new stop price, or more shares, places it behind the orders already at
+     * its price. Doesn't dispatch the replacement; call <code>dispatchOrders</code> once
+     * any locks held around the swap are released
+     * @param original the queued order
+     * @param replacement the replacement order, for the same account and stock
+     * @return true if the order was replaced, false if it has already been dispatched
+     */
+    public boolean replaceOrder(final StopSellOrder original, 
+                                final StopSellOrder replacement) {
+        return replace(stopSellOrderQueue, original, replacement,
+                       original.getPrice() == replacement.getPrice());
+    }
+
+    /**Removes a queued stop or limit order without dispatching it, as when it is 
+     * cancelled
+     * @param order the order
+     * @return true if the order was queued
+     */
+    public boolean removeOrder(final Order order) {
+        if (order instanceof LimitBuyOrder || order instanceof LimitSellOrder) {
+            return limitOrderBook.remove(order);
+        }
+        return order.isBuyOrder() 
+                ? stopBuyOrderQueue.remove(order) : stopSellOrderQueue.remove(order);
+    }
+
+    /**Dispatches the stop orders the last price satisfies, as after a replacement*/
+    public void dispatchOrders() {
+        this.stopBuyOrderQueue.dispatchOrders();
+        this.stopSellOrderQueue.dispatchOrders();
+    }
+
+    /**Swaps a queued order for its replacement, handing the original's time priority on
+     * when the replacement keeps its place
+     * @param queue the queue holding the order
+     * @param original the queued order
+     * @param replacement the replacement order
+     * @param samePrice whether the replacement has the original's stop price
+     * @return true if the order was replaced
+     */
+    private <E extends Order> boolean replace(final OrderQueueImpl<Integer, E> queue,
+                                              final E original, final E replacement,
+                                              final boolean samePrice) {
+        boolean keepsPlace = samePrice 
+                && replacement.getNumberOfShares() <= original.getNumberOfShares();
+        return queue.replace(original, replacement, keepsPlace);
+    }
+
+    /**Obtains the last known price of the stock, as of the latest price adjustment
+     * @return the price, in cents
+     */
+    public int getPrice() {
+        return this.price;
+    }
+
     /** Obtains the stock symbol associated with this order manager
      * @see edu.uw.ext.framework.broker.OrderManager#getSymbol()
      */
@@ -142,6 +241,27 @@ public class OrderManagerImpl implements OrderManager {
         this.stopSellOrderQueue.setOrderProcessor(processor);
     }
 
+    /** Sets the order processor for LimitBuyOrders triggered by the stock's price
+     * @param processor the LimitBuyOrder processor
+     */
+    public void setLimitBuyOrderProcessor(final Consumer<LimitBuyOrder> processor) {
+        this.limitOrderBook.setBuyOrderProcessor(processor);
+    }
+
+    /** Sets the order processor for LimitSellOrders triggered by the stock's price
+     * @param processor the LimitSellOrder processor
+     */
+    public void setLimitSellOrderProcessor(final Consumer<LimitSellOrder> processor) {
+        this.limitOrderBook.setSellOrderProcessor(processor);
+    }
+
+    /**Obtains the limit order book, for its best prices and depth
+     * @return the limit order book
+     */
+    public LimitOrderBook getLimitOrderBook() {
+        return limitOrderBook;
+    }
+
     /*Getters for testing*/
     /**Obtains the StopSellOrder Queue
      * @return the StopSellOrder Queue
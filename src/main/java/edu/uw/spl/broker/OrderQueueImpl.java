@@ -1,6 +1,10 @@
 package edu.uw.spl.broker;
 
+import java.util.ArrayList;
 import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.TreeSet;
 import java.util.concurrent.Executor;
 import java.util.concurrent.locks.Condition;
@@ -16,7 +20,11 @@ import edu.uw.ext.framework.broker.OrderQueue;
 import edu.uw.ext.framework.order.Order;
 
 /**
- * Implementation of OrderQueue, using a TreeSet to store Orders
+ * Implementation of OrderQueue, using a TreeSet to store Orders. Each order is queued in
+ * an entry carrying its time priority- the order in which it arrived, or the priority of
+ * the order it replaced- so orders the queue's comparator ranks equal, such as stop 
+ * orders at one price, dispatch first come first served. The priority is fixed on the 
+ * entry while it is queued, so the set's ordering never changes under it
  * @author slajaunie
  * @param T the dispatch threshold type
  * @param E the type of order contained in the queue
@@ -27,9 +35,15 @@ public class OrderQueueImpl<T, E extends edu.uw.ext.framework.order.Order>
     private static final Logger log = LoggerFactory.getLogger(OrderQueueImpl.class);
     
     /**
-     * The order queue
+     * The order queue- the queued entries, in dispatch order
      * */
-    private TreeSet<E> orderQueue;
+    private TreeSet<Queued<E>> orderQueue;
+
+    /**The queued entry of each order, by order id; guarded by the lock*/
+    private final Map<Integer, Queued<E>> entries = new HashMap<>();
+
+    /**Time priority of the next order to arrive; guarded by the lock*/
+    private long nextPriority;
     
     /**The threshold value- if StopBuy/StopSell queue, it will be an int (the target/stop price);
      * if a Market Order queue, it will be a boolean (market open/closed?)*/
@@ -59,7 +73,10 @@ public class OrderQueueImpl<T, E extends edu.uw.ext.framework.order.Order>
      *  
      * */
     public OrderQueueImpl( T threshold, BiPredicate<T,E> dispatchFilter) {
-        this.orderQueue = new TreeSet<>();
+        /*the orders' natural ordering, then time priority*/
+        this.orderQueue = new TreeSet<>(Comparator.comparing((Queued<E> entry) -> 
+                                                                    (Order) entry.order)
+                                                  .thenComparingLong(entry -> entry.priority));
         this.threshold = threshold;
         this.dispatchFilter = dispatchFilter;
     }
@@ -75,8 +92,10 @@ public class OrderQueueImpl<T, E extends edu.uw.ext.framework.order.Order>
      * */
     
     public OrderQueueImpl( T threshold, BiPredicate<T,E> dispatchFilter, Comparator<E> cmp) {
-        /*Initialize the treeSet with the comparator argument*/
-        this.orderQueue = new TreeSet<E>(cmp);
+        /*Initialize the treeSet with the comparator argument, then time priority*/
+        this.orderQueue = new TreeSet<>(Comparator.comparing((Queued<E> entry) -> entry.order,
+                                                             cmp)
+                                                  .thenComparingLong(entry -> entry.priority));
         this.threshold = threshold;
         this.dispatchFilter = dispatchFilter;
     }
@@ -91,7 +110,7 @@ public class OrderQueueImpl<T, E extends edu.uw.ext.framework.order.Order>
         /*Dispatch any dispatchable orders after adding the new order to the queue*/
         try {
             lock.lock();
-            orderQueue.add(order);
+            add(order, nextPriority++);
             dispatchOrders();
         } finally {
             lock.unlock();
@@ -119,12 +138,12 @@ public class OrderQueueImpl<T, E extends edu.uw.ext.framework.order.Order>
             if (orderQueue.isEmpty()) {
                 log.info("queue is empty, nothing to deqeue");
             } else {
-                order = orderQueue.first();
+                order = orderQueue.first().order;
                 /*If order isn't null (ie list wasn't empty) test with dispatch filter...*/
                 if (this.dispatchFilter.test(this.threshold, order)){
                     log.info("{} removed from queue",order.toString());
                     if (this.dispatchFilter !=null) 
-                        orderQueue.remove(order);
+                        entries.remove(orderQueue.pollFirst().order.getOrderId());
                 } else {
                     /*...Otherwise don't remove the order from the list, don't dispatch 
                      * and return null*/
@@ -140,32 +159,94 @@ public class OrderQueueImpl<T, E extends edu.uw.ext.framework.order.Order>
         
     }
 
+    /**Removes an order from the queue without dispatching it, as when the order is
+     * cancelled. The order's entry is found by order id, and supplies the queue's 
+     * ordering key, so the removal takes logarithmic time
+     * @param order the order to remove
+     * @return true if the order was in the queue
+     */
+    public boolean remove(final Order order) {
+        lock.lock();
+        try {
+            Queued<E> entry = entries.remove(order.getOrderId());
+            return entry != null && orderQueue.remove(entry);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**Replaces an order in the queue with another, atomically with respect to dispatching:
+     * either the original is dispatched, or its replacement is. Doesn't dispatch, so it
+     * may be called while holding other locks; the caller dispatches the queue afterwards,
+     * since the replacement may be dispatchable at once
+     * @param original the order to replace
+     * @param replacement the replacement order
+     * @param keepPlace true if the replacement takes the original's time priority, false
+     * if it queues behind the orders already in the queue
+     * @return true if the order was replaced, false if it was no longer in the queue
+     */
+    public boolean replace(final E original, final E replacement, final boolean keepPlace) {
+        lock.lock();
+        try {
+            Queued<E> entry = entries.remove(original.getOrderId());
+            if (entry == null) {
+                return false;
+            }
+            orderQueue.remove(entry);
+            add(replacement, keepPlace ? entry.priority : nextPriority++);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
     
     @Override
     public void run() {
-        E order; 
-        
         while (true ) {
             
             try {
                 /*acquire the lock...*/
                 lock.lock();
-                /*Thread will wait/release the lock until items are in the queue, at which point
-                 * dispatchOrders() will signal the waiting thread    
+                /*Thread will wait/release the lock until an order is dispatchable, at 
+                 * which point dispatchOrders() will signal the waiting thread    
                  */
-                while ((order = this.dequeue()) ==null) {
+                while (!isDispatchable()) {
                     condition.await();
                     log.info("Thread waiting for signal...");
                 }
-                dispatchOrders();
             } catch (InterruptedException e) {
-                e.printStackTrace();
+                log.info("Order queue thread interrupted; stopping");
+                return;
             } finally {
                 /*Release the lock once done*/
                 lock.unlock();
             }
+            dispatchOrders();
         } 
     }
+
+    /**Checks whether the first order in the queue is dispatchable. Must be called under
+     * the lock
+     * @return true if an order is dispatchable
+     */
+    private boolean isDispatchable() {
+        return !orderQueue.isEmpty() 
+                && this.dispatchFilter.test(this.threshold, orderQueue.first().order);
+    }
+
+    /**Queues an order with a time priority. Must be called under the lock
+     * @param order the order
+     * @param priority the order's time priority- lower is earlier
+     */
+    private void add(final E order, final long priority) {
+        Queued<E> entry = new Queued<>(order, priority);
+        Queued<E> previous = entries.put(order.getOrderId(), entry);
+        if (previous != null) {
+            /*an order queued twice rests once*/
+            orderQueue.remove(previous);
+        }
+        orderQueue.add(entry);
+    }
     
     /** Executes the callback for each dispatchable order. Each dispatchable order is in turn 
      * removed from the queue and passed to the callback. If no callback is registered (ie, null)
@@ -237,8 +318,8 @@ public class OrderQueueImpl<T, E extends edu.uw.ext.framework.order.Order>
     @Override 
     public String toString() {
         StringBuilder builder = new StringBuilder();
-        for (E order: this.orderQueue) {
-            builder.append(order.toString());
+        for (Queued<E> entry: this.orderQueue) {
+            builder.append(entry.order.toString());
             builder.append("; ");
         }
         return builder.toString();
@@ -252,10 +333,38 @@ public class OrderQueueImpl<T, E extends edu.uw.ext.framework.order.Order>
     }
 
     /**Returns a shallow copy of the TreeSet containing the orders in this queue
-     * @return a shallow copy of the TreeSet containing the orders in this queue
+     * @return a shallow copy of the TreeSet containing the orders in this queue, ordered
+     * as they would be dispatched
      */
     public TreeSet<E> getOrderQueue() {
-        return (TreeSet<E>) orderQueue.clone();
+        Map<Integer, Integer> rank = new HashMap<>();
+        List<E> orders = new ArrayList<>();
+        lock.lock();
+        try {
+            for (Queued<E> entry : orderQueue) {
+                rank.put(entry.order.getOrderId(), orders.size());
+                orders.add(entry.order);
+            }
+        } finally {
+            lock.unlock();
+        }
+        /*ordered by the snapshot's ranks, which never change*/
+        TreeSet<E> copy = new TreeSet<>(Comparator.comparingInt((E order) -> 
+                        rank.getOrDefault(order.getOrderId(), Integer.MAX_VALUE))
+                .thenComparingInt(Order::getOrderId));
+        copy.addAll(orders);
+        return copy;
+    }
+
+    /**A queued order and its time priority, fixed while it is queued*/
+    private static final class Queued<E> {
+        private final E order;
+        private final long priority;
+
+        private Queued(final E order, final long priority) {
+            this.order = order;
+            this.priority = priority;
+        }
     }
 
     
@@ -0,0 +1,286 @@
+package edu.uw.spl.broker;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntSupplier;
+import java.util.function.LongSupplier;
+
+/**Live mark-to-market values of the portfolios of a broker's accounts. Each stock keeps
+ * a reverse index of the accounts holding it, so a price change revalues only those
+ * accounts, and only by the change in price times the shares held, rather than
+ * recomputing every portfolio. The same index is the broker's exposure index: after a
+ * large move in a stock, <code>scan</code> checks the margin of just the accounts exposed
+ * to it, from their recorded balance and positions, without reading any account.
+ * <p>
+ * Positions are recorded as absolute share counts, read from the account under the
+ * stock's monitor after each fill, so recording one twice, or racing with the recording
+ * of a later fill, leaves the value right: whichever records last reads the latest
+ * count. A stock's price and holders change under the stock's monitor; an account's value
+ * and gross exposure are atomic counters, so reading them takes no lock
+ * @author slajaunie
+ */
+public class PortfolioValuation {
+
+    /**Price and holders of each stock, by ticker*/
+    private final ConcurrentMap<String, Stock> stocks = new ConcurrentHashMap<>();
+
+    /**Portfolio of each tracked account, by account name*/
+    private final ConcurrentMap<String, Portfolio> portfolios = new ConcurrentHashMap<>();
+
+    /**
+     *Instantiates a new valuation, tracking no accounts
+     */
+    public PortfolioValuation() {}
+
+    /**Records a stock's new price, revaluing each tracked account holding the stock by the
+     * change in price times its shares
+     * @param ticker the stock's ticker
+     * @param price the new price, in cents
+     */
+    public void priceChanged(final String ticker, final int price) {
+        Stock stock = stock(ticker);
+        synchronized (stock) {
+            long delta = (long) price - stock.price;
+            stock.price = price;
+            if (delta != 0) {
+                for (Holding holding : stock.holders.values()) {
+                    holding.portfolio.value.addAndGet(delta * holding.shares);
+                    holding.portfolio.gross.addAndGet(delta * Math.abs(holding.shares));
+                }
+            }
+        }
+    }
+
+    /**Obtains the last price recorded for a stock
+     * @param ticker the stock's ticker
+     * @return the price, in cents, or 0 if none has been recorded
+     */
+    public int getPrice(final String ticker) {
+        Stock stock = stocks.get(ticker);
+        return stock == null ? 0 : stock.price;
+    }
+
+    /**Starts tracking an account, if it isn't tracked yet. Its positions must then be
+     * recorded with <code>update</code>
+     * @param accountName the name of the account
+     * @return true if the account was not tracked before
+     */
+    public boolean track(final String accountName) {
+        return portfolios.putIfAbsent(accountName, new Portfolio(accountName)) == null;
+    }
+
+    /**Checks whether an account is tracked
+     * @param accountName the name of the account
+     * @return true if the account is tracked
+     */
+    public boolean isTracked(final String accountName) {
+        return portfolios.containsKey(accountName);
+    }
+
+    /**Records the shares a tracked account now holds of a stock, revaluing the account by
+     * the change in shares at the stock's last price. The shares are read under the 
+     * stock's monitor, so of concurrent updates the last records the latest count. Does
+     * nothing for an untracked account
+     * @param accountName the name of the account
+     * @param ticker the stock's ticker
+     * @param currentShares reads the number of shares now held; negative for a short 
+     * position
+     */
+    public void update(final String accountName, final String ticker, 
+                       final LongSupplier currentShares) {
+        Portfolio portfolio = portfolios.get(accountName);
+        if (portfolio == null) {
+            return;
+        }
+        Stock stock = stock(ticker);
+        synchronized (stock) {
+            long shares = currentShares.getAsLong();
+            Holding holding = stock.holders.get(accountName);
+            long previous = holding == null ? 0 : holding.shares;
+            if (shares == 0) {
+                stock.holders.remove(accountName);
+                portfolio.tickers.remove(ticker);
+            } else if (holding == null) {
+                stock.holders.put(accountName, new Holding(portfolio, shares));
+                portfolio.tickers.add(ticker);
+            } else {
+                holding.shares = shares;
+            }
+            portfolio.value.addAndGet((shares - previous) * stock.price);
+            portfolio.gross.addAndGet((Math.abs(shares) - Math.abs(previous)) * stock.price);
+        }
+    }
+
+    /**Records the balance of a tracked account. The balance is read under the account's 
+     * portfolio monitor, so of concurrent updates the last records the latest balance.
+     * Does nothing for an untracked account
+     * @param accountName the name of the account
+     * @param balance reads the account's current balance, in cents
+     */
+    public void updateCash(final String accountName, final IntSupplier balance) {
+        Portfolio portfolio = portfolios.get(accountName);
+        if (portfolio != null) {
+            synchronized (portfolio) {
+                portfolio.cash = balance.getAsInt();
+            }
+        }
+    }
+
+    /**Checks the margin of the tracked accounts exposed to a stock- those holding a long or
+     * short position in it. An account is called when its equity, its balance plus the 
+     * value of its positions, falls below the maintenance margin times the gross value of
+     * its positions; it is called once, and not again until it has recovered
+     * @param ticker the stock's ticker
+     * @param maintenanceMargin the fraction of the gross value of its positions an account
+     * must hold as equity
+     * @param source the source of the margin events
+     * @return the accounts newly called, empty if none
+     */
+    public List<MarginEvent> scan(final String ticker, final double maintenanceMargin,
+                                  final Object source) {
+        Stock stock = stocks.get(ticker);
+        if (stock == null) {
+            return Collections.emptyList();
+        }
+        List<Portfolio> exposed;
+        int price;
+        synchronized (stock) {
+            exposed = new ArrayList<>(stock.holders.size());
+            for (Holding holding : stock.holders.values()) {
+                exposed.add(holding.portfolio);
+            }
+            price = stock.price;
+        }
+        List<MarginEvent> calls = Collections.emptyList();
+        for (Portfolio portfolio : exposed) {
+            long equity = portfolio.cash + portfolio.value.get();
+            long requirement = (long) Math.ceil(portfolio.gross.get() * maintenanceMargin);
+            if (equity >= requirement) {
+                portfolio.called.set(false);
+            } else if (portfolio.called.compareAndSet(false, true)) {
+                if (calls.isEmpty()) {
+                    calls = new ArrayList<>();
+                }
+                calls.add(new MarginEvent(source, portfolio.accountName, ticker, price,
+                                          equity, requirement));
+            }
+        }
+        return calls;
+    }
+
+    /**Obtains the current market value of a tracked account's positions
+     * @param accountName the name of the account
+     * @return the value, in cents, or <code>null</code> if the account isn't tracked
+     */
+    public Long getValue(final String accountName) {
+        Portfolio portfolio = portfolios.get(accountName);
+        return portfolio == null ? null : portfolio.value.get();
+    }
+
+    /**Obtains the gross market value of a tracked account's positions- long and short
+     * positions alike counted at their absolute value
+     * @param accountName the name of the account
+     * @return the gross value, in cents, or <code>null</code> if the account isn't tracked
+     */
+    public Long getGrossExposure(final String accountName) {
+        Portfolio portfolio = portfolios.get(accountName);
+        return portfolio == null ? null : portfolio.gross.get();
+    }
+
+    /**Obtains the current market values of every tracked account
+     * @return the value of each tracked account, in cents, by account name
+     */
+    public Map<String, Long> getValues() {
+        Map<String, Long> values = new HashMap<>();
+        for (Map.Entry<String, Portfolio> entry : portfolios.entrySet()) {
+            values.put(entry.getKey(), entry.getValue().value.get());
+        }
+        return values;
+    }
+
+    /**Obtains the number of tracked accounts holding a stock
+     * @param ticker the stock's ticker
+     * @return the number of holders
+     */
+    public int getHolderCount(final String ticker) {
+        Stock stock = stocks.get(ticker);
+        if (stock == null) {
+            return 0;
+        }
+        synchronized (stock) {
+            return stock.holders.size();
+        }
+    }
+
+    /**Stops tracking an account, as when it is deleted
+     * @param accountName the name of the account
+     */
+    public void remove(final String accountName) {
+        Portfolio portfolio = portfolios.remove(accountName);
+        if (portfolio == null) {
+            return;
+        }
+        for (String ticker : portfolio.tickers) {
+            Stock stock = stock(ticker);
+            synchronized (stock) {
+                stock.holders.remove(accountName);
+            }
+        }
+    }
+
+    /**Stops tracking every account, keeping the recorded prices*/
+    public void clear() {
+        portfolios.clear();
+        for (Stock stock : stocks.values()) {
+            synchronized (stock) {
+                stock.holders.clear();
+            }
+        }
+    }
+
+    private Stock stock(final String ticker) {
+        return stocks.computeIfAbsent(ticker, t -> new Stock());
+    }
+
+    /**A stock's last price and the tracked accounts holding it; guarded by its monitor*/
+    private static final class Stock {
+        private int price;
+        private final Map<String, Holding> holders = new HashMap<>();
+    }
+
+    /**A tracked account's value, gross exposure, balance, and the tickers of the stocks
+     * it holds*/
+    private static final class Portfolio {
+        private final String accountName;
+        private final AtomicLong value = new AtomicLong();
+        private final AtomicLong gross = new AtomicLong();
+        private final Set<String> tickers = ConcurrentHashMap.newKeySet();
+        /*written under the portfolio's monitor*/
+        private volatile long cash;
+        /*whether the account is under a margin call*/
+        private final AtomicBoolean called = new AtomicBoolean();
+
+        private Portfolio(final String accountName) {
+            this.accountName = accountName;
+        }
+    }
+
+    /**The shares of a stock held by a tracked account; guarded by the stock's monitor*/
+    private static final class Holding {
+        private final Portfolio portfolio;
+        private long shares;
+
+        private Holding(final Portfolio portfolio, final long shares) {
+            this.portfolio = portfolio;
+            this.shares = shares;
+        }
+    }
+}
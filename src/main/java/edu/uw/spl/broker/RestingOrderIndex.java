@@ -0,0 +1,148 @@
+package edu.uw.spl.broker;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.BiPredicate;
+import java.util.function.Predicate;
+
+import edu.uw.ext.framework.order.Order;
+
+/**Index of a broker's resting orders- those placed but not yet executed- by order id,
+ * with the queue each currently rests in. An order leaves the index exactly once, either
+ * claimed for execution, cancelled, or replaced; the index entry's removal is the 
+ * arbiter, so a cancel racing with the dispatch of the same order either wins, and the
+ * order is never executed, or loses, and the order executes. Cancels and replaces of the
+ * same order are serialized on its index entry.
+ * <p>
+ * Cancelling looks the order up in constant time, then removes it from its queue with the
+ * order itself as the key, in logarithmic time. An order cancelled while moving between
+ * queues may still reach the next queue; it is dropped when dispatched from there, since
+ * it can no longer be claimed
+ * @author slajaunie
+ */
+public class RestingOrderIndex {
+
+    /**Each resting order's location, by order id*/
+    private final ConcurrentMap<Integer, Location> locations = new ConcurrentHashMap<>();
+
+    /**
+     *Instantiates a new, empty, index
+     */
+    public RestingOrderIndex() {}
+
+    /**Adds a placed order, before it is queued
+     * @param order the order
+     * @param queue removes the order from the queue it is placed in, or <code>null</code>
+     * if it is not queued where it can be removed
+     */
+    public void add(final Order order, final Predicate<Order> queue) {
+        locations.put(order.getOrderId(), new Location(order, queue));
+    }
+
+    /**Records that a resting order is moving to another queue, as when a triggered stop
+     * order moves to the market order queue
+     * @param order the order
+     * @param queue removes the order from the queue it is moving to
+     */
+    public void moved(final Order order, final Predicate<Order> queue) {
+        Location location = locations.get(order.getOrderId());
+        if (location != null) {
+            location.queue = queue;
+        }
+    }
+
+    /**Claims an order for execution, removing it from the index
+     * @param orderId the id of the order
+     * @return true if the order was resting, false if it was cancelled or is unknown
+     */
+    public boolean claim(final int orderId) {
+        return locations.remove(orderId) != null;
+    }
+
+    /**Cancels a resting order, removing it from the index and from its queue
+     * @param orderId the id of the order
+     * @return the cancelled order, or <code>null</code> if the order is not resting- it
+     * has been claimed for execution, was cancelled already, or is unknown
+     */
+    public Order cancel(final int orderId) {
+        Location location = locations.get(orderId);
+        if (location == null) {
+            return null;
+        }
+        synchronized (location) {
+            if (!locations.remove(orderId, location)) {
+                return null;
+            }
+            Predicate<Order> queue = location.queue;
+            if (queue != null) {
+                queue.test(location.order);
+            }
+            return location.order;
+        }
+    }
+
+    /**Replaces a resting order with another, in the same queue. The replacement is 
+     * indexed before the swap, so it can be claimed should it be dispatched at once
+     * @param orderId the id of the order to replace
+     * @param replacement the replacement order
+     * @param queue removes the replacement from its queue
+     * @param swap swaps the order for its replacement in their queue, atomically with
+     * respect to the queue's dispatching, without dispatching- it runs under the order's
+     * index entry monitor; returns false if the order has already left the queue
+     * @return true if the order was replaced, false if it is no longer resting in its 
+     * queue
+     */
+    public boolean replace(final int orderId, final Order replacement,
+                           final Predicate<Order> queue,
+                           final BiPredicate<Order, Order> swap) {
+        Location location = locations.get(orderId);
+        if (location == null) {
+            return false;
+        }
+        synchronized (location) {
+            if (locations.get(orderId) != location) {
+                return false;
+            }
+            locations.put(replacement.getOrderId(), new Location(replacement, queue));
+            if (!swap.test(location.order, replacement)) {
+                locations.remove(replacement.getOrderId());
+                return false;
+            }
+            /*having been swapped out of its queue, the order can't have been claimed*/
+            locations.remove(orderId, location);
+            return true;
+        }
+    }
+
+    /**Obtains a resting order
+     * @param orderId the id of the order
+     * @return the order, or <code>null</code> if it is not resting
+     */
+    public Order get(final int orderId) {
+        Location location = locations.get(orderId);
+        return location == null ? null : location.order;
+    }
+
+    /**Obtains the number of resting orders
+     * @return the number of orders
+     */
+    public int size() {
+        return locations.size();
+    }
+
+    /**Forgets every resting order*/
+    public void clear() {
+        locations.clear();
+    }
+
+    /**A resting order, and the removal of the order from the queue it rests in*/
+    private static final class Location {
+        private final Order order;
+        private volatile Predicate<Order> queue;
+
+        private Location(final Order order, final Predicate<Order> queue) {
+            this.order = order;
+            this.queue = queue;
+        }
+    }
+}
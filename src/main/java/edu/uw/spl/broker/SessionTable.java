@@ -0,0 +1,198 @@
+package edu.uw.spl.broker;
+
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**The sessions opened with a broker. A session is opened by a successful login and is
+ * identified by a random, unguessable token; requests presenting the token are then
+ * authorized by a single table lookup instead of hashing the password again. Sessions
+ * expire a fixed time after they are opened, and every session of an account can be
+ * revoked at once, as when the account is deleted.
+ * <p>
+ * Each account has a generation, advanced by every revocation, and each session records
+ * the generation it was opened in; a session is only valid while its account's generation
+ * is unchanged. A session opened from credentials checked before a revocation is refused,
+ * and no session survives its account being deleted and created again
+ * @author slajaunie
+ */
+public class SessionTable {
+
+    /**Number of random bytes in a token*/
+    private static final int TOKEN_BYTES = 16;
+
+    /**Number of sessions opened between sweeps for expired sessions*/
+    private static final int SWEEP_INTERVAL = 1024;
+
+    private final SecureRandom random = new SecureRandom();
+
+    /**Open sessions by token*/
+    private final ConcurrentMap<String, Session> sessions = new ConcurrentHashMap<>();
+
+    /**Tokens of the open sessions of each account*/
+    private final ConcurrentMap<String, Set<String>> tokensByAccount =
+                                                                new ConcurrentHashMap<>();
+
+    /**Generation of each account whose sessions have been opened or revoked*/
+    private final ConcurrentMap<String, Long> generations = new ConcurrentHashMap<>();
+
+    /**Sessions opened since the last sweep*/
+    private final AtomicInteger opened = new AtomicInteger();
+
+    /**How long a session lasts, in milliseconds*/
+    private volatile long timeoutMillis;
+
+    /**Instantiates a new, empty, session table
+     * @param timeoutMillis how long a session lasts, in milliseconds
+     */
+    public SessionTable(final long timeoutMillis) {
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    /**Obtains an account's current generation, to be read before its credentials are
+     * checked and passed to <code>open</code>
+     * @param accountName the name of the account
+     * @return the account's generation
+     */
+    public long generation(final String accountName) {
+        return generations.getOrDefault(accountName, 0L);
+    }
+
+    /**Opens a session for an account, unless its sessions have been revoked since the
+     * given generation was read. The check and the opening are atomic with revocation
+     * @param accountName the name of the account, whose credentials have been validated
+     * @param generation the account's generation, read before its credentials were 
+     * validated
+     * @return the session's token, or <code>null</code> if the account's sessions have
+     * been revoked since
+     */
+    public String open(final String accountName, final long generation) {
+        byte[] bytes = new byte[TOKEN_BYTES];
+        random.nextBytes(bytes);
+        String token = Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+        boolean[] opened = new boolean[1];
+        generations.compute(accountName, (name, current) -> {
+            long now = current == null ? 0L : current;
+            if (now == generation) {
+                tokensByAccount.computeIfAbsent(name, n -> ConcurrentHashMap.newKeySet())
+                               .add(token);
+                sessions.put(token, new Session(name, generation,
+                                        System.currentTimeMillis() + timeoutMillis));
+                opened[0] = true;
+            }
+            return now;
+        });
+        if (!opened[0]) {
+            return null;
+        }
+        if (this.opened.incrementAndGet() % SWEEP_INTERVAL == 0) {
+            sweep();
+        }
+        return token;
+    }
+
+    /**Looks up the account of an open session
+     * @param token the session's token
+     * @return the name of the session's account, or <code>null</code> if the token is
+     * unknown, expired or revoked
+     */
+    public String lookup(final String token) {
+        if (token == null) {
+            return null;
+        }
+        Session session = sessions.get(token);
+        if (session == null) {
+            return null;
+        }
+        if (session.expiresAt <= System.currentTimeMillis()
+                || session.generation != generation(session.accountName)) {
+            close(token);
+            return null;
+        }
+        return session.accountName;
+    }
+
+    /**Closes a session
+     * @param token the session's token
+     */
+    public void close(final String token) {
+        Session session = sessions.remove(token);
+        if (session != null) {
+            tokensByAccount.computeIfPresent(session.accountName, (name, tokens) -> {
+                tokens.remove(token);
+                return tokens.isEmpty() ? null : tokens;
+            });
+        }
+    }
+
+    /**Closes every session of an account, advancing its generation so a session being
+     * opened meanwhile is refused
+     * @param accountName the name of the account
+     */
+    public void revoke(final String accountName) {
+        generations.compute(accountName, (name, current) -> {
+            Set<String> tokens = tokensByAccount.remove(name);
+            if (tokens != null) {
+                for (String token : tokens) {
+                    sessions.remove(token);
+                }
+            }
+            return current == null ? 1L : current + 1;
+        });
+    }
+
+    /**Closes every session*/
+    public void clear() {
+        sessions.clear();
+        tokensByAccount.clear();
+    }
+
+    /**Obtains the number of sessions open, including any expired but not yet swept
+     * @return the number of sessions
+     */
+    public int size() {
+        return sessions.size();
+    }
+
+    /**Obtains how long a session lasts
+     * @return the session timeout, in milliseconds
+     */
+    public long getTimeoutMillis() {
+        return timeoutMillis;
+    }
+
+    /**Sets how long sessions opened from now on last
+     * @param timeoutMillis the session timeout, in milliseconds
+     */
+    public void setTimeoutMillis(final long timeoutMillis) {
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    /**Closes the expired sessions, so sessions never presented again don't accumulate*/
+    private void sweep() {
+        long now = System.currentTimeMillis();
+        for (Map.Entry<String, Session> entry : sessions.entrySet()) {
+            if (entry.getValue().expiresAt <= now) {
+                close(entry.getKey());
+            }
+        }
+    }
+
+    /**An open session's account, the account's generation when it opened, and expiry*/
+    private static final class Session {
+        private final String accountName;
+        private final long generation;
+        private final long expiresAt;
+
+        private Session(final String accountName, final long generation, 
+                        final long expiresAt) {
+            this.accountName = accountName;
+            this.generation = generation;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
@@ -1,11 +1,30 @@
 package edu.uw.spl.dao;
 
 import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import edu.uw.ext.framework.account.Account;
 import edu.uw.ext.framework.account.AccountException;
 
 /**Encapsulates several methods utilized by specific edu.uw.ext.framework.account.AccountDao 
@@ -16,12 +35,63 @@ import edu.uw.ext.framework.account.AccountException;
  * @author slajaunie
  *
  */
-public class AccountDAOs {
+public abstract class AccountDAOs {
     /*The parent directory where accounts will be stored*/
     private File parentDirectory= new File("target", "accounts");
     private static final Logger log = LoggerFactory.getLogger(AccountDAOs.class);
     
-    /**Removes the given account from the data source
+    /*Writers shared by every DAO persisting to the same parent directory*/
+    private static final Map<File, GroupCommitWriter> WRITERS = new HashMap<>();
+    
+    /*Number of open DAOs holding each shared writer; guarded by WRITERS*/
+    private static final Map<File, Integer> WRITER_REFERENCES = new HashMap<>();
+    
+    /*Shared lock on the migration lock file of each parent directory, held with its
+     *writer, so the directory can't be migrated while in use; guarded by WRITERS*/
+    private static final Map<File, FileLock> MIGRATION_LOCKS = new HashMap<>();
+    
+    /*The shared writer this DAO holds, released when the DAO is closed*/
+    private volatile WriterReference writerReference;
+    
+    /*Account name indexes shared by every DAO persisting to the same parent directory*/
+    private static final ConcurrentMap<File, AccountNameIndex> NAME_INDEXES = 
+            new ConcurrentHashMap<>();
+    
+    /*Digest of the non-balance fields of each account as last read or written, kept per
+     *parent directory and shared by every DAO persisting to it*/
+    private static final ConcurrentMap<File, ConcurrentMap<String, AccountDigest>> DIGESTS = 
+            new ConcurrentHashMap<>();
+    
+    /**Name of the file holding an account's ledger- its balance and share positions, as
+     * encoded by <code>LedgerCodec</code>. It is written with every account and on its 
+     * own when only the ledger has changed, and overrides the balance stored in the 
+     * account's other files*/
+    protected static final String BALANCE_FILE = "balance.bin";
+    
+    /*The durability policy requested for writes made by this DAO*/
+    private GroupCommitWriter.Durability durability = GroupCommitWriter.Durability.GROUP;
+    
+    /*Whether reset() renames the directory away instead of deleting it in place*/
+    private boolean instantReset = false;
+    
+    /*Suffix of the directories renamed away by an instant reset*/
+    private static final String TRASH_SUFFIX = ".trash-";
+    
+    /*Trash directories currently being deleted*/
+    private static final Set<File> COLLECTING = ConcurrentHashMap.newKeySet();
+    
+    /*Background thread deleting the directories renamed away by an instant reset*/
+    private static final ExecutorService TRASH_COLLECTOR = Executors.newSingleThreadExecutor(
+        runnable -> {
+            Thread thread = new Thread(runnable, "AccountTrashCollector");
+            thread.setDaemon(true);
+            return thread;
+        });
+    
+    /**Removes the given account from the data source, including any copy of the account
+     * still in its pre-sharding directory. The delete runs on the shared writer, after 
+     * every write already queued for the account and a checkpoint, so neither a queued
+     * write nor a journal replay can restore the account once it's deleted
      * @param accountName a String representing the name of the Account to be
      * deleted
      * @see edu.uw.ext.framework.dao.AccountDao#deleteAccount(java.lang.String)
@@ -29,72 +99,194 @@ public class AccountDAOs {
      * or if the operation otherwise fails
      */
     public void deleteAccount(final String accountName) throws AccountException {
-        /*Find the account by the given accountName...*/
-        File targetDirectory = new File(parentDirectory.toString(),accountName);
-        
-        /*...and build a list of all files contained in the directory (may be 0)*/
-        File[] listFiles = targetDirectory.listFiles();
+        /*Find the account by the given accountName, in its shard or legacy location*/
+        File shardedDirectory = 
+                AccountDirectoryLayout.shardedDirectory(parentDirectory, accountName);
+        File legacyDirectory = 
+                AccountDirectoryLayout.legacyDirectory(parentDirectory, accountName);
+        /*taken here, since the writer thread must not wait on the shared writers*/
+        AccountNameIndex nameIndex = getNameIndex();
+        ConcurrentMap<String, AccountDigest> digests = getDigests();
         
-        /*Holds return value from File.delete() to confirm if delete was successful*/
-        boolean deleted = false;
-        
-        /*Does directory exist? Is directory empty?*/
-        if (!targetDirectory.exists()) {
-            log.info("No directory exists for name {}",accountName);
-            throw new AccountException("Account does not exist");
-        } else {
-            /*If non-empty directory...*/
-            if (listFiles.length>0) {
-                Arrays.asList(listFiles).stream().forEach(File::delete);
-                deleted = targetDirectory.delete();
-                log.info("Non-empty directory for Account {} deleted",accountName);
-            } else {
-                deleted = targetDirectory.delete();
-                log.info("Empty directory for Account {} deleted",accountName);
-            }
-            /*If the directory exists but still unable to delete...*/
-            if (!deleted) {
-                throw new AccountException("Unable to delete directory");
+        try {
+            getWriter().delete(() -> {
+                /*Does directory exist?*/
+                if (!shardedDirectory.exists() && !legacyDirectory.isDirectory()) {
+                    log.info("No directory exists for name {}",accountName);
+                    throw new NoSuchFileException(shardedDirectory.toString());
+                }
+                /*Holds return value from deleteDirectory() to confirm if delete was 
+                 *successful*/
+                boolean deleted = deleteDirectory(shardedDirectory) 
+                                    && deleteDirectory(legacyDirectory);
+                
+                /*If the directory exists but still unable to delete...*/
+                if (!deleted) {
+                    throw new IOException("Unable to delete directory");
+                }
+                log.info("Directory for Account {} deleted",accountName);
+                digests.remove(accountName);
+                nameIndex.remove(accountName);
+            }).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new AccountException("Interrupted deleting " + accountName, e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof NoSuchFileException) {
+                throw new AccountException("Account does not exist");
             }
+            throw new AccountException("Unable to delete account " + accountName, 
+                                                                            e.getCause());
         }
     }
 
 
-    /**Removes all accounts in the target/accounts directory.
+    /**Removes all accounts in the target/accounts directory, along with their shards.
+     * By default the tree is deleted in parallel before returning; in instant-reset mode
+     * the directory is instead renamed away and garbage collected in the background. The
+     * reset runs on the shared writer, after every write already queued and a 
+     * checkpoint, so neither a queued write nor a journal replay can restore an account
+     * once it's deleted
      * @see edu.uw.ext.framework.dao.AccountDao#reset()
-     * @throws AccountException if the operation fails
+     * @throws AccountException if the operation fails, or any account could not be deleted
      */
     public void reset() throws AccountException {
-        /*loop through parent directory and call this.deleteAccount() for each File/directory
-        *to ensure getting all non-empty directories
-        */
-        
-        /*If "Accounts" directory doesn't yet exist, create it...*/
-        if (!parentDirectory.exists()) {
-            parentDirectory.mkdir();
+        /*taken here, since the writer thread must not wait on the shared writers*/
+        AccountNameIndex nameIndex = getNameIndex();
+        ConcurrentMap<String, AccountDigest> digests = getDigests();
+        try {
+            getWriter().delete(() -> {
+                /*If "Accounts" directory doesn't yet exist, create it...*/
+                if (!parentDirectory.exists()) {
+                    parentDirectory.mkdirs();
+                }
+                
+                /*If directory is non-empty...*/
+                if (parentDirectory.list().length==0) {
+                    log.info("Directory has already been reset");
+                } else if (instantReset) {
+                    /*...swap in a fresh directory and delete the old one later...*/
+                    renameAway();
+                } else {
+                    /*...otherwise delete each shard and its contents*/
+                    ParallelTreeDeleter.deleteContents(parentDirectory);
+                } 
+                
+                /*If  directories still exist after the operation, the operation failed...*/
+                if (parentDirectory.listFiles().length>0) {
+                    log.info("Unable to clear entire directory");
+                    throw new IOException("Unable to clear entire directory");
+                }
+                digests.clear();
+                nameIndex.clear();
+                log.info("Accounts directory successfully reset");
+            }).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new AccountException("Interrupted resetting " + parentDirectory, e);
+        } catch (ExecutionException e) {
+            throw new AccountException("Unable to reset " + parentDirectory, e.getCause());
         }
-        
-        /*compile a list of all directories...*/
-        File[] listFiles = parentDirectory.listFiles();
-        /*If directory is non-empty...*/
-        if (listFiles.length==0) {
-            log.info("Directory has already been reset");
-        } else {
-            /*...delete each sub-directory and their contents*/
-            for (File directory: listFiles) {
-                this.deleteAccount(directory.getName());
+    }
+
+    /**Atomically renames the parent directory to a trash directory beside it, replaces it
+     * with an empty directory, and schedules every trash directory for deletion
+     * @throws IOException if the directory cannot be renamed or recreated
+     */
+    private void renameAway() throws IOException {
+        File directory = parentDirectory.getAbsoluteFile();
+        File trash = new File(directory.getParentFile(), 
+                                directory.getName() + TRASH_SUFFIX + System.nanoTime());
+        Files.move(directory.toPath(), trash.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        if (!directory.mkdir() && !directory.isDirectory()) {
+            throw new IOException("Unable to recreate " + directory);
+        }
+        log.info("Accounts directory renamed to {}", trash);
+        collectTrash();
+    }
+
+    /**Schedules the background deletion of every trash directory left beside the parent
+     * directory, including any left behind by an earlier run
+     */
+    private void collectTrash() {
+        File directory = parentDirectory.getAbsoluteFile();
+        String prefix = directory.getName() + TRASH_SUFFIX;
+        File[] trash = directory.getParentFile().listFiles(
+                file -> file.isDirectory() && file.getName().startsWith(prefix));
+        if (trash != null) {
+            for (File dir : trash) {
+                if (COLLECTING.add(dir)) {
+                    CompletableFuture.runAsync(() -> {
+                        try {
+                            ParallelTreeDeleter.deleteTree(dir);
+                        } catch (IOException e) {
+                            log.warn("Unable to collect {}", dir, e);
+                        } finally {
+                            COLLECTING.remove(dir);
+                        }
+                    }, TRASH_COLLECTOR);
+                }
             }
-        } 
-        
-        /*If  directories still exist after the operation, the operation failed...*/
-        if (parentDirectory.listFiles().length>0) {
-            log.info("Unable to clear entire directory");
-            throw new AccountException("Unable to clear entire directory");
-        } else {
-            log.info("Accounts directory successfully reset");
         }
     }
 
+    /**Checks whether reset() renames the directory away rather than deleting it in place
+     * @return true if instant reset is enabled
+     */
+    public boolean isInstantReset() {
+        return this.instantReset;
+    }
+
+    /**Sets whether reset() renames the directory away and deletes it in the background,
+     * rather than deleting it in place before returning
+     * @param instantReset true to enable instant reset
+     */
+    public void setInstantReset(final boolean instantReset) {
+        this.instantReset = instantReset;
+    }
+
+    /**Copies this DAO's configuration- parent directory, durability policy and reset
+     * mode- to a newly created DAO. Used by the DaoFactory implementations
+     * @param dao the DAO to configure
+     * @return the configured DAO
+     */
+    protected <T extends AccountDAOs> T configure(final T dao) {
+        dao.setParentDirectory(this.getParentDirectory());
+        dao.setDurability(this.getDurability());
+        dao.setInstantReset(this.isInstantReset());
+        return dao;
+    }
+
+    /**Obtains the directory an account is read from- its shard, or its pre-sharding 
+     * directory if it has not been migrated yet
+     * @param accountName the name of the account
+     * @return the directory holding the account's files
+     */
+    protected File getAccountDirectory(final String accountName) {
+        return AccountDirectoryLayout.resolve(parentDirectory, accountName);
+    }
+
+    /**Obtains the directory an account is written to, which is always its shard
+     * @param accountName the name of the account
+     * @return the account's sharded directory
+     */
+    protected File getShardedDirectory(final String accountName) {
+        return AccountDirectoryLayout.shardedDirectory(parentDirectory, accountName);
+    }
+
+    /**Recursively deletes a file or directory. A file which does not exist is considered
+     * deleted
+     * @param file the file or directory to delete
+     * @return true if the file no longer exists
+     */
+    protected static boolean deleteDirectory(final File file) {
+        File[] listFiles = file.listFiles();
+        if (listFiles != null) {
+            Arrays.stream(listFiles).forEach(AccountDAOs::deleteDirectory);
+        }
+        return file.delete() || !file.exists();
+    }
+
     /**Returns the parent directory used by the specific AccountDao implementation.
      * Property is a relative directory of "target/accounts" by default
      * @return a <code>File</code> encapsulating the parent directory used by the 
@@ -115,5 +307,363 @@ public class AccountDAOs {
         this.parentDirectory = parentDirectory;
     }
 
+    /**Obtains the durability policy requested for account writes made by this DAO.
+     * Defaults to <code>GROUP</code>
+     * @return the durability policy requested for account writes
+     */
+    public GroupCommitWriter.Durability getDurability() {
+        return this.durability;
+    }
+
+    /**Sets the durability policy requested for account writes made by this DAO. The writer
+     * for a parent directory is shared between DAOs and created on first use, so the
+     * policy must be set before the first account is read or written
+     * @param durability the durability policy for account writes
+     */
+    public void setDurability(final GroupCommitWriter.Durability durability) {
+        this.durability = durability;
+    }
+
+    /**Obtains the group commit writer shared by all DAOs persisting to this DAO's parent
+     * directory, creating it if necessary. The writer's journal is kept alongside, not
+     * inside, the parent directory. The DAO holds the writer until it is closed, or its
+     * parent directory changes. Creating the writer takes a shared lock on the 
+     * directory's migration lock file, held until the writer is closed, before the 
+     * journal is recovered into the directory
+     * @return the shared writer for the parent directory
+     * @throws AccountException if the writer cannot be created, or the parent directory
+     * is being migrated by an <code>AccountShardMigrator</code>
+     */
+    protected GroupCommitWriter getWriter() throws AccountException {
+        File directory = parentDirectory.getAbsoluteFile();
+        WriterReference reference = writerReference;
+        if (reference != null && reference.directory.equals(directory)) {
+            return reference.writer;
+        }
+        synchronized (WRITERS) {
+            reference = writerReference;
+            if (reference != null && reference.directory.equals(directory)) {
+                return reference.writer;
+            }
+            writerReference = null;
+            if (reference != null) {
+                release(reference);
+            }
+            GroupCommitWriter writer = WRITERS.get(directory);
+            if (writer == null) {
+                FileLock migrationLock;
+                try {
+                    migrationLock = AccountShardMigrator.lockShared(directory);
+                } catch (IOException e) {
+                    throw new AccountException("Unable to use " + directory, e);
+                }
+                File journalFile = new File(directory.getParentFile(), 
+                                            directory.getName() + ".journal");
+                try {
+                    writer = new GroupCommitWriter(journalFile, directory, durability);
+                } catch (IOException e) {
+                    unlock(migrationLock);
+                    throw new AccountException("Unable to open writer for " + directory, e);
+                }
+                WRITERS.put(directory, writer);
+                MIGRATION_LOCKS.put(directory, migrationLock);
+            } else if (writer.getDurability() != durability) {
+                log.warn("Writer for {} already uses durability {}, ignoring {}",
+                                            directory, writer.getDurability(), durability);
+            }
+            WRITER_REFERENCES.merge(directory, 1, Integer::sum);
+            writerReference = new WriterReference(directory, writer);
+            return writer;
+        }
+    }
+
+    /**Releases this DAO's hold on its shared writer; the last DAO to release a writer
+     * closes it, applying its queued writes and truncating its journal. Called when the
+     * DAO is closed
+     * @throws AccountException if the writer fails to close cleanly
+     */
+    protected void closeWriter() throws AccountException {
+        synchronized (WRITERS) {
+            WriterReference reference = writerReference;
+            writerReference = null;
+            if (reference != null) {
+                release(reference);
+            }
+        }
+    }
+
+    /**Drops one hold on a shared writer, closing it once no DAO holds it. Must be called
+     * while synchronized on WRITERS
+     * @param reference the hold to drop
+     * @throws AccountException if the writer fails to close cleanly
+     */
+    private static void release(final WriterReference reference) throws AccountException {
+        int holders = WRITER_REFERENCES.merge(reference.directory, -1, Integer::sum);
+        if (holders > 0) {
+            return;
+        }
+        WRITER_REFERENCES.remove(reference.directory);
+        WRITERS.remove(reference.directory);
+        try {
+            reference.writer.close();
+        } catch (IOException e) {
+            throw new AccountException("Unable to close writer for " + reference.directory,
+                                                                                        e);
+        } finally {
+            unlock(MIGRATION_LOCKS.remove(reference.directory));
+        }
+    }
+
+    /**Releases a shared lock on a migration lock file, closing its channel
+     * @param lock the lock, or <code>null</code>
+     */
+    private static void unlock(final FileLock lock) {
+        if (lock == null) {
+            return;
+        }
+        try {
+            lock.channel().close();
+        } catch (IOException e) {
+            log.warn("Unable to release migration lock {}", lock, e);
+        }
+    }
+
+    /**Lookup and return an Account from the given account name. If no such account is
+     * located, returns null
+     * @param accountName the name of the Account to lookup
+     * @return the given Account, or <code>null</code> if the account was not located
+     */
+    public abstract Account getAccount(final String accountName);
+
+    /**Queues new Accounts, or updates to an existing account, with the shared writer. If
+     * nothing but the balance and positions have changed since the account was last read
+     * or written, only the ledger file is written; otherwise the account's files are 
+     * written in full, along with the ledger file
+     * @param account the account to be persisted
+     * @return a future which completes once the account is committed
+     * @throws AccountException if the account could not be serialized
+     */
+    public CompletableFuture<Void> setAccountAsync(final Account account) 
+                                                            throws AccountException {
+        String accountName = account.getName();
+        ConcurrentMap<String, AccountDigest> digests = getDigests();
+        AccountDigest digest = AccountDigest.of(account);
+        AccountDigest persisted = digests.get(accountName);
+        if (digest.equals(persisted) 
+                && getNameIndex().contains(accountName)) {
+            return setLedgerAsync(account);
+        }
+        
+        File accountDirectory = getShardedDirectory(accountName);
+        
+        /*Index the name before the write, so the index never misses a persisted account*/
+        try {
+            getNameIndex().add(accountName);
+        } catch (IOException e) {
+            throw new AccountException("Unable to update account name index", e);
+        }
+        
+        Map<Path, byte[]> files = encodeAccount(account, accountDirectory);
+        files.put(new File(accountDirectory, BALANCE_FILE).toPath(), 
+                    LedgerCodec.encode(account));
+        File marker = AccountDirectoryLayout.shardMarker(parentDirectory, accountName);
+        if (!marker.isFile()) {
+            /*journaled with the account, so the shard is never left unmarked*/
+            files.put(marker.toPath(), new byte[0]);
+        }
+        digests.put(accountName, digest);
+        log.info("Files for Account {} queued",accountName);
+        return forgetOnFailure(getWriter().write(files), accountName);
+    }
+
+    /**Persists only the ledger- the balance and positions- of an existing account
+     * @param account the account
+     * @throws AccountException if the account does not exist, or the write failed
+     */
+    public void setLedger(final Account account) throws AccountException {
+        awaitWrite(setLedgerAsync(account), account.getName());
+    }
+
+    /**Queues a write of only the ledger of an existing account- its balance and
+     * positions, in one small file, instead of a full image of the account
+     * @param account the account
+     * @return a future which completes once the ledger is committed
+     * @throws AccountException if the account does not exist
+     */
+    public CompletableFuture<Void> setLedgerAsync(final Account account) 
+                                                            throws AccountException {
+        String accountName = account.getName();
+        if (!getNameIndex().contains(accountName)) {
+            throw new AccountException("Account does not exist");
+        }
+        File ledgerFile = new File(getAccountDirectory(accountName), BALANCE_FILE);
+        log.info("Ledger for Account {} queued",accountName);
+        return forgetOnFailure(getWriter().write(ledgerFile.toPath(), 
+                                                 LedgerCodec.encode(account)),
+                               accountName);
+    }
+
+    /**Encodes every file of an account except its ledger file
+     * @param account the account to encode
+     * @param accountDirectory the directory the files are written to
+     * @return the contents of each file, keyed by path
+     * @throws AccountException if the account could not be encoded
+     */
+    protected abstract Map<Path, byte[]> encodeAccount(final Account account, 
+                                                       final File accountDirectory)
+                                                            throws AccountException;
+
+    /**Completes the read of an account- applies the balance and positions from the 
+     * ledger file, if present, and remembers the account's digest so a later write of 
+     * only a new ledger can be detected
+     * @param accountDirectory the directory the account was read from
+     * @param account the account read
+     * @return the account
+     * @throws IOException if the ledger file cannot be read
+     */
+    protected Account completeRead(final File accountDirectory, final Account account) 
+                                                                    throws IOException {
+        File ledgerFile = new File(accountDirectory, BALANCE_FILE);
+        if (ledgerFile.isFile()) {
+            LedgerCodec.apply(Files.readAllBytes(ledgerFile.toPath()), account);
+        }
+        getDigests().put(account.getName(), AccountDigest.of(account));
+        return account;
+    }
+
+    /**Drops an account's remembered digest if its write fails, so the next write of the
+     * account is written in full
+     * @param write the queued write
+     * @param accountName the name of the account written
+     * @return the queued write
+     */
+    private CompletableFuture<Void> forgetOnFailure(final CompletableFuture<Void> write,
+                                                    final String accountName) {
+        ConcurrentMap<String, AccountDigest> digests = getDigests();
+        write.whenComplete((r, e) -> {
+            if (e != null) {
+                digests.remove(accountName);
+            }
+        });
+        return write;
+    }
+
+    /**Obtains the account digests shared by all DAOs persisting to this DAO's parent
+     * directory
+     * @return the shared account digests
+     */
+    private ConcurrentMap<String, AccountDigest> getDigests() {
+        return DIGESTS.computeIfAbsent(parentDirectory.getAbsoluteFile(), 
+                                        dir -> new ConcurrentHashMap<>());
+    }
+
+    /**Obtains a snapshot of the names of the persisted accounts, taken from the account
+     * name index. The snapshot may include a name whose write never completed, for which
+     * getAccount returns null
+     * @return the names of the persisted accounts
+     * @throws IllegalStateException if the parent directory is being migrated
+     */
+    public Set<String> getAccountNames() {
+        return getNameIndex().snapshot();
+    }
+
+    /**Streams the names of the persisted accounts, from a walk of the account 
+     * directories rather than a copy of the name index. The stream's spliterator splits
+     * by shard, so a parallel stream hands whole shards to each worker, and lists one
+     * shard at a time, so the walk holds no more than one shard's names in memory
+     * @return a sequential stream of the persisted account names; call 
+     * <code>parallel()</code> to traverse shards in parallel
+     * @throws IllegalStateException if the parent directory is being migrated
+     */
+    public Stream<String> streamAccountNames() {
+        File directory = parentDirectory.getAbsoluteFile();
+        return StreamSupport.stream(
+                        new AccountShardSpliterator(directory, getNameIndex().size()), false)
+                    .filter(this::isAccountDirectory)
+                    .map(File::getName);
+    }
+
+    /**Streams the persisted accounts, reading each as the stream reaches it. Accounts
+     * which can't be read are skipped. Reads are not ordered with writes queued through
+     * an <code>AsyncAccountDao</code>; stream the names and read through the facade where
+     * that matters
+     * @return a sequential stream of the persisted accounts; call <code>parallel()</code>
+     * to read shards in parallel
+     * @see #streamAccountNames()
+     */
+    public Stream<Account> streamAccounts() {
+        return streamAccountNames().map(this::getAccount).filter(Objects::nonNull);
+    }
+
+    /**Checks whether an account by the given name is persisted. Names not in the account
+     * name index are rejected without any I/O; names in the index are confirmed against
+     * the account's directory
+     * @param accountName the name of the account to check
+     * @return true if an account by that name is persisted, otherwise false
+     * @throws IllegalStateException if the parent directory is being migrated
+     */
+    public boolean accountExists(final String accountName) {
+        return getNameIndex().contains(accountName)
+                && isAccountDirectory(getAccountDirectory(accountName));
+    }
+
+    /**Tests whether the given directory holds a persisted account. Used to confirm index
+     * hits and to rebuild the account name index; implementations should override this to
+     * check for their own account files
+     * @param accountDirectory the directory to test
+     * @return true if the directory holds a persisted account
+     */
+    protected boolean isAccountDirectory(final File accountDirectory) {
+        return accountDirectory.isDirectory();
+    }
+
+    /**Obtains the account name index shared by all DAOs persisting to this DAO's parent
+     * directory, creating it if necessary. The index is loaded on first use. Every 
+     * account read or write consults the index, so obtaining it also takes this DAO's
+     * hold on the shared writer, and with it on the directory
+     * @return the shared account name index for the parent directory
+     * @throws IllegalStateException if the parent directory is being migrated, or its 
+     * writer cannot be created
+     */
+    protected AccountNameIndex getNameIndex() {
+        try {
+            getWriter();
+        } catch (AccountException e) {
+            throw new IllegalStateException(e.getMessage(), e);
+        }
+        return NAME_INDEXES.computeIfAbsent(parentDirectory.getAbsoluteFile(), 
+                dir -> new AccountNameIndex(dir, 
+                        () -> AccountDirectoryLayout.listAccountDirectories(dir),
+                        this::isAccountDirectory));
+    }
+
+    /**Blocks until a write queued with the shared writer completes
+     * @param write the future returned by the writer
+     * @param accountName the name of the account being written, used for reporting
+     * @throws AccountException if the write failed or the wait was interrupted
+     */
+    protected void awaitWrite(final CompletableFuture<Void> write, final String accountName) 
+                                                                    throws AccountException {
+        try {
+            write.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new AccountException("Interrupted persisting " + accountName, e);
+        } catch (ExecutionException e) {
+            throw new AccountException("Unable to persist " + accountName, e.getCause());
+        }
+    }
+
     
+
+    /**A DAO's hold on the writer shared by its parent directory*/
+    private static final class WriterReference {
+        private final File directory;
+        private final GroupCommitWriter writer;
+
+        private WriterReference(final File directory, final GroupCommitWriter writer) {
+            this.directory = directory;
+            this.writer = writer;
+        }
+    }
 }
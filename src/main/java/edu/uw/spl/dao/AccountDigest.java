@@ -0,0 +1,106 @@
+package edu.uw.spl.dao;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import edu.uw.ext.framework.account.Account;
+import edu.uw.ext.framework.account.Address;
+import edu.uw.ext.framework.account.CreditCard;
+import edu.uw.spl.account.AccountImpl;
+
+/**Snapshot of every field of an account except its balance. The DAOs remember the
+ * snapshot of each account as last read or written; an account written again with an
+ * equal snapshot has changed at most its balance, so only the balance needs to be 
+ * persisted. Snapshots are compared field by field, never by a hash alone, so a changed
+ * field is always written. An address or credit card whose loading was deferred is 
+ * recorded as unchanged, without loading it
+ * @author slajaunie
+ */
+public final class AccountDigest {
+
+    /**Recorded in place of an address or credit card, ahead of its fields if it has any*/
+    private enum Part { UNLOADED, ABSENT, PRESENT }
+
+    /**Copy of the account's password hash*/
+    private final byte[] passwordHash;
+
+    /**The values of the other fields, in a fixed order*/
+    private final List<Object> fields;
+
+    /**Hash of the snapshot, computed once*/
+    private final int hash;
+
+    private AccountDigest(final byte[] passwordHash, final List<Object> fields) {
+        this.passwordHash = passwordHash;
+        this.fields = fields;
+        this.hash = 31 * Arrays.hashCode(passwordHash) + fields.hashCode();
+    }
+
+    /**Takes a snapshot of every field of the account except the balance
+     * @param account the account
+     * @return the snapshot
+     */
+    public static AccountDigest of(final Account account) {
+        byte[] passwordHash = account.getPasswordHash();
+        List<Object> fields = new ArrayList<>(14);
+        fields.add(account.getEmail());
+        fields.add(account.getFullName());
+        fields.add(account.getPhone());
+        /*a deferred address or card is as last read, and is recorded without loading it*/
+        AccountImpl impl = account instanceof AccountImpl ? (AccountImpl) account : null;
+        if (impl != null && impl.hasUnloadedAddress()) {
+            fields.add(Part.UNLOADED);
+        } else {
+            Address address = account.getAddress();
+            if (address == null) {
+                fields.add(Part.ABSENT);
+            } else {
+                fields.add(Part.PRESENT);
+                fields.add(address.getStreetAddress());
+                fields.add(address.getCity());
+                fields.add(address.getState());
+                fields.add(address.getZipCode());
+            }
+        }
+        if (impl != null && impl.hasUnloadedCreditCard()) {
+            fields.add(Part.UNLOADED);
+        } else {
+            CreditCard card = account.getCreditCard();
+            if (card == null) {
+                fields.add(Part.ABSENT);
+            } else {
+                fields.add(Part.PRESENT);
+                fields.add(card.getAccountNumber());
+                fields.add(card.getExpirationDate());
+                fields.add(card.getHolder());
+                fields.add(card.getIssuer());
+                fields.add(card.getType());
+            }
+        }
+        return new AccountDigest(passwordHash == null ? null : passwordHash.clone(), fields);
+    }
+
+    /**Compares every recorded field of two snapshots
+     * @param obj the other snapshot
+     * @return true if every field is equal
+     */
+    @Override
+    public boolean equals(final Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof AccountDigest)) {
+            return false;
+        }
+        AccountDigest other = (AccountDigest) obj;
+        return hash == other.hash
+                && Arrays.equals(passwordHash, other.passwordHash)
+                && fields.equals(other.fields);
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+}
@@ -0,0 +1,154 @@
+package edu.uw.spl.dao;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.stream.Stream;
+
+/**Defines where account directories are placed under a parent directory. Accounts are
+ * sharded over two levels of subdirectories picked by a hash of the account name, e.g.
+ * <code>target/accounts/3f/a2/accountName</code>, which keeps every directory small no
+ * matter how many accounts are persisted.
+ * <p>
+ * Accounts persisted before sharding was introduced sit directly under the parent
+ * directory. These legacy directories are still located on reads until moved into their
+ * shards by the <code>AccountShardMigrator</code>. A first-level shard is marked
+ * explicitly by a marker file, written along with the first account placed in it, so a
+ * legacy account directory is never taken for a shard whatever its name
+ * @author slajaunie
+ */
+public final class AccountDirectoryLayout {
+
+    /**Length of a shard directory name*/
+    static final int SHARD_NAME_LENGTH = 2;
+
+    /**Name of the marker file identifying a first-level shard*/
+    static final String SHARD_MARKER = ".shard";
+
+    /**Not instantiable*/
+    private AccountDirectoryLayout() {}
+
+    /**Obtains the sharded directory for the given account, whether or not it exists
+     * @param parentDirectory the parent directory of all accounts
+     * @param accountName the name of the account
+     * @return the account's sharded directory
+     */
+    public static File shardedDirectory(final File parentDirectory, final String accountName) {
+        int hash = mix(accountName.hashCode());
+        File first = new File(parentDirectory, String.format("%02x", (hash >>> 8) & 0xff));
+        File second = new File(first, String.format("%02x", hash & 0xff));
+        return new File(second, accountName);
+    }
+
+    /**Obtains the pre-sharding directory for the given account, whether or not it exists
+     * @param parentDirectory the parent directory of all accounts
+     * @param accountName the name of the account
+     * @return the account's legacy directory
+     */
+    public static File legacyDirectory(final File parentDirectory, final String accountName) {
+        return new File(parentDirectory, accountName);
+    }
+
+    /**Locates the directory holding the given account. The sharded directory is preferred,
+     * then the legacy directory; if neither exists the sharded directory is returned
+     * @param parentDirectory the parent directory of all accounts
+     * @param accountName the name of the account
+     * @return the directory the account should be read from
+     */
+    public static File resolve(final File parentDirectory, final String accountName) {
+        File sharded = shardedDirectory(parentDirectory, accountName);
+        if (!sharded.exists()) {
+            File legacy = legacyDirectory(parentDirectory, accountName);
+            if (legacy.isDirectory()) {
+                return legacy;
+            }
+        }
+        return sharded;
+    }
+
+    /**Obtains the marker file of the first-level shard holding the given account
+     * @param parentDirectory the parent directory of all accounts
+     * @param accountName the name of the account
+     * @return the shard's marker file, whether or not it exists
+     */
+    public static File shardMarker(final File parentDirectory, final String accountName) {
+        File shard = shardedDirectory(parentDirectory, accountName)
+                                                        .getParentFile().getParentFile();
+        return new File(shard, SHARD_MARKER);
+    }
+
+    /**Checks whether a directory directly under the parent directory is a shard, rather
+     * than a legacy account directory, by its marker file
+     * @param directory the directory to check
+     * @return true if the directory is a shard
+     */
+    public static boolean isShard(final File directory) {
+        return new File(directory, SHARD_MARKER).isFile();
+    }
+
+    /**Checks whether a directory directly under the parent directory looks like a shard
+     * written before shards were marked: a two character hexadecimal name, holding only
+     * directories
+     * @param directory the directory to check
+     * @return true if the directory is an unmarked shard
+     */
+    static boolean isUnmarkedShard(final File directory) {
+        String name = directory.getName();
+        if (name.length() != SHARD_NAME_LENGTH || !name.matches("[0-9a-f]{2}") 
+                || isShard(directory)) {
+            return false;
+        }
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return false;
+        }
+        for (File file : files) {
+            if (!file.isDirectory()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**Lists every account directory under the parent directory, sharded or legacy. The
+     * first level of shards is listed in parallel
+     * @param parentDirectory the parent directory of all accounts
+     * @return a parallel stream of the account directories
+     */
+    public static Stream<File> listAccountDirectories(final File parentDirectory) {
+        return Arrays.stream(listDirectories(parentDirectory))
+                     .parallel()
+                     .flatMap(dir -> isShard(dir) ? listShard(dir) : Stream.of(dir));
+    }
+
+    /**Lists the account directories held by a first-level shard
+     * @param shard the first-level shard directory
+     * @return the account directories under the shard
+     */
+    static Stream<File> listShard(final File shard) {
+        return Arrays.stream(listDirectories(shard))
+                     .flatMap(second -> Arrays.stream(listDirectories(second)));
+    }
+
+    /**Lists the subdirectories of a directory
+     * @param directory the directory to list
+     * @return the subdirectories, empty if the directory does not exist
+     */
+    static File[] listDirectories(final File directory) {
+        File[] listFiles = directory.listFiles(File::isDirectory);
+        return listFiles == null ? new File[0] : listFiles;
+    }
+
+    /**Spreads the bits of a hash code so that similar names land in different shards
+     * @param hash the hash code to mix
+     * @return the mixed hash
+     */
+    private static int mix(final int hash) {
+        int h = hash;
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+}
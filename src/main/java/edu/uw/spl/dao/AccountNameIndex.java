@@ -0,0 +1,245 @@
+package edu.uw.spl.dao;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**In-memory index of the account names persisted under a parent directory, used to
+ * answer existence checks without touching the disk. The index is backed by a sidecar
+ * file kept alongside the parent directory, holding one "+name" or "-name" line per
+ * change. The index is loaded lazily on first use by replaying the sidecar, or, when the
+ * sidecar is missing, rebuilt by scanning the account directories in parallel.
+ * <p>
+ * Names are added before an account is written and removed after it is deleted, so the
+ * index may hold a name whose write never completed but never misses a persisted account.
+ * A negative answer from <code>contains</code> is therefore authoritative. To keep it so
+ * across a crash, every sidecar record is forced to disk before the account write it
+ * precedes is queued, as the writer's journal is forced before the write is applied
+ * @author slajaunie
+ */
+public class AccountNameIndex {
+
+    private static final Logger log = LoggerFactory.getLogger(AccountNameIndex.class);
+
+    /**The directory holding the indexed accounts*/
+    private final File parentDirectory;
+
+    /**The sidecar file persisting the index*/
+    private final File sidecar;
+
+    /**Lists the candidate account directories when rebuilding*/
+    private final Supplier<Stream<File>> accountDirectories;
+
+    /**Tests whether a directory found while rebuilding holds a persisted account*/
+    private final Predicate<File> isAccountDirectory;
+
+    /**The indexed names, or null until the index is first used*/
+    private volatile Set<String> names;
+
+    /**Instantiates a new, not yet loaded, index
+     * @param parentDirectory the directory holding the indexed accounts
+     * @param accountDirectories lists the candidate account directories, used when the
+     * index must be rebuilt from the parent directory
+     * @param isAccountDirectory tests whether a directory holds a persisted account, used
+     * when the index must be rebuilt from the parent directory
+     */
+    public AccountNameIndex(final File parentDirectory,
+                            final Supplier<Stream<File>> accountDirectories,
+                            final Predicate<File> isAccountDirectory) {
+        this.parentDirectory = parentDirectory;
+        this.sidecar = new File(parentDirectory.getParentFile(),
+                                parentDirectory.getName() + ".names");
+        this.accountDirectories = accountDirectories;
+        this.isAccountDirectory = isAccountDirectory;
+    }
+
+    /**Checks whether the given account name is in the index
+     * @param accountName the name to check
+     * @return false if no account by that name is persisted, otherwise true
+     */
+    public boolean contains(final String accountName) {
+        return names().contains(accountName);
+    }
+
+    /**Adds an account name to the index, recording the addition in the sidecar
+     * @param accountName the name to add
+     * @throws IOException if the sidecar cannot be updated
+     */
+    public void add(final String accountName) throws IOException {
+        if (names().add(accountName)) {
+            append("+" + accountName);
+        }
+    }
+
+    /**Removes an account name from the index, recording the removal in the sidecar
+     * @param accountName the name to remove
+     * @throws IOException if the sidecar cannot be updated
+     */
+    public void remove(final String accountName) throws IOException {
+        if (names().remove(accountName)) {
+            append("-" + accountName);
+        }
+    }
+
+    /**Empties the index and truncates the sidecar
+     * @throws IOException if the sidecar cannot be truncated
+     */
+    public synchronized void clear() throws IOException {
+        names = ConcurrentHashMap.newKeySet();
+        write(sidecar, "", StandardOpenOption.TRUNCATE_EXISTING);
+    }
+
+    /**Obtains a copy of the names currently in the index
+     * @return a copy of the indexed names
+     */
+    public Set<String> snapshot() {
+        return new HashSet<>(names());
+    }
+
+    /**Obtains the number of names in the index
+     * @return the number of names in the index
+     */
+    public int size() {
+        return names().size();
+    }
+
+    /**Obtains the indexed names, loading the index on first use
+     * @return the indexed names
+     */
+    private Set<String> names() {
+        Set<String> loaded = names;
+        if (loaded == null) {
+            synchronized (this) {
+                loaded = names;
+                if (loaded == null) {
+                    loaded = load();
+                    names = loaded;
+                }
+            }
+        }
+        return loaded;
+    }
+
+    /**Loads the index from the sidecar, or rebuilds it from the parent directory if the
+     * sidecar is missing or unreadable. Either way the sidecar is rewritten compacted
+     * @return the loaded names
+     */
+    private Set<String> load() {
+        Set<String> loaded = null;
+        if (sidecar.exists()) {
+            try {
+                loaded = replay();
+                log.info("Loaded {} account names from {}", loaded.size(), sidecar);
+            } catch (IOException e) {
+                log.warn("Unable to read {}, rebuilding", sidecar, e);
+            }
+        }
+        if (loaded == null) {
+            loaded = rebuild();
+            log.info("Rebuilt index of {} account names from {}",
+                                                    loaded.size(), parentDirectory);
+        }
+        try {
+            compact(loaded);
+        } catch (IOException e) {
+            log.warn("Unable to rewrite {}", sidecar, e);
+        }
+        return loaded;
+    }
+
+    /**Replays the additions and removals recorded in the sidecar
+     * @return the names remaining after the replay
+     * @throws IOException if the sidecar cannot be read
+     */
+    private Set<String> replay() throws IOException {
+        Set<String> replayed = ConcurrentHashMap.newKeySet();
+        try (BufferedReader reader =
+                Files.newBufferedReader(sidecar.toPath(), StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith("+")) {
+                    replayed.add(line.substring(1));
+                } else if (line.startsWith("-")) {
+                    replayed.remove(line.substring(1));
+                }
+            }
+        }
+        return replayed;
+    }
+
+    /**Rebuilds the index by checking each account directory in parallel
+     * @return the names of the accounts located
+     */
+    private Set<String> rebuild() {
+        Set<String> rebuilt = ConcurrentHashMap.newKeySet();
+        try (Stream<File> directories = accountDirectories.get()) {
+            directories.parallel()
+                       .filter(isAccountDirectory)
+                       .map(File::getName)
+                       .forEach(rebuilt::add);
+        }
+        return rebuilt;
+    }
+
+    /**Rewrites the sidecar to hold a single addition per indexed name
+     * @param current the names to be written
+     * @throws IOException if the sidecar cannot be written
+     */
+    private void compact(final Set<String> current) throws IOException {
+        File parent = sidecar.getAbsoluteFile().getParentFile();
+        if (parent != null) {
+            Files.createDirectories(parent.toPath());
+        }
+        StringBuilder builder = new StringBuilder();
+        for (String name : current) {
+            builder.append('+').append(name).append('\n');
+        }
+        File tmp = new File(sidecar.getPath() + ".tmp");
+        write(tmp, builder.toString(), StandardOpenOption.TRUNCATE_EXISTING);
+        Files.move(tmp.toPath(), sidecar.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                                                   StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**Appends a single change record to the sidecar, forcing it to disk
+     * @param record the record to append
+     * @throws IOException if the sidecar cannot be written
+     */
+    private synchronized void append(final String record) throws IOException {
+        write(sidecar, record + "\n", StandardOpenOption.APPEND);
+    }
+
+    /**Writes text to a file and forces it to disk before returning
+     * @param file the file
+     * @param text the text to write
+     * @param mode whether to append to the file or truncate it
+     * @throws IOException if the file cannot be written or forced
+     */
+    private static void write(final File file, final String text, 
+                              final StandardOpenOption mode) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(),
+                                                    StandardOpenOption.CREATE,
+                                                    StandardOpenOption.WRITE,
+                                                    mode)) {
+            ByteBuffer buffer = ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8));
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(false);
+        }
+    }
+}
@@ -0,0 +1,196 @@
+package edu.uw.spl.dao;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**Moves account directories persisted before sharding was introduced into their shards,
+ * and marks the shards written before shards were marked. Each legacy directory is 
+ * renamed atomically into its shard or, if a copy has already been written to the shard,
+ * deleted.
+ * <p>
+ * The migration must run offline, with no broker or DAO using the parent directory: a
+ * write landing in a shard between the migrator's check and its rename, or a read of a
+ * legacy directory being moved, would race with it. This is enforced through a lock file
+ * beside the parent directory: the migrator holds an exclusive lock on it, and the DAOs 
+ * using the directory hold a shared lock on it from first use until the last of them is
+ * closed. A migration therefore refuses to start on a directory in use, or being 
+ * migrated, and a DAO refuses to use a directory being migrated
+ * @author slajaunie
+ */
+public class AccountShardMigrator {
+
+    private static final Logger log = LoggerFactory.getLogger(AccountShardMigrator.class);
+
+    /**The parent directory being migrated*/
+    private final File parentDirectory;
+
+    /**Instantiates a new migrator
+     * @param parentDirectory the parent directory holding the accounts to migrate
+     */
+    public AccountShardMigrator(final File parentDirectory) {
+        this.parentDirectory = parentDirectory;
+    }
+
+    /**Migrates every legacy account directory into its shard, in parallel
+     * @return the number of accounts migrated
+     * @throws IOException if any account could not be migrated; accounts which were
+     * migrated successfully stay migrated, and the migration may simply be run again
+     */
+    public int migrate() throws IOException {
+        File lockFile = lockFile(parentDirectory);
+        try (FileChannel channel = FileChannel.open(lockFile.toPath(),
+                                                    StandardOpenOption.CREATE,
+                                                    StandardOpenOption.WRITE);
+                FileLock lock = tryLock(channel, false)) {
+            if (lock == null) {
+                throw new IOException("Another migration, or a DAO in use, holds " 
+                                                                            + lockFile);
+            }
+            markShards();
+            return migrateLegacyDirectories();
+        }
+    }
+
+    /**Takes a shared lock on the migration lock file of a parent directory, as the DAOs
+     * using the directory hold while it is in use
+     * @param parentDirectory the parent directory
+     * @return the lock; closing its channel releases it
+     * @throws IOException if the directory is being migrated, or the lock file can't be
+     * opened
+     */
+    static FileLock lockShared(final File parentDirectory) throws IOException {
+        File lockFile = lockFile(parentDirectory);
+        Files.createDirectories(lockFile.getParentFile().toPath());
+        FileChannel channel = FileChannel.open(lockFile.toPath(),
+                                               StandardOpenOption.CREATE,
+                                               StandardOpenOption.READ,
+                                               StandardOpenOption.WRITE);
+        FileLock lock = null;
+        try {
+            lock = tryLock(channel, true);
+        } finally {
+            if (lock == null) {
+                channel.close();
+            }
+        }
+        if (lock == null) {
+            throw new IOException(parentDirectory + " is being migrated");
+        }
+        return lock;
+    }
+
+    /**Obtains the migration lock file of a parent directory, kept beside it
+     * @param parentDirectory the parent directory
+     * @return the lock file
+     */
+    private static File lockFile(final File parentDirectory) {
+        File directory = parentDirectory.getAbsoluteFile();
+        return new File(directory.getParentFile(), directory.getName() + ".migrate.lock");
+    }
+
+    /**Tries to lock a whole lock file
+     * @param channel the lock file's channel
+     * @param shared true for a shared lock, false for an exclusive one
+     * @return the lock, or <code>null</code> if a conflicting lock is held, whether by
+     * another process or by this one
+     * @throws IOException if the lock can't be attempted
+     */
+    private static FileLock tryLock(final FileChannel channel, final boolean shared) 
+                                                                    throws IOException {
+        try {
+            return channel.tryLock(0, Long.MAX_VALUE, shared);
+        } catch (OverlappingFileLockException e) {
+            return null;
+        }
+    }
+
+    /**Marks the shards written before shards were marked
+     * @throws IOException if a shard could not be marked
+     */
+    private void markShards() throws IOException {
+        for (File directory : AccountDirectoryLayout.listDirectories(parentDirectory)) {
+            if (AccountDirectoryLayout.isUnmarkedShard(directory)) {
+                Files.createFile(
+                        new File(directory, AccountDirectoryLayout.SHARD_MARKER).toPath());
+                log.info("Marked shard {}", directory);
+            }
+        }
+    }
+
+    /**Moves every legacy account directory into its shard, in parallel
+     * @return the number of accounts migrated
+     * @throws IOException if any account could not be migrated
+     */
+    private int migrateLegacyDirectories() throws IOException {
+        AtomicInteger migrated = new AtomicInteger();
+        AtomicInteger failed = new AtomicInteger();
+        Arrays.stream(AccountDirectoryLayout.listDirectories(parentDirectory))
+              .parallel()
+              .filter(dir -> !AccountDirectoryLayout.isShard(dir))
+              .forEach(legacy -> {
+                  try {
+                      migrateAccount(legacy);
+                      migrated.incrementAndGet();
+                  } catch (IOException e) {
+                      log.error("Unable to migrate {}", legacy, e);
+                      failed.incrementAndGet();
+                  }
+              });
+        log.info("Migrated {} accounts under {}", migrated.get(), parentDirectory);
+        if (failed.get() > 0) {
+            throw new IOException(String.format("Unable to migrate %d accounts", failed.get()));
+        }
+        return migrated.get();
+    }
+
+    /**Migrates a single legacy account directory into its shard
+     * @param legacy the legacy account directory
+     * @throws IOException if the directory could not be moved or removed
+     */
+    private void migrateAccount(final File legacy) throws IOException {
+        File sharded = AccountDirectoryLayout.shardedDirectory(parentDirectory, legacy.getName());
+        if (sharded.exists()) {
+            /*A copy has already been written to the shard*/
+            if (!AccountDAOs.deleteDirectory(legacy)) {
+                throw new IOException("Unable to remove stale directory " + legacy);
+            }
+            return;
+        }
+        Files.createDirectories(sharded.getParentFile().toPath());
+        File marker = AccountDirectoryLayout.shardMarker(parentDirectory, legacy.getName());
+        try {
+            Files.createFile(marker.toPath());
+        } catch (FileAlreadyExistsException e) {
+            /*already marked*/
+        }
+        try {
+            Files.move(legacy.toPath(), sharded.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(legacy.toPath(), sharded.toPath());
+        }
+    }
+
+    /**Migrates the given parent directory, or target/accounts by default. Run only while
+     * no broker is using the directory
+     * @param args optionally, the parent directory to migrate
+     * @throws IOException if the migration fails
+     */
+    public static void main(final String[] args) throws IOException {
+        File parentDirectory = args.length > 0 ? new File(args[0]) : new File("target", "accounts");
+        int migrated = new AccountShardMigrator(parentDirectory).migrate();
+        log.info("Migrated {} accounts under {}", migrated, parentDirectory);
+    }
+}
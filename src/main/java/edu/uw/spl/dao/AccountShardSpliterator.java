@@ -0,0 +1,125 @@
+package edu.uw.spl.dao;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+
+/**Spliterator over the account directories under a parent directory, laid out by
+ * <code>AccountDirectoryLayout</code>. It splits by shard- first across the first-level
+ * shards, then, once down to a single first-level shard, across its second-level shards-
+ * so a parallel stream hands whole shards to each worker. Directories are listed lazily,
+ * one shard at a time, so iterating never holds more than one shard's listing.
+ * <p>
+ * Legacy account directories sitting directly under the parent directory are traversed
+ * along with the first-level shards
+ * @author slajaunie
+ */
+final class AccountShardSpliterator implements Spliterator<File> {
+
+    /**The shards, and any legacy account directories, this spliterator covers*/
+    private File[] units;
+
+    /**Index of the next unit to list*/
+    private int index;
+
+    /**One past the last unit covered*/
+    private int fence;
+
+    /**Whether the units are second-level shards rather than first-level*/
+    private boolean secondLevel;
+
+    /**Account directories of the unit being traversed*/
+    private File[] current = new File[0];
+
+    /**Index of the next account directory of the unit being traversed*/
+    private int position;
+
+    /**Estimated number of account directories left*/
+    private long estimate;
+
+    /**Instantiates a spliterator over every account directory under a parent directory
+     * @param parentDirectory the parent directory of all accounts
+     * @param estimate the estimated number of accounts, such as the size of the account
+     * name index
+     */
+    AccountShardSpliterator(final File parentDirectory, final long estimate) {
+        this(AccountDirectoryLayout.listDirectories(parentDirectory), false, estimate);
+    }
+
+    private AccountShardSpliterator(final File[] units, final boolean secondLevel,
+                                    final long estimate) {
+        this.units = units;
+        this.index = 0;
+        this.fence = units.length;
+        this.secondLevel = secondLevel;
+        this.estimate = estimate;
+    }
+
+    @Override
+    public boolean tryAdvance(final Consumer<? super File> action) {
+        while (position >= current.length) {
+            if (index >= fence) {
+                return false;
+            }
+            current = list(units[index++]);
+            position = 0;
+        }
+        action.accept(current[position++]);
+        if (estimate > 0) {
+            estimate--;
+        }
+        return true;
+    }
+
+    @Override
+    public Spliterator<File> trySplit() {
+        if (position < current.length) {
+            /*the unit being traversed is not split*/
+            return null;
+        }
+        if (fence - index == 1 && !secondLevel 
+                && AccountDirectoryLayout.isShard(units[index])) {
+            /*down to one first-level shard- continue over its second-level shards*/
+            units = AccountDirectoryLayout.listDirectories(units[index]);
+            index = 0;
+            fence = units.length;
+            secondLevel = true;
+        }
+        int remaining = fence - index;
+        if (remaining < 2) {
+            return null;
+        }
+        int mid = index + remaining / 2;
+        File[] prefix = Arrays.copyOfRange(units, index, mid);
+        long prefixEstimate = estimate / 2;
+        estimate -= prefixEstimate;
+        index = mid;
+        return new AccountShardSpliterator(prefix, secondLevel, prefixEstimate);
+    }
+
+    @Override
+    public long estimateSize() {
+        return index >= fence && position >= current.length ? 0 : Math.max(estimate, 1);
+    }
+
+    @Override
+    public int characteristics() {
+        return DISTINCT | NONNULL;
+    }
+
+    /**Lists the account directories of a unit
+     * @param unit a shard, or a legacy account directory
+     * @return the unit's account directories
+     */
+    private File[] list(final File unit) {
+        if (secondLevel) {
+            /*second-level shards carry no marker*/
+            return AccountDirectoryLayout.listDirectories(unit);
+        }
+        if (!AccountDirectoryLayout.isShard(unit)) {
+            return new File[] { unit };
+        }
+        return AccountDirectoryLayout.listShard(unit).toArray(File[]::new);
+    }
+}
@@ -0,0 +1,343 @@
+package edu.uw.spl.dao;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import edu.uw.ext.framework.account.Account;
+import edu.uw.ext.framework.account.AccountException;
+import edu.uw.ext.framework.dao.AccountDao;
+
+/**Asynchronous facade over any <code>AccountDao</code>. Calls are run on a dedicated,
+ * bounded pool of I/O threads and return a <code>CompletableFuture</code>, so callers
+ * such as the order dispatch threads can overlap account I/O with other work.
+ * <p>
+ * Reads and writes of the same account are run one at a time, in the order they were
+ * submitted- a read waits for the writes submitted before it, and a write for the reads,
+ * since the DAOs rewrite files in place and a read overlapping a write could see a
+ * partly written file. Calls for different accounts run concurrently. When the pool's
+ * queue is full the submitting thread runs the task itself, which slows submitters down
+ * rather than queueing without bound.
+ * <p>
+ * The facade is itself an <code>AccountDao</code>; its blocking methods wait for the
+ * corresponding asynchronous call
+ * @author slajaunie
+ */
+public class AsyncAccountDao implements AccountDao {
+
+    private static final Logger log = LoggerFactory.getLogger(AsyncAccountDao.class);
+
+    /**Default number of I/O threads*/
+    public static final int DEFAULT_THREADS = 4;
+
+    /**Default number of tasks queued before submitters run tasks themselves*/
+    public static final int DEFAULT_QUEUE_CAPACITY = 1024;
+
+    /**How long close waits for the I/O threads to finish, in seconds*/
+    private static final long SHUTDOWN_TIMEOUT_SECONDS = 30;
+
+    private static final AtomicInteger POOL_NUMBER = new AtomicInteger();
+
+    /**The DAO performing the I/O*/
+    private final AccountDao delegate;
+
+    private final ThreadPoolExecutor executor;
+
+    /**Completion of the last call submitted for each account with calls outstanding*/
+    private final ConcurrentMap<String, CompletableFuture<Void>> tails =
+                                                                new ConcurrentHashMap<>();
+
+    /**The account whose ordered task is running on the current thread, if any. Calls made
+     * from within such a task for the same account go straight to the delegate, since
+     * queueing them behind the running task would never complete*/
+    private final ThreadLocal<String> runningKey = new ThreadLocal<>();
+
+    /**Instantiates a new facade with the default pool size and queue capacity
+     * @param delegate the DAO performing the I/O
+     */
+    public AsyncAccountDao(final AccountDao delegate) {
+        this(delegate, DEFAULT_THREADS, DEFAULT_QUEUE_CAPACITY);
+    }
+
+    /**Instantiates a new facade
+     * @param delegate the DAO performing the I/O
+     * @param threads the number of I/O threads
+     * @param queueCapacity the number of tasks queued before submitters run tasks
+     * themselves
+     */
+    public AsyncAccountDao(final AccountDao delegate, final int threads,
+                           final int queueCapacity) {
+        this.delegate = delegate;
+        int pool = POOL_NUMBER.incrementAndGet();
+        AtomicInteger thread = new AtomicInteger();
+        ThreadFactory factory = r -> {
+            Thread t = new Thread(r, "account-io-" + pool + "-" + thread.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        };
+        this.executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                                               new ArrayBlockingQueue<>(queueCapacity),
+                                               factory,
+                                               (task, executor) -> {
+            /*a full queue slows the submitter down; a shut down pool rejects the task*/
+            if (executor.isShutdown()) {
+                throw new RejectedExecutionException("Account I/O threads are shut down");
+            }
+            task.run();
+        });
+    }
+
+    /**Obtains the DAO performing the I/O
+     * @return the underlying DAO
+     */
+    public AccountDao getDelegate() {
+        return delegate;
+    }
+
+    /**Looks up an account, after any calls for it already submitted
+     * @param accountName the name of the account
+     * @return a future completed with the account, or <code>null</code> if it was not
+     * located
+     */
+    public CompletableFuture<Account> getAccountAsync(final String accountName) {
+        return schedule(accountName, () -> delegate.getAccount(accountName));
+    }
+
+    /**Persists an account, after any calls for it already submitted
+     * @param account the account to persist
+     * @return a future completed once the account is persisted
+     */
+    public CompletableFuture<Void> setAccountAsync(final Account account) {
+        return schedule(account.getName(), () -> {
+            delegate.setAccount(account);
+            return null;
+        });
+    }
+
+    /**Deletes an account, after any calls for it already submitted
+     * @param accountName the name of the account
+     * @return a future completed once the account is deleted
+     */
+    public CompletableFuture<Void> deleteAccountAsync(final String accountName) {
+        return schedule(accountName, () -> {
+            delegate.deleteAccount(accountName);
+            return null;
+        });
+    }
+
+    /**Runs a task in the order of an account- after every call for the account
+     * already submitted and before any submitted later. Intended for read-modify-write
+     * sequences; DAO calls made by the task for the same account run directly
+     * @param <T> the type of the task's result
+     * @param accountName the name of the account
+     * @param task the task to run
+     * @return a future completed with the task's result
+     */
+    public <T> CompletableFuture<T> submit(final String accountName, final Callable<T> task) {
+        return schedule(accountName, task);
+    }
+
+    /**Starts an asynchronous task in the order of an account- after every call for the
+     * account already submitted. Calls submitted later wait for the future the task
+     * returns, not only for the task to return, so a DAO which queues its own writes,
+     * such as with a shared group commit writer, can take the writes of many accounts at
+     * once while each account's calls stay in order
+     * @param <T> the type of the task's result
+     * @param accountName the name of the account
+     * @param task the task to start, returning a future of its completion
+     * @return a future completed with the result of the task's future
+     */
+    public <T> CompletableFuture<T> submitAsync(final String accountName,
+                                                final Callable<CompletableFuture<T>> task) {
+        return scheduleAsync(accountName, task);
+    }
+
+    /**Waits for every call submitted before this one, as before reading the delegate 
+     * directly, bypassing the facade
+     */
+    public void awaitSubmitted() {
+        drain();
+    }
+
+    /**Lookup and return an Account from the given account name, waiting for any writes
+     * to it already submitted
+     * @param accountName the name of the Account to lookup
+     * @see edu.uw.ext.framework.dao.AccountDao#getAccount(java.lang.String)
+     * @return the given Account, or <code>null</code> if the account was not located or
+     * could not be read
+     */
+    @Override
+    public Account getAccount(final String accountName) {
+        if (accountName.equals(runningKey.get())) {
+            return delegate.getAccount(accountName);
+        }
+        try {
+            return getAccountAsync(accountName).join();
+        } catch (CompletionException e) {
+            log.error("Unable to read Account {}", accountName, e.getCause());
+            return null;
+        }
+    }
+
+    /** Persists new Accounts, or updates an existing account, and waits for the write
+     * @param account the account to be persisted
+     * @see edu.uw.ext.framework.dao.AccountDao#setAccount(edu.uw.ext.framework.account.Account)
+     * @throws AccountException if the operation failed
+     */
+    @Override
+    public void setAccount(final Account account) throws AccountException {
+        if (account.getName().equals(runningKey.get())) {
+            delegate.setAccount(account);
+        } else {
+            await(setAccountAsync(account), account.getName());
+        }
+    }
+
+    /**Removes the given account and waits for the delete
+     * @param accountName the name of the Account to be deleted
+     * @see edu.uw.ext.framework.dao.AccountDao#deleteAccount(java.lang.String)
+     * @throws AccountException if the operation failed
+     */
+    @Override
+    public void deleteAccount(final String accountName) throws AccountException {
+        if (accountName.equals(runningKey.get())) {
+            delegate.deleteAccount(accountName);
+        } else {
+            await(deleteAccountAsync(accountName), accountName);
+        }
+    }
+
+    /**Waits for every outstanding write, then removes all accounts
+     * @see edu.uw.ext.framework.dao.AccountDao#reset()
+     * @throws AccountException if the operation fails
+     */
+    @Override
+    public void reset() throws AccountException {
+        drain();
+        delegate.reset();
+    }
+
+    /**Waits for every outstanding write, stops the I/O threads and closes the underlying
+     * DAO
+     * @see edu.uw.ext.framework.dao.AccountDao#close()
+     * @throws AccountException if the operation fails
+     */
+    @Override
+    public void close() throws AccountException {
+        drain();
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                log.warn("Account I/O threads did not finish within {} seconds",
+                                                                SHUTDOWN_TIMEOUT_SECONDS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        delegate.close();
+    }
+
+    /**Schedules a task for an account. The task becomes the account's new tail and runs
+     * once the previous tail completes
+     * @param <T> the type of the task's result
+     * @param key the name of the account
+     * @param task the task to run
+     * @return a future completed with the task's result
+     */
+    private <T> CompletableFuture<T> schedule(final String key, final Callable<T> task) {
+        return scheduleAsync(key, () -> CompletableFuture.completedFuture(task.call()));
+    }
+
+    /**Schedules an asynchronous task for an account. The task becomes the account's new
+     * tail once started, and stays the tail until the future it returns completes
+     * @param <T> the type of the task's result
+     * @param key the name of the account
+     * @param task the task to start
+     * @return a future completed with the result of the task's future
+     */
+    private <T> CompletableFuture<T> scheduleAsync(final String key,
+                                                   final Callable<CompletableFuture<T>> task) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        Runnable body = () -> {
+            /*a task run by a submitter may be nested in another account's task*/
+            String previous = runningKey.get();
+            runningKey.set(key);
+            try {
+                task.call().whenComplete((r, e) -> {
+                    if (e == null) {
+                        result.complete(r);
+                    } else {
+                        result.completeExceptionally(
+                                e instanceof CompletionException && e.getCause() != null
+                                        ? e.getCause() : e);
+                    }
+                });
+            } catch (Throwable t) {
+                result.completeExceptionally(t);
+            } finally {
+                if (previous == null) {
+                    runningKey.remove();
+                } else {
+                    runningKey.set(previous);
+                }
+            }
+        };
+        CompletableFuture<Void> done = result.handle((r, e) -> null);
+        CompletableFuture<Void> prior = tails.put(key, done);
+        done.whenComplete((r, e) -> tails.remove(key, done));
+        if (prior == null) {
+            execute(body, result);
+        } else {
+            prior.whenComplete((r, e) -> execute(body, result));
+        }
+        return result;
+    }
+
+    /**Hands a task to the I/O threads, failing its future if the facade is closed
+     * @param body the task
+     * @param result the task's future
+     */
+    private void execute(final Runnable body, final CompletableFuture<?> result) {
+        try {
+            executor.execute(body);
+        } catch (RejectedExecutionException e) {
+            result.completeExceptionally(new AccountException("Account DAO is closed", e));
+        }
+    }
+
+    /**Waits for every write outstanding at the time of the call*/
+    private void drain() {
+        List<CompletableFuture<Void>> outstanding = new ArrayList<>(tails.values());
+        CompletableFuture.allOf(outstanding.toArray(new CompletableFuture<?>[0])).join();
+    }
+
+    /**Waits for a write, converting its failure to an AccountException
+     * @param write the write to wait for
+     * @param accountName the name of the account written
+     * @throws AccountException if the write failed
+     */
+    private static void await(final CompletableFuture<Void> write, final String accountName)
+                                                                    throws AccountException {
+        try {
+            write.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof AccountException) {
+                throw (AccountException) e.getCause();
+            }
+            throw new AccountException("Unable to write account " + accountName, e.getCause());
+        }
+    }
+}
@@ -1,5 +1,6 @@
 package edu.uw.spl.dao;
 
+import java.io.BufferedInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
@@ -8,15 +9,16 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
-import java.io.OutputStream;
+import java.io.UncheckedIOException;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import edu.uw.ext.framework.account.Account;
 import edu.uw.ext.framework.account.AccountException;
-import edu.uw.ext.framework.account.Address;
-import edu.uw.ext.framework.account.CreditCard;
 import edu.uw.ext.framework.dao.AccountDao;
 import edu.uw.ext.framework.dao.DaoFactoryException;
 import edu.uw.spl.account.AccountImpl;
@@ -37,9 +39,6 @@ public class FileAccountDAO extends AccountDAOs implements AccountDao, DaoFactor
      * data from the data source
      */
     
-    /*The parent directory where accounts will be stored*/
-    private static final File PARENT_DIRECTORY= new File("target", "accounts");
-    
     private static final Logger log = LoggerFactory.getLogger(FileAccountDAO.class);
     
     /**
@@ -57,45 +56,42 @@ public class FileAccountDAO extends AccountDAOs implements AccountDao, DaoFactor
         /*closes any open data streams- currently, any open data streams are 
         closed automatically in the try-with-resources statements within their 
         respective methods*/ 
+        /*...then releases the shared writer, closing it if no other DAO holds it*/
+        closeWriter();
     }
 
     /**Lookup and return an Account from the given account name. If no such account is
-     * located, returns null
+     * located, returns null. Only the account file is read; the address and credit card
+     * are deferred and read from their files on first access, since the order path never
+     * touches them. A deferred file which can't be read fails its getter with an
+     * <code>UncheckedIOException</code>, and is retried on the next access
      * @param accountName the name of the Account to lookup
      * @see edu.uw.ext.framework.dao.AccountDao#getAccount(java.lang.String)
      * @return the given Account, or <code>null</code> if the account was not located
+     * @throws IllegalStateException if the parent directory is being migrated
      */
     @Override
     public Account getAccount(final String accountName) {
         /*read an account from an input stream
         *construct an Account instance from the read files and return the Account*/
-        Account account = null;
-        CreditCard creditCard = null;
-        Address address = null; 
+        AccountImpl account = null;
         
-        File accountDirectory = new File(PARENT_DIRECTORY.toString(),accountName);
+        File accountDirectory = getAccountDirectory(accountName);
         
-        if (!accountDirectory.exists()) {
+        /*Unknown names are answered by the name index without touching the disk*/
+        if (!getNameIndex().contains(accountName) || !accountDirectory.exists()) {
             log.info("Unable to locate directory for Account {}",accountName);
         } else {
             File accountFile = new File(accountDirectory.toString(), "account.bin");
             File creditCardFile = new File(accountDirectory.toString(), "creditCard.bin");
             File addressFile = new File(accountDirectory.toString(),"address.bin");
             
-            /*Now take the account and read each object from their respective file*/
+            /*Now take the account and read its core fields from the account file*/
             try (
-                    /*input Streams for the files*/
+                    /*input Stream for the file*/
                     InputStream isAccountFile = Files.newInputStream(accountFile.toPath());
-                    DataInputStream disAccountFile = new DataInputStream(isAccountFile);
-                    
-                    InputStream isCreditCardFile = Files.newInputStream(creditCardFile.toPath());
-                    DataInputStream disCreditCardFile = new DataInputStream(isCreditCardFile);
-                    ObjectInputStream oisCreditCardFile = new ObjectInputStream(disCreditCardFile);
-                    
-                    InputStream isAddressFile = Files.newInputStream(addressFile.toPath());
-                    DataInputStream disAddressFile = new DataInputStream(isAddressFile);
-                    ObjectInputStream oisAddressFile = new ObjectInputStream(disAddressFile);
-                    
+                    DataInputStream disAccountFile = new DataInputStream(
+                                                    new BufferedInputStream(isAccountFile));
                 ){
                 
                 /*Write each property of the object separate to the dos*/
@@ -107,7 +103,7 @@ public class FileAccountDAO extends AccountDAOs implements AccountDao, DaoFactor
                 /*Use that value to create a new pw array*/
                 byte[] pw = new byte[pwLength];
                 
-                disAccountFile.read(pw,0,pwLength);
+                disAccountFile.readFully(pw,0,pwLength);
                 account = new AccountImpl();
                 account.setPasswordHash(pw);
                 account.setName(disAccountFile.readUTF());
@@ -119,19 +115,16 @@ public class FileAccountDAO extends AccountDAOs implements AccountDao, DaoFactor
                 /*read the phone number*/
                 account.setPhone(disAccountFile.readUTF());
                 
-                /*read the returned objects*/
-                creditCard = (CreditCardImpl) oisCreditCardFile.readObject();
-                address = (AddressImpl) oisAddressFile.readObject();
-                
-                /*set specific attributes of the returned account*/
-                account.setAddress(address);
-                account.setCreditCard(creditCard);
+                /*defer the serialized objects until they're asked for*/
+                account.deferCreditCard(() -> readObject(creditCardFile, CreditCardImpl.class));
+                account.deferAddress(() -> readObject(addressFile, AddressImpl.class));
+                completeRead(accountDirectory, account);
             } catch (IOException e) {
                 e.printStackTrace();
-            } catch (ClassNotFoundException e) {
-                e.printStackTrace();
+                account = null;
             } catch (AccountException e) {
                 e.printStackTrace();
+                account = null;
             }
             
             /*Log if account is going to return null*/
@@ -144,44 +137,73 @@ public class FileAccountDAO extends AccountDAOs implements AccountDao, DaoFactor
         return account;
     }
 
-    /** Persists new Accounts to the file Directory, or updates an existing account
+    /**Reads a serialized object from one of an account's files. A file which can't be
+     * read fails the load, rather than reading as no object, so the account's next full
+     * write can't store the missing object over the file
+     * @param <T> the type of the object
+     * @param file the file to read
+     * @param type the expected class of the object
+     * @return the object, or <code>null</code> if none was stored
+     * @throws UncheckedIOException if the file could not be read
+     */
+    private static <T> T readObject(final File file, final Class<T> type) {
+        try (
+                InputStream isFile = Files.newInputStream(file.toPath());
+                ObjectInputStream oisFile = new ObjectInputStream(
+                                                    new BufferedInputStream(isFile));
+            ){
+            return type.cast(oisFile.readObject());
+        } catch (IOException e) {
+            log.error("Unable to read {}", file, e);
+            throw new UncheckedIOException(e);
+        } catch (ClassNotFoundException | ClassCastException e) {
+            log.error("Unable to read {}", file, e);
+            throw new UncheckedIOException(new IOException("Malformed " + file, e));
+        }
+    }
+
+    /** Persists new Accounts to the file Directory, or updates an existing account.
+     * Blocks until the shared writer has committed the account's files
      * @param account the account to be persisted
      * @see edu.uw.ext.framework.dao.AccountDao#setAccount(edu.uw.ext.framework.account.Account)
      * @throws AccountException if the operation failed
      */
     @Override
     public void setAccount(final Account account) throws AccountException {
+        awaitWrite(setAccountAsync(account), account.getName());
+    }
+    
+    /** Serializes an account into its account, credit card and address files. The account
+     * is serialized immediately, so later changes to the given instance are not reflected
+     * in the queued write
+     * @param account the account to be persisted
+     * @param accountDirectory the directory the files are written to
+     * @return the contents of each file, keyed by path
+     * @throws AccountException if the account could not be serialized
+     */
+    @Override
+    protected Map<Path,byte[]> encodeAccount(final Account account, 
+                                             final File accountDirectory) 
+                                                            throws AccountException {
         /*Break up instances into separate files and write as binary files*/
-        /*Creates a new directory for the account if it doesn't currently exist*/
-        
-        String accountName = account.getName();
-        File accountDirectory = new File(PARENT_DIRECTORY.toString(),accountName);
-        
         File accountFile = new File(accountDirectory.toString(), "account.bin");
         
         File creditCardFile = new File(accountDirectory.toString(), "creditCard.bin");
         File addressFile = new File(accountDirectory.toString(),"address.bin");
 
-        /*If account name directory doesn't exist, create it*/
-         if (!accountDirectory.exists()) {
-            final boolean success = accountDirectory.mkdirs();
-            if (!success) {
-                throw new AccountException(String.format("Unable to create directory %s",
-                                                        accountDirectory));
-            }
-            log.info("Directory not found, creating");
-         } 
+        /*The writer creates the account directory if it doesn't currently exist*/
+        Map<Path,byte[]> files = new LinkedHashMap<>();
          
-        /*Now take the account and write each object to the appropriate file*/
+        /*Now take the account and write each object to the appropriate buffer*/
         try (
                 /*output Streams for the files*/
-                OutputStream osAccountFile = Files.newOutputStream(accountFile.toPath());
+                ByteArrayOutputStream osAccountFile = new ByteArrayOutputStream();
                 DataOutputStream dosAccountFile = new DataOutputStream(osAccountFile);
                 
-                OutputStream osCreditCardFile = Files.newOutputStream(creditCardFile.toPath());
+                ByteArrayOutputStream osCreditCardFile = new ByteArrayOutputStream();
                 DataOutputStream dosCreditCardFile = new DataOutputStream(osCreditCardFile);
                 
-                OutputStream osAddressFile = Files.newOutputStream(addressFile.toPath());
+                ByteArrayOutputStream osAddressFile = new ByteArrayOutputStream();
                 DataOutputStream dosAddressFile = new DataOutputStream(osAddressFile);
                 
                 /*output streams for the objects*/
@@ -215,78 +237,87 @@ public class FileAccountDAO extends AccountDAOs implements AccountDao, DaoFactor
             osAccountObject.writeObject(account);
             osAccountObject.flush();
             dosAccountFile.write(baosAccountObject.toByteArray());
-             
-            osCreditCardObject.writeObject(account.getCreditCard());
-            osCreditCardObject.flush();
-            dosCreditCardFile.write(baosCreditCardObject.toByteArray());
+            dosAccountFile.flush();
+            files.put(accountFile.toPath(), osAccountFile.toByteArray());
+            
+            /*A part never loaded is as stored, so its file is left alone- neither loaded
+             *nor rewritten- unless it has yet to be written to this directory*/
+            AccountImpl impl = account instanceof AccountImpl ? (AccountImpl) account : null;
+            if (impl == null || !impl.hasUnloadedCreditCard() || !creditCardFile.isFile()) {
+                osCreditCardObject.writeObject(account.getCreditCard());
+                osCreditCardObject.flush();
+                dosCreditCardFile.write(baosCreditCardObject.toByteArray());
+                dosCreditCardFile.flush();
+                files.put(creditCardFile.toPath(), osCreditCardFile.toByteArray());
+            }
  
-            osAddressObject.writeObject(account.getAddress());
-            osAddressObject.flush();
-            dosAddressFile.write(baosAddressObject.toByteArray());
+            if (impl == null || !impl.hasUnloadedAddress() || !addressFile.isFile()) {
+                osAddressObject.writeObject(account.getAddress());
+                osAddressObject.flush();
+                dosAddressFile.write(baosAddressObject.toByteArray());
+                dosAddressFile.flush();
+                files.put(addressFile.toPath(), osAddressFile.toByteArray());
+            }
         } catch (IOException e) {
             throw new AccountException("There was a problem writing to the output streams",e);
+        } catch (UncheckedIOException e) {
+            throw new AccountException("Unable to load the account's deferred files", 
+                                                                            e.getCause());
         }
-        log.info("Files for Account {} persisted",account.getName());
+        return files;
     }
     
     /**Checks to see if an account already exists, returns true if accountName
      * already exists, otherwise false- not currently using, but keeping just in
      * case it proves useful later. 
      * The operation distinguishes between adding a new account or updating an existing
-     * account by checking for a name already existing in the directory with the 
-     * given Account's name. If a match is found, the hashed passwords 
-     * between the two accounts are compared- if they match, it is assumed this 
-     * is an update to an existing account. If they do not match, it is assumed
-     * this is an attempt to add a new account with a duplicte name
+     * account by checking the account name index for the given Account's name. If a match
+     * is found, the hashed passwords between the two accounts are compared- if they match,
+     * it is assumed this is an update to an existing account. If they do not match, it is 
+     * assumed this is an attempt to add a new account with a duplicte name
      * @param account the account to check for duplicates
      * @return a <code>boolean</code> indicating whether a duplicate exists- true if
      * an account by that name already exists, otherwise false
      */
     public boolean checkForDuplicateUsername(final Account account) {
         boolean validUpdate = false;
-        File[] listFiles = PARENT_DIRECTORY.listFiles();
-        Account persistedAccount; 
         
-        for (File directory: listFiles) {
-            /*Go through each directory name and see if it matches the given
-             * account's username
-             * If there's a match, need to see if updating existing account
-             * or if trying to provide a new account with a duplicate username
-             * If the persisted object's username and password fields are equal
-             * we're simply overwriting an existing account
-             * If they are not equal, the given account is not the same account
-             * as the existing persisted one, and there's a problem*/
-            if (directory.getName().equals(account.getName())) {
-                persistedAccount = this.getAccount(account.getName());
-                /*...if true, need to get the persisted account object and 
-                 * check for equality against the given account object
-                 */
-                if (Arrays.equals(persistedAccount.getPasswordHash(), 
-                        account.getPasswordHash())) {
-                    /*If they match, only updating account and it's fine*/
-                    log.info("Passwords match, only updating");
-                    validUpdate = true;
-                } else {
-                    /*...otherwise this is a duplicate username on a different
-                     * account and thus not valid
-                     */
-                    validUpdate = false;
-                }
-                
+        /*If the name is indexed, need to see if updating existing account
+         * or if trying to provide a new account with a duplicate username
+         * If the persisted object's username and password fields are equal
+         * we're simply overwriting an existing account
+         * If they are not equal, the given account is not the same account
+         * as the existing persisted one, and there's a problem*/
+        if (accountExists(account.getName())) {
+            Account persistedAccount = this.getAccount(account.getName());
+            if (persistedAccount != null && Arrays.equals(persistedAccount.getPasswordHash(), 
+                    account.getPasswordHash())) {
+                /*If they match, only updating account and it's fine*/
+                log.info("Passwords match, only updating");
+                validUpdate = true;
             }
-            
         }
         return validUpdate;
     }
 
+    /**Tests whether the given directory holds a persisted account, by checking for its
+     * account file
+     * @param accountDirectory the directory to test
+     * @return true if the directory holds an account file
+     */
+    @Override
+    protected boolean isAccountDirectory(final File accountDirectory) {
+        return new File(accountDirectory, "account.bin").isFile();
+    }
+
     /** 
-     * Gets a new instance of an accountDao 
+     * Gets a new instance of an accountDao, configured like this factory
      * @throws DaoFactoryException if the operation fails
      * @see edu.uw.ext.framework.dao.DaoFactory#getAccountDao()
      */ 
     @Override
     public AccountDao getAccountDao() throws DaoFactoryException {
-        return new FileAccountDAO();
+        return configure(new FileAccountDAO());
     }
 
     /*Used for testing*/
@@ -0,0 +1,471 @@
+package edu.uw.spl.dao;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**Shared writer used by the AccountDao implementations to persist account files.
+ * Writes submitted from any number of threads are queued, and a single writer thread
+ * drains the queue and applies everything it finds as one batch. How the batch is made
+ * durable depends on the writer's <code>Durability</code> policy:
+ * <ul><li><code>NONE</code> - files are written but never forced to disk</li>
+ * <li><code>GROUP</code> - the whole batch is first appended to a journal, which is forced
+ * once per batch, then the files are written. The journal is replayed on startup and
+ * truncated at each checkpoint. A batch which fails once journaled is cut back out of
+ * the journal before its callers are told, so a replay never applies a write reported
+ * as failed</li>
+ * <li><code>SYNC</code> - every file is forced to disk individually as it is written</li>
+ * </ul>
+ * Callers receive a <code>CompletableFuture</code> which completes once their write is
+ * applied and durable under the configured policy. Journal records name their files
+ * relative to the writer's root directory, so a replay restores them under the root
+ * whatever the working directory of the process replaying them.
+ * <p>
+ * Files written through the writer are deleted through it too, so a deletion is ordered
+ * with the writes around it: writes queued before it are applied first, a checkpoint is
+ * taken so a replay can't restore what it deletes, and no write queued after it is
+ * applied until it is done
+ * @author slajaunie
+ */
+public class GroupCommitWriter {
+
+    /**The durability policies supported by the writer*/
+    public enum Durability {
+        /**Files are written without being forced to disk*/
+        NONE,
+        /**One journal force per batch*/
+        GROUP,
+        /**One force per file written*/
+        SYNC
+    }
+
+    private static final Logger log = LoggerFactory.getLogger(GroupCommitWriter.class);
+
+    /**The maximum number of pending writes applied as a single batch*/
+    private static final int MAX_BATCH_SIZE = 512;
+
+    /**Journal size, in bytes, after which the writer checkpoints and truncates the journal*/
+    private static final long CHECKPOINT_THRESHOLD = 8 * 1024 * 1024;
+
+    /**The journal file, only used under the GROUP policy*/
+    private final File journalFile;
+
+    /**The directory journaled paths are recorded relative to, absolute and normalized*/
+    private final Path root;
+
+    /**The durability policy of this writer*/
+    private final Durability durability;
+
+    /**Writes waiting to be picked up by the writer thread*/
+    private final BlockingQueue<PendingWrite> pending = new LinkedBlockingQueue<>();
+
+    /**Files written since the last checkpoint which have not yet been forced to disk*/
+    private final Set<Path> unforced = new HashSet<>();
+
+    /**Open channel to the journal, or null if not journaling*/
+    private FileChannel journal;
+
+    /**The thread applying the queued writes*/
+    private final Thread writerThread;
+
+    /**Set once close() has been requested*/
+    private volatile boolean closed = false;
+
+    /**Instantiates a new writer and starts its writer thread. Under the GROUP policy any
+     * records left in the journal by a previous run are replayed first
+     * @param journalFile the journal file used under the GROUP policy
+     * @param rootDirectory the directory the written files live under; journaled paths
+     * are recorded relative to it and resolved against it on replay
+     * @param durability the durability policy for this writer
+     * @throws IOException if the journal cannot be replayed or opened
+     */
+    public GroupCommitWriter(final File journalFile, final File rootDirectory,
+                             final Durability durability) throws IOException {
+        this.journalFile = journalFile;
+        this.root = rootDirectory.toPath().toAbsolutePath().normalize();
+        this.durability = durability;
+        if (durability == Durability.GROUP) {
+            recover();
+            File journalDirectory = journalFile.getAbsoluteFile().getParentFile();
+            if (journalDirectory != null) {
+                Files.createDirectories(journalDirectory.toPath());
+            }
+            journal = FileChannel.open(journalFile.toPath(),
+                                        StandardOpenOption.CREATE,
+                                        StandardOpenOption.WRITE,
+                                        StandardOpenOption.APPEND);
+        }
+        writerThread = new Thread(this::drain, "GroupCommitWriter-" + journalFile.getName());
+        writerThread.setDaemon(true);
+        writerThread.start();
+    }
+
+    /**Queues a single file to be written
+     * @param target the file to be written
+     * @param data the complete contents of the file
+     * @return a future completing once the file is written and durable
+     */
+    public CompletableFuture<Void> write(final Path target, final byte[] data) {
+        return write(Collections.singletonMap(target, data));
+    }
+
+    /**Queues a set of files to be written together. All of the files are applied as part of
+     * the same batch, so a journaled account image is never split across batches
+     * @param files the files to be written, mapped to their complete contents
+     * @return a future completing once all of the files are written and durable
+     */
+    public CompletableFuture<Void> write(final Map<Path, byte[]> files) {
+        PendingWrite write = new PendingWrite(new LinkedHashMap<>(files), false);
+        enqueue(write);
+        return write.future;
+    }
+
+    /**Queues a deletion of files written through this writer. The writer applies every 
+     * write queued before the deletion, takes a checkpoint, then runs the deletion before
+     * applying any write queued after it
+     * @param deletion deletes the files
+     * @return a future completing once the deletion has run, or exceptionally with the
+     * deletion's failure
+     */
+    public CompletableFuture<Void> delete(final Deletion deletion) {
+        PendingWrite write = new PendingWrite(Collections.<Path, byte[]>emptyMap(), true,
+                                              deletion);
+        enqueue(write);
+        return write.future;
+    }
+
+    /**Requests a checkpoint- all files written since the last checkpoint are forced to disk
+     * and the journal is truncated. Must be requested before files written through this
+     * writer are deleted, otherwise a replay of the journal could restore them
+     * @return a future completing once the checkpoint has been taken
+     */
+    public CompletableFuture<Void> checkpoint() {
+        PendingWrite write = new PendingWrite(Collections.<Path, byte[]>emptyMap(), true);
+        enqueue(write);
+        return write.future;
+    }
+
+    /**Obtains the durability policy of this writer
+     * @return the durability policy of this writer
+     */
+    public Durability getDurability() {
+        return this.durability;
+    }
+
+    /**Stops accepting writes, applies anything already queued, takes a final checkpoint and
+     * releases the journal. If the writer is already closed this method has no effect
+     * @throws IOException if the final checkpoint fails
+     */
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        /*mark closed first, so the writer thread exits once the final checkpoint is applied*/
+        closed = true;
+        PendingWrite finalCheckpoint =
+                new PendingWrite(Collections.<Path, byte[]>emptyMap(), true);
+        pending.add(finalCheckpoint);
+        try {
+            finalCheckpoint.future.get();
+            writerThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            throw new IOException("Final checkpoint failed", e.getCause());
+        } finally {
+            /*fail anything which raced past the closed check after the writer stopped*/
+            PendingWrite write;
+            while ((write = pending.poll()) != null) {
+                write.future.completeExceptionally(new IOException("Writer has been closed"));
+            }
+            if (journal != null) {
+                journal.close();
+            }
+        }
+    }
+
+    /**Places a write on the queue, failing it immediately if the writer has been closed
+     * @param write the write to queue
+     */
+    private void enqueue(final PendingWrite write) {
+        if (closed) {
+            write.future.completeExceptionally(
+                    new IOException("Writer has been closed"));
+        } else {
+            pending.add(write);
+        }
+    }
+
+    /**Body of the writer thread- waits for at least one write, then drains whatever else
+     * is queued and applies it all as one batch, split around any deletion drained with
+     * it
+     */
+    private void drain() {
+        List<PendingWrite> batch = new ArrayList<>();
+        while (!(closed && pending.isEmpty())) {
+            try {
+                batch.add(pending.take());
+            } catch (InterruptedException e) {
+                continue;
+            }
+            pending.drainTo(batch, MAX_BATCH_SIZE - 1);
+            int start = 0;
+            for (int i = 0; i < batch.size(); i++) {
+                if (batch.get(i).deletion != null) {
+                    apply(batch.subList(start, i));
+                    delete(batch.get(i));
+                    start = i + 1;
+                }
+            }
+            apply(batch.subList(start, batch.size()));
+            batch.clear();
+        }
+        log.info("Writer for {} stopped", journalFile);
+    }
+
+    /**Runs a queued deletion, once a checkpoint has been taken
+     * @param write the queued deletion
+     */
+    private void delete(final PendingWrite write) {
+        try {
+            if (durability == Durability.GROUP) {
+                takeCheckpoint();
+            }
+            write.deletion.delete();
+            write.future.complete(null);
+        } catch (IOException | RuntimeException e) {
+            log.error("Unable to delete through writer for {}", journalFile, e);
+            write.future.completeExceptionally(e);
+        }
+    }
+
+    /**Applies a batch of writes, completing the future of every write in the batch. If
+     * the batch fails, its records are cut back out of the journal before its writes 
+     * are failed
+     * @param batch the writes to be applied
+     */
+    private void apply(final List<PendingWrite> batch) {
+        if (batch.isEmpty()) {
+            return;
+        }
+        boolean checkpointRequested = false;
+        long journalStart = -1;
+        try {
+            if (durability == Durability.GROUP) {
+                journalStart = journal.size();
+            }
+            if (durability == Durability.GROUP) {
+                appendToJournal(batch);
+            }
+            for (PendingWrite write : batch) {
+                checkpointRequested |= write.checkpoint;
+                for (Map.Entry<Path, byte[]> file : write.files.entrySet()) {
+                    writeFile(file.getKey(), file.getValue(), durability == Durability.SYNC);
+                    if (durability == Durability.GROUP) {
+                        unforced.add(file.getKey());
+                    }
+                }
+            }
+            if (durability == Durability.GROUP
+                    && (checkpointRequested || journal.size() > CHECKPOINT_THRESHOLD)) {
+                takeCheckpoint();
+            }
+            for (PendingWrite write : batch) {
+                write.future.complete(null);
+            }
+            log.debug("Committed batch of {} writes", batch.size());
+        } catch (IOException e) {
+            log.error("Unable to commit batch of {} writes", batch.size(), e);
+            if (journalStart >= 0) {
+                rollBackJournal(journalStart, e);
+            }
+            for (PendingWrite write : batch) {
+                write.future.completeExceptionally(e);
+            }
+        }
+    }
+
+    /**Appends a record for every file in the batch to the journal and forces the journal
+     * once. Each record is the target path, the data length and the data
+     * @param batch the writes to be journaled
+     * @throws IOException if the journal cannot be written or forced
+     */
+    private void appendToJournal(final List<PendingWrite> batch) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        try (DataOutputStream dos = new DataOutputStream(baos)) {
+            for (PendingWrite write : batch) {
+                for (Map.Entry<Path, byte[]> file : write.files.entrySet()) {
+                    dos.writeUTF(relativize(file.getKey()).toString());
+                    dos.writeInt(file.getValue().length);
+                    dos.write(file.getValue());
+                }
+            }
+        }
+        if (baos.size() > 0) {
+            ByteBuffer buffer = ByteBuffer.wrap(baos.toByteArray());
+            while (buffer.hasRemaining()) {
+                journal.write(buffer);
+            }
+            journal.force(false);
+        }
+    }
+
+    /**Cuts a failed batch's records back out of the journal, so a replay can't apply 
+     * them. The journal is left as it is if it has been truncated since the batch was 
+     * appended
+     * @param journalStart the journal's size before the batch was appended
+     * @param failure the batch's failure, to which a failure to cut the journal is added
+     */
+    private void rollBackJournal(final long journalStart, final IOException failure) {
+        try {
+            if (journal.size() > journalStart) {
+                journal.truncate(journalStart);
+                journal.force(true);
+            }
+        } catch (IOException e) {
+            log.error("Unable to remove failed batch from journal {}; a replay may apply it",
+                                                                        journalFile, e);
+            failure.addSuppressed(e);
+        }
+    }
+
+    /**Forces every file written since the last checkpoint and truncates the journal
+     * @throws IOException if a file cannot be forced or the journal cannot be truncated
+     */
+    private void takeCheckpoint() throws IOException {
+        if (unforced.isEmpty() && journal.size() == 0) {
+            return;
+        }
+        for (Path path : unforced) {
+            if (Files.exists(path)) {
+                try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+                    channel.force(true);
+                }
+            }
+        }
+        unforced.clear();
+        journal.truncate(0);
+        journal.force(true);
+        log.debug("Checkpoint taken for {}", journalFile);
+    }
+
+    /**Replays any complete records left in the journal by a previous run, forces the
+     * replayed files and removes the journal. A partially written trailing record is
+     * discarded, as its batch was never acknowledged
+     * @throws IOException if the journal cannot be read or a file cannot be restored
+     */
+    private void recover() throws IOException {
+        if (!journalFile.exists()) {
+            return;
+        }
+        int replayed = 0;
+        try (InputStream is = Files.newInputStream(journalFile.toPath());
+                DataInputStream dis = new DataInputStream(is)) {
+            while (true) {
+                Path target;
+                byte[] data;
+                try {
+                    target = root.resolve(Paths.get(dis.readUTF()));
+                    data = new byte[dis.readInt()];
+                    dis.readFully(data);
+                } catch (EOFException e) {
+                    break;
+                }
+                writeFile(target, data, true);
+                replayed++;
+            }
+        }
+        Files.delete(journalFile.toPath());
+        if (replayed > 0) {
+            log.info("Replayed {} journal records from {}", replayed, journalFile);
+        }
+    }
+
+    /**Obtains the path a file is journaled under- relative to the root if the file lives
+     * under it, otherwise absolute
+     * @param target the file
+     * @return the journaled path
+     */
+    private Path relativize(final Path target) {
+        Path absolute = target.toAbsolutePath().normalize();
+        return absolute.startsWith(root) ? root.relativize(absolute) : absolute;
+    }
+
+    /**Writes the complete contents of a file, creating any missing parent directories
+     * @param target the file to write
+     * @param data the contents of the file
+     * @param force whether the file should be forced to disk before returning
+     * @throws IOException if the file cannot be written
+     */
+    private static void writeFile(final Path target, final byte[] data, final boolean force)
+                                                                        throws IOException {
+        Path parent = target.getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+        try (FileChannel channel = FileChannel.open(target,
+                                                    StandardOpenOption.CREATE,
+                                                    StandardOpenOption.WRITE,
+                                                    StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buffer = ByteBuffer.wrap(data);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            if (force) {
+                channel.force(true);
+            }
+        }
+    }
+
+    /**Deletes files written through the writer, run by the writer thread*/
+    public interface Deletion {
+        /**Deletes the files
+         * @throws IOException if the files can't be deleted
+         */
+        void delete() throws IOException;
+    }
+
+    /**A queued request- a set of files to be written, a checkpoint request, or a 
+     * deletion*/
+    private static final class PendingWrite {
+        private final Map<Path, byte[]> files;
+        private final boolean checkpoint;
+        private final Deletion deletion;
+        private final CompletableFuture<Void> future = new CompletableFuture<>();
+
+        private PendingWrite(final Map<Path, byte[]> files, final boolean checkpoint) {
+            this(files, checkpoint, null);
+        }
+
+        private PendingWrite(final Map<Path, byte[]> files, final boolean checkpoint,
+                             final Deletion deletion) {
+            this.files = files;
+            this.checkpoint = checkpoint;
+            this.deletion = deletion;
+        }
+    }
+}
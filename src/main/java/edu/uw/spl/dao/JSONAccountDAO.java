@@ -2,6 +2,9 @@ package edu.uw.spl.dao;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.context.support.ClassPathXmlApplicationContext;
@@ -41,13 +44,13 @@ public class JSONAccountDAO extends AccountDAOs implements AccountDao, DaoFactor
     public JSONAccountDAO() {}
     
     /** 
-     * Gets a new instance of an accountDao 
+     * Gets a new instance of an accountDao, configured like this factory
      * @throws DaoFactoryException if the operation fails
      * @see edu.uw.ext.framework.dao.DaoFactory#getAccountDao()
      */ 
     @Override
-    public AccountDao getAccountDao() throws DaoFactoryException { 
-        return new JSONAccountDAO();
+    public AccountDao getAccountDao() throws DaoFactoryException {
+        return configure(new JSONAccountDAO());
     }
 
     /**Closes the DAO, releasing any resources used by this DAO. If the DAO is already
@@ -60,6 +63,8 @@ public class JSONAccountDAO extends AccountDAOs implements AccountDao, DaoFactor
         /*closes any open data streams- currently, any open data streams are 
         closed automatically in the try-with-resources statements within their 
         respective methods*/ 
+        /*...then releases the shared writer, closing it if no other DAO holds it*/
+        closeWriter();
     }
     
     
@@ -68,14 +73,16 @@ public class JSONAccountDAO extends AccountDAOs implements AccountDao, DaoFactor
      * @param accountName the name of the account to look up
      * @return the given Account, or <code>null</code> if the account was not located
      * @see edu.uw.ext.framework.dao.AccountDao#getAccount(java.lang.String)
+     * @throws IllegalStateException if the parent directory is being migrated
      */
     @Override
     public Account getAccount(final String accountName) {
         Account account = null;
-        File accountDirectory = new File(this.getParentDirectory().toString(),accountName);
+        File accountDirectory = getAccountDirectory(accountName);
         File JSONFile = new File(accountDirectory, accountName+".json");
                 
-        if (!JSONFile.exists()) {
+        /*Unknown names are answered by the name index without touching the disk*/
+        if (!getNameIndex().contains(accountName) || !JSONFile.exists()) {
             log.info("Unable to locate directory for {}",accountName);
         } else {
                 try {
@@ -85,7 +92,8 @@ public class JSONAccountDAO extends AccountDAOs implements AccountDao, DaoFactor
                     module.addAbstractTypeMapping(Address.class, AddressImpl.class);
                     module.addAbstractTypeMapping(CreditCard.class, CreditCardImpl.class);
                     MAPPER.registerModule(module);
-                    account = MAPPER.readValue(JSONFile, AccountImpl.class);
+                    account = completeRead(accountDirectory, 
+                                            MAPPER.readValue(JSONFile, AccountImpl.class));
                 } catch (IOException e) {
                     e.printStackTrace();
                 }
@@ -95,31 +103,51 @@ public class JSONAccountDAO extends AccountDAOs implements AccountDao, DaoFactor
         return account;
     }
 
-    /** Persists new Accounts to the file Directory as a JSON file, or updates an existing account
+    /** Persists new Accounts to the file Directory as a JSON file, or updates an existing account.
+     * Blocks until the shared writer has committed the JSON file
      * @param account the account to be persisted
      * @see edu.uw.ext.framework.dao.AccountDao#setAccount(edu.uw.ext.framework.account.Account)
      * @throws AccountException if the operation failed
      */
     @Override
     public void setAccount(final Account account) throws AccountException {
+        awaitWrite(setAccountAsync(account), account.getName());
+    }
+
+    /** Maps an account to its JSON file. The account is mapped immediately, so later
+     * changes to the given instance are not reflected in the queued write
+     * @param account the account to be persisted
+     * @param accountDirectory the directory the JSON file is written to
+     * @return the contents of the JSON file, keyed by path
+     * @throws AccountException if the account could not be mapped to JSON
+     */
+    @Override
+    protected Map<Path, byte[]> encodeAccount(final Account account, 
+                                              final File accountDirectory) 
+                                                            throws AccountException {
         String accountName = account.getName();
-        File accountDirectory = new File(this.getParentDirectory().toString(),accountName);
         File JsonFile = new File(accountDirectory.toString(), accountName + ".json");
         
-        /*If account name directory doesn't exist, create it*/
-        if (!accountDirectory.exists()) {
-           accountDirectory.mkdir();
-           log.info("Directory not found for account {}, creating",accountName);
-        }
-        
-        /*Now map the account to Json format*/
+        /*Now map the account to Json format- the writer creates the directory if needed*/
+        byte[] json;
         try {
-            MAPPER.writeValue(JsonFile, account);
-            
+            json = MAPPER.writeValueAsBytes(account);
         } catch (IOException e) {
-            e.printStackTrace();
+            throw new AccountException("Unable to map account " + accountName + " to JSON", e);
         }
-        log.info("Json for account {} updated",accountName);
+        Map<Path, byte[]> files = new LinkedHashMap<>();
+        files.put(JsonFile.toPath(), json);
+        return files;
+    }
+
+    /**Tests whether the given directory holds a persisted account, by checking for its
+     * JSON file
+     * @param accountDirectory the directory to test
+     * @return true if the directory holds the account's JSON file
+     */
+    @Override
+    protected boolean isAccountDirectory(final File accountDirectory) {
+        return new File(accountDirectory, accountDirectory.getName() + ".json").isFile();
     }
 
     /*Used for testing, otherwise ignore*/
@@ -0,0 +1,711 @@
+package edu.uw.spl.dao;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import edu.uw.ext.framework.account.Account;
+import edu.uw.ext.framework.account.AccountException;
+import edu.uw.ext.framework.account.Address;
+import edu.uw.ext.framework.account.CreditCard;
+import edu.uw.ext.framework.dao.AccountDao;
+import edu.uw.ext.framework.dao.DaoFactory;
+import edu.uw.ext.framework.dao.DaoFactoryException;
+import edu.uw.spl.account.AccountImpl;
+import edu.uw.spl.account.AddressImpl;
+import edu.uw.spl.account.CreditCardImpl;
+
+/**Implementation which defines the methods needed to get, store, and delete accounts in a
+ * relational database through JDBC. By default the accounts are kept in an embedded H2
+ * database under the target directory, which needs no server.
+ * <p>
+ * Connections are drawn from a pool shared by all DAOs using the same database, and each
+ * pooled connection caches its prepared statements. Concurrent <code>setAccount</code>
+ * calls are combined into a single batch of upserts committed in one transaction. When
+ * only an account's balance and positions have changed since it was last read or
+ * written, a targeted UPDATE of the two is issued instead of rewriting the whole row.
+ * Positions are stored in one column, encoded by <code>LedgerCodec</code>
+ * @author slajaunie
+ */
+public class JdbcAccountDAO implements AccountDao, DaoFactory {
+
+    private static final Logger log = LoggerFactory.getLogger(JdbcAccountDAO.class);
+
+    /**Default database- an embedded H2 database alongside the file based accounts*/
+    public static final String DEFAULT_URL = "jdbc:h2:./target/accountsdb";
+
+    private static final String CREATE_TABLE =
+            "CREATE TABLE IF NOT EXISTS account ("
+            + "name VARCHAR(255) PRIMARY KEY, "
+            + "password_hash VARBINARY(255), "
+            + "balance INT NOT NULL, "
+            + "email VARCHAR(255), full_name VARCHAR(255), phone VARCHAR(255), "
+            + "has_address BOOLEAN NOT NULL, street_address VARCHAR(255), "
+            + "city VARCHAR(255), state VARCHAR(255), zip_code VARCHAR(255), "
+            + "has_credit_card BOOLEAN NOT NULL, card_account_number VARCHAR(255), "
+            + "card_expiration_date VARCHAR(255), card_holder VARCHAR(255), "
+            + "card_issuer VARCHAR(255), card_type VARCHAR(255), positions VARBINARY)";
+
+    /**Adds the positions column to account tables created before positions were kept*/
+    private static final String ADD_POSITIONS =
+            "ALTER TABLE account ADD COLUMN IF NOT EXISTS positions VARBINARY";
+
+    private static final String COLUMNS =
+            "name, password_hash, balance, email, full_name, phone, "
+            + "has_address, street_address, city, state, zip_code, "
+            + "has_credit_card, card_account_number, card_expiration_date, card_holder, "
+            + "card_issuer, card_type, positions";
+
+    private static final String SELECT =
+            "SELECT " + COLUMNS + " FROM account WHERE name = ?";
+
+    private static final String SELECT_ALL = "SELECT " + COLUMNS + " FROM account";
+
+    /**Query listing the name of every account*/
+    private static final String SELECT_NAMES = "SELECT name FROM account";
+
+    /**Number of rows fetched at a time when streaming accounts*/
+    private static final int STREAM_FETCH_SIZE = 256;
+
+    private static final String UPSERT =
+            "MERGE INTO account (" + COLUMNS + ") KEY (name) "
+            + "VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+
+    private static final String UPDATE_LEDGER =
+            "UPDATE account SET balance = ?, positions = ? WHERE name = ?";
+
+    private static final String DELETE = "DELETE FROM account WHERE name = ?";
+
+    private static final String DELETE_ALL = "DELETE FROM account";
+
+    /**Databases shared by every DAO using the same url*/
+    private static final ConcurrentMap<String, Database> DATABASES = new ConcurrentHashMap<>();
+
+    private String url = DEFAULT_URL;
+    private String user = "sa";
+    private String password = "";
+    private int poolSize = 8;
+
+    /**
+     *Instantiates a new AccountDao
+     */
+    public JdbcAccountDAO() {}
+
+    /**
+     * Gets a new instance of an accountDao, configured like this factory
+     * @throws DaoFactoryException if the operation fails
+     * @see edu.uw.ext.framework.dao.DaoFactory#getAccountDao()
+     */
+    @Override
+    public AccountDao getAccountDao() throws DaoFactoryException {
+        JdbcAccountDAO dao = new JdbcAccountDAO();
+        dao.setUrl(url);
+        dao.setUser(user);
+        dao.setPassword(password);
+        dao.setPoolSize(poolSize);
+        try {
+            dao.database();
+        } catch (AccountException e) {
+            throw new DaoFactoryException("Unable to open database " + url, e);
+        }
+        return dao;
+    }
+
+    /**Lookup and return an Account from the given account name. If no such account is
+     * located, returns null
+     * @param accountName the name of the Account to lookup
+     * @see edu.uw.ext.framework.dao.AccountDao#getAccount(java.lang.String)
+     * @return the given Account, or <code>null</code> if the account was not located
+     */
+    @Override
+    public Account getAccount(final String accountName) {
+        Account account = null;
+        try {
+            Database db = database();
+            JdbcConnectionPool.PooledConnection connection = db.pool.acquire();
+            try {
+                PreparedStatement select = connection.prepare(SELECT);
+                select.setString(1, accountName);
+                try (ResultSet rs = select.executeQuery()) {
+                    if (rs.next()) {
+                        account = Row.read(rs).toAccount();
+                        db.digests.put(accountName, AccountDigest.of(account));
+                    }
+                }
+            } finally {
+                db.pool.release(connection);
+            }
+        } catch (SQLException | AccountException e) {
+            log.error("Unable to read Account {}", accountName, e);
+        }
+
+        /*Log if account is going to return null*/
+        if (account != null) {
+            log.info("Get for Account {} successful",accountName);
+        } else {
+            log.info("Get for Account {} unsuccessful; account will be null",accountName);
+        }
+        return account;
+    }
+
+    /**Obtains the names of every account in the table, from a single query over the
+     * name column alone
+     * @return the names of the persisted accounts
+     * @throws AccountException if the query fails
+     */
+    public Set<String> getAccountNames() throws AccountException {
+        Database db = database();
+        Set<String> names = new HashSet<>();
+        try {
+            JdbcConnectionPool.PooledConnection connection = db.pool.acquire();
+            try {
+                PreparedStatement select = connection.prepare(SELECT_NAMES);
+                select.setFetchSize(STREAM_FETCH_SIZE);
+                try (ResultSet rs = select.executeQuery()) {
+                    while (rs.next()) {
+                        names.add(rs.getString(1));
+                    }
+                }
+            } finally {
+                db.pool.release(connection);
+            }
+        } catch (SQLException e) {
+            throw new AccountException("Unable to list account names", e);
+        }
+        return names;
+    }
+
+    /**Streams every account in the table from a single query, reading rows as the stream
+     * reaches them, so memory stays bounded however many accounts there are. The stream
+     * holds a pooled connection until it is closed, so it should be consumed in a
+     * try-with-resources statement. Parallel streams split it into batches of rows
+     * @return a sequential stream of the accounts
+     * @throws AccountException if the query cannot be started
+     */
+    public Stream<Account> streamAccounts() throws AccountException {
+        Database db = database();
+        JdbcConnectionPool.PooledConnection connection;
+        ResultSet rs;
+        try {
+            connection = db.pool.acquire();
+        } catch (SQLException e) {
+            throw new AccountException("Unable to stream accounts", e);
+        }
+        try {
+            PreparedStatement selectAll = connection.prepare(SELECT_ALL);
+            selectAll.setFetchSize(STREAM_FETCH_SIZE);
+            rs = selectAll.executeQuery();
+        } catch (SQLException e) {
+            db.pool.release(connection);
+            throw new AccountException("Unable to stream accounts", e);
+        }
+        Spliterator<Account> rows = new Spliterators.AbstractSpliterator<Account>(
+                            Long.MAX_VALUE, Spliterator.NONNULL | Spliterator.DISTINCT) {
+            @Override
+            public boolean tryAdvance(final Consumer<? super Account> action) {
+                try {
+                    if (!rs.next()) {
+                        return false;
+                    }
+                    action.accept(Row.read(rs).toAccount());
+                    return true;
+                } catch (SQLException | AccountException e) {
+                    throw new IllegalStateException("Unable to read streamed account", e);
+                }
+            }
+        };
+        return StreamSupport.stream(rows, false).onClose(() -> {
+            try {
+                rs.close();
+            } catch (SQLException e) {
+                log.warn("Unable to close account stream", e);
+            } finally {
+                db.pool.release(connection);
+            }
+        });
+    }
+
+    /** Persists new Accounts, or updates an existing account. Concurrent calls are
+     * combined into one batch: whichever caller acquires the commit lock writes every
+     * queued account in a single transaction, and the others find their write done
+     * @param account the account to be persisted
+     * @see edu.uw.ext.framework.dao.AccountDao#setAccount(edu.uw.ext.framework.account.Account)
+     * @throws AccountException if the operation failed
+     */
+    @Override
+    public void setAccount(final Account account) throws AccountException {
+        Database db = database();
+        PendingRow pending = new PendingRow(Row.of(account));
+        db.pending.add(pending);
+        db.commitLock.lock();
+        try {
+            if (!pending.future.isDone()) {
+                flush(db);
+            }
+        } finally {
+            db.commitLock.unlock();
+        }
+        try {
+            pending.future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new AccountException("Interrupted persisting " + account.getName(), e);
+        } catch (ExecutionException e) {
+            throw new AccountException("Unable to persist " + account.getName(), e.getCause());
+        }
+        log.info("Account {} persisted", account.getName());
+    }
+
+    /**Removes the given account from the database
+     * @param accountName the name of the Account to be deleted
+     * @see edu.uw.ext.framework.dao.AccountDao#deleteAccount(java.lang.String)
+     * @throws AccountException if an Account with the given name does not exist,
+     * or if the operation otherwise fails
+     */
+    @Override
+    public void deleteAccount(final String accountName) throws AccountException {
+        Database db = database();
+        int deleted = execute(db, DELETE, accountName);
+        db.digests.remove(accountName);
+        if (deleted == 0) {
+            log.info("No row exists for name {}", accountName);
+            throw new AccountException("Account does not exist");
+        }
+        log.info("Account {} deleted", accountName);
+    }
+
+    /**Removes all accounts from the database
+     * @see edu.uw.ext.framework.dao.AccountDao#reset()
+     * @throws AccountException if the operation fails
+     */
+    @Override
+    public void reset() throws AccountException {
+        Database db = database();
+        execute(db, DELETE_ALL, null);
+        db.digests.clear();
+        log.info("Account table successfully reset");
+    }
+
+    /**Closes the DAO. The connection pool is shared by all DAOs using the same database
+     * and stays open for them, so this method has no effect
+     * @throws AccountException if the operation fails
+     * @see edu.uw.ext.framework.dao.AccountDao#close()
+     */
+    @Override
+    public void close() throws AccountException {
+        /*pooled connections are shared with the other DAOs on this database*/
+    }
+
+    /**Obtains the JDBC url of the database
+     * @return the JDBC url
+     */
+    public String getUrl() {
+        return url;
+    }
+
+    /**Sets the JDBC url of the database
+     * @param url the JDBC url
+     */
+    public void setUrl(final String url) {
+        this.url = url;
+    }
+
+    /**Obtains the database user
+     * @return the database user
+     */
+    public String getUser() {
+        return user;
+    }
+
+    /**Sets the database user
+     * @param user the database user
+     */
+    public void setUser(final String user) {
+        this.user = user;
+    }
+
+    /**Sets the database password
+     * @param password the database password
+     */
+    public void setPassword(final String password) {
+        this.password = password;
+    }
+
+    /**Obtains the maximum number of pooled connections
+     * @return the pool size
+     */
+    public int getPoolSize() {
+        return poolSize;
+    }
+
+    /**Sets the maximum number of pooled connections. Takes effect only if set before the
+     * database is first used
+     * @param poolSize the pool size
+     */
+    public void setPoolSize(final int poolSize) {
+        this.poolSize = poolSize;
+    }
+
+    /**Obtains the shared database for this DAO's url, opening its pool and creating the
+     * account table on first use
+     * @return the shared database
+     * @throws AccountException if the database cannot be opened
+     */
+    private Database database() throws AccountException {
+        Database db = DATABASES.get(url);
+        if (db == null) {
+            synchronized (DATABASES) {
+                db = DATABASES.get(url);
+                if (db == null) {
+                    JdbcConnectionPool pool =
+                            new JdbcConnectionPool(url, user, password, poolSize);
+                    try {
+                        JdbcConnectionPool.PooledConnection connection = pool.acquire();
+                        try (Statement statement = connection.getConnection().createStatement()) {
+                            statement.execute(CREATE_TABLE);
+                            statement.execute(ADD_POSITIONS);
+                        } finally {
+                            pool.release(connection);
+                        }
+                    } catch (SQLException e) {
+                        pool.close();
+                        throw new AccountException("Unable to open database " + url, e);
+                    }
+                    db = new Database(pool);
+                    DATABASES.put(url, db);
+                    log.info("Opened database {}", url);
+                }
+            }
+        }
+        return db;
+    }
+
+    /**Writes every queued row as one transaction. Only the last queued row per account is
+     * written; rows whose other columns match what was last read or written are written
+     * as an update of the balance and positions, the rest as upserts. An update which
+     * finds no row- the row was removed since it was read- is retried as an upsert, and
+     * the batch fails if any upsert reports no row written. Must hold the commit lock
+     * @param db the database being written
+     */
+    private static void flush(final Database db) {
+        Map<String, PendingRow> latest = new LinkedHashMap<>();
+        List<PendingRow> batch = new ArrayList<>();
+        PendingRow pending;
+        while ((pending = db.pending.poll()) != null) {
+            batch.add(pending);
+            latest.put(pending.row.name, pending);
+        }
+        if (batch.isEmpty()) {
+            return;
+        }
+        try {
+            JdbcConnectionPool.PooledConnection connection = db.pool.acquire();
+            PreparedStatement upsert = null;
+            PreparedStatement updateLedger = null;
+            try {
+                Connection conn = connection.getConnection();
+                conn.setAutoCommit(false);
+                upsert = connection.prepare(UPSERT);
+                updateLedger = connection.prepare(UPDATE_LEDGER);
+                List<PendingRow> upserts = new ArrayList<>();
+                List<PendingRow> ledgerUpdates = new ArrayList<>();
+                for (PendingRow write : latest.values()) {
+                    if (write.row.digest.equals(db.digests.get(write.row.name))) {
+                        updateLedger.setInt(1, write.row.balance);
+                        updateLedger.setBytes(2, write.row.positions);
+                        updateLedger.setString(3, write.row.name);
+                        updateLedger.addBatch();
+                        ledgerUpdates.add(write);
+                    } else {
+                        write.row.bind(upsert);
+                        upsert.addBatch();
+                        upserts.add(write);
+                    }
+                }
+                try {
+                    if (!ledgerUpdates.isEmpty()) {
+                        int[] counts = updateLedger.executeBatch();
+                        for (int i = 0; i < counts.length; i++) {
+                            if (counts[i] == 0) {
+                                /*the row is gone- write it whole*/
+                                PendingRow write = ledgerUpdates.get(i);
+                                write.row.bind(upsert);
+                                upsert.addBatch();
+                                upserts.add(write);
+                            }
+                        }
+                    }
+                    if (!upserts.isEmpty()) {
+                        int[] counts = upsert.executeBatch();
+                        for (int i = 0; i < counts.length; i++) {
+                            if (counts[i] == 0 || counts[i] == Statement.EXECUTE_FAILED) {
+                                throw new SQLException("No row written for account " 
+                                                                + upserts.get(i).row.name);
+                            }
+                        }
+                    }
+                    conn.commit();
+                } catch (SQLException e) {
+                    try {
+                        conn.rollback();
+                    } catch (SQLException rollback) {
+                        e.addSuppressed(rollback);
+                    }
+                    throw e;
+                }
+                for (PendingRow write : latest.values()) {
+                    db.digests.put(write.row.name, write.row.digest);
+                }
+                log.debug("Committed {} upserts and {} ledger updates",
+                                                    upserts.size(), ledgerUpdates.size());
+            } finally {
+                try {
+                    if (upsert != null) {
+                        upsert.clearBatch();
+                    }
+                    if (updateLedger != null) {
+                        updateLedger.clearBatch();
+                    }
+                } finally {
+                    db.pool.release(connection);
+                }
+            }
+            for (PendingRow write : batch) {
+                write.future.complete(null);
+            }
+        } catch (SQLException e) {
+            log.error("Unable to commit batch of {} accounts", batch.size(), e);
+            for (PendingRow write : batch) {
+                write.future.completeExceptionally(e);
+            }
+        }
+    }
+
+    /**Executes a single update statement in its own transaction
+     * @param db the database to update
+     * @param sql the statement to execute
+     * @param name the account name parameter, or null if the statement has none
+     * @return the number of rows affected
+     * @throws AccountException if the statement fails
+     */
+    private static int execute(final Database db, final String sql, final String name)
+                                                                    throws AccountException {
+        /*hold the commit lock so no batch is in flight while rows are removed*/
+        db.commitLock.lock();
+        try {
+            JdbcConnectionPool.PooledConnection connection = db.pool.acquire();
+            try {
+                PreparedStatement statement = connection.prepare(sql);
+                if (name != null) {
+                    statement.setString(1, name);
+                }
+                return statement.executeUpdate();
+            } finally {
+                db.pool.release(connection);
+            }
+        } catch (SQLException e) {
+            throw new AccountException("Unable to execute " + sql, e);
+        } finally {
+            db.commitLock.unlock();
+        }
+    }
+
+    /**State shared by every DAO using the same database*/
+    private static final class Database {
+        private final JdbcConnectionPool pool;
+
+        /**Serializes batch commits*/
+        private final Lock commitLock = new ReentrantLock();
+
+        /**Rows waiting to be committed*/
+        private final Queue<PendingRow> pending = new ConcurrentLinkedQueue<>();
+
+        /**Digest of the non-balance columns of each account, as last read or written*/
+        private final ConcurrentMap<String, AccountDigest> digests = 
+                                                                new ConcurrentHashMap<>();
+
+        private Database(final JdbcConnectionPool pool) {
+            this.pool = pool;
+        }
+    }
+
+    /**A queued row and the future completed once it is committed*/
+    private static final class PendingRow {
+        private final Row row;
+        private final CompletableFuture<Void> future = new CompletableFuture<>();
+
+        private PendingRow(final Row row) {
+            this.row = row;
+        }
+    }
+
+    /**Snapshot of the column values of an account row*/
+    private static final class Row {
+        private String name;
+        private byte[] passwordHash;
+        private int balance;
+        private String email;
+        private String fullName;
+        private String phone;
+        private String[] address;
+        private String[] creditCard;
+        
+        /**Positions, encoded by LedgerCodec*/
+        private byte[] positions;
+
+        /**Digest of the columns other than the balance and positions*/
+        private AccountDigest digest;
+
+        /**Takes a snapshot of an account
+         * @param account the account
+         * @return the account's row
+         */
+        private static Row of(final Account account) {
+            Row row = new Row();
+            row.digest = AccountDigest.of(account);
+            row.name = account.getName();
+            row.passwordHash = account.getPasswordHash();
+            Map<String, Long> holdings = new LinkedHashMap<>();
+            row.balance = LedgerCodec.snapshot(account, holdings);
+            row.positions = LedgerCodec.encodePositions(holdings);
+            row.email = account.getEmail();
+            row.fullName = account.getFullName();
+            row.phone = account.getPhone();
+            Address address = account.getAddress();
+            if (address != null) {
+                row.address = new String[] {address.getStreetAddress(), address.getCity(),
+                                            address.getState(), address.getZipCode()};
+            }
+            CreditCard card = account.getCreditCard();
+            if (card != null) {
+                row.creditCard = new String[] {card.getAccountNumber(),
+                                               card.getExpirationDate(), card.getHolder(),
+                                               card.getIssuer(), card.getType()};
+            }
+            return row;
+        }
+
+        /**Reads the current row of a result set
+         * @param rs the result set, positioned on a row
+         * @return the row
+         * @throws SQLException if the row cannot be read
+         */
+        private static Row read(final ResultSet rs) throws SQLException {
+            Row row = new Row();
+            row.name = rs.getString(1);
+            row.passwordHash = rs.getBytes(2);
+            row.balance = rs.getInt(3);
+            row.email = rs.getString(4);
+            row.fullName = rs.getString(5);
+            row.phone = rs.getString(6);
+            if (rs.getBoolean(7)) {
+                row.address = new String[] {rs.getString(8), rs.getString(9),
+                                            rs.getString(10), rs.getString(11)};
+            }
+            if (rs.getBoolean(12)) {
+                row.creditCard = new String[] {rs.getString(13), rs.getString(14),
+                                               rs.getString(15), rs.getString(16),
+                                               rs.getString(17)};
+            }
+            row.positions = rs.getBytes(18);
+            return row;
+        }
+
+        /**Binds the row to the parameters of the upsert statement
+         * @param statement the upsert statement
+         * @throws SQLException if a parameter cannot be bound
+         */
+        private void bind(final PreparedStatement statement) throws SQLException {
+            statement.setString(1, name);
+            statement.setBytes(2, passwordHash);
+            statement.setInt(3, balance);
+            statement.setString(4, email);
+            statement.setString(5, fullName);
+            statement.setString(6, phone);
+            statement.setBoolean(7, address != null);
+            for (int i = 0; i < 4; i++) {
+                bindNullable(statement, 8 + i, address == null ? null : address[i]);
+            }
+            statement.setBoolean(12, creditCard != null);
+            for (int i = 0; i < 5; i++) {
+                bindNullable(statement, 13 + i, creditCard == null ? null : creditCard[i]);
+            }
+            statement.setBytes(18, positions);
+        }
+
+        private static void bindNullable(final PreparedStatement statement, final int index,
+                                         final String value) throws SQLException {
+            if (value == null) {
+                statement.setNull(index, Types.VARCHAR);
+            } else {
+                statement.setString(index, value);
+            }
+        }
+
+        /**Builds an account from the row
+         * @return the account
+         * @throws AccountException if the account name is not valid
+         */
+        private Account toAccount() throws AccountException {
+            Account account = new AccountImpl();
+            account.setName(name);
+            account.setPasswordHash(passwordHash);
+            account.setBalance(balance);
+            account.setEmail(email);
+            account.setFullName(fullName);
+            account.setPhone(phone);
+            if (address != null) {
+                Address addr = new AddressImpl();
+                addr.setStreetAddress(address[0]);
+                addr.setCity(address[1]);
+                addr.setState(address[2]);
+                addr.setZipCode(address[3]);
+                account.setAddress(addr);
+            }
+            if (creditCard != null) {
+                CreditCard card = new CreditCardImpl();
+                card.setAccountNumber(creditCard[0]);
+                card.setExpirationDate(creditCard[1]);
+                card.setHolder(creditCard[2]);
+                card.setIssuer(creditCard[3]);
+                card.setType(creditCard[4]);
+                account.setCreditCard(card);
+            }
+            if (account instanceof AccountImpl) {
+                try {
+                    ((AccountImpl) account).restoreHoldings(
+                                                LedgerCodec.decodePositions(positions));
+                } catch (IOException e) {
+                    throw new AccountException("Malformed positions for account " + name, e);
+                }
+            }
+            return account;
+        }
+    }
+}
@@ -0,0 +1,160 @@
+package edu.uw.spl.dao;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**A fixed-size pool of JDBC connections. Connections are opened lazily, up to the pool
+ * size, and each keeps a cache of the prepared statements created on it, so a statement
+ * is only prepared once per connection for the life of the pool
+ * @author slajaunie
+ */
+public class JdbcConnectionPool {
+
+    private static final Logger log = LoggerFactory.getLogger(JdbcConnectionPool.class);
+
+    /**How long to wait for a free connection before failing, in seconds*/
+    private static final long CHECKOUT_TIMEOUT_SECONDS = 30;
+
+    private final String url;
+    private final String user;
+    private final String password;
+    private final int size;
+
+    /**Connections not currently checked out*/
+    private final BlockingQueue<PooledConnection> idle;
+
+    /**Number of connections opened so far*/
+    private final AtomicInteger opened = new AtomicInteger();
+
+    /**Instantiates a new, empty, pool
+     * @param url the JDBC url of the database
+     * @param user the database user
+     * @param password the database password
+     * @param size the maximum number of open connections
+     */
+    public JdbcConnectionPool(final String url, final String user, final String password,
+                              final int size) {
+        this.url = url;
+        this.user = user;
+        this.password = password;
+        this.size = size;
+        this.idle = new ArrayBlockingQueue<>(size);
+    }
+
+    /**Checks out a connection, opening a new one if none is idle and the pool is not yet
+     * full, otherwise waiting for one to be returned
+     * @return a connection, which must be returned with <code>release</code>
+     * @throws SQLException if a connection cannot be opened or none becomes free in time
+     */
+    public PooledConnection acquire() throws SQLException {
+        PooledConnection connection = idle.poll();
+        if (connection != null) {
+            return connection;
+        }
+        if (opened.incrementAndGet() <= size) {
+            log.debug("Opening pooled connection {} to {}", opened.get(), url);
+            try {
+                return new PooledConnection(DriverManager.getConnection(url, user, password));
+            } catch (SQLException e) {
+                opened.decrementAndGet();
+                throw e;
+            }
+        }
+        opened.decrementAndGet();
+        try {
+            connection = idle.poll(CHECKOUT_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted waiting for a connection", e);
+        }
+        if (connection == null) {
+            throw new SQLException("Timed out waiting for a connection to " + url);
+        }
+        return connection;
+    }
+
+    /**Returns a connection to the pool. A connection left in a failed state is closed and
+     * its slot freed instead
+     * @param connection the connection to return
+     */
+    public void release(final PooledConnection connection) {
+        try {
+            if (!connection.connection.getAutoCommit()) {
+                connection.connection.rollback();
+                connection.connection.setAutoCommit(true);
+            }
+            if (idle.offer(connection)) {
+                return;
+            }
+        } catch (SQLException e) {
+            log.warn("Discarding broken connection to {}", url, e);
+        }
+        connection.close();
+        opened.decrementAndGet();
+    }
+
+    /**Closes every idle connection. Connections checked out at the time are closed when
+     * they are returned
+     */
+    public void close() {
+        PooledConnection connection;
+        while ((connection = idle.poll()) != null) {
+            connection.close();
+            opened.decrementAndGet();
+        }
+    }
+
+    /**A pooled connection and the statements prepared on it*/
+    public static final class PooledConnection {
+        private final Connection connection;
+        private final Map<String, PreparedStatement> statements = new HashMap<>();
+
+        private PooledConnection(final Connection connection) {
+            this.connection = connection;
+        }
+
+        /**Obtains the underlying connection
+         * @return the underlying connection
+         */
+        public Connection getConnection() {
+            return connection;
+        }
+
+        /**Obtains a prepared statement for the given SQL, preparing it on first use
+         * @param sql the SQL of the statement
+         * @return the cached statement
+         * @throws SQLException if the statement cannot be prepared
+         */
+        public PreparedStatement prepare(final String sql) throws SQLException {
+            PreparedStatement statement = statements.get(sql);
+            if (statement == null) {
+                statement = connection.prepareStatement(sql);
+                statements.put(sql, statement);
+            }
+            return statement;
+        }
+
+        /**Closes the cached statements and the connection, ignoring failures*/
+        private void close() {
+            try {
+                for (PreparedStatement statement : statements.values()) {
+                    statement.close();
+                }
+                connection.close();
+            } catch (SQLException e) {
+                log.warn("Unable to close pooled connection", e);
+            }
+        }
+    }
+}
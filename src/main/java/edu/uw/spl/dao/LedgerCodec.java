@@ -0,0 +1,126 @@
+package edu.uw.spl.dao;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import edu.uw.ext.framework.account.Account;
+import edu.uw.spl.account.AccountImpl;
+
+/**Encodes the ledger of an account- its balance and share positions- which the DAOs
+ * persist together, apart from the rest of the account, so a fill rewrites only the
+ * ledger. The encoding is the balance as four bytes, optionally followed by the number of
+ * positions and each position's ticker and share count; a ledger of only the four byte
+ * balance, as written before positions were kept, decodes with no positions
+ * @author slajaunie
+ */
+public final class LedgerCodec {
+
+    /**Not instantiable*/
+    private LedgerCodec() {}
+
+    /**Encodes the ledger of an account. The balance and positions of an
+     * <code>AccountImpl</code> are taken together, as a consistent snapshot
+     * @param account the account
+     * @return the encoded ledger
+     */
+    public static byte[] encode(final Account account) {
+        Map<String, Long> holdings = new LinkedHashMap<>();
+        int balance = snapshot(account, holdings);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(8 + 16 * holdings.size());
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeInt(balance);
+            if (!holdings.isEmpty()) {
+                writePositions(out, holdings);
+            }
+        } catch (IOException e) {
+            /*not thrown by an in-memory stream*/
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**Applies an encoded ledger to an account
+     * @param ledger the encoded ledger
+     * @param account the account
+     * @throws IOException if the ledger is malformed
+     */
+    public static void apply(final byte[] ledger, final Account account) throws IOException {
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(ledger))) {
+            account.setBalance(in.readInt());
+            Map<String, Long> holdings = in.available() > 0
+                            ? readPositions(in) : Collections.<String, Long>emptyMap();
+            if (account instanceof AccountImpl) {
+                ((AccountImpl) account).restoreHoldings(holdings);
+            }
+        }
+    }
+
+    /**Takes the balance and positions of an account, consistently for an
+     * <code>AccountImpl</code>
+     * @param account the account
+     * @param holdings receives the shares held of each stock, by ticker
+     * @return the balance, in cents
+     */
+    public static int snapshot(final Account account, final Map<String, Long> holdings) {
+        if (account instanceof AccountImpl) {
+            return ((AccountImpl) account).snapshotLedger(holdings);
+        }
+        return account.getBalance();
+    }
+
+    /**Encodes positions alone, for stores keeping the balance separately
+     * @param holdings the shares held of each stock, by ticker
+     * @return the encoded positions
+     */
+    public static byte[] encodePositions(final Map<String, Long> holdings) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(4 + 16 * holdings.size());
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            writePositions(out, holdings);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**Decodes positions encoded by <code>encodePositions</code>
+     * @param positions the encoded positions, or <code>null</code> for none
+     * @return the shares held of each stock, by ticker
+     * @throws IOException if the positions are malformed
+     */
+    public static Map<String, Long> decodePositions(final byte[] positions)
+                                                                    throws IOException {
+        if (positions == null || positions.length == 0) {
+            return Collections.emptyMap();
+        }
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(positions))) {
+            return readPositions(in);
+        }
+    }
+
+    private static void writePositions(final DataOutputStream out,
+                                       final Map<String, Long> holdings)
+                                                                    throws IOException {
+        out.writeInt(holdings.size());
+        for (Map.Entry<String, Long> position : holdings.entrySet()) {
+            out.writeUTF(position.getKey());
+            out.writeLong(position.getValue());
+        }
+    }
+
+    private static Map<String, Long> readPositions(final DataInputStream in)
+                                                                    throws IOException {
+        int count = in.readInt();
+        Map<String, Long> holdings = new HashMap<>();
+        for (int i = 0; i < count; i++) {
+            holdings.put(in.readUTF(), in.readLong());
+        }
+        return holdings;
+    }
+}
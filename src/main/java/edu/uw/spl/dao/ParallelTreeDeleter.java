@@ -0,0 +1,162 @@
+package edu.uw.spl.dao;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**Deletes the contents of an account directory tree in parallel. The shard levels of the
+ * tree are split into one fork/join task per subdirectory, and each account directory is
+ * then removed with <code>Files.walkFileTree</code> by the task that reached it
+ * @author slajaunie
+ */
+public final class ParallelTreeDeleter {
+
+    private static final Logger log = LoggerFactory.getLogger(ParallelTreeDeleter.class);
+
+    /**Pool running the delete tasks- deletes are I/O bound, so more threads than cores*/
+    private static final ForkJoinPool POOL =
+            new ForkJoinPool(Math.max(4, 2 * Runtime.getRuntime().availableProcessors()));
+
+    /**Number of directory levels split into separate tasks- the two shard levels plus the
+     * parent directory itself*/
+    private static final int SPLIT_DEPTH = 3;
+
+    /**Not instantiable*/
+    private ParallelTreeDeleter() {}
+
+    /**Deletes everything below the given directory, leaving the directory itself in place
+     * @param directory the directory to empty
+     * @throws IOException if any file or directory could not be deleted
+     */
+    public static void deleteContents(final File directory) throws IOException {
+        run(directory.toPath(), false);
+    }
+
+    /**Deletes the given directory and everything below it
+     * @param directory the directory to delete
+     * @throws IOException if any file or directory could not be deleted
+     */
+    public static void deleteTree(final File directory) throws IOException {
+        run(directory.toPath(), true);
+    }
+
+    /**Runs a delete task over the tree and reports any failures
+     * @param root the root of the tree
+     * @param deleteRoot whether the root itself is deleted
+     * @throws IOException if any file or directory could not be deleted
+     */
+    private static void run(final Path root, final boolean deleteRoot) throws IOException {
+        if (!Files.isDirectory(root)) {
+            return;
+        }
+        Queue<IOException> failures = new ConcurrentLinkedQueue<>();
+        long start = System.nanoTime();
+        POOL.invoke(new DeleteTask(root, 0, deleteRoot, failures));
+        if (!failures.isEmpty()) {
+            IOException failure = new IOException(
+                    String.format("Unable to delete %d entries under %s", failures.size(), root));
+            failures.forEach(failure::addSuppressed);
+            throw failure;
+        }
+        log.info("Deleted tree under {} in {} ms", root, (System.nanoTime() - start) / 1000000);
+    }
+
+    /**Deletes a single directory of the tree, forking a task per subdirectory while within
+     * the shard levels and walking the subtree directly below them
+     */
+    private static final class DeleteTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final Path directory;
+        private final int depth;
+        private final boolean deleteSelf;
+        private final Queue<IOException> failures;
+
+        private DeleteTask(final Path directory, final int depth, final boolean deleteSelf,
+                           final Queue<IOException> failures) {
+            this.directory = directory;
+            this.depth = depth;
+            this.deleteSelf = deleteSelf;
+            this.failures = failures;
+        }
+
+        @Override
+        protected void compute() {
+            if (depth >= SPLIT_DEPTH) {
+                walkAndDelete(directory);
+                return;
+            }
+            List<DeleteTask> subtasks = new ArrayList<>();
+            File[] children = directory.toFile().listFiles();
+            if (children != null) {
+                for (File child : children) {
+                    if (child.isDirectory()) {
+                        subtasks.add(new DeleteTask(child.toPath(), depth + 1, true, failures));
+                    } else {
+                        delete(child.toPath());
+                    }
+                }
+            }
+            invokeAll(subtasks);
+            if (deleteSelf) {
+                delete(directory);
+            }
+        }
+
+        /**Deletes a subtree with a single walk, removing each directory after its entries
+         * @param subtree the root of the subtree
+         */
+        private void walkAndDelete(final Path subtree) {
+            try {
+                Files.walkFileTree(subtree, new SimpleFileVisitor<Path>() {
+                    @Override
+                    public FileVisitResult visitFile(final Path file,
+                                                     final BasicFileAttributes attrs) {
+                        delete(file);
+                        return FileVisitResult.CONTINUE;
+                    }
+
+                    @Override
+                    public FileVisitResult postVisitDirectory(final Path dir,
+                                                              final IOException exc) {
+                        if (exc != null) {
+                            failures.add(exc);
+                        }
+                        delete(dir);
+                        return FileVisitResult.CONTINUE;
+                    }
+                });
+            } catch (IOException e) {
+                failures.add(e);
+            }
+        }
+
+        /**Deletes a single file or empty directory, recording any failure. An entry which
+         * has already disappeared is not a failure
+         * @param path the entry to delete
+         */
+        private void delete(final Path path) {
+            try {
+                Files.deleteIfExists(path);
+            } catch (NoSuchFileException e) {
+                /*already gone*/
+            } catch (IOException e) {
+                failures.add(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package edu.uw.spl;
+
+import static org.junit.Assert.*;
+
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.nio.file.Files;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import edu.uw.spl.account.AccountBulkLoader;
+import edu.uw.spl.account.AccountManagerImpl;
+import edu.uw.spl.dao.FileAccountDAO;
+
+public class AccountBulkLoaderTest {
+
+    final private String ACCT_PASSWORD = "password";
+
+    private AccountManagerImpl source;
+
+    private AccountManagerImpl target;
+
+    @Before
+    public void setup() throws Exception {
+        source = newManager();
+        target = newManager();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        source.close();
+        target.close();
+    }
+
+    //A CSV import creates the valid accounts, and counts the invalid and duplicate
+    //records it skips
+    @Test
+    public void testCsvImportSkipsInvalidAndDuplicateRecords() throws Exception {
+        source.createAccount("account00", ACCT_PASSWORD, 100000);
+        String csv = "name,password,balance\n"
+                    + "account01,password,200000,a@b.c,Full Name,555-0100\n"
+                    + "account02,password,300000\n"
+                    + "short,password,300000\n"
+                    + "account03,password,10\n"
+                    + "account02,password,400000\n"
+                    + "account00,password,500000\n";
+        AccountBulkLoader.Result result =
+                new AccountBulkLoader(source, 2).importCsv(new StringReader(csv));
+
+        assertEquals(2, result.getImported());
+        assertEquals(2, result.getInvalid());
+        assertEquals(2, result.getDuplicates());
+        assertEquals(200000, source.getAccount("account01").getBalance());
+        assertEquals("Full Name", source.getAccount("account01").getFullName());
+        assertEquals(300000, source.getAccount("account02").getBalance());
+        assertEquals(100000, source.getAccount("account00").getBalance());
+        assertTrue(source.validateLogin("account02", ACCT_PASSWORD));
+    }
+
+    //Accounts exported as JSON lines import into another directory unchanged, with
+    //their passwords
+    @Test
+    public void testJsonLinesRoundTrip() throws Exception {
+        for (int i = 0; i < 10; i++) {
+            source.createAccount("account0" + i, ACCT_PASSWORD, 100000 + i);
+        }
+        StringWriter exported = new StringWriter();
+        assertEquals(10, new AccountBulkLoader(source).exportJsonLines(exported));
+
+        AccountBulkLoader.Result result = new AccountBulkLoader(target, 3)
+                                    .importJsonLines(new StringReader(exported.toString()));
+        assertEquals(10, result.getImported());
+        for (int i = 0; i < 10; i++) {
+            assertEquals(100000 + i, target.getAccount("account0" + i).getBalance());
+            assertTrue(target.validateLogin("account0" + i, ACCT_PASSWORD));
+        }
+        //importing the same lines again finds every account already there
+        result = new AccountBulkLoader(target)
+                                    .importJsonLines(new StringReader(exported.toString()));
+        assertEquals(0, result.getImported());
+        assertEquals(10, result.getDuplicates());
+    }
+
+    //Opens an account manager on a file DAO over an empty directory
+    private static AccountManagerImpl newManager() throws Exception {
+        FileAccountDAO dao = new FileAccountDAO();
+        dao.setParentDirectory(Files.createTempDirectory("accounts").toFile());
+        dao.reset();
+        AccountManagerImpl manager = new AccountManagerImpl();
+        manager.setAccountDAO(dao);
+        return manager;
+    }
+}
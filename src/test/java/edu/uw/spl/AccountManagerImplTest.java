@@ -0,0 +1,265 @@
+package edu.uw.spl;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import edu.uw.ext.framework.account.Account;
+import edu.uw.ext.framework.account.AccountException;
+import edu.uw.ext.framework.order.MarketBuyOrder;
+import edu.uw.ext.framework.order.MarketSellOrder;
+import edu.uw.spl.account.AccountImpl;
+import edu.uw.spl.account.AccountManagerImpl;
+import edu.uw.spl.account.CredentialIndex;
+import edu.uw.spl.dao.FileAccountDAO;
+
+public class AccountManagerImplTest {
+
+    final private String ACCT_NAME = "testAccount";
+
+    final private String ACCT_PASSWORD = "password";
+
+    final private int ACCT_BALANCE = 100000;
+
+    private File parentDirectory;
+
+    private StubDao accountDao;
+
+    private AccountManagerImpl accountManager;
+
+    @Before
+    public void setup() throws Exception {
+        parentDirectory = Files.createTempDirectory("accounts").toFile();
+        open();
+        accountDao.reset();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        accountManager.close();
+    }
+
+    //A delete the DAO refuses leaves the account live, with its balance, and reports the
+    //DAO's failure as its cause
+    @Test
+    public void testFailedDeleteKeepsAccount() throws Exception {
+        accountManager.setBalanceCheckpointInterval(60000);
+        accountManager.createAccount(ACCT_NAME, ACCT_PASSWORD, ACCT_BALANCE);
+        Account live = accountManager.getAccount(ACCT_NAME);
+
+        accountDao.refuseDelete = true;
+        try {
+            accountManager.deleteAccount(ACCT_NAME);
+            fail("delete refused by the DAO succeeded");
+        } catch (AccountException e) {
+            assertNotNull("cause of the failed delete dropped", e.getCause());
+        }
+        assertSame(live, accountManager.getAccount(ACCT_NAME));
+        assertEquals(ACCT_BALANCE, live.getBalance());
+        assertTrue(accountManager.validateLogin(ACCT_NAME, ACCT_PASSWORD));
+
+        //once the DAO deletes it, the account is gone
+        accountDao.refuseDelete = false;
+        accountManager.deleteAccount(ACCT_NAME);
+        assertNull(accountManager.getAccount(ACCT_NAME));
+        assertFalse(accountManager.validateLogin(ACCT_NAME, ACCT_PASSWORD));
+    }
+
+    //A warm-up loads the accounts which exist into the cache, so later lookups read
+    //nothing, skipping the names it can't locate
+    @Test
+    public void testWarmUpLoadsExistingAccounts() throws Exception {
+        List<String> names = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            names.add("account" + i);
+            accountManager.createAccount("account" + i, ACCT_PASSWORD, ACCT_BALANCE + i);
+        }
+        reopen();
+        names.add("missingAccount");
+        AtomicInteger lastProcessed = new AtomicInteger();
+        AtomicInteger lastTotal = new AtomicInteger();
+        int loaded = accountManager.warmUp(names, 4, (processed, total) -> {
+            lastProcessed.set(processed);
+            lastTotal.set(total);
+        });
+
+        assertEquals(20, loaded);
+        assertEquals(21, lastProcessed.get());
+        assertEquals(21, lastTotal.get());
+        int reads = accountDao.reads.get();
+        for (int i = 0; i < 20; i++) {
+            assertEquals(ACCT_BALANCE + i, accountManager.getAccount("account" + i).getBalance());
+        }
+        assertEquals(reads, accountDao.reads.get());
+    }
+
+    //A pinned account stays cached past the capacity until unpinned, while the accounts
+    //which aren't pinned are evicted
+    @Test
+    public void testPinnedAccountSurvivesEviction() throws Exception {
+        for (int i = 0; i < 4; i++) {
+            accountManager.createAccount("account" + i, ACCT_PASSWORD, ACCT_BALANCE);
+        }
+        reopen();
+        accountManager.setCacheCapacity(1);
+        Account pinned = accountManager.pinAccount("account0").get();
+        assertNotNull(pinned);
+        for (int i = 1; i < 4; i++) {
+            accountManager.getAccount("account" + i);
+        }
+        int reads = accountDao.reads.get();
+        assertSame(pinned, accountManager.getAccount("account0"));
+        assertEquals(reads, accountDao.reads.get());
+        //an account evicted meanwhile is read again
+        accountManager.getAccount("account1");
+        assertEquals(reads + 1, accountDao.reads.get());
+
+        accountManager.unpinAccount("account0");
+        accountManager.getAccount("account2");
+        accountManager.getAccount("account3");
+        reads = accountDao.reads.get();
+        accountManager.getAccount("account0");
+        assertEquals(reads + 1, accountDao.reads.get());
+
+        //a pin on an account which doesn't exist prefetches nothing
+        assertNull(accountManager.pinAccount("missingAccount").get());
+        accountManager.unpinAccount("missingAccount");
+    }
+
+    //Once an account's hash is indexed, logins are checked without reading the account,
+    //even once it is evicted, and the index follows password changes and deletes
+    @Test
+    public void testLoginCheckedFromCredentialIndex() throws Exception {
+        accountManager.createAccount(ACCT_NAME, ACCT_PASSWORD, ACCT_BALANCE);
+        accountManager.createAccount("otherAccount", ACCT_PASSWORD, ACCT_BALANCE);
+        reopen();
+        accountManager.setCacheCapacity(1);
+        assertTrue(accountManager.validateLogin(ACCT_NAME, ACCT_PASSWORD));
+        accountManager.getAccount("otherAccount");
+
+        int reads = accountDao.reads.get();
+        assertTrue(accountManager.validateLogin(ACCT_NAME, ACCT_PASSWORD));
+        assertFalse(accountManager.validateLogin(ACCT_NAME, "wrongPassword"));
+        assertEquals(reads, accountDao.reads.get());
+
+        Account account = accountManager.getAccount(ACCT_NAME);
+        account.setPasswordHash(new CredentialIndex("SHA-256").hash("newPassword"));
+        accountManager.persist(account);
+        assertFalse(accountManager.validateLogin(ACCT_NAME, ACCT_PASSWORD));
+        assertTrue(accountManager.validateLogin(ACCT_NAME, "newPassword"));
+
+        accountManager.deleteAccount(ACCT_NAME);
+        assertFalse(accountManager.validateLogin(ACCT_NAME, "newPassword"));
+        //a name which doesn't exist is refused without reading it
+        reads = accountDao.reads.get();
+        assertFalse(accountManager.validateLogin("missingAccount", ACCT_PASSWORD));
+        assertEquals(reads, accountDao.reads.get());
+    }
+
+    //While checkpointing, a fill only adjusts the balance table, and a checkpoint
+    //persists the changed balance
+    @Test
+    public void testCheckpointPersistsFilledBalance() throws Exception {
+        accountManager.setBalanceCheckpointInterval(60000);
+        Account account = accountManager.createAccount(ACCT_NAME, ACCT_PASSWORD, ACCT_BALANCE);
+        accountManager.reflectOrderAsync(account, new MarketBuyOrder(ACCT_NAME, 10, "BA"),
+                                            1000).get();
+        assertEquals(ACCT_BALANCE - 10000, account.getBalance());
+        assertEquals(ACCT_BALANCE, accountDao.getAccount(ACCT_NAME).getBalance());
+
+        assertEquals(1, accountManager.checkpointBalances());
+        assertEquals(ACCT_BALANCE - 10000, accountDao.getAccount(ACCT_NAME).getBalance());
+        assertEquals(0, accountManager.checkpointBalances());
+        reopen();
+        assertEquals(ACCT_BALANCE - 10000, accountManager.getAccount(ACCT_NAME).getBalance());
+    }
+
+    //An instance outliving its account's delete keeps its own balance, and never sees
+    //the balance of the account recreated under its name
+    @Test
+    public void testDeletedInstanceKeepsItsBalance() throws Exception {
+        accountManager.setBalanceCheckpointInterval(60000);
+        Account deleted = accountManager.createAccount(ACCT_NAME, ACCT_PASSWORD, ACCT_BALANCE);
+        accountManager.deleteAccount(ACCT_NAME);
+        Account recreated = accountManager.createAccount(ACCT_NAME, ACCT_PASSWORD,
+                                                            ACCT_BALANCE * 2);
+        assertNotSame(deleted, recreated);
+        assertEquals(ACCT_BALANCE, deleted.getBalance());
+        assertEquals(ACCT_BALANCE * 2, recreated.getBalance());
+
+        deleted.setBalance(ACCT_BALANCE * 3);
+        assertEquals(ACCT_BALANCE * 2, recreated.getBalance());
+        assertEquals(ACCT_BALANCE * 2, accountManager.getBalance(ACCT_NAME).intValue());
+    }
+
+    //The shares bought and sold through fills are persisted with the balance, and read
+    //back by another manager
+    @Test
+    public void testPositionsPersistedWithFills() throws Exception {
+        Account account = accountManager.createAccount(ACCT_NAME, ACCT_PASSWORD, ACCT_BALANCE);
+        accountManager.reflectOrderAsync(account, new MarketBuyOrder(ACCT_NAME, 10, "BA"),
+                                            1000).get();
+        accountManager.reflectOrderAsync(account, new MarketBuyOrder(ACCT_NAME, 5, "F"),
+                                            1000).get();
+        accountManager.reflectOrderAsync(account, new MarketSellOrder(ACCT_NAME, 4, "BA"),
+                                            1000).get();
+        reopen();
+
+        AccountImpl read = (AccountImpl) accountManager.getAccount(ACCT_NAME);
+        assertEquals(ACCT_BALANCE - 11000, read.getBalance());
+        assertEquals(6, read.getShares("BA"));
+        assertEquals(5, read.getShares("F"));
+        assertEquals(2, read.holdings().size());
+
+        //a position sold off is no longer persisted
+        accountManager.reflectOrderAsync(read, new MarketSellOrder(ACCT_NAME, 5, "F"),
+                                            1000).get();
+        reopen();
+        read = (AccountImpl) accountManager.getAccount(ACCT_NAME);
+        assertEquals(0, read.getShares("F"));
+        assertEquals(1, read.holdings().size());
+    }
+
+    //Opens an account manager on a stub DAO over the test directory
+    private void open() {
+        accountDao = new StubDao();
+        accountDao.setParentDirectory(parentDirectory);
+        accountManager = new AccountManagerImpl();
+        accountManager.setAccountDAO(accountDao);
+    }
+
+    //Closes the account manager, and opens another on the same directory
+    private void reopen() throws Exception {
+        accountManager.close();
+        open();
+    }
+
+    //A file DAO whose deletes can be made to fail, counting the accounts it reads
+    static class StubDao extends FileAccountDAO {
+        volatile boolean refuseDelete = false;
+
+        final AtomicInteger reads = new AtomicInteger();
+
+        @Override
+        public Account getAccount(final String accountName) {
+            reads.incrementAndGet();
+            return super.getAccount(accountName);
+        }
+
+        @Override
+        public void deleteAccount(final String accountName) throws AccountException {
+            if (refuseDelete) {
+                throw new AccountException("delete refused");
+            }
+            super.deleteAccount(accountName);
+        }
+    }
+}
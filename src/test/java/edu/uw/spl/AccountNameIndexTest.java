@@ -0,0 +1,81 @@
+package edu.uw.spl;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashSet;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import edu.uw.spl.dao.AccountNameIndex;
+
+public class AccountNameIndexTest {
+
+    private File parentDirectory;
+
+    private File sidecar;
+
+    @Before
+    public void setup() throws Exception {
+        parentDirectory = new File(Files.createTempDirectory("index").toFile(), "accounts");
+        parentDirectory.mkdirs();
+        sidecar = new File(parentDirectory.getParentFile(), "accounts.names");
+    }
+
+    //Additions and removals recorded in the sidecar are replayed by the next index
+    //loaded on the directory
+    @Test
+    public void testSidecarReplaysChanges() throws Exception {
+        AccountNameIndex index = newIndex();
+        index.add("account0");
+        index.add("account1");
+        index.remove("account0");
+        assertFalse(index.contains("account0"));
+
+        AccountNameIndex reloaded = newIndex();
+        assertEquals(new HashSet<>(Arrays.asList("account1")), reloaded.snapshot());
+    }
+
+    //Without a sidecar, the index is rebuilt from the directories holding an account,
+    //and the rebuilt sidecar serves the next load
+    @Test
+    public void testIndexRebuiltWithoutSidecar() throws Exception {
+        newIndex().add("stale0");
+        assertTrue(sidecar.delete());
+        for (String name : new String[] {"account0", "account1", "empty000"}) {
+            new File(parentDirectory, name).mkdirs();
+        }
+        Files.write(new File(parentDirectory, "account0/account.bin").toPath(), new byte[0]);
+        Files.write(new File(parentDirectory, "account1/account.bin").toPath(), new byte[0]);
+
+        AccountNameIndex rebuilt = newIndex();
+        assertEquals(new HashSet<>(Arrays.asList("account0", "account1")),
+                                                                    rebuilt.snapshot());
+        assertTrue(sidecar.isFile());
+        //a directory added since is no longer scanned for once the sidecar exists
+        new File(parentDirectory, "account2").mkdirs();
+        Files.write(new File(parentDirectory, "account2/account.bin").toPath(), new byte[0]);
+        assertEquals(2, newIndex().size());
+    }
+
+    //Clearing the index empties it and its sidecar
+    @Test
+    public void testClearEmptiesSidecar() throws Exception {
+        AccountNameIndex index = newIndex();
+        index.add("account0");
+        index.clear();
+        assertEquals(0, index.size());
+        assertEquals(0, newIndex().size());
+    }
+
+    //Opens an index over the account directories directly under the parent directory,
+    //taking a directory holding an account file for an account
+    private AccountNameIndex newIndex() {
+        return new AccountNameIndex(parentDirectory,
+                () -> Arrays.stream(parentDirectory.listFiles(File::isDirectory)),
+                dir -> new File(dir, "account.bin").isFile());
+    }
+}
@@ -0,0 +1,120 @@
+package edu.uw.spl;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import edu.uw.ext.framework.account.AccountException;
+import edu.uw.spl.account.AccountFactoryImpl;
+import edu.uw.spl.dao.AccountDirectoryLayout;
+import edu.uw.spl.dao.AccountShardMigrator;
+import edu.uw.spl.dao.FileAccountDAO;
+
+public class AccountShardMigratorTest {
+
+    final private String ACCT_NAME = "testAccount";
+
+    final private int ACCT_BALANCE = 100000;
+
+    private File parentDirectory;
+
+    private FileAccountDAO accountDao;
+
+    @Before
+    public void setup() throws Exception {
+        parentDirectory = new File(Files.createTempDirectory("migrate").toFile(), "accounts");
+        accountDao = newDao();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        accountDao.close();
+    }
+
+    //A migration refuses to start while a DAO is using the directory, and runs once the
+    //DAO is closed
+    @Test
+    public void testMigrationRefusedWhileDirectoryInUse() throws Exception {
+        accountDao.setAccount(
+                new AccountFactoryImpl().newAccount(ACCT_NAME, new byte[] {1}, ACCT_BALANCE));
+        try {
+            new AccountShardMigrator(parentDirectory).migrate();
+            fail("migration ran against a directory in use");
+        } catch (IOException e) {
+            //expected
+        }
+
+        accountDao.close();
+        assertEquals(0, new AccountShardMigrator(parentDirectory).migrate());
+        accountDao = newDao();
+        assertEquals(ACCT_BALANCE, accountDao.getAccount(ACCT_NAME).getBalance());
+    }
+
+    //A DAO refuses to read or write a directory while it is being migrated, and uses it
+    //once the migration's lock is released
+    @Test
+    public void testDaoRefusedWhileDirectoryMigrating() throws Exception {
+        File lockFile = new File(parentDirectory.getParentFile(),
+                                    parentDirectory.getName() + ".migrate.lock");
+        try (FileChannel channel = FileChannel.open(lockFile.toPath(),
+                                                    StandardOpenOption.CREATE,
+                                                    StandardOpenOption.WRITE);
+                FileLock lock = channel.lock()) {
+            try {
+                accountDao.getAccount(ACCT_NAME);
+                fail("read a directory being migrated");
+            } catch (IllegalStateException e) {
+                //expected
+            }
+            try {
+                accountDao.setAccount(new AccountFactoryImpl().newAccount(ACCT_NAME,
+                                                            new byte[] {1}, ACCT_BALANCE));
+                fail("wrote a directory being migrated");
+            } catch (AccountException | IllegalStateException e) {
+                //expected
+            }
+        }
+
+        accountDao.setAccount(
+                new AccountFactoryImpl().newAccount(ACCT_NAME, new byte[] {1}, ACCT_BALANCE));
+        assertEquals(ACCT_BALANCE, accountDao.getAccount(ACCT_NAME).getBalance());
+    }
+
+    //An account left in its pre-sharding directory is still read there, and the
+    //migration moves it into its shard, where it is read from then on
+    @Test
+    public void testLegacyAccountReadAndMigrated() throws Exception {
+        accountDao.setAccount(
+                new AccountFactoryImpl().newAccount(ACCT_NAME, new byte[] {1}, ACCT_BALANCE));
+        File sharded = AccountDirectoryLayout.shardedDirectory(parentDirectory, ACCT_NAME);
+        File legacy = AccountDirectoryLayout.legacyDirectory(parentDirectory, ACCT_NAME);
+        Files.move(sharded.toPath(), legacy.toPath());
+        assertEquals(ACCT_BALANCE, accountDao.getAccount(ACCT_NAME).getBalance());
+        accountDao.close();
+
+        assertEquals(1, new AccountShardMigrator(parentDirectory).migrate());
+        assertTrue(sharded.isDirectory());
+        assertFalse(legacy.exists());
+        accountDao = newDao();
+        assertEquals(ACCT_BALANCE, accountDao.getAccount(ACCT_NAME).getBalance());
+        //a second run finds nothing left to migrate
+        accountDao.close();
+        assertEquals(0, new AccountShardMigrator(parentDirectory).migrate());
+    }
+
+    //Opens a file DAO on the parent directory
+    private FileAccountDAO newDao() {
+        FileAccountDAO dao = new FileAccountDAO();
+        dao.setParentDirectory(parentDirectory);
+        return dao;
+    }
+}
@@ -0,0 +1,119 @@
+package edu.uw.spl;
+
+import static org.junit.Assert.*;
+
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import edu.uw.ext.framework.account.Account;
+import edu.uw.spl.account.AccountFactoryImpl;
+import edu.uw.spl.dao.AsyncAccountDao;
+import edu.uw.spl.dao.FileAccountDAO;
+
+public class AsyncAccountDaoTest {
+
+    final private String ACCT_NAME = "testAccount";
+
+    final private int ACCT_BALANCE = 100000;
+
+    private AsyncAccountDao asyncDao;
+
+    @Before
+    public void setup() throws Exception {
+        FileAccountDAO dao = new FileAccountDAO();
+        dao.setParentDirectory(Files.createTempDirectory("accounts").toFile());
+        dao.reset();
+        //a queue this short makes submitters run some tasks themselves
+        asyncDao = new AsyncAccountDao(dao, 4, 8);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        asyncDao.close();
+    }
+
+    //Each account's tasks run one at a time, in the order submitted, however the I/O
+    //threads pick them up
+    @Test
+    public void testTasksRunInSubmittedOrderPerAccount() throws Exception {
+        final int accounts = 4;
+        final int tasks = 200;
+        List<List<Integer>> ran = new ArrayList<>();
+        for (int a = 0; a < accounts; a++) {
+            ran.add(Collections.synchronizedList(new ArrayList<>()));
+        }
+        List<CompletableFuture<Integer>> submitted = new ArrayList<>();
+        for (int t = 0; t < tasks; t++) {
+            for (int a = 0; a < accounts; a++) {
+                final int task = t;
+                final List<Integer> account = ran.get(a);
+                submitted.add(asyncDao.submit("account" + a, () -> {
+                    int before = account.size();
+                    if (ThreadLocalRandom.current().nextInt(10) == 0) {
+                        Thread.sleep(1);
+                    }
+                    account.add(task);
+                    //no other task of the account ran meanwhile
+                    assertEquals(before + 1, account.size());
+                    return task;
+                }));
+            }
+        }
+        CompletableFuture.allOf(submitted.toArray(new CompletableFuture<?>[0])).get();
+
+        for (List<Integer> account : ran) {
+            for (int t = 0; t < tasks; t++) {
+                assertEquals(t, (int) account.get(t));
+            }
+        }
+    }
+
+    //A task blocked on one account holds up neither the other accounts nor, once it
+    //fails, the account's later tasks
+    @Test
+    public void testAccountsRunIndependently() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        CompletableFuture<Object> blocked = asyncDao.submit("account0", () -> {
+            release.await();
+            throw new IllegalStateException("failed");
+        });
+        CompletableFuture<Object> queued = asyncDao.submit("account0", () -> "ran");
+        assertEquals("other", asyncDao.submit("account1", () -> "other")
+                                                        .get(10, TimeUnit.SECONDS));
+        assertFalse(queued.isDone());
+
+        release.countDown();
+        try {
+            blocked.get(10, TimeUnit.SECONDS);
+            fail("failed task completed normally");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+        assertEquals("ran", queued.get(10, TimeUnit.SECONDS));
+    }
+
+    //A read submitted after writes of the account sees the last of them
+    @Test
+    public void testReadSeesEarlierWrites() throws Exception {
+        Account account = new AccountFactoryImpl().newAccount(ACCT_NAME, new byte[] {1},
+                                                                ACCT_BALANCE);
+        asyncDao.setAccountAsync(account);
+        for (int i = 1; i <= 20; i++) {
+            account.setBalance(ACCT_BALANCE + i);
+            asyncDao.setAccountAsync(account);
+        }
+        assertEquals(ACCT_BALANCE + 20,
+                asyncDao.getAccountAsync(ACCT_NAME).get(10, TimeUnit.SECONDS).getBalance());
+    }
+}
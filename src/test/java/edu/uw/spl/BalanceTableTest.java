@@ -0,0 +1,94 @@
+package edu.uw.spl;
+
+import static org.junit.Assert.*;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import edu.uw.spl.account.BalanceTable;
+import edu.uw.spl.account.Positions;
+
+public class BalanceTableTest {
+
+    final private String ACCT_NAME = "testAccount";
+
+    final private int ACCT_BALANCE = 100000;
+
+    //the number of ids in a page of the table
+    final private int PAGE_SIZE = 1 << 14;
+
+    private BalanceTable table;
+
+    @Before
+    public void setup() {
+        table = new BalanceTable();
+    }
+
+    //A loaded balance isn't flagged as changed, a fill is, and a drain hands each
+    //changed balance over once
+    @Test
+    public void testFillsDrainedOnce() {
+        int id = table.intern(ACCT_NAME);
+        table.load(id, ACCT_BALANCE, Collections.emptyMap());
+        assertEquals(0, table.drainChanged((name, balance) -> fail("loaded balance drained")));
+
+        table.fill(id, -10000, Positions.tickerId("BA"), 10);
+        table.fill(id, -5000, Positions.tickerId("BA"), 5);
+        Map<String, Integer> drained = new HashMap<>();
+        assertEquals(1, table.drainChanged(drained::put));
+        assertEquals(Integer.valueOf(ACCT_BALANCE - 15000), drained.get(ACCT_NAME));
+        assertEquals(0, table.drainChanged((name, balance) -> fail("drained twice")));
+
+        Map<String, Long> holdings = new HashMap<>();
+        assertEquals(ACCT_BALANCE - 15000, table.snapshot(id, holdings));
+        assertEquals(Long.valueOf(15), holdings.get("BA"));
+    }
+
+    //A removed account's positions are retired, and its id goes, with fresh positions and
+    //no balance, to the next account interned
+    @Test
+    public void testRemovedIdReused() {
+        int id = table.intern(ACCT_NAME);
+        table.load(id, ACCT_BALANCE, Collections.singletonMap("BA", 10L));
+        table.set(id, ACCT_BALANCE * 2);
+        Positions retired = table.positions(id);
+        table.intern("otherAccount");
+
+        table.remove(ACCT_NAME);
+        assertTrue(retired.isRetired());
+        assertEquals(-1, table.id(ACCT_NAME));
+        assertEquals(0, table.drainChanged((name, balance) -> fail("removed balance drained")));
+
+        assertEquals(id, table.intern("newAccount"));
+        assertFalse(table.contains(id));
+        assertNotSame(retired, table.positions(id));
+        assertFalse(table.positions(id).isRetired());
+        assertEquals(0, table.positions(id).size());
+    }
+
+    //Once every account of the last page is removed the page is released, and ids are
+    //assigned from the end of the pages left
+    @Test
+    public void testEmptiedPageReleased() {
+        for (int i = 0; i <= PAGE_SIZE; i++) {
+            table.intern("account" + i);
+        }
+        assertEquals(PAGE_SIZE, table.id("account" + PAGE_SIZE));
+        table.remove("account" + PAGE_SIZE);
+        try {
+            table.get(PAGE_SIZE);
+            fail("id of a released page read");
+        } catch (ArrayIndexOutOfBoundsException e) {
+            //expected
+        }
+
+        assertEquals(PAGE_SIZE, table.intern(ACCT_NAME));
+        table.set(PAGE_SIZE, ACCT_BALANCE);
+        assertEquals(ACCT_BALANCE, table.get(PAGE_SIZE));
+        assertEquals(PAGE_SIZE + 1, table.size());
+    }
+}
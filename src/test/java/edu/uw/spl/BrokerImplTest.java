@@ -2,6 +2,24 @@ package edu.uw.spl;
 
 import static org.junit.Assert.*;
 
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import org.springframework.beans.factory.BeanFactory;
@@ -9,6 +27,7 @@ import org.springframework.context.support.ClassPathXmlApplicationContext;
 
 import app.ExchangeFactory;
 import edu.uw.ext.exchange.TestExchange;
+import edu.uw.ext.framework.account.Account;
 import edu.uw.ext.framework.account.AccountException;
 import edu.uw.ext.framework.account.AccountManager;
 import edu.uw.ext.framework.account.AccountManagerFactory;
@@ -18,13 +37,24 @@ import edu.uw.ext.framework.broker.BrokerFactory;
 import edu.uw.ext.framework.dao.AccountDao;
 import edu.uw.ext.framework.dao.DaoFactory;
 import edu.uw.ext.framework.dao.DaoFactoryException;
+import edu.uw.ext.framework.exchange.ExchangeEvent;
+import edu.uw.ext.framework.exchange.ExchangeListener;
+import edu.uw.ext.framework.exchange.StockExchange;
 import edu.uw.ext.framework.exchange.StockQuote;
 import edu.uw.ext.framework.order.MarketBuyOrder;
 import edu.uw.ext.framework.order.MarketSellOrder;
 import edu.uw.ext.framework.order.Order;
 import edu.uw.ext.framework.order.StopBuyOrder;
 import edu.uw.ext.framework.order.StopSellOrder;
+import edu.uw.spl.account.AccountImpl;
+import edu.uw.spl.account.AccountManagerImpl;
+import edu.uw.spl.broker.AccountStatement;
 import edu.uw.spl.broker.BrokerFactoryImpl;
+import edu.uw.spl.broker.BrokerImpl;
+import edu.uw.spl.broker.LimitBuyOrder;
+import edu.uw.spl.broker.LimitOrderBook;
+import edu.uw.spl.broker.MarginEvent;
+import edu.uw.spl.dao.FileAccountDAO;
 
 public class BrokerImplTest {
     
@@ -66,6 +96,12 @@ public class BrokerImplTest {
     TestExchange exchange; 
     Broker broker;
     
+    //A broker on a stub exchange, its account manager and the exchange, for the tests
+    //controlling quotes, hours and fills; created by newBroker
+    StubExchange stubExchange;
+    AccountManagerImpl stubManager;
+    BrokerImpl stubBroker;
+    
     @Before
     public void setup() {
         
@@ -155,4 +191,684 @@ public class BrokerImplTest {
         }
         
     }
+    
+    //Fills racing cache evictions all land on the one live instance of their account,
+    //and a pinned account is never evicted
+    @Test
+    public void testFillsSurviveCacheEviction() throws Exception {
+        newBroker(1000, "AAA");
+        final int accounts = 6;
+        final int orders = 600;
+        for (int i = 0; i < accounts; i++) {
+            stubBroker.createAccount("account0" + i, ACCT_PASSWORD, 100000000);
+        }
+        stubManager.setCacheCapacity(2);
+        ExecutorService clients = Executors.newFixedThreadPool(4);
+        for (int i = 0; i < orders; i++) {
+            final String name = "account0" + (i % accounts);
+            clients.submit(() -> {
+                stubBroker.placeOrder(new MarketBuyOrder(name, 1, "AAA"));
+                return null;
+            });
+        }
+        clients.shutdown();
+        assertTrue(clients.awaitTermination(30, TimeUnit.SECONDS));
+        await("orders not traded", () -> stubExchange.trades.size() == orders);
+        
+        //fills are reflected asynchronously
+        await("fills not reflected", 
+                () -> totalShares("account0", accounts, "AAA") == orders);
+        
+        //a pinned account stays live while others are read past the capacity
+        stubManager.setCacheCapacity(1);
+        stubManager.pinAccount("account00").join();
+        Account pinned = stubManager.getAccount("account00");
+        stubManager.getAccount("account01");
+        stubManager.getAccount("account02");
+        assertSame(pinned, stubManager.getAccount("account00"));
+        stubManager.unpinAccount("account00");
+    }
+    
+    //Each account's orders reach the exchange in the order they were placed, though some
+    //wait on a cold read of their account and others find it live
+    @Test
+    public void testAccountOrdersExecuteInPlacedOrder() throws Exception {
+        newBroker(1000, "AAA");
+        final int accounts = 3;
+        final int rounds = 100;
+        for (int i = 0; i < accounts; i++) {
+            stubBroker.createAccount("account0" + i, ACCT_PASSWORD, 100000000);
+        }
+        stubManager.setCacheCapacity(1);
+        //each account's orders are told apart by their size, growing by one share
+        for (int shares = 1; shares <= rounds; shares++) {
+            for (int i = 0; i < accounts; i++) {
+                stubBroker.placeOrder(new MarketBuyOrder("account0" + i, shares, "AAA"));
+            }
+        }
+        await("orders not traded", () -> stubExchange.trades.size() == accounts * rounds);
+        
+        Map<String, Integer> lastShares = new HashMap<>();
+        synchronized (stubExchange.trades) {
+            for (Order trade : stubExchange.trades) {
+                Integer last = lastShares.put(trade.getAccountId(), 
+                                                        trade.getNumberOfShares());
+                assertEquals("order of " + trade.getAccountId() + " out of turn",
+                                last == null ? 1 : last + 1, trade.getNumberOfShares());
+            }
+        }
+    }
+    
+    //Deleting an account revokes its sessions, and a session opened before the deletion
+    //never comes back to life on an account recreated under the same name
+    @Test
+    public void testDeleteAccountRevokesSessions() throws Exception {
+        newBroker(1000, "AAA");
+        stubBroker.createAccount(ACCT_NAME, ACCT_PASSWORD, 100000);
+        String token = stubBroker.openSession(ACCT_NAME, ACCT_PASSWORD);
+        assertEquals(ACCT_NAME, stubBroker.getAccount(token).getName());
+        
+        stubBroker.deleteAccount(ACCT_NAME);
+        try {
+            stubBroker.getAccount(token);
+            fail("Should have thrown an exception");
+        } catch (BrokerException e) {
+            //expected- the session was revoked
+        }
+        
+        stubBroker.createAccount(ACCT_NAME, ACCT_PASSWORD, 100000);
+        try {
+            stubBroker.getAccount(token);
+            fail("Should have thrown an exception");
+        } catch (BrokerException e) {
+            //expected- the session belonged to the deleted account
+        }
+        String renewed = stubBroker.openSession(ACCT_NAME, ACCT_PASSWORD);
+        assertEquals(ACCT_NAME, stubBroker.getAccount(renewed).getName());
+    }
+    
+    //Cancels racing the open's dispatch of the same orders: each order is either 
+    //cancelled or executed, never both, and its buying power is released
+    @Test
+    public void testCancelRacingOpenExecutesOrCancelsEachOrderOnce() throws Exception {
+        newBroker(1000, "AAA");
+        closeExchange();
+        stubBroker.setBuyingPowerCheck(true);
+        stubBroker.createAccount(ACCT_NAME, ACCT_PASSWORD, 100000000);
+        final int orders = 500;
+        List<Order> placed = new ArrayList<>();
+        for (int i = 0; i < orders; i++) {
+            MarketBuyOrder order = new MarketBuyOrder(ACCT_NAME, 1, "AAA");
+            stubBroker.placeOrder(order);
+            placed.add(order);
+        }
+        assertEquals(orders * 1000L, stubBroker.getReservedBuyingPower(ACCT_NAME));
+        
+        Set<Integer> cancelled = ConcurrentHashMap.newKeySet();
+        Thread canceller = new Thread(() -> {
+            for (Order order : placed) {
+                if (stubBroker.cancelOrder(order.getOrderId())) {
+                    cancelled.add(order.getOrderId());
+                }
+            }
+        });
+        canceller.start();
+        openExchange();
+        canceller.join();
+        await("orders neither traded nor cancelled", 
+                () -> stubExchange.trades.size() + cancelled.size() == orders);
+        
+        Set<Integer> executed = new HashSet<>();
+        synchronized (stubExchange.trades) {
+            for (Order order : stubExchange.trades) {
+                assertTrue(executed.add(order.getOrderId()));
+            }
+        }
+        for (Order order : placed) {
+            assertTrue(executed.contains(order.getOrderId()) 
+                                    != cancelled.contains(order.getOrderId()));
+        }
+        await("buying power not released", 
+                () -> stubBroker.getReservedBuyingPower(ACCT_NAME) == 0);
+    }
+    
+    //Replacing a stop buy order counts the original's reservation as available, and the
+    //replacement keeps the original's place when triggered
+    @Test
+    public void testReplaceStopOrderKeepsPlaceAndReservation() throws Exception {
+        newBroker(1000, "AAA");
+        stubBroker.setBuyingPowerCheck(true);
+        stubBroker.createAccount(ACCT_NAME, ACCT_PASSWORD, 600000);
+        StopBuyOrder first = new StopBuyOrder(ACCT_NAME, 100, "AAA", 2000);
+        StopBuyOrder second = new StopBuyOrder(ACCT_NAME, 100, "AAA", 2000);
+        StopBuyOrder third = new StopBuyOrder(ACCT_NAME, 100, "AAA", 2000);
+        stubBroker.placeOrder(first);
+        stubBroker.placeOrder(second);
+        stubBroker.placeOrder(third);
+        assertEquals(600000, stubBroker.getReservedBuyingPower(ACCT_NAME));
+        
+        //the whole balance is reserved, so this only fits with the original's credit
+        StopBuyOrder reduced = new StopBuyOrder(ACCT_NAME, 90, "AAA", 2000);
+        assertTrue(stubBroker.replaceOrder(first.getOrderId(), reduced));
+        assertFalse(stubBroker.replaceOrder(first.getOrderId(), 
+                                    new StopBuyOrder(ACCT_NAME, 80, "AAA", 2000)));
+        assertEquals(580000, stubBroker.getReservedBuyingPower(ACCT_NAME));
+        
+        stubExchange.quotes.put("AAA", 2000);
+        stubBroker.priceChanged(
+                ExchangeEvent.newPriceChangedEvent(stubExchange, "AAA", 2000));
+        await("stop orders not traded", () -> stubExchange.trades.size() == 3);
+        List<Integer> executed = new ArrayList<>();
+        synchronized (stubExchange.trades) {
+            for (Order order : stubExchange.trades) {
+                executed.add(order.getOrderId());
+            }
+        }
+        assertEquals(reduced.getOrderId(), (int) executed.get(0));
+        assertFalse(stubBroker.cancelOrder(first.getOrderId()));
+        await("buying power not released", 
+                () -> stubBroker.getReservedBuyingPower(ACCT_NAME) == 0);
+    }
+    
+    //A triggered limit order whose stock's quote has moved past its limit returns to the
+    //book, keeping its reservation, rather than filling outside its limit
+    @Test
+    public void testLimitOrderNeverFillsOutsideItsLimit() throws Exception {
+        newBroker(1000, "AAA");
+        stubBroker.setBuyingPowerCheck(true);
+        stubBroker.createAccount(ACCT_NAME, ACCT_PASSWORD, 1000000);
+        LimitBuyOrder order = new LimitBuyOrder(ACCT_NAME, 10, "AAA", 990);
+        stubBroker.placeOrder(order);
+        LimitOrderBook book = stubBroker.getLimitOrderBook("AAA");
+        assertEquals(990, book.getBestBid());
+        assertEquals(9900, stubBroker.getReservedBuyingPower(ACCT_NAME));
+        
+        //triggered by the event, but the quote is still above the limit
+        stubBroker.priceChanged(
+                ExchangeEvent.newPriceChangedEvent(stubExchange, "AAA", 990));
+        await("order not returned to the book", () -> book.size() == 1);
+        assertTrue(stubExchange.trades.isEmpty());
+        assertEquals(9900, stubBroker.getReservedBuyingPower(ACCT_NAME));
+        
+        stubExchange.quotes.put("AAA", 985);
+        stubBroker.priceChanged(
+                ExchangeEvent.newPriceChangedEvent(stubExchange, "AAA", 985));
+        await("buying power not released", 
+                () -> stubBroker.getReservedBuyingPower(ACCT_NAME) == 0);
+        assertEquals(1, stubExchange.trades.size());
+        assertEquals(order.getOrderId(), stubExchange.trades.get(0).getOrderId());
+        assertEquals(0, book.size());
+        assertEquals(10, ((AccountImpl) stubManager.getAccount(ACCT_NAME)).getShares("AAA"));
+    }
+    
+    //Opposing market orders cross at the exchange's quote, not the last price event,
+    //and only the remainder is routed to the exchange
+    @Test
+    public void testCrossingFillsAtQuoteAndRoutesRemainder() throws Exception {
+        newBroker(1000, "AAA");
+        stubBroker.createAccount("account0", ACCT_PASSWORD, 10000000);
+        stubBroker.createAccount("account1", ACCT_PASSWORD, 10000000);
+        //the seller holds the shares it sells
+        stubBroker.placeOrder(new MarketBuyOrder("account1", 60, "AAA"));
+        await("shares not bought", () -> shares("account1", "AAA") == 60);
+        stubExchange.trades.clear();
+        
+        stubBroker.setCrossingWindowMillis(50);
+        //the quote moves with no price event
+        stubExchange.quotes.put("AAA", 1100);
+        stubBroker.placeOrder(new MarketBuyOrder("account0", 100, "AAA"));
+        stubBroker.placeOrder(new MarketSellOrder("account1", 60, "AAA"));
+        await("fills not reflected", () -> shares("account0", "AAA") == 100
+                                        && shares("account1", "AAA") == 0);
+        assertEquals(120, stubBroker.getCrossedShares());
+        assertEquals(1, stubExchange.trades.size());
+        assertEquals(40, stubExchange.trades.get(0).getNumberOfShares());
+        assertEquals(10000000 - 100 * 1100, stubManager.getAccount("account0").getBalance());
+        assertEquals(10000000 - 60 * 1000 + 60 * 1100, 
+                                        stubManager.getAccount("account1").getBalance());
+    }
+    
+    //Market orders held for crossing when the exchange closes return to the market order
+    //queue, and are crossed once it opens again. The window is long enough never to 
+    //close by itself; switching crossing off closes it
+    @Test
+    public void testCrossingHoldsOrdersOverTheClose() throws Exception {
+        newBroker(1000, "AAA");
+        stubBroker.createAccount("account0", ACCT_PASSWORD, 10000000);
+        stubBroker.createAccount("account1", ACCT_PASSWORD, 10000000);
+        stubBroker.placeOrder(new MarketBuyOrder("account1", 4, "AAA"));
+        await("shares not bought", () -> shares("account1", "AAA") == 4);
+        stubExchange.trades.clear();
+        
+        stubBroker.setCrossingWindowMillis(TimeUnit.HOURS.toMillis(1));
+        MarketBuyOrder buy = new MarketBuyOrder("account0", 10, "AAA");
+        MarketSellOrder sell = new MarketSellOrder("account1", 4, "AAA");
+        stubBroker.placeOrder(buy);
+        stubBroker.placeOrder(sell);
+        closeExchange();
+        //closing the stage while the exchange is closed sends it nothing...
+        stubBroker.setCrossingWindowMillis(TimeUnit.HOURS.toMillis(1));
+        assertTrue(stubExchange.trades.isEmpty());
+        
+        //...and the orders wait in the market order queue, to be crossed after the open
+        openExchange();
+        assertTrue(stubExchange.trades.isEmpty());
+        stubBroker.setCrossingWindowMillis(0);
+        await("remainder not routed", () -> stubExchange.trades.size() == 1);
+        //the part routed may already be executed and untraced, so it's told by its account
+        assertEquals("account0", stubExchange.trades.get(0).getAccountId());
+        assertEquals(6, stubExchange.trades.get(0).getNumberOfShares());
+        await("fills not reflected", () -> shares("account0", "AAA") == 10
+                                        && shares("account1", "AAA") == 0);
+        assertEquals(10000000 - 10 * 1000, stubManager.getAccount("account0").getBalance());
+        assertEquals(10000000, stubManager.getAccount("account1").getBalance());
+    }
+    
+    //The part of a limit order left over by a cross, which the quote then moved past,
+    //rests in the book with its share of the reservation, and is cancelled by the id of
+    //the order placed
+    @Test
+    public void testCancelReachesRestingPartOfCrossedOrder() throws Exception {
+        newBroker(1000, "AAA");
+        stubBroker.setBuyingPowerCheck(true);
+        stubBroker.createAccount("account0", ACCT_PASSWORD, 10000000);
+        stubBroker.createAccount("account1", ACCT_PASSWORD, 10000000);
+        stubBroker.placeOrder(new MarketBuyOrder("account1", 60, "AAA"));
+        await("shares not bought", () -> shares("account1", "AAA") == 60);
+        
+        stubBroker.setCrossingWindowMillis(TimeUnit.HOURS.toMillis(1));
+        LimitBuyOrder order = new LimitBuyOrder("account0", 100, "AAA", 1000);
+        stubBroker.placeOrder(order);
+        stubBroker.placeOrder(new MarketSellOrder("account1", 60, "AAA"));
+        //crossed at 1000, then the quote moves past the limit before the rest is routed
+        stubExchange.moves.put("AAA", new ConcurrentLinkedQueue<>(Arrays.asList(1010)));
+        stubBroker.setCrossingWindowMillis(0);
+        LimitOrderBook book = stubBroker.getLimitOrderBook("AAA");
+        await("rest not returned to the book", () -> book.size() == 1);
+        await("cross not reflected", () -> shares("account0", "AAA") == 60);
+        assertEquals(Long.valueOf(40), book.getBidLevels(1).get(1000));
+        //the crossed part's share is released once its fill is reflected
+        await("crossed part's buying power not released", 
+                () -> stubBroker.getReservedBuyingPower("account0") == 40000);
+        
+        assertTrue(stubBroker.cancelOrder(order.getOrderId()));
+        assertEquals(0, book.size());
+        assertEquals(0, stubBroker.getReservedBuyingPower("account0"));
+        assertFalse(stubBroker.cancelOrder(order.getOrderId()));
+    }
+    
+    //An order the exchange refuses is failed, releasing its reservation, rather than
+    //treated as executed
+    @Test
+    public void testRefusedOrderIsFailed() throws Exception {
+        newBroker(1000, "AAA", "BBB");
+        stubBroker.setBuyingPowerCheck(true);
+        stubBroker.createAccount(ACCT_NAME, ACCT_PASSWORD, 1000000);
+        stubExchange.down.add("AAA");
+        MarketBuyOrder refused = new MarketBuyOrder(ACCT_NAME, 10, "AAA");
+        stubBroker.placeOrder(refused);
+        await("order not failed", 
+                () -> stubBroker.getFailedOrders().contains(refused.getOrderId()));
+        assertEquals(0, stubBroker.getReservedBuyingPower(ACCT_NAME));
+        assertEquals(0, shares(ACCT_NAME, "AAA"));
+        assertEquals(1000000, stubManager.getAccount(ACCT_NAME).getBalance());
+        
+        //the account's other orders still execute
+        stubBroker.placeOrder(new MarketBuyOrder(ACCT_NAME, 10, "BBB"));
+        await("order not executed", () -> shares(ACCT_NAME, "BBB") == 10);
+        assertEquals(1, stubBroker.getFailedOrders().size());
+    }
+    
+    //A buy order whose cost would take the account's reserved buying power past its
+    //balance is refused when placed, and never reaches the exchange
+    @Test
+    public void testOrderBeyondBuyingPowerRefused() throws Exception {
+        newBroker(1000, "AAA");
+        closeExchange();
+        stubBroker.setBuyingPowerCheck(true);
+        stubBroker.createAccount(ACCT_NAME, ACCT_PASSWORD, 100000);
+        stubBroker.placeOrder(new MarketBuyOrder(ACCT_NAME, 60, "AAA"));
+        MarketBuyOrder refused = new MarketBuyOrder(ACCT_NAME, 50, "AAA");
+        try {
+            stubBroker.placeOrder(refused);
+            fail("order beyond buying power placed");
+        } catch (BrokerException e) {
+            //expected
+        }
+        assertEquals(60000, stubBroker.getReservedBuyingPower(ACCT_NAME));
+        //what is left still fits
+        stubBroker.placeOrder(new MarketBuyOrder(ACCT_NAME, 40, "AAA"));
+        assertEquals(100000, stubBroker.getReservedBuyingPower(ACCT_NAME));
+        
+        openExchange();
+        await("orders not executed", () -> shares(ACCT_NAME, "AAA") == 100);
+        await("buying power not released", 
+                () -> stubBroker.getReservedBuyingPower(ACCT_NAME) == 0);
+        for (Order order : new ArrayList<>(stubExchange.trades)) {
+            assertNotEquals(refused.getOrderId(), order.getOrderId());
+        }
+        assertEquals(0, stubManager.getAccount(ACCT_NAME).getBalance());
+    }
+    
+    //An account's portfolio is valued from its fills, and revalued as the prices of the
+    //stocks it holds change
+    @Test
+    public void testPortfolioRevaluedOnPriceChange() throws Exception {
+        newBroker(1000, "AAA", "BBB");
+        stubBroker.createAccount(ACCT_NAME, ACCT_PASSWORD, 1000000);
+        stubBroker.placeOrder(new MarketBuyOrder(ACCT_NAME, 10, "AAA"));
+        stubBroker.placeOrder(new MarketBuyOrder(ACCT_NAME, 5, "BBB"));
+        await("fills not valued", () -> Long.valueOf(15000).equals(
+                                        stubBroker.getPortfolioValues().get(ACCT_NAME)));
+        
+        stubBroker.priceChanged(
+                ExchangeEvent.newPriceChangedEvent(stubExchange, "AAA", 1200));
+        assertEquals(17000, stubBroker.getPortfolioValue(ACCT_NAME));
+        //an account not yet valued is valued from its positions when asked
+        stubBroker.createAccount("account0", ACCT_PASSWORD, 1000000);
+        assertEquals(0, stubBroker.getPortfolioValue("account0"));
+    }
+    
+    //A price move taking an account's equity below its maintenance requirement raises
+    //one margin call, and another only once the account has recovered; a failing 
+    //listener doesn't keep the call from the others
+    @Test
+    public void testMarginCallRaisedOncePerShortfall() throws Exception {
+        newBroker(1000, "AAA");
+        stubBroker.setMaintenanceMargin(0.25);
+        List<MarginEvent> calls = Collections.synchronizedList(new ArrayList<>());
+        stubBroker.addMarginListener(call -> {
+            throw new IllegalStateException("listener failed");
+        });
+        stubBroker.addMarginListener(calls::add);
+        stubBroker.createAccount(ACCT_NAME, ACCT_PASSWORD, 100000);
+        stubBroker.placeOrder(new MarketSellOrder(ACCT_NAME, 200, "AAA"));
+        await("short sale not valued", () -> Long.valueOf(-200000).equals(
+                                        stubBroker.getPortfolioValues().get(ACCT_NAME)));
+        
+        stubBroker.priceChanged(
+                ExchangeEvent.newPriceChangedEvent(stubExchange, "AAA", 1200));
+        assertTrue(calls.isEmpty());
+        stubBroker.priceChanged(
+                ExchangeEvent.newPriceChangedEvent(stubExchange, "AAA", 1400));
+        assertEquals(1, calls.size());
+        MarginEvent call = calls.get(0);
+        assertEquals(ACCT_NAME, call.getAccountName());
+        assertEquals("AAA", call.getTicker());
+        assertEquals(1400, call.getPrice());
+        assertEquals(300000 - 280000, call.getEquity());
+        assertEquals(70000, call.getRequirement());
+        assertEquals(50000, call.getDeficiency());
+        
+        stubBroker.priceChanged(
+                ExchangeEvent.newPriceChangedEvent(stubExchange, "AAA", 1450));
+        assertEquals(1, calls.size());
+        stubBroker.priceChanged(
+                ExchangeEvent.newPriceChangedEvent(stubExchange, "AAA", 1000));
+        stubBroker.priceChanged(
+                ExchangeEvent.newPriceChangedEvent(stubExchange, "AAA", 1400));
+        assertEquals(2, calls.size());
+    }
+    
+    //The exchange closing runs the end-of-day batch, stating every account once, with
+    //its positions valued at the last prices
+    @Test
+    public void testEndOfDayBatchStatesEveryAccount() throws Exception {
+        newBroker(1000, "AAA");
+        Map<String, AccountStatement> statements = new ConcurrentHashMap<>();
+        stubBroker.setStatementSink(statement -> assertNull(
+                        statements.put(statement.getAccountName(), statement)));
+        stubBroker.setEndOfDayParallelism(4);
+        stubBroker.setEndOfDayBatch(true);
+        final int accounts = 20;
+        for (int i = 0; i < accounts; i++) {
+            stubBroker.createAccount("account" + i, ACCT_PASSWORD, 1000000);
+        }
+        stubBroker.placeOrder(new MarketBuyOrder("account0", 10, "AAA"));
+        await("fill not valued", () -> Long.valueOf(10000).equals(
+                                        stubBroker.getPortfolioValues().get("account0")));
+        stubBroker.priceChanged(
+                ExchangeEvent.newPriceChangedEvent(stubExchange, "AAA", 1500));
+        
+        closeExchange();
+        assertEquals(accounts, 
+                stubBroker.getEndOfDayBatch().get(10, TimeUnit.SECONDS).getAccounts());
+        assertEquals(accounts, statements.size());
+        AccountStatement statement = statements.get("account0");
+        assertEquals(1000000 - 10000, statement.getBalance());
+        assertEquals(Long.valueOf(10), statement.getPositions().get("AAA"));
+        assertEquals(15000, statement.getMarketValue());
+        assertEquals(1000000 - 10000 + 15000, statement.getEquity());
+        assertTrue(statements.get("account1").getPositions().isEmpty());
+        
+        //a statement the sink can't take fails the batch
+        stubBroker.setStatementSink(failed -> {
+            throw new IllegalStateException("sink failed");
+        });
+        try {
+            stubBroker.runEndOfDayBatch();
+            fail("failed batch completed normally");
+        } catch (BrokerException e) {
+            //expected
+        }
+    }
+    
+    //Sells aren't checked against the shares held: a sale past them opens a short 
+    //position, as the broker's policy allows
+    @Test
+    public void testSaleBeyondHoldingsOpensShortPosition() throws Exception {
+        newBroker(1000, "AAA");
+        stubBroker.setBuyingPowerCheck(true);
+        stubBroker.createAccount(ACCT_NAME, ACCT_PASSWORD, 1000000);
+        stubBroker.placeOrder(new MarketSellOrder(ACCT_NAME, 60, "AAA"));
+        await("sale not reflected", () -> shares(ACCT_NAME, "AAA") == -60);
+        assertEquals(1000000 + 60 * 1000, stubManager.getAccount(ACCT_NAME).getBalance());
+        assertEquals(0, stubBroker.getReservedBuyingPower(ACCT_NAME));
+    }
+    
+    //Market orders released at the open are netted into one parent order per stock, and
+    //every order is filled at its stock's parent price
+    @Test
+    public void testOpeningBatchNetsEachStock() throws Exception {
+        newBroker(1000, "AAA", "BBB");
+        stubBroker.createAccount("account0", ACCT_PASSWORD, 10000000);
+        stubBroker.createAccount("account1", ACCT_PASSWORD, 10000000);
+        //the seller holds the shares it sells
+        stubBroker.placeOrder(new MarketBuyOrder("account1", 20, "AAA"));
+        stubBroker.placeOrder(new MarketBuyOrder("account1", 21, "BBB"));
+        await("shares not bought", () -> shares("account1", "AAA") == 20
+                                        && shares("account1", "BBB") == 21);
+        stubExchange.trades.clear();
+        
+        closeExchange();
+        stubBroker.setOpeningBatch(true);
+        for (int i = 0; i < 10; i++) {
+            stubBroker.placeOrder(new MarketBuyOrder("account0", 10, "AAA"));
+        }
+        for (int i = 0; i < 4; i++) {
+            stubBroker.placeOrder(new MarketSellOrder("account1", 5, "AAA"));
+        }
+        for (int i = 0; i < 3; i++) {
+            stubBroker.placeOrder(new MarketBuyOrder("account0", 7, "BBB"));
+            stubBroker.placeOrder(new MarketSellOrder("account1", 7, "BBB"));
+        }
+        
+        //the parent trades at a price apart from the quote
+        stubExchange.quotes.put("AAA", 1010);
+        openExchange();
+        await("fills not reflected", () -> shares("account0", "AAA") == 100
+                                        && shares("account1", "AAA") == 0
+                                        && shares("account0", "BBB") == 21
+                                        && shares("account1", "BBB") == 0);
+        
+        //BBB nets to zero and costs no exchange call
+        assertEquals(1, stubExchange.trades.size());
+        Order parent = stubExchange.trades.get(0);
+        assertEquals("AAA", parent.getStockTicker());
+        assertTrue(parent.isBuyOrder());
+        assertEquals(80, parent.getNumberOfShares());
+        assertEquals(10000000 - 100 * 1010 - 21 * 1000, 
+                                        stubManager.getAccount("account0").getBalance());
+        assertEquals(10000000 - 41 * 1000 + 20 * 1010 + 21 * 1000, 
+                                        stubManager.getAccount("account1").getBalance());
+        
+        //the batch closes with the open
+        stubBroker.placeOrder(new MarketBuyOrder("account0", 1, "AAA"));
+        await("order after the open not traded", () -> stubExchange.trades.size() == 2);
+        assertEquals(1, stubExchange.trades.get(1).getNumberOfShares());
+    }
+    
+    //A stock whose parent order fails, or trades at no price, fails its own orders and
+    //releases their reservations, without affecting the other stocks
+    @Test
+    public void testOpeningBatchFailsOnlyTheFailedStock() throws Exception {
+        newBroker(1000, "AAA", "BBB", "CCC");
+        closeExchange();
+        stubBroker.setOpeningBatch(true);
+        stubBroker.setBuyingPowerCheck(true);
+        stubBroker.createAccount(ACCT_NAME, ACCT_PASSWORD, 10000000);
+        Set<Integer> orderIds = new HashSet<>();
+        for (String ticker : stubExchange.tickers) {
+            for (int i = 0; i < 3; i++) {
+                MarketBuyOrder order = new MarketBuyOrder(ACCT_NAME, 10, ticker);
+                orderIds.add(order.getOrderId());
+                stubBroker.placeOrder(order);
+            }
+        }
+        assertEquals(90000, stubBroker.getReservedBuyingPower(ACCT_NAME));
+        
+        stubExchange.down.add("AAA");
+        stubExchange.quotes.put("BBB", 0);
+        openExchange();
+        await("buying power not released", 
+                () -> stubBroker.getReservedBuyingPower(ACCT_NAME) == 0);
+        
+        //one parent per stock, and no order routed on its own
+        assertEquals(3, stubExchange.trades.size());
+        assertEquals(6, stubBroker.getFailedOrders().size());
+        assertTrue(orderIds.containsAll(stubBroker.getFailedOrders()));
+        AccountImpl account = (AccountImpl) stubManager.getAccount(ACCT_NAME);
+        assertEquals(0, account.getShares("AAA"));
+        assertEquals(0, account.getShares("BBB"));
+        assertEquals(30, account.getShares("CCC"));
+        assertEquals(10000000 - 30 * 1000, account.getBalance());
+    }
+    
+    //Closes the broker on the stub exchange, if a test created one
+    @After
+    public void tearDown() throws BrokerException {
+        if (stubBroker != null) {
+            stubBroker.close();
+        }
+    }
+    
+    //Creates a broker on a stub exchange listing the stocks at a price, open, with its 
+    //own account manager and accounts directory
+    private void newBroker(final int price, final String... tickers) throws Exception {
+        stubExchange = new StubExchange(price, tickers);
+        FileAccountDAO stubDao = new FileAccountDAO();
+        stubDao.setParentDirectory(Files.createTempDirectory("accounts").toFile());
+        stubDao.reset();
+        stubManager = new AccountManagerImpl();
+        stubManager.setAccountDAO(stubDao);
+        stubBroker = new BrokerImpl(BROKER_NAME, stubManager, stubExchange);
+    }
+    
+    //Closes the stub exchange, as its close event would
+    private void closeExchange() {
+        stubExchange.open = false;
+        stubBroker.exchangeClosed(ExchangeEvent.newClosedEvent(stubExchange));
+    }
+    
+    //Opens the stub exchange, as its open event would
+    private void openExchange() {
+        stubExchange.open = true;
+        stubBroker.exchangeOpened(ExchangeEvent.newOpenedEvent(stubExchange));
+    }
+    
+    //Totals the shares of a stock held by the accounts named with a prefix and a number
+    private long totalShares(final String prefix, final int accounts, final String ticker) {
+        long shares = 0;
+        for (int i = 0; i < accounts; i++) {
+            shares += shares(prefix + i, ticker);
+        }
+        return shares;
+    }
+    
+    //Obtains the shares of a stock held by an account of the stub broker
+    private long shares(final String accountName, final String ticker) {
+        try {
+            return ((AccountImpl) stubManager.getAccount(accountName)).getShares(ticker);
+        } catch (AccountException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+    
+    //Waits up to 10 seconds for a condition settled by other threads, failing the test
+    //with the message if it doesn't hold by then
+    private static void await(final String message, final BooleanSupplier condition) 
+                                                            throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (!condition.getAsBoolean()) {
+            if (System.currentTimeMillis() > deadline) {
+                fail(message);
+            }
+            Thread.sleep(10);
+        }
+    }
+    
+    //An exchange whose quotes, hours and fills the tests control; orders fill at the 
+    //stock's quote
+    static class StubExchange implements StockExchange {
+        final String[] tickers;
+        final Map<String, Integer> quotes = new ConcurrentHashMap<>();
+        final List<Order> trades = Collections.synchronizedList(new ArrayList<>());
+        final Set<String> down = ConcurrentHashMap.newKeySet();
+        //prices a stock moves to, one with each quote taken
+        final Map<String, Queue<Integer>> moves = new ConcurrentHashMap<>();
+        volatile boolean open = true;
+        
+        StubExchange(final int price, final String... tickers) {
+            this.tickers = tickers;
+            for (String ticker : tickers) {
+                quotes.put(ticker, price);
+            }
+        }
+        
+        @Override
+        public boolean isOpen() {
+            return open;
+        }
+        
+        @Override
+        public String[] getTickers() {
+            return tickers;
+        }
+        
+        @Override
+        public StockQuote getQuote(final String ticker) {
+            Integer price = quotes.get(ticker);
+            Queue<Integer> next = moves.get(ticker);
+            Integer move = next == null ? null : next.poll();
+            if (move != null) {
+                quotes.put(ticker, move);
+            }
+            return price == null ? null : new StockQuote(ticker, price);
+        }
+        
+        @Override
+        public void addExchangeListener(final ExchangeListener listener) {}
+        
+        @Override
+        public void removeExchangeListener(final ExchangeListener listener) {}
+        
+        @Override
+        public int executeTrade(final Order order) {
+            trades.add(order);
+            if (down.contains(order.getStockTicker())) {
+                throw new IllegalStateException("exchange down");
+            }
+            return quotes.get(order.getStockTicker());
+        }
+    }
 }
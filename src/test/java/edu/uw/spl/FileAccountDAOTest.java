@@ -0,0 +1,194 @@
+package edu.uw.spl;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Collectors;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import edu.uw.ext.framework.account.Account;
+import edu.uw.spl.account.AccountFactoryImpl;
+import edu.uw.spl.account.AccountImpl;
+import edu.uw.spl.account.AddressImpl;
+import edu.uw.spl.account.CreditCardImpl;
+import edu.uw.spl.dao.AccountDirectoryLayout;
+import edu.uw.spl.dao.FileAccountDAO;
+
+public class FileAccountDAOTest {
+
+    final private String ACCT_NAME = "testAccount";
+
+    final private int ACCT_BALANCE = 100000;
+
+    private File parentDirectory;
+
+    private FileAccountDAO accountDao;
+
+    @Before
+    public void setup() throws Exception {
+        parentDirectory = new File(Files.createTempDirectory("dao").toFile(), "accounts");
+        accountDao = new FileAccountDAO();
+        accountDao.setParentDirectory(parentDirectory);
+        accountDao.reset();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        accountDao.close();
+    }
+
+    //A reset deletes every account, with the shard directories holding them
+    @Test
+    public void testResetDeletesAccountTree() throws Exception {
+        for (int i = 0; i < 20; i++) {
+            accountDao.setAccount(newAccount("account" + i));
+        }
+        accountDao.reset();
+        assertEquals(0, parentDirectory.list().length);
+        assertNull(accountDao.getAccount("account0"));
+        assertTrue(accountDao.getAccountNames().isEmpty());
+    }
+
+    //An instant reset empties the directory at once, and deletes the tree it renamed
+    //away in the background
+    @Test
+    public void testInstantResetCollectsTrash() throws Exception {
+        for (int i = 0; i < 20; i++) {
+            accountDao.setAccount(newAccount("account" + i));
+        }
+        accountDao.setInstantReset(true);
+        accountDao.reset();
+        assertEquals(0, parentDirectory.list().length);
+        assertNull(accountDao.getAccount("account0"));
+
+        long deadline = System.currentTimeMillis() + 10000;
+        while (trash().length > 0) {
+            assertTrue("trash not collected", System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+        //the emptied directory is usable straight away
+        accountDao.setAccount(newAccount("account0"));
+        assertEquals(ACCT_BALANCE, accountDao.getAccount("account0").getBalance());
+    }
+
+    //A write changing only the balance rewrites the ledger file alone, and a read
+    //applies it over the account file
+    @Test
+    public void testBalanceOnlyWriteRewritesLedgerOnly() throws Exception {
+        accountDao.setAccount(newAccount(ACCT_NAME));
+        Account account = accountDao.getAccount(ACCT_NAME);
+        File directory = AccountDirectoryLayout.shardedDirectory(parentDirectory, ACCT_NAME);
+        Path accountFile = new File(directory, "account.bin").toPath();
+        Path ledgerFile = new File(directory, "balance.bin").toPath();
+        byte[] ledger = Files.readAllBytes(ledgerFile);
+        //a stamp no rewrite of the account file would leave in place
+        FileTime stamp = FileTime.fromMillis(0);
+        Files.setLastModifiedTime(accountFile, stamp);
+
+        account.setBalance(ACCT_BALANCE * 2);
+        accountDao.setAccount(account);
+        assertEquals(stamp, Files.getLastModifiedTime(accountFile));
+        assertFalse(Arrays.equals(ledger, Files.readAllBytes(ledgerFile)));
+        assertEquals(ACCT_BALANCE * 2, accountDao.getAccount(ACCT_NAME).getBalance());
+
+        //a change to another field rewrites the account file
+        account.setEmail("a@b.c");
+        accountDao.setAccount(account);
+        assertNotEquals(stamp, Files.getLastModifiedTime(accountFile));
+        assertEquals("a@b.c", accountDao.getAccount(ACCT_NAME).getEmail());
+    }
+
+    //A read leaves the address and credit card unread until first asked for, and a
+    //balance-only write doesn't read them either
+    @Test
+    public void testAddressAndCardLoadedOnFirstAccess() throws Exception {
+        Account account = newAccount(ACCT_NAME);
+        AddressImpl address = new AddressImpl();
+        address.setCity("Seattle");
+        account.setAddress(address);
+        CreditCardImpl card = new CreditCardImpl();
+        card.setHolder("Card Holder");
+        account.setCreditCard(card);
+        accountDao.setAccount(account);
+
+        AccountImpl read = (AccountImpl) accountDao.getAccount(ACCT_NAME);
+        assertTrue(read.hasUnloadedAddress());
+        assertTrue(read.hasUnloadedCreditCard());
+        read.setBalance(ACCT_BALANCE * 2);
+        accountDao.setAccount(read);
+        assertTrue(read.hasUnloadedAddress());
+
+        assertEquals("Seattle", read.getAddress().getCity());
+        assertFalse(read.hasUnloadedAddress());
+        assertTrue(read.hasUnloadedCreditCard());
+        assertEquals("Card Holder", read.getCreditCard().getHolder());
+    }
+
+    //A deferred file which can't be read fails its getter, and is read again on the
+    //next access
+    @Test
+    public void testUnreadableAddressRetried() throws Exception {
+        Account account = newAccount(ACCT_NAME);
+        AddressImpl address = new AddressImpl();
+        address.setCity("Seattle");
+        account.setAddress(address);
+        accountDao.setAccount(account);
+        File directory = AccountDirectoryLayout.shardedDirectory(parentDirectory, ACCT_NAME);
+        Path addressFile = new File(directory, "address.bin").toPath();
+        byte[] contents = Files.readAllBytes(addressFile);
+
+        AccountImpl read = (AccountImpl) accountDao.getAccount(ACCT_NAME);
+        Files.write(addressFile, new byte[] {1, 2, 3});
+        try {
+            read.getAddress();
+            fail("unreadable address read");
+        } catch (UncheckedIOException e) {
+            //expected
+        }
+        Files.write(addressFile, contents);
+        assertEquals("Seattle", read.getAddress().getCity());
+    }
+
+    //A parallel stream of the accounts, split down to second-level shards, lists every
+    //account once
+    @Test
+    public void testParallelStreamListsEveryAccount() throws Exception {
+        Set<String> expected = new HashSet<>();
+        for (int i = 0; i < 20; i++) {
+            accountDao.setAccount(newAccount("account" + i));
+            expected.add("account" + i);
+        }
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            List<String> names = pool.submit(() -> accountDao.streamAccountNames().parallel()
+                                                    .collect(Collectors.toList())).get();
+            assertEquals(expected.size(), names.size());
+            assertEquals(expected, new HashSet<>(names));
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    //Creates an account with the default balance
+    private Account newAccount(final String accountName) {
+        return new AccountFactoryImpl().newAccount(accountName, new byte[] {1}, ACCT_BALANCE);
+    }
+
+    //Lists the directories an instant reset renamed away, not yet collected
+    private File[] trash() {
+        return parentDirectory.getParentFile().listFiles(
+                file -> file.isDirectory() && file.getName().startsWith("accounts.trash-"));
+    }
+}
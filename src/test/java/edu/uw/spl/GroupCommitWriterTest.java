@@ -0,0 +1,108 @@
+package edu.uw.spl;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import edu.uw.spl.dao.GroupCommitWriter;
+import edu.uw.spl.dao.GroupCommitWriter.Durability;
+
+public class GroupCommitWriterTest {
+
+    private File root;
+
+    private File journalFile;
+
+    private GroupCommitWriter writer;
+
+    @Before
+    public void setup() throws Exception {
+        File directory = Files.createTempDirectory("writer").toFile();
+        root = new File(directory, "accounts");
+        journalFile = new File(directory, "accounts.journal");
+        writer = new GroupCommitWriter(journalFile, root, Durability.GROUP);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        writer.close();
+    }
+
+    //Writes acknowledged but not yet checkpointed are restored from the journal by the
+    //next writer opened on it, as after a crash
+    @Test
+    public void testJournalReplaysAcknowledgedWrites() throws Exception {
+        Path file = new File(root, "a/balance.bin").toPath();
+        writer.write(file, new byte[] {1, 2, 3}).get();
+        File crashed = crash();
+
+        Files.delete(file);
+        writer = new GroupCommitWriter(crashed, root, Durability.GROUP);
+        assertArrayEquals(new byte[] {1, 2, 3}, Files.readAllBytes(file));
+    }
+
+    //A batch which fails once journaled is cut back out of the journal, so a replay
+    //never applies a write its caller was told failed, while earlier writes still replay
+    @Test
+    public void testFailedBatchIsNotReplayed() throws Exception {
+        Path committed = new File(root, "a/balance.bin").toPath();
+        writer.write(committed, new byte[] {1}).get();
+        //a file where the write needs a directory fails the write after journaling it
+        Files.write(new File(root, "b").toPath(), new byte[0]);
+        Path failed = new File(root, "b/balance.bin").toPath();
+        try {
+            writer.write(failed, new byte[] {2}).get();
+            fail("write under a file succeeded");
+        } catch (ExecutionException e) {
+            //expected
+        }
+        File crashed = crash();
+
+        Files.delete(committed);
+        Files.delete(new File(root, "b").toPath());
+        writer = new GroupCommitWriter(crashed, root, Durability.GROUP);
+        assertArrayEquals(new byte[] {1}, Files.readAllBytes(committed));
+        assertFalse("failed write replayed", Files.exists(failed));
+    }
+
+    //A deletion runs after the writes queued before it, and before those queued after it
+    @Test
+    public void testDeletionIsOrderedWithWrites() throws Exception {
+        File account = new File(root, "a");
+        Path before = new File(account, "account.bin").toPath();
+        Path after = new File(account, "balance.bin").toPath();
+        CompletableFuture<Void> write = writer.write(before, new byte[] {1});
+        CompletableFuture<Void> deletion = writer.delete(() -> {
+            Files.delete(before);
+            Files.delete(account.toPath());
+        });
+        CompletableFuture<Void> rewrite = writer.write(after, new byte[] {2});
+        CompletableFuture.allOf(write, deletion, rewrite).get();
+
+        assertFalse(Files.exists(before));
+        assertArrayEquals(new byte[] {2}, Files.readAllBytes(after));
+
+        //the deletion's checkpoint leaves nothing in the journal to restore the file
+        Files.delete(after);
+        File crashed = crash();
+        writer = new GroupCommitWriter(crashed, root, Durability.GROUP);
+        assertFalse("deleted file restored", Files.exists(before));
+    }
+
+    //Copies the journal as it stands, as a crash would leave it, and closes the writer
+    private File crash() throws Exception {
+        File copy = new File(journalFile.getParentFile(), "crashed.journal");
+        Files.copy(journalFile.toPath(), copy.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        writer.close();
+        return copy;
+    }
+}
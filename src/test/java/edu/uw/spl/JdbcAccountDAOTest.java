@@ -0,0 +1,119 @@
+package edu.uw.spl;
+
+import static org.junit.Assert.*;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import edu.uw.ext.framework.account.Account;
+import edu.uw.spl.account.AccountFactoryImpl;
+import edu.uw.spl.dao.JdbcAccountDAO;
+
+public class JdbcAccountDAOTest {
+
+    final private String ACCT_NAME = "testAccount";
+
+    final private int ACCT_BALANCE = 100000;
+
+    //each test gets its own in-memory database
+    private static final AtomicInteger DATABASES = new AtomicInteger();
+
+    private String url;
+
+    private JdbcAccountDAO accountDao;
+
+    @Before
+    public void setup() throws Exception {
+        url = "jdbc:h2:mem:accounts" + DATABASES.incrementAndGet() + ";DB_CLOSE_DELAY=-1";
+        accountDao = new JdbcAccountDAO();
+        accountDao.setUrl(url);
+        accountDao.reset();
+    }
+
+    //Accounts written concurrently, and so batched together, are all persisted
+    @Test
+    public void testConcurrentWritesAllPersisted() throws Exception {
+        final int accounts = 200;
+        ExecutorService writers = Executors.newFixedThreadPool(8);
+        List<Future<?>> writes = new ArrayList<>();
+        for (int i = 0; i < accounts; i++) {
+            final Account account = newAccount("account" + i, ACCT_BALANCE + i);
+            writes.add(writers.submit(() -> {
+                accountDao.setAccount(account);
+                return null;
+            }));
+        }
+        for (Future<?> write : writes) {
+            write.get();
+        }
+        writers.shutdown();
+
+        assertEquals(accounts, accountDao.getAccountNames().size());
+        for (int i = 0; i < accounts; i++) {
+            assertEquals(ACCT_BALANCE + i, accountDao.getAccount("account" + i).getBalance());
+        }
+    }
+
+    //A write changing only the balance updates the balance column alone, leaving the
+    //rest of the row as it is
+    @Test
+    public void testBalanceOnlyWriteUpdatesLedger() throws Exception {
+        accountDao.setAccount(newAccount(ACCT_NAME, ACCT_BALANCE));
+        Account account = accountDao.getAccount(ACCT_NAME);
+        sql("UPDATE account SET email = 'changed' WHERE name = '" + ACCT_NAME + "'");
+
+        account.setBalance(ACCT_BALANCE * 2);
+        accountDao.setAccount(account);
+        Account read = accountDao.getAccount(ACCT_NAME);
+        assertEquals(ACCT_BALANCE * 2, read.getBalance());
+        assertEquals("changed", read.getEmail());
+
+        //a change to another field rewrites the row whole
+        read.setFullName("Full Name");
+        read.setEmail("a@b.c");
+        accountDao.setAccount(read);
+        assertEquals("a@b.c", accountDao.getAccount(ACCT_NAME).getEmail());
+        assertEquals("Full Name", accountDao.getAccount(ACCT_NAME).getFullName());
+    }
+
+    //A balance-only write of an account whose row was removed since it was read writes
+    //the account whole
+    @Test
+    public void testBalanceOnlyWriteRecreatesRemovedRow() throws Exception {
+        Account account = newAccount(ACCT_NAME, ACCT_BALANCE);
+        account.setEmail("a@b.c");
+        accountDao.setAccount(account);
+        account = accountDao.getAccount(ACCT_NAME);
+        sql("DELETE FROM account WHERE name = '" + ACCT_NAME + "'");
+
+        account.setBalance(ACCT_BALANCE * 2);
+        accountDao.setAccount(account);
+        Account read = accountDao.getAccount(ACCT_NAME);
+        assertNotNull(read);
+        assertEquals(ACCT_BALANCE * 2, read.getBalance());
+        assertEquals("a@b.c", read.getEmail());
+    }
+
+    //Creates an account
+    private static Account newAccount(final String accountName, final int balance) {
+        return new AccountFactoryImpl().newAccount(accountName, new byte[] {1}, balance);
+    }
+
+    //Runs a statement on the database directly, behind the DAO's back
+    private void sql(final String statement) throws Exception {
+        try (Connection connection = DriverManager.getConnection(url, "sa", "");
+                Statement update = connection.createStatement()) {
+            assertEquals(1, update.executeUpdate(statement));
+        }
+    }
+}
@@ -2,6 +2,10 @@ package edu.uw.spl;
 
 import static org.junit.Assert.*;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 import java.util.Set;
 import java.util.TreeSet;
 import java.util.function.BiPredicate;
@@ -13,6 +17,9 @@ import org.junit.Test;
 import edu.uw.ext.framework.order.Order;
 import edu.uw.ext.framework.order.StopBuyOrder;
 import edu.uw.ext.framework.order.StopSellOrder;
+import edu.uw.spl.broker.LimitBuyOrder;
+import edu.uw.spl.broker.LimitOrderBook;
+import edu.uw.spl.broker.LimitSellOrder;
 import edu.uw.spl.broker.OrderManagerImpl;
 import edu.uw.spl.broker.OrderQueueImpl;
 
@@ -110,5 +117,121 @@ public class OrderManagerImplTest {
         assertTrue(ts instanceof TreeSet);
         assertEquals(orderManager.getStopBuyOrderQueue().length(),ts.size());
     }
-
+    
+    //A replacement at the same stop price for no more shares keeps the original's 
+    //place; a replacement for more shares goes behind its price level
+    @Test
+    public void testReplaceOrderKeepsPlaceUnlessIncreased() {
+        OrderManagerImpl manager = new OrderManagerImpl(MSFT, MSFT_PRICE_THRESHOLD);
+        List<Integer> dispatched = Collections.synchronizedList(new ArrayList<>());
+        manager.setBuyOrderProcessor((order)-> dispatched.add(order.getOrderId()));
+        
+        StopBuyOrder first = new StopBuyOrder("neotheone", 10, MSFT, 600);
+        StopBuyOrder second = new StopBuyOrder("neotheone", 10, MSFT, 600);
+        StopBuyOrder third = new StopBuyOrder("neotheone", 10, MSFT, 600);
+        manager.queueOrder(first);
+        manager.queueOrder(second);
+        manager.queueOrder(third);
+        
+        //fewer shares- keeps its place
+        StopBuyOrder reduced = new StopBuyOrder("neotheone", 9, MSFT, 600);
+        assertTrue(manager.replaceOrder(first, reduced));
+        assertFalse(manager.replaceOrder(first, new StopBuyOrder("neotheone", 8, MSFT, 600)));
+        
+        //more shares- behind the orders at its price
+        StopBuyOrder increased = new StopBuyOrder("neotheone", 11, MSFT, 600);
+        assertTrue(manager.replaceOrder(second, increased));
+        
+        manager.adjustPrice(600);
+        assertEquals(Arrays.asList(reduced.getOrderId(), third.getOrderId(), 
+                                   increased.getOrderId()), dispatched);
+        assertEquals(0, manager.getStopBuyOrderQueue().length());
+    }
+    
+    //Stop sell orders dispatch highest stop price first, then oldest first
+    @Test
+    public void testStopSellOrdersDispatchInPriceTimeOrder() {
+        OrderManagerImpl manager = new OrderManagerImpl(MSFT, MSFT_PRICE_THRESHOLD);
+        List<Integer> dispatched = Collections.synchronizedList(new ArrayList<>());
+        manager.setSellOrderProcessor((order)-> dispatched.add(order.getOrderId()));
+        
+        StopSellOrder low = new StopSellOrder("neotheone", 50, MSFT, 400);
+        StopSellOrder high = new StopSellOrder("neotheone", 10, MSFT, 450);
+        StopSellOrder highLater = new StopSellOrder("neotheone", 90, MSFT, 450);
+        manager.queueOrder(low);
+        manager.queueOrder(high);
+        manager.queueOrder(highLater);
+        
+        manager.adjustPrice(400);
+        assertEquals(Arrays.asList(high.getOrderId(), highLater.getOrderId(), 
+                                   low.getOrderId()), dispatched);
+    }
+    
+    //Limit orders trigger best price first, oldest first at a price, and the book's
+    //levels track cancels and requeued orders
+    @Test
+    public void testLimitOrdersDispatchInPriceTimeOrder() {
+        OrderManagerImpl manager = new OrderManagerImpl(MSFT, 1000);
+        List<Integer> dispatched = Collections.synchronizedList(new ArrayList<>());
+        manager.setLimitBuyOrderProcessor((order)-> dispatched.add(order.getOrderId()));
+        manager.setLimitSellOrderProcessor((order)-> dispatched.add(order.getOrderId()));
+        LimitOrderBook book = manager.getLimitOrderBook();
+        
+        LimitBuyOrder first = new LimitBuyOrder("neotheone", 10, MSFT, 990);
+        LimitBuyOrder second = new LimitBuyOrder("neotheone", 20, MSFT, 990);
+        LimitBuyOrder lower = new LimitBuyOrder("neotheone", 5, MSFT, 980);
+        LimitBuyOrder cancelled = new LimitBuyOrder("neotheone", 5, MSFT, 990);
+        LimitSellOrder sell = new LimitSellOrder("neotheone", 7, MSFT, 1010);
+        manager.queueOrder(lower);
+        manager.queueOrder(first);
+        manager.queueOrder(second);
+        manager.queueOrder(cancelled);
+        manager.queueOrder(sell);
+        assertEquals(990, book.getBestBid());
+        assertEquals(1010, book.getBestAsk());
+        assertEquals(Long.valueOf(35), book.getBidLevels(2).get(990));
+        
+        assertTrue(manager.removeOrder(cancelled));
+        assertFalse(manager.removeOrder(cancelled));
+        assertEquals(Long.valueOf(30), book.getBidLevels(2).get(990));
+        assertEquals(4, book.size());
+        
+        //no order's limit is met
+        manager.adjustPrice(995);
+        assertTrue(dispatched.isEmpty());
+        
+        manager.adjustPrice(990);
+        assertEquals(Arrays.asList(first.getOrderId(), second.getOrderId()), dispatched);
+        assertEquals(980, book.getBestBid());
+        
+        //a requeued order waits for the next price meeting its limit
+        dispatched.clear();
+        manager.requeueOrder(first);
+        assertEquals(990, book.getBestBid());
+        assertTrue(dispatched.isEmpty());
+        manager.adjustPrice(1010);
+        assertEquals(Arrays.asList(sell.getOrderId()), dispatched);
+        manager.adjustPrice(980);
+        assertEquals(Arrays.asList(sell.getOrderId(), first.getOrderId(), 
+                                   lower.getOrderId()), dispatched);
+        assertEquals(0, book.size());
+    }
+    
+    //A limit order may fill only within its limit; other orders fill at any price
+    @Test
+    public void testIsWithinLimit() {
+        assertTrue(LimitOrderBook.isWithinLimit(
+                new LimitBuyOrder("neotheone", 1, MSFT, 990), 990));
+        assertFalse(LimitOrderBook.isWithinLimit(
+                new LimitBuyOrder("neotheone", 1, MSFT, 990), 991));
+        assertTrue(LimitOrderBook.isWithinLimit(
+                new LimitSellOrder("neotheone", 1, MSFT, 1010), 1010));
+        assertFalse(LimitOrderBook.isWithinLimit(
+                new LimitSellOrder("neotheone", 1, MSFT, 1010), 1009));
+        //an unknown price meets no limit
+        assertFalse(LimitOrderBook.isWithinLimit(
+                new LimitBuyOrder("neotheone", 1, MSFT, 990), 0));
+        assertTrue(LimitOrderBook.isWithinLimit(
+                new StopBuyOrder("neotheone", 1, MSFT, 990), 2000));
+    }
 }
@@ -0,0 +1,78 @@
+package edu.uw.spl;
+
+import static org.junit.Assert.*;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import edu.uw.spl.broker.PortfolioValuation;
+
+public class PortfolioValuationTest {
+
+    final private String ACCT_NAME = "testAccount";
+
+    final private String OTHER_ACCT_NAME = "otherAccount";
+
+    private PortfolioValuation valuation;
+
+    @Before
+    public void setup() {
+        valuation = new PortfolioValuation();
+        valuation.priceChanged("AAA", 1000);
+        valuation.priceChanged("BBB", 2000);
+    }
+
+    //A price change revalues each holder by the change times its shares, long and short
+    //alike, and leaves the accounts not holding the stock as they are
+    @Test
+    public void testPriceChangeRevaluesHolders() {
+        valuation.track(ACCT_NAME);
+        valuation.track(OTHER_ACCT_NAME);
+        valuation.update(ACCT_NAME, "AAA", () -> 10);
+        valuation.update(ACCT_NAME, "BBB", () -> 1);
+        valuation.update(OTHER_ACCT_NAME, "AAA", () -> -5);
+        assertEquals(12000, valuation.getValue(ACCT_NAME).longValue());
+        assertEquals(-5000, valuation.getValue(OTHER_ACCT_NAME).longValue());
+        assertEquals(5000, valuation.getGrossExposure(OTHER_ACCT_NAME).longValue());
+
+        valuation.priceChanged("AAA", 1100);
+        assertEquals(13000, valuation.getValue(ACCT_NAME).longValue());
+        assertEquals(-5500, valuation.getValue(OTHER_ACCT_NAME).longValue());
+        assertEquals(5500, valuation.getGrossExposure(OTHER_ACCT_NAME).longValue());
+        valuation.priceChanged("BBB", 1000);
+        assertEquals(-5500, valuation.getValue(OTHER_ACCT_NAME).longValue());
+        assertEquals(12000, valuation.getValue(ACCT_NAME).longValue());
+    }
+
+    //Positions are recorded as absolute counts, so recording one twice leaves the value
+    //right, and a position sold off drops the account from the stock's holders
+    @Test
+    public void testPositionsRecordedAsCounts() {
+        valuation.track(ACCT_NAME);
+        valuation.update(ACCT_NAME, "AAA", () -> 10);
+        valuation.update(ACCT_NAME, "AAA", () -> 10);
+        assertEquals(10000, valuation.getValue(ACCT_NAME).longValue());
+        assertEquals(1, valuation.getHolderCount("AAA"));
+
+        valuation.update(ACCT_NAME, "AAA", () -> 0);
+        assertEquals(0, valuation.getValue(ACCT_NAME).longValue());
+        assertEquals(0, valuation.getHolderCount("AAA"));
+        valuation.priceChanged("AAA", 1500);
+        assertEquals(0, valuation.getValue(ACCT_NAME).longValue());
+    }
+
+    //An untracked account isn't valued, and an account removed stops being revalued
+    @Test
+    public void testUntrackedAccountsNotValued() {
+        valuation.update(ACCT_NAME, "AAA", () -> 10);
+        assertNull(valuation.getValue(ACCT_NAME));
+        assertEquals(0, valuation.getHolderCount("AAA"));
+
+        valuation.track(ACCT_NAME);
+        valuation.update(ACCT_NAME, "AAA", () -> 10);
+        valuation.remove(ACCT_NAME);
+        assertNull(valuation.getValue(ACCT_NAME));
+        assertEquals(0, valuation.getHolderCount("AAA"));
+        assertTrue(valuation.getValues().isEmpty());
+    }
+}
@@ -0,0 +1,51 @@
+package edu.uw.spl;
+
+import static org.junit.Assert.*;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+import edu.uw.spl.account.Positions;
+
+public class PositionsTest {
+
+    //A position sold down to zero shares is dropped, and a short position is negative
+    @Test
+    public void testZeroPositionDropped() {
+        Positions positions = new Positions();
+        int ba = Positions.tickerId("BA");
+        assertEquals(10, positions.add(ba, 10));
+        assertEquals(0, positions.add(ba, -10));
+        assertEquals(0, positions.size());
+        assertTrue(positions.toMap().isEmpty());
+
+        assertEquals(-5, positions.add(ba, -5));
+        assertEquals(-5, positions.get(ba));
+        assertEquals(1, positions.size());
+    }
+
+    //Positions in more stocks than the initial slots are all kept, and survive the
+    //removal of others
+    @Test
+    public void testManyPositionsKept() {
+        Positions positions = new Positions();
+        Map<String, Long> expected = new HashMap<>();
+        for (int i = 1; i <= 100; i++) {
+            positions.add(Positions.tickerId("T" + i), i);
+            expected.put("T" + i, (long) i);
+        }
+        for (int i = 1; i <= 100; i += 2) {
+            positions.add(Positions.tickerId("T" + i), -i);
+            expected.remove("T" + i);
+        }
+        assertEquals(50, positions.size());
+        assertEquals(expected, positions.toMap());
+
+        Positions restored = new Positions();
+        restored.replaceWith(expected);
+        assertEquals(expected, restored.toMap());
+        assertEquals(100, restored.get(Positions.tickerId("T100")));
+    }
+}